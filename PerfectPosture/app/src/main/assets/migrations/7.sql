@@ -0,0 +1 @@
+CREATE INDEX IF NOT EXISTS index_Sample_Date ON Sample (Date);
@@ -0,0 +1,72 @@
+package com.brucegiese.perfectposture;
+
+import android.util.Log;
+
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Keeps the daily posture histograms in the DailyHistogram table, next to the rollups.
+ * A year of them is a few hundred small rows, so a percentile over any range never has to
+ * look at the raw samples.
+ */
+class ActiveAndroidHistogramStore implements HistogramStore {
+    private static final String TAG = "com.brucegiese.histogram";
+
+    @Override
+    public boolean read(long day, PostureHistogram histogram) {
+        DailyHistogram row = find(day);
+        histogram.clear();
+        return row != null && decode(row, histogram);
+    }
+
+    @Override
+    public void write(long day, PostureHistogram histogram) throws IOException {
+        try {
+            DailyHistogram row = find(day);
+            if (row == null) {
+                row = new DailyHistogram();
+                row.day = day;
+            }
+            row.total = histogram.getTotal();
+            row.counts = histogram.toBytes();
+            row.save();
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to save the histogram", e);
+        }
+    }
+
+    @Override
+    public void merge(long from, long to, PostureHistogram total) {
+        List<DailyHistogram> rows = new Select()
+                .from(DailyHistogram.class)
+                .where("Day >= ? AND Day < ? AND Total > 0", from, to)
+                .execute();
+        for (DailyHistogram row : rows) {
+            decode(row, total);
+        }
+    }
+
+    @Override
+    public void clear() {
+        new Delete().from(DailyHistogram.class).execute();
+    }
+
+    private DailyHistogram find(long day) {
+        return new Select()
+                .from(DailyHistogram.class)
+                .where("Day = ?", day)
+                .executeSingle();
+    }
+
+    private static boolean decode(DailyHistogram row, PostureHistogram histogram) {
+        if (row.counts == null || !histogram.mergeBytes(row.counts)) {
+            Log.e(TAG, "Skipping a damaged histogram for day " + row.day);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package com.brucegiese.perfectposture;
+
+import android.database.Cursor;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps rollup buckets in the Rollup table.  The rollups are small, so they always live in
+ * the database no matter which storage engine is picked for the raw samples.
+ */
+class ActiveAndroidRollupStore implements RollupStore {
+    private static final String SUM_QUERY =
+            "SELECT SUM(Count), MIN(Min), MAX(Max), SUM(Sum), SUM(SumOfSquares), SUM(GoodCount)"
+            + " FROM Rollup WHERE Level = ? AND Start >= ? AND Start < ? AND Count > 0";
+
+    @Override
+    public boolean read(RollupBucket bucket) {
+        Rollup row = find(bucket.level, bucket.start);
+        bucket.clear();
+        if (row == null) {
+            return false;
+        }
+        row.copyTo(bucket);
+        return true;
+    }
+
+    @Override
+    public void write(List<RollupBucket> buckets) throws IOException {
+        ActiveAndroid.beginTransaction();
+        try {
+            for (RollupBucket bucket : buckets) {
+                Rollup row = find(bucket.level, bucket.start);
+                if (row == null) {
+                    row = new Rollup();
+                }
+                row.copyFrom(bucket);
+                row.save();
+            }
+            ActiveAndroid.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to save rollups", e);
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+    }
+
+    @Override
+    public void sum(RollupLevel level, long from, long to, RollupBucket total) {
+        // Let SQLite do the merging rather than loading every row
+        Cursor cursor = ActiveAndroid.getDatabase().rawQuery(SUM_QUERY, new String[] {
+                String.valueOf(level.ordinal()), String.valueOf(from), String.valueOf(to) });
+        try {
+            if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                RollupBucket part = new RollupBucket(level, from);
+                part.count = cursor.getInt(0);
+                part.min = cursor.getInt(1);
+                part.max = cursor.getInt(2);
+                part.sum = cursor.getLong(3);
+                part.sumOfSquares = cursor.getLong(4);
+                part.goodCount = cursor.getInt(5);
+                total.merge(part);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public List<RollupBucket> list(RollupLevel level, long from, long to) {
+        List<Rollup> rows = new Select()
+                .from(Rollup.class)
+                .where("Level = ? AND Start >= ? AND Start < ?", level.ordinal(), from, to)
+                .orderBy("Start ASC")
+                .execute();
+        List<RollupBucket> buckets = new ArrayList<RollupBucket>(rows.size());
+        for (Rollup row : rows) {
+            RollupBucket bucket = new RollupBucket();
+            row.copyTo(bucket);
+            buckets.add(bucket);
+        }
+        return buckets;
+    }
+
+    @Override
+    public void clear() {
+        new Delete().from(Rollup.class).execute();
+    }
+
+    private Rollup find(RollupLevel level, long start) {
+        return new Select()
+                .from(Rollup.class)
+                .where("Level = ? AND Start = ?", level.ordinal(), start)
+                .executeSingle();
+    }
+}
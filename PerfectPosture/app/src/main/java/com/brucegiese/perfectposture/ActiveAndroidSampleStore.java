@@ -0,0 +1,143 @@
+package com.brucegiese.perfectposture;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The original storage engine: one ActiveAndroid Sample row per sample.
+ * A batch append is done in a single transaction.
+ *
+ * The Sample table uses AUTOINCREMENT, so _ID never goes backward or gets reused.  The store
+ * index of a sample is its _ID minus one, which keeps indexes stable when old rows are
+ * deleted, and lets reads seek on the primary key rather than using OFFSET.
+ */
+class ActiveAndroidSampleStore implements SampleStore {
+    // SQLite can't drop part of a table, so old rows are deleted this many at a time.
+    private static final int DELETE_CHUNK = 2000;
+
+    @Override
+    public void append(SampleBatch batch) throws IOException {
+        ActiveAndroid.beginTransaction();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                new Sample(batch.values[i], new Date(batch.dates[i]), batch.goodPosture[i]).save();
+            }
+            ActiveAndroid.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to save samples", e);
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+    }
+
+    @Override
+    public long size() {
+        // The last _ID handed out, even if that row has since been deleted
+        return queryLong("SELECT seq FROM sqlite_sequence WHERE name = 'Sample'", 0);
+    }
+
+    @Override
+    public long firstIndex() {
+        return queryLong("SELECT MIN(_ID) - 1 FROM Sample", size());
+    }
+
+    @Override
+    public int read(long fromIndex, SampleBatch batch) {
+        batch.clear();
+        List<Sample> samples = new Select()
+                .from(Sample.class)
+                .where("_ID > ?", fromIndex)
+                .orderBy("_ID ASC")
+                .limit(batch.capacity())
+                .execute();
+        batch.setFirstIndex(samples.isEmpty() ? fromIndex : samples.get(0).getId() - 1);
+        for (Sample s : samples) {
+            batch.add(s.getDate().getTime(), s.value, s.isGoodPosture());
+        }
+        return batch.size();
+    }
+
+    @Override
+    public long indexOf(long date) {
+        // ActiveAndroid stores a Date as ms since epoch
+        return queryLong("SELECT MIN(_ID) - 1 FROM Sample WHERE Date >= " + date, size());
+    }
+
+    /**
+     * Each run of samples with the same new flag is one UPDATE on a range of _IDs, all in one
+     * transaction.
+     */
+    @Override
+    public void rewriteFlags(SampleBatch batch) throws IOException {
+        ActiveAndroid.beginTransaction();
+        try {
+            int start = 0;
+            for (int i = 1; i <= batch.size(); i++) {
+                if (i == batch.size() || batch.goodPosture[i] != batch.goodPosture[start]) {
+                    long first = batch.getFirstIndex() + start + 1;
+                    long last = batch.getFirstIndex() + i;
+                    ActiveAndroid.execSQL("UPDATE Sample SET GoodPosture = "
+                            + (batch.goodPosture[start] ? 1 : 0)
+                            + " WHERE _ID >= " + first + " AND _ID <= " + last);
+                    start = i;
+                }
+            }
+            ActiveAndroid.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to rewrite samples", e);
+        } finally {
+            ActiveAndroid.endTransaction();
+        }
+    }
+
+    @Override
+    public long dropOldest(long before) {
+        long last = queryLong("SELECT MAX(_ID) FROM Sample WHERE Date < " + before, 0);
+        if (last == 0) {
+            return -1;
+        }
+        long first = queryLong("SELECT MIN(_ID) FROM Sample", 0);
+        long end = Math.min(last, first + DELETE_CHUNK - 1);
+
+        // SQLite doesn't shrink the file, but freed pages get reused by new samples
+        long freePagesBefore = queryLong("PRAGMA freelist_count", 0);
+        ActiveAndroid.execSQL("DELETE FROM Sample WHERE _ID >= " + first + " AND _ID <= " + end);
+        long freePagesAfter = queryLong("PRAGMA freelist_count", 0);
+        return Math.max(0, freePagesAfter - freePagesBefore) * queryLong("PRAGMA page_size", 0);
+    }
+
+    @Override
+    public void clear() {
+        new Delete().from(Sample.class).execute();
+    }
+
+    @Override
+    public void close() {
+        // ActiveAndroid owns the database connection, so there's nothing to do here.
+    }
+
+    /**
+     * Run a query which returns a single number.
+     * @param ifNull    returned if there's no row or the value is NULL
+     */
+    private static long queryLong(String sql, long ifNull) {
+        SQLiteDatabase db = ActiveAndroid.getDatabase();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+            return ifNull;
+        } finally {
+            cursor.close();
+        }
+    }
+}
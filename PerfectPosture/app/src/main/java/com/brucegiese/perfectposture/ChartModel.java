@@ -0,0 +1,153 @@
+package com.brucegiese.perfectposture;
+
+import com.github.mikephil.charting.data.Entry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The posture samples shown in the chart, kept in a fixed size ring buffer.
+ *
+ * MPAndroidChart wants a List of Entry objects and a List of x labels.  Rather than making
+ * a new Entry and label for every sample (and keeping them forever), this hands the chart
+ * lists of pooled Entry objects which are refilled from the ring buffer by sync().  Memory
+ * stays flat no matter how long the session runs, and the cost of a redraw depends only on
+ * the capacity.
+ *
+ * New samples go on the newest end, pushing out the oldest.  Pages of older history go on the
+ * oldest end, pushing out the newest.  The date of each sample is kept so the next older page
+ * can be found in the SampleStore.
+ *
+ * This is only used on the main thread.
+ */
+class ChartModel {
+    private static final String NO_LABEL = "";        // we don't show x labels
+
+    private final long[] mDates;        // units of ms since epoch
+    private final int[] mValues;
+    private int mFirst;                 // ring position of the oldest sample
+    private int mCount;
+
+    private final Entry[] mPool;
+    private final ArrayList<Entry> mEntries;
+    private final ArrayList<String> mXValues;
+
+    /**
+     * @param capacity  most samples kept
+     */
+    ChartModel(int capacity) {
+        mDates = new long[capacity];
+        mValues = new int[capacity];
+        mPool = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mPool[i] = new Entry(0f, i);
+        }
+        mEntries = new ArrayList<Entry>(capacity);
+        mXValues = new ArrayList<String>(capacity);
+    }
+
+    /**
+     * Add the newest sample, pushing out the oldest if it's full.
+     * @param date  units of ms since epoch
+     */
+    void addLast(long date, int value) {
+        if (mCount == mValues.length) {
+            mFirst = (mFirst + 1) % mValues.length;
+            mCount--;
+        }
+        int slot = (mFirst + mCount) % mValues.length;
+        mDates[slot] = date;
+        mValues[slot] = value;
+        mCount++;
+    }
+
+    /**
+     * Add older samples in front of the oldest one, pushing out the newest if it's full.
+     * Samples which aren't older than the oldest one already here are skipped, so it doesn't
+     * matter if the page overlaps what's already loaded.
+     * @param samples   in time order
+     * @return  how many samples were added
+     */
+    int addFirst(SampleBatch samples) {
+        int end = samples.size();
+        if (mCount > 0) {
+            long oldest = getDate(0);
+            while (end > 0 && samples.dates[end - 1] >= oldest) {
+                end--;
+            }
+        }
+        int n = Math.min(end, mValues.length);
+        mCount = Math.min(mCount, mValues.length - n);      // push out the newest
+        for (int i = end - 1; i >= end - n; i--) {
+            mFirst = (mFirst - 1 + mValues.length) % mValues.length;
+            mDates[mFirst] = samples.dates[i];
+            mValues[mFirst] = samples.values[i];
+            mCount++;
+        }
+        return n;
+    }
+
+    void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mEntries.clear();
+        mXValues.clear();
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    int capacity() {
+        return mValues.length;
+    }
+
+    /**
+     * @param position  0 for the oldest sample
+     */
+    int getValue(int position) {
+        return mValues[(mFirst + position) % mValues.length];
+    }
+
+    /**
+     * @param position  0 for the oldest sample
+     * @return  units of ms since epoch
+     */
+    long getDate(int position) {
+        return mDates[(mFirst + position) % mDates.length];
+    }
+
+    /**
+     * The chart's entries.  These don't change until the next sync().
+     */
+    List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * The chart's x labels, one per entry.
+     */
+    List<String> getXValues() {
+        return mXValues;
+    }
+
+    /**
+     * Refill the chart's entries from the ring buffer, oldest first.  This doesn't allocate
+     * once the model has filled up.
+     */
+    void sync() {
+        while (mEntries.size() < mCount) {
+            mEntries.add(mPool[mEntries.size()]);
+            mXValues.add(NO_LABEL);
+        }
+        while (mEntries.size() > mCount) {
+            mEntries.remove(mEntries.size() - 1);
+            mXValues.remove(mXValues.size() - 1);
+        }
+        for (int i = 0; i < mCount; i++) {
+            Entry entry = mPool[i];
+            entry.setVal((float) getValue(i));
+            entry.setXIndex(i);
+        }
+    }
+}
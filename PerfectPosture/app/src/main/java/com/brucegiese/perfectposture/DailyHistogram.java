@@ -0,0 +1,32 @@
+package com.brucegiese.perfectposture;
+
+import android.annotation.SuppressLint;
+import android.provider.BaseColumns;
+
+import com.activeandroid.Model;
+import com.activeandroid.annotation.Column;
+import com.activeandroid.annotation.Table;
+
+/**
+ * One row per day holding that day's posture histogram.  See HistogramAggregator.
+ */
+@SuppressWarnings("FieldCanBeLocal")
+@Table(name="DailyHistogram", id= BaseColumns._ID)
+class DailyHistogram extends Model {
+    // Start of the day (UTC), units of ms since epoch
+    @Column(name="Day", index=true)
+    public long day;
+
+    // Number of samples counted, so a day can be checked without decoding it
+    @Column(name="Total")
+    public long total;
+
+    // PostureHistogram.toBytes()
+    @Column(name="Counts")
+    public byte[] counts;
+
+    @SuppressLint("all")
+    public DailyHistogram() {       // This constructor is mandatory.  Don't remove it.
+        super();
+    }
+}
@@ -1,55 +1,89 @@
 package com.brucegiese.perfectposture;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.List;
-import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.app.Fragment;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
-import com.activeandroid.query.Delete;
-import com.activeandroid.query.Select;
+import android.widget.TextView;
+import android.widget.Toast;
 import com.github.mikephil.charting.charts.LineChart;
 import com.github.mikephil.charting.components.Legend;
 import com.github.mikephil.charting.components.LimitLine;
 import com.github.mikephil.charting.components.XAxis;
 import com.github.mikephil.charting.components.YAxis;
-import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 
 
 /**
  * This fragment represents the graph of the Z-axis posture data.
- * It uses a broadcast receiver to get the data in real-time and it uses the database
+ * It subscribes to the PostureBus to get the data in real-time and it uses the database
  * to get any previous data.  It uses MPAndroidChart to plot the data.  A previous
  * pre-beta version used aChartEngine.
+ *
+ * The chart only holds a few pages of data, in a ChartModel.  It opens on the newest page,
+ * and older pages are read in the background as the user drags to the left.  Pages which get
+ * far from where the user is looking are dropped.  While the user is looking at older data,
+ * new samples are held back instead of moving the chart.  New samples go into the model right
+ * away, but the chart is redrawn at most once per frame.
+ *
+ * The full history button shows the whole history at once, cut down by HistoryDetail to
+ * about one point per pixel of the chart.  When the user zooms in, drags to the edge of what's
+ * loaded, or zooms all the way out, the range they're looking at is asked for again at the
+ * chart's width, with as much again on each side to drag into.  The label under the chart then
+ * shows the average and how much was bad over that range, from the store's pyramid.
+ *
+ * The export button writes the whole history to a file with HistoryExport, and cancels it if
+ * it's pressed again while the export is running.
  */
 public class GraphFragment extends Fragment {
     private static final String TAG = "com.brucegiese.graph";
     private static final int DATA_POINTS_TO_SHOW = 100;
+    private static final int PAGE_SIZE = 3 * DATA_POINTS_TO_SHOW;          // units of samples
+    private static final int PAGES_KEPT = 5;
+    private static final int CHART_CAPACITY = PAGES_KEPT * PAGE_SIZE;      // units of samples
+    // Start reading the next older page when the view gets this close to the oldest sample
+    private static final int PREFETCH_MARGIN = DATA_POINTS_TO_SHOW / 2;    // units of samples
+    private static final long FRAME_INTERVAL = 16;                          // units of ms
+    // The full history view loads this many times the range being looked at
+    private static final int DETAIL_CONTEXT = 3;
 
     private LineChart mLineChart;
-    private int mIndex;
-    private ArrayList<Entry> mPostureSamples;
+    private int mIndex;                 // number of points added since the data was set up
+    private final ChartModel mModel = new ChartModel(CHART_CAPACITY);
+    private LineDataSet mLineDataSet;
     private LineData mLineData;
-    private DataReceiver mDataReceiver;
+    private boolean mRedrawPending = false;
+    private int mMoveTo = -1;           // x index to show after the next redraw, if not following
+    private int mGeneration;            // bumped whenever the model is reloaded
+    private boolean mLoadingOlder = false;
+    private boolean mAtOldest = false;  // there's nothing older in the store
+    private boolean mBrowsing = false;  // the user is looking at older data
+    private boolean mNewestDropped = false;
+    // New samples which arrive while browsing; if this overflows we just reload the newest page
+    private final SampleBatch mHeldBack = new SampleBatch(PAGE_SIZE);
+    private boolean mHeldBackOverflow = false;
+    private boolean mFullHistory = false;   // showing the whole history, cut down
+    private boolean mLoadingDetail = false;
+    private boolean mDetailAtStart;         // the full history view has the oldest sample
+    private boolean mDetailAtEnd;           // the full history view has the newest sample
+    private long mShowFrom;                 // units of ms since epoch, zoom to this once loaded
+    private long mShowTo;                   // units of ms since epoch, zero to show it all
+    private Button mFullHistoryButton;
+    private TextView mChartLabel;
+    private Button mExportButton;
+    private final DataSubscriber mDataSubscriber = new DataSubscriber();
     private boolean mChartValid = false;
 
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        mDataReceiver = new DataReceiver();
-    }
-
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -60,13 +94,43 @@ public class GraphFragment extends Fragment {
         button.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                // Clear all the data from the database (and also the chart)
+                // Clear all the data.  The chart is emptied when HISTORY_CLEARED comes back,
+                // and the actual deleting happens in the background after that.
                 Log.d(TAG, "clearing data");
-                new Delete().from(Sample.class).execute();      // delete all records!!!
-                setupData();                                    // delete data in the chart
+                SampleStores.clear(getActivity());
+            }
+        });
+
+        mChartLabel = (TextView) v.findViewById(R.id.chart_label);
+        mFullHistoryButton = (Button) v.findViewById(R.id.full_history_button);
+        mFullHistoryButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (mFullHistory) {
+                    setupData();                    // back to the newest page
+                } else {
+                    showFullHistory();
+                }
             }
         });
 
+        mExportButton = (Button) v.findViewById(R.id.export_button);
+        mExportButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (HistoryExport.isRunning()) {
+                    HistoryExport.cancel();
+                } else {
+                    HistoryExport.start(getActivity());
+                    showExportProgress(0);
+                }
+            }
+        });
+        HistoryExport.setListener(mExportListener);
+        if (HistoryExport.isRunning()) {
+            showExportProgress(HistoryExport.getPercent());
+        }
+
         /*
         *       Set up the chart
          */
@@ -125,21 +189,32 @@ public class GraphFragment extends Fragment {
          */
         mLineChart.setDragEnabled(true);
         mLineChart.setPinchZoom(false);
+        mLineChart.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View view, MotionEvent event) {
+                if (event.getAction() == MotionEvent.ACTION_MOVE
+                        || event.getAction() == MotionEvent.ACTION_UP) {
+                    checkVisibleRange();
+                }
+                if (event.getAction() == MotionEvent.ACTION_UP && mFullHistory) {
+                    checkDetailRange();
+                }
+                return false;           // let the chart do the dragging
+            }
+        });
 
-        // Register the broadcast receiver
-        IntentFilter iFilter = new IntentFilter();
-        iFilter.addAction(OrientationService.NEW_DATA_POINT_INTENT);
-        iFilter.addAction(PerfectPostureActivity.REDRAW_GRAPH_INTENT);
-        LocalBroadcastManager.getInstance(getActivity())
-                .registerReceiver(mDataReceiver, iFilter);
+        // The chart wants every sample.  This is unsubscribed in onDestroyView(), since the
+        // view can go away (the fragment being replaced) while the Activity stays.
+        PostureBus.get().subscribe(getActivity(), mDataSubscriber, PostureBus.Conflation.BATCH);
 
         return v;
     }
 
     private void drawLimitLines() {
         if( mLineChart != null) {
-            int posThreshold = OrientationService.getZAxisPositiveThreshold(getActivity());
-            int negThreshold = OrientationService.getZAxisNegativeThreshold(getActivity());
+            PostureConfig config = PostureSettings.get(getActivity());
+            int posThreshold = config.getHigh();
+            int negThreshold = config.getLow();
             YAxis yAxis = mLineChart.getAxisLeft();
             yAxis.removeAllLimitLines();
 
@@ -177,10 +252,21 @@ public class GraphFragment extends Fragment {
      * the user clears out the database, for instance.
      */
     private void setupData() {
-        LineDataSet mLineDataSet;
         mIndex = 0;
-        mPostureSamples = new ArrayList<Entry>();
-        mLineDataSet = new LineDataSet(mPostureSamples, getString(R.string.posture_readings));
+        mModel.clear();
+        mGeneration++;
+        mLoadingOlder = false;
+        mLoadingDetail = false;
+        mAtOldest = false;
+        mBrowsing = false;
+        mNewestDropped = false;
+        mHeldBack.clear();
+        mHeldBackOverflow = false;
+        mMoveTo = -1;
+        mFullHistory = false;
+        mFullHistoryButton.setText(R.string.full_history_button_text);
+        mChartLabel.setText(R.string.posture_readings);
+        mLineDataSet = new LineDataSet(mModel.getEntries(), getString(R.string.posture_readings));
         mLineDataSet.setValueTextSize(0);            // Can't find any other way to disable txt
         mLineDataSet.setCircleSize(2);
         mLineDataSet.setDrawCircleHole(true);
@@ -191,13 +277,12 @@ public class GraphFragment extends Fragment {
 
         ArrayList<LineDataSet> dataSets = new ArrayList<LineDataSet>();
         dataSets.add(mLineDataSet);
-        ArrayList<String> xVals = new ArrayList<String>();
-
-        mLineData = new LineData(xVals, dataSets);      // LineData is a subclass of ChartData
+        // LineData is a subclass of ChartData
+        mLineData = new LineData(mModel.getXValues(), dataSets);
         mLineChart.setVisibleXRange(DATA_POINTS_TO_SHOW);
         mLineChart.setData(mLineData);
 
-        new LoadFromDatabase().execute();
+        new LoadPage(mGeneration, 0).execute();
         mChartValid = true;
         mLineChart.invalidate();
     }
@@ -205,80 +290,407 @@ public class GraphFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mDataReceiver);
+        PostureBus.get().unsubscribe(mDataSubscriber);
         mIndex = 0;
         // Cleanup whatever we can... and hope garbage collection does the rest.
         mChartValid = false;
+        mLineChart.removeCallbacks(mRedraw);
+        mRedrawPending = false;
         mLineChart.clear();
         mLineChart = null;
-        mPostureSamples = null;
+        mModel.clear();
+        // The export carries on without us
+        HistoryExport.setListener(null);
+        mExportButton = null;
     }
 
+    private void showExportProgress(int percent) {
+        mExportButton.setText(getString(R.string.export_cancel_button_text, percent));
+    }
+
+    private final HistoryExport.Listener mExportListener = new HistoryExport.Listener() {
+        @Override
+        public void onExportProgress(int percent) {
+            if (mExportButton != null) {
+                showExportProgress(percent);
+            }
+        }
+
+        @Override
+        public void onExportFinished(File file, long samples) {
+            if (mExportButton == null || !isAdded()) {
+                return;
+            }
+            mExportButton.setText(R.string.export_button_text);
+            if (file != null) {
+                Toast.makeText(getActivity(), getString(R.string.export_done, samples,
+                        file.getPath()), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(getActivity(), R.string.export_stopped, Toast.LENGTH_LONG).show();
+            }
+        }
+    };
+
     /**
      * This adds one point of data to the chart.
+     * @param date   units of ms since epoch
      * @param value  Z-axis posture value from vertical, Positive means device leaning backward.
      */
-    private void addPoint( int value ) {
+    private void addPoint(long date, int value) {
         if (mChartValid) {                          // chart is not valid during rotations etc.
-            Entry point = new Entry((float) value, mIndex);
-            mLineData.addXValue("");                // we don't want to show an X value
-            mLineData.addEntry(point, 0);           // We have one dataset, it's index is 0
-            mLineChart.notifyDataSetChanged();
-            if (mIndex >= DATA_POINTS_TO_SHOW) {
-                mLineChart.setVisibleXRange(DATA_POINTS_TO_SHOW);
-                mLineChart.moveViewToX(mLineData.getXValCount() - DATA_POINTS_TO_SHOW);
+            if (mBrowsing) {
+                // Don't move the chart out from under the user
+                if (mHeldBack.isFull()) {
+                    mHeldBack.removeFirst(1);
+                    mHeldBackOverflow = true;
+                }
+                mHeldBack.add(date, value, true);
+                return;
             }
-            View chart = getActivity().findViewById(R.id.chart);
-            // This is for both testing and accessibility
-            chart.setContentDescription("index is" + mIndex + ", value is" + point.getVal());
+            mModel.addLast(date, value);
             mIndex++;
-            mLineChart.invalidate();
+            scheduleRedraw();
         } else {
             Log.d(TAG, "addNewPoint() mChartValid is false");
         }
     }
 
     /**
-     * This AsyncTask loads previous data points from the database.
+     * See where the user has dragged the chart to.  Near the oldest sample, read the next
+     * older page.  Back at the newest sample, catch up on what came in while browsing.
+     */
+    private void checkVisibleRange() {
+        if (!mChartValid || mFullHistory || mModel.size() == 0) {
+            return;
+        }
+        int lowest = mLineChart.getLowestVisibleXIndex();
+        int highest = mLineChart.getHighestVisibleXIndex();
+
+        if (highest < mModel.size() - 1) {
+            mBrowsing = true;
+        } else if (mBrowsing) {
+            stopBrowsing();
+        }
+        if (lowest < PREFETCH_MARGIN && !mLoadingOlder && !mAtOldest) {
+            mBrowsing = true;
+            mLoadingOlder = true;
+            new LoadPage(mGeneration, mModel.getDate(0)).execute();
+        }
+    }
+
+    /**
+     * The user is back at the newest sample, so start following new samples again.
+     */
+    private void stopBrowsing() {
+        mBrowsing = false;
+        if (mNewestDropped || mHeldBackOverflow) {
+            // Too much is missing, start over from the newest page
+            setupData();
+            return;
+        }
+        for (int i = 0; i < mHeldBack.size(); i++) {
+            mModel.addLast(mHeldBack.dates[i], mHeldBack.values[i]);
+            mIndex++;
+        }
+        mHeldBack.clear();
+        scheduleRedraw();
+    }
+
+    /**
+     * Show the whole history in place of the pages.  Live samples are held back until the
+     * user goes back to the newest page.
+     */
+    private void showFullHistory() {
+        mFullHistory = true;
+        mBrowsing = true;
+        mGeneration++;                  // drop any page which is still loading
+        mLoadingOlder = false;
+        mFullHistoryButton.setText(R.string.latest_button_text);
+        loadDetail(0, 0, 0, 0);
+    }
+
+    /**
+     * In the full history view, see whether the user has zoomed or dragged far enough that the
+     * range they're looking at should be loaded again: zoomed in well past the detail that's
+     * loaded, at the edge of what's loaded, or zoomed all the way out of it.
+     */
+    private void checkDetailRange() {
+        int count = mModel.size();
+        if (!mChartValid || mLoadingDetail || count < 2) {
+            return;
+        }
+        int lowest = Math.max(0, mLineChart.getLowestVisibleXIndex());
+        int highest = Math.min(count - 1, mLineChart.getHighestVisibleXIndex());
+        long showFrom = mModel.getDate(lowest);
+        long showTo = mModel.getDate(highest) + 1;
+        long span = showTo - showFrom;
+        int visible = highest - lowest + 1;
+
+        if (visible >= count) {
+            if (mDetailAtStart && mDetailAtEnd) {
+                return;                 // the whole history is already showing
+            }
+            // Zoomed all the way out, so show more
+            showFrom -= span;
+            showTo += span;
+            span = showTo - showFrom;
+        } else {
+            boolean zoomedIn = visible * DETAIL_CONTEXT * 2 < count;
+            boolean atEdge = (lowest == 0 && !mDetailAtStart)
+                    || (highest == count - 1 && !mDetailAtEnd);
+            if (!zoomedIn && !atEdge) {
+                return;
+            }
+        }
+        long context = span * (DETAIL_CONTEXT - 1) / 2;
+        loadDetail(Math.max(1, showFrom - context), showTo + context, showFrom, showTo);
+    }
+
+    /**
+     * Ask HistoryDetail for a range at the chart's width.
+     * @param from      units of ms since epoch, zero for the oldest sample
+     * @param to        units of ms since epoch, zero for the newest sample
+     * @param showFrom  units of ms since epoch, zoom to this part of it once it's loaded
+     * @param showTo    units of ms since epoch, zero to show all of it
+     */
+    private void loadDetail(long from, long to, long showFrom, long showTo) {
+        int width = mLineChart.getWidth() * DETAIL_CONTEXT;
+        if (width <= 0 || width > CHART_CAPACITY) {
+            width = CHART_CAPACITY;
+        }
+        mLoadingDetail = true;
+        new LoadFullHistory(mGeneration, width, from, to, showFrom, showTo).execute();
+    }
+
+    /**
+     * Zoom the full history view in on a range of dates.
+     */
+    private void zoomTo(long from, long to) {
+        int count = mModel.size();
+        int lowest = 0;
+        while (lowest < count - 1 && mModel.getDate(lowest) < from) {
+            lowest++;
+        }
+        int highest = count - 1;
+        while (highest > lowest && mModel.getDate(highest) >= to) {
+            highest--;
+        }
+        int visible = highest - lowest + 1;
+        if (visible < count) {
+            mLineChart.zoom((float) count / visible, 1f, 0f, 0f);
+            mLineChart.moveViewToX(lowest);
+        }
+    }
+
+    /**
+     * Redraw the chart on the next frame, unless that's already going to happen.
+     */
+    private void scheduleRedraw() {
+        if (!mRedrawPending && mLineChart != null) {
+            mRedrawPending = true;
+            mLineChart.postDelayed(mRedraw, FRAME_INTERVAL);
+        }
+    }
+
+    private final Runnable mRedraw = new Runnable() {
+        @Override
+        public void run() {
+            mRedrawPending = false;
+            if (!mChartValid) {
+                return;
+            }
+            // Hand the chart whatever came in since the last frame
+            mModel.sync();
+            mLineDataSet.notifyDataSetChanged();
+            mLineData.notifyDataChanged();
+            mLineChart.notifyDataSetChanged();
+            int count = mModel.size();
+            if (mFullHistory) {
+                mLineChart.setVisibleXRange(Math.max(1, count));
+                mLineChart.fitScreen();
+                if (mShowTo != 0) {
+                    zoomTo(mShowFrom, mShowTo);
+                    mShowTo = 0;
+                }
+            } else if (count > DATA_POINTS_TO_SHOW) {
+                mLineChart.setVisibleXRange(DATA_POINTS_TO_SHOW);
+                if (mMoveTo >= 0) {
+                    mLineChart.moveViewToX(mMoveTo);     // stay on what the user was looking at
+                } else if (!mBrowsing) {
+                    mLineChart.moveViewToX(count - DATA_POINTS_TO_SHOW);
+                }
+            }
+            mMoveTo = -1;
+            if (count > 0) {
+                // This is for both testing and accessibility
+                mLineChart.setContentDescription("index is" + (mIndex - 1) + ", value is"
+                        + (float) mModel.getValue(count - 1));
+            }
+            mLineChart.invalidate();
+        }
+    };
+
+    /**
+     * This AsyncTask reads one page of samples from whichever SampleStore is selected.
+     * Pages are found by date, which the store turns into a seek on its index (the _ID
+     * primary key for the database), so no page costs more than any other.
      */
-    private class LoadFromDatabase extends AsyncTask<Void, Void, List<Sample>> {
+    private class LoadPage extends AsyncTask<Void, Void, SampleBatch> {
+        private final Context mContext = getActivity().getApplicationContext();
+        private final int mForGeneration;
+        private final long mBefore;         // units of ms since epoch, zero for the newest page
 
         /**
-         * Get all the points from the database.
-         * Unfortunately, "WHERE ROWNUM <= ?" won't work in the ORM we're using.
-         * @return                  List of all the Sample objects from the database
+         * @param generation    the page is thrown away if the model is reloaded in the meantime
+         * @param before        read the page just before this date, or zero for the newest page
          */
-        protected List<Sample> doInBackground(Void... x) {
-            return new Select()
-                    .from(Sample.class)
-                    .orderBy("_ID ASC")
-                    .execute();
+        LoadPage(int generation, long before) {
+            mForGeneration = generation;
+            mBefore = before;
         }
 
-        protected void onPostExecute(List<Sample> values) {
-            for(Sample s : values) {
-                addPoint(s.value);
+        /**
+         * @return  the samples in the page, oldest first
+         */
+        protected SampleBatch doInBackground(Void... x) {
+            if (mBefore == 0) {
+                // The journal holds back the last few samples.  Any which came in before the
+                // chart subscribed to the bus would be missing.
+                SampleStores.flushJournal();
             }
+            SampleStore store = SampleStores.acquire(mContext);
+            SampleBatch page = new SampleBatch(PAGE_SIZE);
+            try {
+                long end = (mBefore == 0) ? store.size() : store.indexOf(mBefore);
+                store.read(Math.max(store.firstIndex(), end - PAGE_SIZE), page);
+                // Anything at or after the end is already in the chart
+                page.setSize((int) Math.max(0, Math.min(page.size(), end - page.getFirstIndex())));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to load samples: ", e);
+                page.clear();
+            } finally {
+                SampleStores.release(store);
+            }
+            return page;
+        }
+
+        protected void onPostExecute(SampleBatch page) {
+            if (mForGeneration != mGeneration || !mChartValid) {
+                return;         // the data was cleared or reloaded while we were reading
+            }
+            if (mBefore != 0) {
+                mLoadingOlder = false;
+            }
+            if (page.size() == 0) {
+                mAtOldest = true;
+                return;
+            }
+            int lowest = mLineChart.getLowestVisibleXIndex();
+            int before = mModel.size();
+            int added = mModel.addFirst(page);
+            if (mModel.size() < before + added) {
+                mNewestDropped = true;      // caught up again by reloading, see stopBrowsing()
+            }
+            mIndex += added;
+            if (mBefore != 0) {
+                mMoveTo = lowest + added;
+            }
+            scheduleRedraw();
         }
     }
 
+    /**
+     * This AsyncTask gets a range of the history, cut down to fit the width of the chart.
+     */
+    private class LoadFullHistory extends AsyncTask<Void, Void, SampleBatch> {
+        private final Context mContext = getActivity().getApplicationContext();
+        private final int mForGeneration;
+        private final int mWidth;           // units of points
+        private final long mFrom;           // units of ms since epoch, zero for the oldest
+        private final long mTo;             // units of ms since epoch, zero for the newest
+        private final long mZoomFrom;       // units of ms since epoch
+        private final long mZoomTo;         // units of ms since epoch, zero to show it all
+        private boolean mAtStart;
+        private boolean mAtEnd;
+        private final RollupBucket mSummary = new RollupBucket();
+
+        LoadFullHistory(int generation, int width, long from, long to, long showFrom,
+                        long showTo) {
+            mForGeneration = generation;
+            mWidth = width;
+            mFrom = from;
+            mTo = to;
+            mZoomFrom = showFrom;
+            mZoomTo = showTo;
+        }
+
+        protected SampleBatch doInBackground(Void... x) {
+            if (mTo == 0) {
+                SampleStores.flushJournal();
+            }
+            SampleStore store = SampleStores.acquire(mContext);
+            try {
+                long first = store.firstIndex();
+                long size = store.size();
+                long fromIndex = (mFrom == 0) ? first : Math.max(first, store.indexOf(mFrom));
+                long toIndex = (mTo == 0) ? size : store.indexOf(mTo);
+                mAtStart = fromIndex <= first;
+                mAtEnd = toIndex >= size;
+                if (store instanceof PyramidSampleStore) {
+                    ((PyramidSampleStore) store).summarize(fromIndex, toIndex, mSummary);
+                }
+                return SampleStores.getDetail(store).get(fromIndex, toIndex, mWidth);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to load the history: ", e);
+                return new SampleBatch(1);
+            } finally {
+                SampleStores.release(store);
+            }
+        }
+
+        protected void onPostExecute(SampleBatch history) {
+            if (mForGeneration != mGeneration || !mChartValid) {
+                return;
+            }
+            mLoadingDetail = false;
+            mDetailAtStart = mAtStart;
+            mDetailAtEnd = mAtEnd;
+            mShowFrom = mZoomFrom;
+            mShowTo = mZoomTo;
+            if (mSummary.count > 0) {
+                int bad = (int) ((mSummary.count - mSummary.goodCount) * 100L / mSummary.count);
+                mChartLabel.setText(getString(R.string.range_stats_text,
+                        Math.round(mSummary.getMean()), bad));
+            } else {
+                mChartLabel.setText(R.string.posture_readings);
+            }
+            mModel.clear();
+            mIndex = mModel.addFirst(history);
+            scheduleRedraw();
+        }
+    }
 
     /**
      * Receive new data points as they're being added to the database.
      */
-    class DataReceiver extends BroadcastReceiver {
+    class DataSubscriber extends PostureBus.Subscriber {
 
         @Override
-        public void onReceive(Context c, Intent i) {
-            if( i.getAction().equals(OrientationService.NEW_DATA_POINT_INTENT)) {
-                    int value = i.getIntExtra(OrientationService.EXTRA_VALUE, Orientation.IMPOSSIBLE_INTEGER);
-                    addPoint(value);
-            } else if( i.getAction().equals(PerfectPostureActivity.REDRAW_GRAPH_INTENT)) {
-                drawLimitLines();
-            } else {
-                Log.e(TAG, "Received an unexpected broadcast intent");
+        void onSamples(SampleBatch samples) {
+            for (int i = 0; i < samples.size(); i++) {
+                addPoint(samples.dates[i], samples.values[i]);
             }
+        }
 
+        @Override
+        void onStatus(PostureBus.Status status) {
+            if (status == PostureBus.Status.SETTINGS_CHANGED) {
+                drawLimitLines();
+            } else if (status == PostureBus.Status.HISTORY_MOVED && mChartValid) {
+                setupData();        // the indexes are the new store's now
+            } else if (status == PostureBus.Status.HISTORY_CLEARED && mChartValid) {
+                setupData();        // delete data in the chart
+            }
         }
     }
 }
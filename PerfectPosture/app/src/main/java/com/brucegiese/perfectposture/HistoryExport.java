@@ -0,0 +1,169 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Exports the stored history to a file in the app's external files directory (or the internal
+ * one if there's no external storage), using SampleExporter on the shared PostureScheduler.
+ *
+ * Only one export runs at a time, and it carries on if the chart goes away.  Whoever is
+ * showing it can set a listener, which is told about progress on the main thread.
+ */
+final class HistoryExport {
+    private static final String TAG = "com.brucegiese.export";
+
+    // This must match the key in preferences.xml.  The values are the file extensions.
+    static final String PREF_EXPORT_FORMAT = "PREF_EXPORT_FORMAT";
+    static final String FORMAT_CSV_GZIP = "csv.gz";
+    static final String FORMAT_CSV = "csv";
+    static final String FORMAT_BINARY = "ppx";
+
+    /**
+     * Told about the export on the main thread.
+     */
+    interface Listener {
+        /**
+         * @param percent   0 to 100
+         */
+        void onExportProgress(int percent);
+
+        /**
+         * @param file      where the samples went, or null if the export didn't finish
+         * @param samples   number of samples written
+         */
+        void onExportFinished(File file, long samples);
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+    private static SampleExporter sJob = null;
+    private static Listener sListener = null;
+    private static int sPercent;
+
+    private HistoryExport() { }
+
+    static synchronized boolean isRunning() {
+        return sJob != null;
+    }
+
+    /**
+     * @return  how far the running export has got, 0 to 100
+     */
+    static synchronized int getPercent() {
+        return sPercent;
+    }
+
+    /**
+     * @param listener  told about the export, or null to stop telling anyone
+     */
+    static synchronized void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Start exporting the history in the format the user picked, unless an export is
+     * already running.
+     * @param c     Context
+     */
+    static synchronized void start(Context c) {
+        if (sJob != null) {
+            return;
+        }
+        Context context = c.getApplicationContext();
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String extension = sharedPrefs.getString(PREF_EXPORT_FORMAT, FORMAT_CSV_GZIP);
+        SampleExporter.Format format;
+        if (FORMAT_CSV.equals(extension) || FORMAT_CSV_GZIP.equals(extension)) {
+            format = SampleExporter.Format.CSV;
+        } else {
+            format = SampleExporter.Format.BINARY;
+            extension = FORMAT_BINARY;
+        }
+        boolean gzip = FORMAT_CSV_GZIP.equals(extension);
+
+        // Before KitKat this needs WRITE_EXTERNAL_STORAGE, which the manifest asks for
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            directory = context.getFilesDir();
+        }
+        File file = new File(directory, "posture-" + System.currentTimeMillis() + "." + extension);
+
+        sPercent = 0;
+        final SampleStore store = SampleStores.acquire(context);
+        sJob = new SampleExporter(store, format, gzip,
+                new SampleExporter.Listener() {
+                    @Override
+                    public void onProgress(long done, long total) {
+                        progress(total > 0 ? (int) Math.min(100, done * 100 / total) : 100);
+                    }
+
+                    @Override
+                    public void onFinished(SampleExporter job) {
+                        SampleStores.release(store);
+                        finished(job);
+                    }
+                });
+        sJob.start(PostureScheduler.get(), file);
+        Log.i(TAG, "Exporting the history to " + file);
+    }
+
+    /**
+     * Stop the running export, if there is one.  The partly written file is deleted.
+     */
+    static synchronized void cancel() {
+        if (sJob != null) {
+            sJob.cancel();
+        }
+    }
+
+    // Only bother the main thread when the percentage changes
+    private static synchronized void progress(int percent) {
+        if (percent == sPercent) {
+            return;
+        }
+        sPercent = percent;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener;
+                int latest;
+                synchronized (HistoryExport.class) {
+                    listener = sListener;
+                    latest = sPercent;
+                }
+                if (listener != null) {
+                    listener.onExportProgress(latest);
+                }
+            }
+        });
+    }
+
+    private static synchronized void finished(final SampleExporter job) {
+        if (job.getError() != null) {
+            Log.e(TAG, "Unable to export the history: ", job.getError());
+        }
+        Log.i(TAG, "Exported " + job.getExported() + " samples, " + job.getBytes()
+                + " bytes, finished=" + job.isFinished());
+        if (sJob == job) {
+            sJob = null;
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener;
+                synchronized (HistoryExport.class) {
+                    listener = sListener;
+                }
+                if (listener != null) {
+                    listener.onExportFinished(job.isFinished() ? job.getFile() : null,
+                            job.getExported());
+                }
+            }
+        });
+    }
+}
@@ -5,6 +5,9 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 
 /**
  * This class supports gravity based orientation, initially for the purpose of evaluating
@@ -15,17 +18,32 @@ import android.hardware.SensorManager;
  *
  * UPDATE: This branch of the code piggybacks other sensors within the Orientation class.
  *
+ * Gravity readings go into a ring buffer, and getZ() returns a filtered value over the most
+ * recent readings instead of whatever single reading happened to come in last.  On devices
+ * with a sensor FIFO (KitKat and later) the readings are delivered in batches, so the CPU
+ * doesn't have to wake up for every one of them.
+ *
+ * The sensor callback is the only thing which touches the ring buffer.  It publishes the
+ * latest reading and the filtered value in a GravitySnapshot, which other threads can read
+ * without locking.  The snapshot only allows one writer, so sensor events are delivered on
+ * the Handler given to startOrienting(), and stopOrienting() must be called on that same
+ * thread.
  */
 class Orientation implements SensorEventListener {
-    private static final float G_FORCE = 9.78f;         // gravity in meters per second squared
-    private static final float SCALE_FACTOR = 90f;      // scale for angular degrees
-    private static final float ALMOST_HALF = .4999f;    // need to round up
+    private static final int SAMPLING_PERIOD = 200000;          // units of microseconds
+    private static final int MAX_REPORT_LATENCY = 1000000;      // units of microseconds
+    private static final int WINDOW_CAPACITY = 32;              // units of readings
+    private static final int FILTER_WINDOW = 10;                // units of readings
+    private static final float LOW_PASS_ALPHA = 0.3f;
     private final SensorManager mSensorManager;
     private final Sensor mGravitySensor;
-    private float[] mGravity = null;
+    // Only used on the thread of the Handler given to startOrienting()
+    private final GravityWindow mWindow = new GravityWindow(WINDOW_CAPACITY);
+    private final GravitySnapshot mSnapshot = new GravitySnapshot();
+    private volatile GravityWindow.Filter mFilter = GravityWindow.Filter.MEDIAN;
 
     // The methods here returns this value if it's not valid
-    public static final int IMPOSSIBLE_INTEGER = Integer.MAX_VALUE;
+    public static final int IMPOSSIBLE_INTEGER = PostureEngine.NO_READING;
 
     /**
      * @param context  Activity or Application context
@@ -40,13 +58,21 @@ class Orientation implements SensorEventListener {
     /**
      * Begin sensing the orientation of the device.
      * Can only be called once after creation or stopping orientation.
+     * @param handler   sensor events are delivered on this Handler's thread
      * @return whether the device has any of the sensors (gravity, temp, humidity)
      */
-    public boolean startOrienting() {
+    public boolean startOrienting(Handler handler) {
         boolean result = false;
         if (mGravitySensor != null) {
-            // Use the slowest rate possible, although the Mgr just uses this as a suggestion.
-            mSensorManager.registerListener(this, mGravitySensor, SensorManager.SENSOR_DELAY_NORMAL);
+            // Use a slow rate, although the Mgr just uses this as a suggestion.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // Let the sensor hub queue readings up and hand them over in batches
+                mSensorManager.registerListener(this, mGravitySensor, SAMPLING_PERIOD,
+                        MAX_REPORT_LATENCY, handler);
+            } else {
+                mSensorManager.registerListener(this, mGravitySensor,
+                        SensorManager.SENSOR_DELAY_NORMAL, handler);
+            }
             result = true;
         }
         return result;
@@ -55,11 +81,21 @@ class Orientation implements SensorEventListener {
     /**
      * Stop sensing the orientation of the device.
      * Technically you can call this repeatedly without any bad effects.
+     * Call this on the thread of the Handler given to startOrienting().
      */
     public void stopOrienting() {
         // Make sure this gets called when the service stops!
         mSensorManager.unregisterListener(this);
-        mGravity = null;
+        // Sensor events are delivered on this thread too, so nothing else is writing
+        mWindow.clear();
+        mSnapshot.clear();
+    }
+
+    /**
+     * Choose how getZ() combines the recent readings.
+     */
+    public void setFilter(GravityWindow.Filter filter) {
+        mFilter = filter;
     }
 
 
@@ -83,19 +119,26 @@ class Orientation implements SensorEventListener {
         *   based on some sort of timer.  Otherwise, the app will crash.
         */
         if( event.sensor.getType() == Sensor.TYPE_GRAVITY) {
-                mGravity = event.values;
+            // Copy the values out, the framework reuses the event.
+            mWindow.add(event.values[0], event.values[1], event.values[2], event.timestamp);
+            mSnapshot.publish(event.values[0], event.values[1], event.values[2],
+                    mWindow.filter(GravityWindow.Z, mFilter, FILTER_WINDOW, LOW_PASS_ALPHA),
+                    event.timestamp, event.accuracy, SystemClock.elapsedRealtime());
         }
     }
 
     /**
-     * Get the current value of the Z-axis orientation data.
-     * This can be called from the UI thread.
+     * Get the current value of the Z-axis orientation data, filtered over the last few readings.
+     * This can be called from any thread, it doesn't lock or allocate.
+     * @param reading   gets a copy of the snapshot the value came from, so the caller can
+     *                  check how fresh it is.  Its receivedAt uses SystemClock.elapsedRealtime().
      * @return an integer representing the Z-axis tilt angle
      * IMPOSSIBLE_INTEGER means the result is not valid.
      */
-    public int getZ() {
-        if( mGravity != null) {
-            return Math.round(mGravity[2] * (SCALE_FACTOR /G_FORCE) + ALMOST_HALF);
+    public int getZ(GravitySnapshot.Reading reading) {
+        mSnapshot.read(reading);
+        if (reading.isValid()) {
+            return GravityWindow.toDegrees(reading.filteredZ);
         } else {
             return IMPOSSIBLE_INTEGER;
         }
@@ -8,8 +8,12 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
@@ -17,11 +21,9 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.util.Date;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
 
 /**
  * This class provides a Service for tracking the user device's orientation periodically.
@@ -29,72 +31,120 @@ import java.util.concurrent.TimeUnit;
  * It keeps track of metrics which can be fetched.  It allows for changing the various
  * configuration parameters while the service is running.
  *
- * This service also updates the database with posture data and sends out a broadcast each
- * time new data is added to the database.
+ * This service also updates the database with posture data and publishes each new sample
+ * on the PostureBus.  The database writes are batched by a SampleJournal.
+ *
+ * All of the service's state belongs to one thread, the loop.  Everything which changes it
+ * is a message to the loop's Handler, handled one at a time in the order it was sent: the
+ * checks themselves, start and stop commands, settings changes and screen changes.  The main
+ * thread callbacks only send messages, so nothing here needs a lock.  Slow background work,
+ * such as retention cleanup and the periodic journal and rollup flushes, goes to the shared
+ * PostureScheduler instead.
+ *
+ * The posture logic itself (hysteresis, reminders and adaptive sampling) is in PostureEngine,
+ * which doesn't know about Android.  The service ticks it, feeds it sensor readings, and turns
+ * what it decides into samples, notifications and vibrations.
+ *
+ * In adaptive sampling mode the service only keeps a sample when the posture value moves
+ * outside a dead-band or when nothing has been kept for a while, and it checks less often
+ * while posture is good and steady.  The alert timing works on elapsed time, so it's the
+ * same in either mode.
+ *
+ * While the screen is off the alerts can't be seen, so the checks and the sensor are suspended
+ * until it comes back on.  Nothing is saved for that time, and the engine starts its
+ * hysteresis and reminders over when checking resumes.
+ *
+ * The service records what it costs in the Metrics registry: how late the checks run, how
+ * stale the sensor readings are, how long saving and publishing take, how deep the queues get
+ * and how many alerts of each kind go out.  Collecting is off unless it's turned on with the
+ * DUMP_METRICS_ACTION, which also writes a snapshot to a file:
+ *   adb shell am startservice -a com.brucegiese.perfectposture.dumpmetrics --ez enable true
  */
 public class OrientationService extends Service {
     private static final String TAG = "com.brucegiese.service";
 
-    public static final String NEW_DATA_POINT_INTENT = "com.brucegiese.perfectposture.sample";
-    public static final String EXTRA_VALUE = "value";                // Z-axis posture value
-    public static final String CHECK_STATUS_INTENT = "com.brucegiese.perfectposture.check";
     /**
      * Is the service running right now?  We need to effectively create a singleton object
      * with the service.  The OS cooperates by only calling the constructor once, even if there
-     * are multiple calls to startService().
+     * are multiple calls to startService().  This is only changed on the loop thread.
      */
-    public static boolean sIsRunning = false;
+    public static volatile boolean sIsRunning = false;
     private static OrientationService sInstance = null;
 
-    private static final int LOW_Z_AXIS_POS_THRESHOLD = 20;     // units of degrees
-    private static final int LOW_Z_AXIS_NEG_THRESHOLD = -20;    // units of degrees
-    private static final int MEDIUM_Z_AXIS_POS_THRESHOLD = 40;     // units of degrees
-    private static final int MEDIUM_Z_AXIS_NEG_THRESHOLD = -40;    // units of degrees
-    private static final int HIGH_Z_AXIS_POS_THRESHOLD = 50;     // units of degrees
-    private static final int HIGH_Z_AXIS_NEG_THRESHOLD = -50;    // units of degrees
-    private int mZAxisPosThreshold = MEDIUM_Z_AXIS_POS_THRESHOLD;  // sensitivity feature upgrade
-    private int mZAxisNegThreshold = MEDIUM_Z_AXIS_NEG_THRESHOLD;  // sensitivity feature upgrade
-
-    /*
-    * Number of consecutive good/bad samples before we declare a change in posture.
-    * This hysteresis is only for the user's benefit in giving alerts.  It's not saved in data.
-    * */
-    private static final int LOW_POSITIVE_HYSTERESIS = 2;
-    private static final int LOW_NEGATIVE_HYSTERESIS = 10;
-    private static final int MEDIUM_POSITIVE_HYSTERESIS = 4;
-    private static final int MEDIUM_NEGATIVE_HYSTERESIS = 30;
-    private static final int HIGH_POSITIVE_HYSTERESIS = 8;
-    private static final int HIGH_NEGATIVE_HYSTERESIS = 60;
-    private int mPositiveHysteresis = MEDIUM_POSITIVE_HYSTERESIS;
-    private int mNegativeHysteresis = MEDIUM_NEGATIVE_HYSTERESIS;
-    // number of additional consecutive bad posture samples before we issue a reminder
-    private static final int LOW_BAD_REMINDER_THRESHOLD = 10;
-    private static final int MEDIUM_BAD_REMINDER_THRESHOLD = 30;
-    private static final int HIGH_BAD_REMINDER_THRESHOLD = 120;
-    private int mBadPostureReminderThreshold = MEDIUM_BAD_REMINDER_THRESHOLD;
-    private final int CHIN_TUCK_REMINDER_TIME = 15;       // units of minutes
-    private final int CHIN_TUCK_REMINDER_DURATION = 1;    // units of minutes
-    private static final int UPDATE_INTERVAL = 1;           // units of seconds
-
+    // Samples are written to the database in batches.  This is the most we can lose in a crash.
+    private static final int JOURNAL_MAX_UNFLUSHED = 30;    // units of samples
+    private static final int JOURNAL_CAPACITY = 120;        // units of samples, most we can lose
+    private static final int JOURNAL_FLUSH_INTERVAL = 30;   // units of seconds
+    // Old raw samples are cleaned up this often, pausing between partitions to go easy on I/O
+    private static final long RETENTION_INTERVAL = 24L * 60 * 60 * 1000;   // units of ms
+    private static final long RETENTION_PAUSE = 500;                        // units of ms
+    private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+    // The journal is also flushed this often, in case samples stop coming (as in adaptive
+    // sampling).  It can wait up to the slack to share a wakeup with other work.
+    private static final long JOURNAL_FLUSH_SLACK = 10 * 1000L;            // units of ms
+    // Today's histogram is rewritten this often.  This is the most of it we can lose in a crash.
+    private static final long HISTOGRAM_WRITE_INTERVAL = 5 * 60 * 1000L;  // units of ms
+    // The open rollup buckets are written this often, so a crash doesn't lose a whole day
+    private static final long ROLLUP_FLUSH_INTERVAL = 5 * 60 * 1000L;     // units of ms
+    private static final long ROLLUP_FLUSH_SLACK = 60 * 1000L;            // units of ms
+    // Live statistics for the current session, shared with the screens
+    private static final long STATS_AVERAGE_TIME_CONSTANT = 30 * 1000L;   // units of ms
+    private static final PostureStats sStats =
+            new PostureStats(PostureEngine.UPDATE_INTERVAL, STATS_AVERAGE_TIME_CONSTANT);
+    // These outlive the service so clearing the data can reset them even while it's running
+    private static final RollupAggregator sRollups =
+            new RollupAggregator(new ActiveAndroidRollupStore());
+    private static final HistogramAggregator sHistograms =
+            new HistogramAggregator(new ActiveAndroidHistogramStore(), HISTOGRAM_WRITE_INTERVAL);
+
+    // Messages to the loop
+    private static final int MSG_START = 1;
+    private static final int MSG_STOP = 2;              // arg1 is 1 to shut the service down too
+    private static final int MSG_TICK = 3;
+    private static final int MSG_CONFIG = 4;            // obj is the new PostureConfig
+    private static final int MSG_STORE_CHANGED = 5;
+    private static final int MSG_SCREEN = 6;            // arg1 is 1 if the screen is on
+    private static final int MSG_DUMP_METRICS = 7;
+    private static final int MSG_SHUTDOWN = 8;
+
+    private HandlerThread mLoopThread;
+    private Handler mLoop;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ScreenState mScreenState;
+
+    // Everything from here down is only touched on the loop thread
     private Orientation mOrientation = null;
-    private ScheduledFuture mScheduledFuture;
-
-    private boolean mCurrentPostureGood;
-    private int mHysteresisCounter;
-    private int mBadPostureReminderCounter;
-    private int mChinTuckReminderCounter;
-    private boolean mChinTuckReminderState;
-
-    // Configuration settings sent from main activity.
-    private final boolean DEFAULT_ALERT_NOTIFICATION = true;
-    private boolean mAlertNotification = DEFAULT_ALERT_NOTIFICATION;
-    private final boolean DEFAULT_ALERT_VIBRATION = true;
-    private boolean mAlertVibration = DEFAULT_ALERT_VIBRATION;
-    private final boolean DEFAULT_ALERT_LED = false;
-    private boolean mAlertLed = DEFAULT_ALERT_LED;
-    private final boolean DEFAULT_ALERT_CHIN_TUCK = true;
-    private boolean mChinTuck = DEFAULT_ALERT_CHIN_TUCK;
-    private Context mContext;
+    private SampleJournal mJournal;
+    private long mLastRetentionRun = 0;         // units of ms since epoch
+    private RetentionTask mRetentionTask = null;
+    private PostureScheduler.Task mJournalFlushJob = null;
+    private PostureScheduler.Task mRollupFlushJob = null;
+    private boolean mSuspended = false;         // the screen is off
+    private boolean mTicking = false;
+    private long mNextTick;                     // when the next check is due, uptimeMillis()
+
+    // The posture logic, which doesn't know about Android.  It tells us what to do through
+    // mEngineListener.
+    private final PostureEngine mEngine;
+    private final GravitySnapshot.Reading mReading = new GravitySnapshot.Reading();
+    private long mLastTickStart;                // Metrics.start() of the last check, or 0
+    private long mTickInterval;                 // what the last check was scheduled for, units of ms
+
+    private static final Metrics.Histogram sTickJitter = Metrics.histogram("tick.jitter", "us");
+    private static final Metrics.Histogram sTickDuration = Metrics.histogram("tick.duration", "us");
+    private static final Metrics.Histogram sSensorStaleness = Metrics.histogram("sensor.staleness", "ms");
+    private static final Metrics.Histogram sSaveLatency = Metrics.histogram("sample.save", "us");
+    private static final Metrics.Counter sSensorMissing = Metrics.counter("sensor.missing");
+    private static final Metrics.Counter sSuspends = Metrics.counter("screen.suspend");
+    private static final Metrics.Counter[] sAlerts = new Metrics.Counter[PostureEngine.Alert.values().length];
+    static {
+        for (PostureEngine.Alert alert : PostureEngine.Alert.values()) {
+            sAlerts[alert.ordinal()] = Metrics.counter("alert." + alert.name());
+        }
+    }
+
+    // The settings in use, replaced as a whole when a preference changes
+    private PostureConfig mConfig = PostureConfig.DEFAULT;
 
     private Vibrator mVibrator = null;
     private static final int SERVICE_NOTIFICATION_ID = 1;
@@ -105,17 +155,11 @@ public class OrientationService extends Service {
     private static final String CHIN_TUCK_NOTIFICATION_TITLE = "chinTuckNotification";
     public static final String TURN_ON_SERVICE_ACTION = "com.brucegiese.perfectposture.serviceon";
     public static final String TURN_OFF_SERVICE_ACTION = "com.brucegiese.perfectposture.serviceoff";
+    public static final String DUMP_METRICS_ACTION = "com.brucegiese.perfectposture.dumpmetrics";
+    // Optional boolean extra on DUMP_METRICS_ACTION which turns collecting on or off
+    public static final String EXTRA_METRICS_ENABLE = "enable";
     private NotificationManager mNotificationManager;
 
-    // These must match the values in preferences.xml
-    // The reason for not using a @string value is that the user can change languages which would
-    // ...change the key if that language is implemented in this app.
-    private static final String PREF_SENSITIVITY = "PREF_SENSITIVITY";
-    private static final String PREF_NOTIFICATION = "PREF_NOTIFICATION";
-    private static final String PREF_VIBRATION = "PREF_VIBRATION";
-    private static final String PREF_LED = "PREF_LED";
-    private static final String PREF_CHIN_TUCK = "PREF_CHIN_TUCK";
-
     private enum NotificationType {
         SERVICE_RUNNING,
         BAD_POSTURE,
@@ -124,12 +168,26 @@ public class OrientationService extends Service {
 
     private final CommandReceiver mCommandReceiver;
 
+    private static final Clock ANDROID_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
     public OrientationService() {
         if (OrientationService.sInstance != null) {
             Log.e(TAG, "Our assumption that the OS treats service as a singleton is WRONG!");
         }
         OrientationService.sInstance = this;
         mCommandReceiver = new CommandReceiver();
+        mScreenState = new ScreenState(mScreenListener);
+        mEngine = new PostureEngine(ANDROID_CLOCK, mEngineListener);
     }
 
     @Override
@@ -143,11 +201,17 @@ public class OrientationService extends Service {
         }
 
         mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        mJournal = new SampleJournal(SampleStores.get(getApplicationContext()),
+                JOURNAL_MAX_UNFLUSHED, JOURNAL_CAPACITY, JOURNAL_FLUSH_INTERVAL * 1000L);
+        SampleStores.setJournal(getApplicationContext(), mJournal);
+
+        mLoopThread = new HandlerThread("posture");
+        mLoopThread.start();
+        mLoop = new Handler(mLoopThread.getLooper(), mLoopCallback);
 
         SharedPreferences mPrefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
         mPrefs.registerOnSharedPreferenceChangeListener(prefListener);      // listen for changes
-
-        mContext = this;        // needed by Runnable below
+        mLoop.obtainMessage(MSG_CONFIG, PostureSettings.get(this)).sendToTarget();
     }
 
     @Override
@@ -156,18 +220,22 @@ public class OrientationService extends Service {
             switch (intent.getAction()) {
                 case TURN_OFF_SERVICE_ACTION:
                     Log.d(TAG, "onStartCommand(): turning off the service");
-                    stopChecking();
-                    // Tell the Activity to check its status because this might be sent...
-                    // ...by a notification, so the Activity might not know about it.
-                    Intent bcastIntent = new Intent(CHECK_STATUS_INTENT);
-                    LocalBroadcastManager.getInstance(mContext).sendBroadcast(bcastIntent);
-                    stopSelf();     // Completely shut down the service
+                    mLoop.obtainMessage(MSG_STOP, 1, 0).sendToTarget();
                     break;
 
                 case TURN_ON_SERVICE_ACTION:
                     Log.d(TAG, "onStartCommand(): turning on the service");
-                    loadSharedPreferences();
-                    startChecking();
+                    mLoop.obtainMessage(MSG_CONFIG, PostureSettings.update(this)).sendToTarget();
+                    Reclassification.check(this);
+                    mLoop.sendEmptyMessage(MSG_START);
+                    break;
+
+                case DUMP_METRICS_ACTION:
+                    if (intent.hasExtra(EXTRA_METRICS_ENABLE)) {
+                        Metrics.setEnabled(intent.getBooleanExtra(EXTRA_METRICS_ENABLE, false));
+                        Log.i(TAG, "onStartCommand(): metrics collecting is " + Metrics.isEnabled());
+                    }
+                    mLoop.sendEmptyMessage(MSG_DUMP_METRICS);
                     break;
 
                 default:
@@ -191,58 +259,157 @@ public class OrientationService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mScheduledFuture != null) {
-            Log.i(TAG, "onDestroy(): mScheduledFuture was not already null");
-            mScheduledFuture.cancel(true);
-            mScheduledFuture = null;
+        PreferenceManager.getDefaultSharedPreferences(getApplicationContext())
+                .unregisterOnSharedPreferenceChangeListener(prefListener);
+        // The loop finishes what it has been sent, cleans up and then quits
+        mLoop.sendEmptyMessage(MSG_SHUTDOWN);
+        // This object is a de-facto singleton
+        OrientationService.sInstance = null;
+    }
+
+    /**
+     * Handles the loop's messages, one at a time, on the loop thread.
+     */
+    private final Handler.Callback mLoopCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_START:
+                    startChecking();
+                    break;
+
+                case MSG_STOP:
+                    stopChecking();
+                    if (msg.arg1 != 0) {
+                        // Tell the Activity to check its status because this might be sent...
+                        // ...by a notification, so the Activity might not know about it.
+                        PostureBus.get().publishStatus(PostureBus.Status.SERVICE_STATE_CHANGED);
+                        stopSelf();     // Completely shut down the service
+                    }
+                    break;
+
+                case MSG_TICK:
+                    tick();
+                    break;
+
+                case MSG_CONFIG:
+                    applyConfig((PostureConfig) msg.obj);
+                    break;
+
+                case MSG_STORE_CHANGED:
+                    // This starts moving the history to the newly selected engine.  The
+                    // journal is switched over once it's there.
+                    SampleStores.get(getApplicationContext());
+                    break;
+
+                case MSG_SCREEN:
+                    screenChanged(msg.arg1 != 0);
+                    break;
+
+                case MSG_DUMP_METRICS:
+                    dumpMetrics();
+                    if (!OrientationService.sIsRunning) {
+                        stopSelf();     // we were only started for this
+                    }
+                    break;
+
+                case MSG_SHUTDOWN:
+                    shutDown();
+                    mLoopThread.quit();
+                    break;
+
+                default:
+                    return false;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Stop everything and write out whatever is waiting, as the service is destroyed.
+     */
+    private void shutDown() {
+        if (mTicking) {
+            Log.i(TAG, "shutDown(): the checks were still running");
+            stopTicking();
+        }
+        mScreenState.unregister(this);
+        stopFlushing();
+        mJournal.flush();
+        SampleStores.setJournal(getApplicationContext(), null);
+        flushRollups();
+        if (mRetentionTask != null) {
+            mRetentionTask.cancel();
+            mRetentionTask = null;
         }
         if (mOrientation != null) {
             // Just to be safe
             mOrientation.stopOrienting();
             mOrientation = null;
         } else {
-            Log.e(TAG, "mOrientation was null in onDestroy().  That should never happen.");
+            Log.e(TAG, "mOrientation was null in shutDown().  That should never happen.");
         }
 
         mNotificationManager.cancel(SERVICE_NOTIFICATION_ID);
-        // This object is a de-facto singleton
         OrientationService.sIsRunning = false;
-        OrientationService.sInstance = null;
     }
 
+    /**
+     * Get the live statistics for the current (or last) session.  These are updated on every
+     * check, so they're cheap to read often.  Times are SystemClock.elapsedRealtime().
+     */
+    public static PostureStats getStats() {
+        return sStats;
+    }
+
+    /**
+     * Get the rollups, such as for adjusting them after the history has been classified again.
+     */
+    static RollupAggregator getRollups() {
+        return sRollups;
+    }
+
+    /**
+     * Delete the rollups and histograms and reset the live statistics, after the samples
+     * have been cleared.  This does database work, so call it on a background thread.
+     */
+    static void clearAggregates() throws IOException {
+        sRollups.clear();
+        sHistograms.clear();
+        sStats.reset();
+    }
 
     /**
      * Start monitoring the user's posture.
      */
     private void startChecking() {
-        mChinTuckReminderCounter = 0;
-        mCurrentPostureGood = true;     // start out assuming good posture
-        mHysteresisCounter = 0;
-        mBadPostureReminderCounter = 0;
+        mEngine.start();                // start out assuming good posture
+        sStats.reset();
 
         try {
-            if (mOrientation.startOrienting()) {
+            if (mOrientation.startOrienting(mLoop)) {
                 OrientationService.sIsRunning = true;
 
-                if (mScheduledFuture == null) {
-                    // We use an additional thread for the periodic execution task.
-
-                    ScheduledExecutorService mScheduler = Executors.newScheduledThreadPool(1);
-                    mScheduledFuture =
-                            mScheduler.scheduleAtFixedRate(
-                                    mDoPeriodicWork,
-                                    UPDATE_INTERVAL,
-                                    UPDATE_INTERVAL,
-                                    TimeUnit.SECONDS);
+                if (!mTicking) {
+                    startTicking();
                 } else {
                     Log.e(TAG, "startChecking() was called when checking was already running");
                 }
             } else {
-                Toast.makeText(this, R.string.no_sensors, Toast.LENGTH_LONG).show();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(OrientationService.this, R.string.no_sensors,
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
             }
         } catch (Exception e) {
             Log.e(TAG, "Exception when starting orientation and scheduler: ", e);
         }
+        mSuspended = false;
+        mScreenState.register(this);
+        startFlushing();
 
         // Register the broadcast receiver
         IntentFilter iFilter = new IntentFilter();
@@ -260,13 +427,22 @@ public class OrientationService extends Service {
         sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
 
         OrientationService.sIsRunning = false;
-        if (mScheduledFuture != null) {
-            mScheduledFuture.cancel(true);
-            mScheduledFuture = null;
+        mScreenState.unregister(this);
+        if (mTicking) {
+            stopTicking();
             mOrientation.stopOrienting();
-        } else {
+        } else if (!mSuspended) {
             Log.e(TAG, "stopChecking() was called when checking wasn't running.");
         }
+        mSuspended = false;
+        stopFlushing();
+        // Write out whatever samples are still waiting in the journal
+        mJournal.flush();
+        flushRollups();
+        Log.d(TAG, "stopChecking(): journal dropped " + mJournal.getDroppedSamples()
+                + " samples, " + mJournal.getLateFlushes() + " late flushes, "
+                + mJournal.getFailedFlushes() + " failed flushes, skipped "
+                + mEngine.getSkippedTicks() + " checks with no new sensor data");
 
         // Un-register the broadcast receiver
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mCommandReceiver);
@@ -274,98 +450,285 @@ public class OrientationService extends Service {
 
 
     /**
-     * This runs periodically in the background (yet another thread).
+     * The screen listener is called on the main thread, so it hands over to the loop.
      */
-    private final Runnable mDoPeriodicWork = new Runnable() {   // must be executed in the UI thread
+    private final ScreenState.Listener mScreenListener = new ScreenState.Listener() {
         @Override
-        public void run() {
-            int z = mOrientation.getZ();
-
-            //      Enter the data point into the database.
-            Sample sample = new Sample(z, new Date(), measurePosture(z));
-            sample.save();
-
-            // Broadcast the data point
-            Intent bcastIntent = new Intent(NEW_DATA_POINT_INTENT);
-            bcastIntent.putExtra(EXTRA_VALUE, z);
-            // Don't bother adding the date or goodPosture value
-            LocalBroadcastManager.getInstance(mContext).sendBroadcast(bcastIntent);
-
-            //       Apply hysteresis to determine when to alert the user.
-            if (measurePosture(z)) {                   // Good posture
-                if (!mCurrentPostureGood) {
-                    mHysteresisCounter++;
-                    if (mHysteresisCounter >= mPositiveHysteresis) {
-                        mCurrentPostureGood = true;     // posture has been good for long enough
-                        mHysteresisCounter = 0;
-                        goodPostureAlerts();
-                    }
-                } else {
-                    mHysteresisCounter = 0;
-                }
+        public void onScreenChanged(boolean screenOn) {
+            mLoop.obtainMessage(MSG_SCREEN, screenOn ? 1 : 0, 0).sendToTarget();
+        }
+    };
 
-            } else {                                    // Bad posture
-                if (mCurrentPostureGood) {
-                    mHysteresisCounter++;
-                    if (mHysteresisCounter >= mNegativeHysteresis) {
-                        mCurrentPostureGood = false;    // posture has been bad for too long
-                        mHysteresisCounter = 0;
-                        badPostureAlerts();
-                        mBadPostureReminderCounter = 0;
-                    }
-                } else {
-                    mHysteresisCounter = 0;
+    /**
+     * Suspend checking while the screen is off, and resume it when the screen comes back on.
+     */
+    private void screenChanged(boolean screenOn) {
+        if (!OrientationService.sIsRunning) {
+            return;
+        }
+        if (!screenOn && !mSuspended) {
+            Log.d(TAG, "Screen is off, suspending the checks");
+            sSuspends.increment();
+            mSuspended = true;
+            stopTicking();
+            mOrientation.stopOrienting();
+            mEngine.pause();
+            stopFlushing();
+            // Nobody saw these, and the engine starts over with posture assumed good
+            sendNotification(NotificationType.BAD_POSTURE, false);
+            sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
+            // Nothing more is coming for a while, so don't leave samples in memory
+            mJournal.flush();
+            flushRollups();
+        } else if (screenOn && mSuspended) {
+            Log.d(TAG, "Screen is on, resuming the checks");
+            mSuspended = false;
+            startFlushing();
+            if (mOrientation.startOrienting(mLoop)) {
+                startTicking();
+            } else {
+                Log.e(TAG, "Unable to restart the sensor after the screen came on");
+            }
+        }
+    }
 
-                    // If posture stays bad for too long, remind the user
-                    mBadPostureReminderCounter++;
-                    if (mBadPostureReminderCounter >= mBadPostureReminderThreshold) {
-                        mBadPostureReminderCounter = 0;
-                        badPostureAlerts();
-                    }
-                }
+    /**
+     * Start the periodic posture checks, as messages to the loop.
+     */
+    private void startTicking() {
+        mTicking = true;
+        mLastTickStart = 0;
+        mTickInterval = PostureEngine.UPDATE_INTERVAL;
+        mNextTick = SystemClock.uptimeMillis() + PostureEngine.UPDATE_INTERVAL;
+        mLoop.sendEmptyMessageAtTime(MSG_TICK, mNextTick);
+    }
+
+    /**
+     * Stop the periodic posture checks.  Since the checks run on the loop too, there can't be
+     * one part way through.
+     */
+    private void stopTicking() {
+        mTicking = false;
+        mLoop.removeMessages(MSG_TICK);
+    }
+
+    /**
+     * Save a sample (through the journal and rollups) and publish it.
+     */
+    private void keepSample(long now, int z, boolean goodPosture) {
+        long start = Metrics.start();
+        //      Enter the data point into the journal, which writes to the database in batches.
+        mJournal.append(now, z, goodPosture);
+        if (z != PostureEngine.NO_READING) {
+            try {
+                sRollups.add(now, z, goodPosture);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to update the rollups: ", e);
             }
+            try {
+                sHistograms.add(now, z);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to update the histogram: ", e);
+            }
+        }
+        if (now - mLastRetentionRun >= RETENTION_INTERVAL) {
+            mLastRetentionRun = now;
+            startRetention(now);
+        }
+        sSaveLatency.recordSince(start);
 
-            // Chin tuck reminder functionality
-            if (mChinTuck) {        // if the functionality is enabled
-
-                // Note that the various types of notification may still be disabled.
-                mChinTuckReminderCounter++;
-                if (!mChinTuckReminderState) {
-                    // We're not currently reminding the user to do a chin tuck exercise
-                    if (mChinTuckReminderCounter > CHIN_TUCK_REMINDER_TIME * 60 / UPDATE_INTERVAL) {
-                        mChinTuckReminderCounter = 0;
-                        mChinTuckReminderState = true;
-                        sendNotification(NotificationType.CHIN_TUCK_REMINDER, true);
-                        vibrate(true);
-                    }
-                } else {
-                    if (mChinTuckReminderCounter > CHIN_TUCK_REMINDER_DURATION * 60 / UPDATE_INTERVAL) {
-                        mChinTuckReminderCounter = 0;
-                        mChinTuckReminderState = false;
-                        sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
-                    }
-                }
+        // Let the screens know, without allocating an Intent per sample
+        PostureBus.get().publishSample(now, z, goodPosture);
+    }
+
+    /**
+     * One posture check, then schedule the next.  In adaptive sampling mode the engine says
+     * when the next one is due.  Otherwise it's due one interval after this one was due, rather
+     * than after this one ran, so the checks don't drift; if we've fallen a whole interval
+     * behind, such as after deep sleep, the schedule starts over from now instead of catching up.
+     */
+    private void tick() {
+        long start = Metrics.start();
+        if (start != 0 && mLastTickStart != 0) {
+            long late = (start - mLastTickStart) / 1000 - mTickInterval * 1000;
+            sTickJitter.record(Math.abs(late));
+        }
+        mLastTickStart = start;
+
+        int z = mOrientation.getZ(mReading);
+        if (start != 0) {
+            if (mReading.isValid()) {
+                sSensorStaleness.record(mReading.getAge(SystemClock.elapsedRealtime()));
+            } else {
+                sSensorMissing.increment();
+            }
+        }
+        long delay = mEngine.check(z, mReading.sequence);
+        long now = SystemClock.uptimeMillis();
+        if (mEngine.isAdaptiveSampling()) {
+            mNextTick = now + delay;
+        } else {
+            mNextTick += PostureEngine.UPDATE_INTERVAL;
+            if (mNextTick <= now) {
+                mNextTick = now + PostureEngine.UPDATE_INTERVAL;
+            }
+        }
+        mTickInterval = delay;
+        mLoop.sendEmptyMessageAtTime(MSG_TICK, mNextTick);
+        sTickDuration.recordSince(start);
+    }
+
+    /**
+     * Carries out what the engine decides, on the loop thread.
+     */
+    private final PostureEngine.Listener mEngineListener = new PostureEngine.Listener() {
+        @Override
+        public void onCheck(long time, int z, boolean goodPosture, long elapsed) {
+            sStats.update(time, z, goodPosture, elapsed);
+        }
+
+        @Override
+        public void onSample(long date, int z, boolean goodPosture) {
+            keepSample(date, z, goodPosture);
+        }
+
+        @Override
+        public void onAlert(PostureEngine.Alert alert) {
+            sAlerts[alert.ordinal()].increment();
+            switch (alert) {
+                case BAD_POSTURE:
+                    badPostureAlerts();
+                    break;
+
+                case GOOD_POSTURE:
+                    goodPostureAlerts();
+                    break;
+
+                case CHIN_TUCK_START:
+                    sendNotification(NotificationType.CHIN_TUCK_REMINDER, true);
+                    vibrate(true);
+                    break;
+
+                case CHIN_TUCK_END:
+                    sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
+                    break;
             }
         }
     };
 
     /**
-     * Determine whether the user currently has good posture or bad posture.
-     *
-     * @param angle angle of device Z-axis from the vertical
-     * @return true if good posture
+     * Delete raw samples older than the retention setting, a partition at a time as LOW
+     * priority tasks.
+     * The rollups are kept, so the old data is still there in aggregate.
+     * @param now   units of ms since epoch
+     */
+    private void startRetention(long now) {
+        int retentionDays = mConfig.getRetentionDays();
+        if (retentionDays <= 0 || (mRetentionTask != null && !mRetentionTask.isDone())) {
+            return;
+        }
+        final SampleStore store = SampleStores.acquire(getApplicationContext());
+        final RetentionTask task = new RetentionTask(store, now - retentionDays * MS_PER_DAY,
+                RETENTION_PAUSE);
+        mRetentionTask = task;
+        task.start(PostureScheduler.get(), new RetentionTask.Listener() {
+            @Override
+            public void onFinished(RetentionTask finished) {
+                SampleStores.release(store);
+                if (finished.getError() != null) {
+                    Log.e(TAG, "Retention cleanup failed: ", finished.getError());
+                }
+                Log.i(TAG, "Retention cleanup dropped " + finished.getDropped()
+                        + " partitions and reclaimed " + finished.getReclaimedBytes() + " bytes");
+            }
+        });
+    }
+
+    /**
+     * Flush the journal and the rollups every so often on the shared scheduler, while checking.
+     * The flushes are deferrable, so they share wakeups with other background work.
+     */
+    private void startFlushing() {
+        if (mJournalFlushJob != null) {
+            return;
+        }
+        PostureScheduler scheduler = PostureScheduler.get();
+        mJournalFlushJob = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                mJournal.flush();
+            }
+        }, PostureScheduler.Priority.NORMAL, JOURNAL_FLUSH_INTERVAL * 1000L, JOURNAL_FLUSH_SLACK);
+        mRollupFlushJob = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                flushRollups();
+            }
+        }, PostureScheduler.Priority.NORMAL, ROLLUP_FLUSH_INTERVAL, ROLLUP_FLUSH_SLACK);
+    }
+
+    private void stopFlushing() {
+        if (mJournalFlushJob != null) {
+            mJournalFlushJob.cancel();
+            mJournalFlushJob = null;
+        }
+        if (mRollupFlushJob != null) {
+            mRollupFlushJob.cancel();
+            mRollupFlushJob = null;
+        }
+    }
+
+    /**
+     * Write out the minute/hour/day rollups and today's histogram, which are still being
+     * filled in.  This can be called from any thread.
+     */
+    private void flushRollups() {
+        try {
+            sRollups.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the rollups: ", e);
+        }
+        try {
+            sHistograms.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the histogram: ", e);
+        }
+    }
+
+    /**
+     * Write a snapshot of the metrics to metrics-<time>.txt in the app's external files
+     * directory (or the internal one if there's no external storage), where adb can get it.
      */
-    boolean measurePosture(int angle) {
-        return !(angle > mZAxisPosThreshold || angle < mZAxisNegThreshold);
+    private void dumpMetrics() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        File file = new File(directory, "metrics-" + System.currentTimeMillis() + ".txt");
+        FileWriter out = null;
+        try {
+            out = new FileWriter(file);
+            Metrics.writeSnapshot(out);
+            Log.i(TAG, "Wrote the metrics to " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the metrics: ", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close " + file + ": ", e);
+                }
+            }
+        }
     }
 
     /**
      * Send out all alerts associated with a bad posture event
      */
     private void badPostureAlerts() {
-        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         // Only send out alerts if the screen is active.
-        if (pm.isScreenOn()) {     // This was deprecated in API level 20
+        if (mScreenState.isScreenOn()) {
             Log.d(TAG, "Posture is bad!");
             vibrate(true);
             sendNotification(NotificationType.BAD_POSTURE, true);
@@ -376,9 +739,8 @@ public class OrientationService extends Service {
      * Send out all alerts associated with a good posture event
      */
     private void goodPostureAlerts() {
-        PowerManager pm = (PowerManager) getSystemService(POWER_SERVICE);
         // Only send out alerts if the screen is active.
-        if (pm.isScreenOn()) {     // This was deprecated in API level 20
+        if (mScreenState.isScreenOn()) {
             Log.d(TAG, "Posture just got good!");
             vibrate(false);
             sendNotification(NotificationType.BAD_POSTURE, false);
@@ -397,7 +759,7 @@ public class OrientationService extends Service {
         int id;
         int icon;
 
-        if (mAlertNotification || !send) {      // always attempt to cancel pending notifications
+        if (mConfig.isNotification() || !send) {      // always attempt to cancel pending notifications
             switch (n) {
 
                 // Right now, we're not sending any SERVICE_RUNNING notifications.
@@ -467,7 +829,7 @@ public class OrientationService extends Service {
      * @param longInterval if true, long vibration, otherwise short vibration time
      */
     private void vibrate(boolean longInterval) {
-        if (mAlertVibration) {
+        if (mConfig.isVibration()) {
             int vibrationTime = 30;         // short vibration time, units of milliseconds
             if (longInterval) {
                 vibrationTime = 800;        // long vibration time, units of milliseconds
@@ -489,135 +851,44 @@ public class OrientationService extends Service {
     private final SharedPreferences.OnSharedPreferenceChangeListener prefListener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
                 public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
-                    setupPreference(key);
+                    if (SampleStores.PREF_STORAGE_ENGINE.equals(key)) {
+                        mLoop.sendEmptyMessage(MSG_STORE_CHANGED);
+                        return;
+                    }
+                    PostureConfig config = PostureSettings.update(getApplicationContext());
+                    // This only does something if the limits have changed
+                    Reclassification.check(OrientationService.this);
+                    mLoop.obtainMessage(MSG_CONFIG, config).sendToTarget();
                 }
             };
 
-    private void setupPreference(String key) {
-        SharedPreferences sharedPrefs =
-                PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-
-        switch (key) {
-            case PREF_NOTIFICATION:
-                mAlertNotification = sharedPrefs.getBoolean(PREF_NOTIFICATION, DEFAULT_ALERT_NOTIFICATION);
-                if (!mAlertNotification) {
-                    // remove all notifications that might be currently displayed
-                    sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
-                    sendNotification(NotificationType.BAD_POSTURE, false);
-                    // sendNotification(NotificationType.SERVICE_RUNNING, false);
-                }
-                break;
-
-            case PREF_VIBRATION:
-                mAlertVibration = sharedPrefs.getBoolean(PREF_VIBRATION, DEFAULT_ALERT_VIBRATION);
-                break;
-
-            case PREF_LED:
-                mAlertLed = sharedPrefs.getBoolean(PREF_LED, DEFAULT_ALERT_LED);
-                break;
-
-            case PREF_CHIN_TUCK:
-                mChinTuck = sharedPrefs.getBoolean(PREF_CHIN_TUCK, DEFAULT_ALERT_CHIN_TUCK);
-                if (!mChinTuck) {
-                    // remove any chin tuck notification that might be currently displayed
-                    sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
-                }
-                break;
-
-            case PREF_SENSITIVITY:
-                // These are split out because GraphFragment needs them, too.
-                mZAxisPosThreshold = getZAxisPositiveThreshold(this);
-                mZAxisNegThreshold = getZAxisNegativeThreshold(this);
-                switch (Integer.valueOf(sharedPrefs.getString(PREF_SENSITIVITY, "2"))) {
-
-                    case 1:
-                        mPositiveHysteresis = LOW_POSITIVE_HYSTERESIS;
-                        mNegativeHysteresis = LOW_NEGATIVE_HYSTERESIS;
-                        mBadPostureReminderThreshold = LOW_BAD_REMINDER_THRESHOLD;
-                        break;
-
-                    case 2:
-                        mPositiveHysteresis = MEDIUM_POSITIVE_HYSTERESIS;
-                        mNegativeHysteresis = MEDIUM_NEGATIVE_HYSTERESIS;
-                        mBadPostureReminderThreshold = MEDIUM_BAD_REMINDER_THRESHOLD;
-                        break;
-
-                    case 3:
-                        mPositiveHysteresis = HIGH_POSITIVE_HYSTERESIS;
-                        mNegativeHysteresis = HIGH_NEGATIVE_HYSTERESIS;
-                        mBadPostureReminderThreshold = HIGH_BAD_REMINDER_THRESHOLD;
-                        break;
-
-                    default:
-                        Log.e(TAG, "invalid sensitivity setting");
-                        break;
-                }
-                break;
-        }
-    }
-
     /**
-     * Read in the various configuration settings via the shared preferences.
+     * Start using new settings.  Only the parts which changed are acted on.  Loop thread only.
      */
-    private void loadSharedPreferences() {
-        // the getAll() method isn't going to work with the support library ArrayMap.
-        // so just grab each value one-by-one.
-        setupPreference(PREF_NOTIFICATION);
-        setupPreference(PREF_VIBRATION);
-        setupPreference(PREF_LED);
-        setupPreference(PREF_CHIN_TUCK);
-        setupPreference(PREF_SENSITIVITY);
-    }
-
-    /**
-     * Get the user configured value for the Z-Axis positive threshold.
-     * This is needed by the charting function to draw the dotted red limit lines.
-     * @param c     Context
-     * @return      Z-Axis positive threshold
-     */
-    public static int getZAxisPositiveThreshold(Context c) {
-        SharedPreferences sharedPrefs =
-                PreferenceManager.getDefaultSharedPreferences(c);
-        switch (Integer.valueOf(sharedPrefs.getString(PREF_SENSITIVITY, "2"))) {
-
-            case 1:
-                return LOW_Z_AXIS_POS_THRESHOLD;
-
-            case 2:
-                return MEDIUM_Z_AXIS_POS_THRESHOLD;
-
-            case 3:
-                return HIGH_Z_AXIS_POS_THRESHOLD;
-
-            default:
-                Log.e(TAG, "invalid sensitivity setting");
-                return MEDIUM_Z_AXIS_POS_THRESHOLD;     // just use the default
+    private void applyConfig(PostureConfig config) {
+        PostureConfig old = mConfig;
+        if (config == old) {
+            return;
         }
-    }
-
-    /**
-     * Get the user configured value for the Z-Axis negative threshold.
-     * This is needed by the charting function to draw the dotted red limit lines.
-     * @param c     Context
-     * @return      Z-Axis negative threshold
-     */
-    public static int getZAxisNegativeThreshold(Context c) {
-        SharedPreferences sharedPrefs =
-                PreferenceManager.getDefaultSharedPreferences(c);
-        switch (Integer.valueOf(sharedPrefs.getString(PREF_SENSITIVITY, "2"))) {
+        mConfig = config;
+        mEngine.setConfig(config);
+        mOrientation.setFilter(config.getFilter());
 
-            case 1:
-                return LOW_Z_AXIS_NEG_THRESHOLD;
-
-            case 2:
-                return MEDIUM_Z_AXIS_NEG_THRESHOLD;
-
-            case 3:
-                return HIGH_Z_AXIS_NEG_THRESHOLD;
-
-            default:
-                Log.e(TAG, "invalid sensitivity setting");
-                return MEDIUM_Z_AXIS_NEG_THRESHOLD;     // just use the default
+        if (!config.isNotification()) {
+            // remove all notifications that might be currently displayed
+            sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
+            sendNotification(NotificationType.BAD_POSTURE, false);
+        } else if (!config.isChinTuck()) {
+            // remove any chin tuck notification that might be currently displayed
+            sendNotification(NotificationType.CHIN_TUCK_REMINDER, false);
+        }
+        if (config.getRetentionDays() != old.getRetentionDays()) {
+            mLastRetentionRun = 0;      // apply the new setting on the next sample
+        }
+        if (config.isAdaptiveSampling() != old.isAdaptiveSampling() && mTicking) {
+            // Switch the running checks over to the new mode
+            stopTicking();
+            startTicking();
         }
     }
 
@@ -630,7 +901,7 @@ public class OrientationService extends Service {
         @Override
         public void onReceive(Context c, Intent i) {
             if( i.getAction().equals(TURN_OFF_SERVICE_ACTION)) {
-                stopChecking();
+                mLoop.obtainMessage(MSG_STOP, 0, 0).sendToTarget();
             } else {
                 Log.e(TAG, "Received an unexpected broadcast intent");
             }
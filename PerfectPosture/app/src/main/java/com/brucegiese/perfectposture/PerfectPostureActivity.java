@@ -3,9 +3,7 @@ package com.brucegiese.perfectposture;
 import android.app.Activity;
 import android.app.Fragment;
 import android.app.FragmentManager;
-import android.content.Intent;
 import android.support.v13.app.FragmentPagerAdapter;
-import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.view.PagerTabStrip;
 import android.support.v4.view.ViewPager;
 import android.os.Bundle;
@@ -20,7 +18,6 @@ import android.util.Log;
  */
 public class PerfectPostureActivity extends Activity {
     private final static String TAG = "com.brucegiese.perfpost";
-    public final static String REDRAW_GRAPH_INTENT = "com.brucegiese.perfectposture.redraw";
     private final static int INTRO_CONTROL_PAGE = 0;
     private final static int DATA_PAGE = 1;
     private final static int SETTINGS_PAGE = 2;
@@ -43,8 +40,8 @@ public class PerfectPostureActivity extends Activity {
                 if (mPosition == 2 && position == 1) {
                     // We changed from settings page to the chart page.  Settings may have changed
                     // Tell the GraphFragment to redraw the red dotted lines, which may change
-                    Intent bcastIntent = new Intent(REDRAW_GRAPH_INTENT);
-                    LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(bcastIntent);
+                    PostureBus.get().publishStatus(PostureBus.Status.SETTINGS_CHANGED);
+                    Reclassification.check(PerfectPostureActivity.this);
                 }
                 mPosition = position;
             }
@@ -61,6 +58,9 @@ public class PerfectPostureActivity extends Activity {
 
         final PagerTabStrip pts = (PagerTabStrip) findViewById(R.id.pager_tab_strip);
         pts.setTextColor(getResources().getColor(R.color.medium_secondary_color));
+
+        // Carry on with classifying the history again if the app was stopped part way
+        Reclassification.check(this);
     }
 
     @Override
@@ -0,0 +1,297 @@
+package com.brucegiese.perfectposture;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * An in-process publish/subscribe bus for posture samples and status events.  This replaces
+ * sending a LocalBroadcastManager Intent for every sample.
+ *
+ * Samples are published from any thread and delivered on the main thread.  Each subscriber
+ * picks how samples are conflated while it's waiting for a delivery:
+ *   LATEST: only the newest sample is kept
+ *   BATCH:  all of them are kept (up to a limit) and delivered together
+ * Either way there's at most one delivery waiting per subscriber, so a slow screen never has
+ * a queue build up behind it.  Publishing a sample doesn't allocate, apart from the Message
+ * which Handler takes from its pool.
+ *
+ * A subscription belongs to an Activity.  Deliveries are held back while the Activity is
+ * stopped (the conflated samples are delivered when it starts again) and the subscription is
+ * removed when the Activity is destroyed, so subscribers don't have to unsubscribe.
+ *
+ * subscribe() and unsubscribe() must be called on the main thread.
+ */
+final class PostureBus {
+    private static final int BATCH_CAPACITY = 256;     // units of samples
+    private static final PostureBus sInstance = new PostureBus();
+    private static final Metrics.Histogram sPublishLatency = Metrics.histogram("bus.publish", "us");
+    private static final Metrics.Histogram sDeliveryLatency = Metrics.histogram("bus.delivery", "us");
+    private static final Metrics.Histogram sDeliveredSamples = Metrics.histogram("bus.batch", "samples");
+
+    /**
+     * How samples pile up while a subscriber is waiting for a delivery.
+     */
+    enum Conflation {
+        LATEST,
+        BATCH
+    }
+
+    /**
+     * Things other than samples which subscribers may want to know about.
+     */
+    enum Status {
+        SERVICE_STATE_CHANGED,      // the service started or stopped checking
+        SETTINGS_CHANGED,           // the user may have changed the settings
+        HISTORY_MOVED,              // the history is now in another storage engine
+        HISTORY_CLEARED             // the stored samples have been cleared
+    }
+
+    /**
+     * Override whichever of these the subscriber cares about.  They're called on the main thread.
+     */
+    static abstract class Subscriber {
+        /**
+         * @param samples   Only valid during the call; it's reused for the next delivery.
+         *                  With LATEST conflation there's just one sample in it.
+         */
+        void onSamples(SampleBatch samples) { }
+
+        void onStatus(Status status) { }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private boolean mWatchingLifecycles;                // only touched on the main thread
+
+    private PostureBus() { }
+
+    static PostureBus get() {
+        return sInstance;
+    }
+
+    /**
+     * Start delivering to a subscriber, until the owner Activity is destroyed.
+     * Subscribing the same Subscriber again replaces its old subscription.
+     */
+    void subscribe(Activity owner, Subscriber subscriber, Conflation conflation) {
+        if (!mWatchingLifecycles) {
+            owner.getApplication().registerActivityLifecycleCallbacks(mLifecycleCallbacks);
+            mWatchingLifecycles = true;
+        }
+        unsubscribe(subscriber);
+        Subscription subscription = new Subscription(owner, subscriber, conflation);
+        synchronized (this) {
+            Subscription[] old = mSubscriptions;
+            Subscription[] subscriptions = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, subscriptions, 0, old.length);
+            subscriptions[old.length] = subscription;
+            mSubscriptions = subscriptions;
+        }
+    }
+
+    /**
+     * Stop delivering to a subscriber.  Nothing more is delivered to it after this, even if a
+     * delivery was already on its way.
+     */
+    void unsubscribe(Subscriber subscriber) {
+        synchronized (this) {
+            Subscription[] old = mSubscriptions;
+            int count = 0;
+            for (Subscription s : old) {
+                if (s.mSubscriber == subscriber) {
+                    s.mActive = false;
+                } else {
+                    count++;
+                }
+            }
+            if (count != old.length) {
+                Subscription[] subscriptions = new Subscription[count];
+                int i = 0;
+                for (Subscription s : old) {
+                    if (s.mActive) {
+                        subscriptions[i++] = s;
+                    }
+                }
+                mSubscriptions = subscriptions;
+            }
+        }
+    }
+
+    /**
+     * Publish a sample.  This can be called from any thread.
+     * @param date  units of ms since epoch
+     */
+    void publishSample(long date, int value, boolean goodPosture) {
+        long start = Metrics.start();
+        Subscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            subscriptions[i].offer(date, value, goodPosture);
+        }
+        sPublishLatency.recordSince(start);
+    }
+
+    /**
+     * Publish a status event.  This can be called from any thread.
+     */
+    void publishStatus(Status status) {
+        Subscription[] subscriptions = mSubscriptions;
+        for (int i = 0; i < subscriptions.length; i++) {
+            subscriptions[i].offer(status);
+        }
+    }
+
+    /**
+     * One subscriber's conflated samples and events, waiting to be delivered.
+     */
+    private final class Subscription implements Runnable {
+        private final Activity mOwner;
+        private final Subscriber mSubscriber;
+        private final Conflation mConflation;
+        private SampleBatch mPending;
+        private SampleBatch mDelivering;
+        private int mPendingStatus;             // bit per Status ordinal
+        private boolean mPosted;                // a delivery is waiting in the Handler
+        private long mPostedAt;                 // Metrics.start() when it was posted
+        private boolean mStarted = true;        // the owner is visible
+        private volatile boolean mActive = true;
+
+        Subscription(Activity owner, Subscriber subscriber, Conflation conflation) {
+            mOwner = owner;
+            mSubscriber = subscriber;
+            mConflation = conflation;
+            int capacity = conflation == Conflation.LATEST ? 1 : BATCH_CAPACITY;
+            mPending = new SampleBatch(capacity);
+            mDelivering = new SampleBatch(capacity);
+        }
+
+        void offer(long date, int value, boolean goodPosture) {
+            boolean post;
+            synchronized (this) {
+                if (mConflation == Conflation.LATEST) {
+                    mPending.clear();
+                } else if (mPending.isFull()) {
+                    mPending.removeFirst(1);        // the subscriber is way behind
+                }
+                mPending.add(date, value, goodPosture);
+                post = needsPost();
+            }
+            if (post) {
+                mHandler.post(this);
+            }
+        }
+
+        void offer(Status status) {
+            boolean post;
+            synchronized (this) {
+                mPendingStatus |= 1 << status.ordinal();
+                post = needsPost();
+            }
+            if (post) {
+                mHandler.post(this);
+            }
+        }
+
+        /**
+         * Hold back or let go of deliveries as the owner stops and starts.  Main thread only.
+         */
+        void setStarted(boolean started) {
+            boolean post;
+            synchronized (this) {
+                mStarted = started;
+                post = started && (mPending.size() > 0 || mPendingStatus != 0) && needsPost();
+            }
+            if (post) {
+                mHandler.post(this);
+            }
+        }
+
+        // Call while synchronized.  Marks a delivery as posted if one is needed.
+        private boolean needsPost() {
+            if (mPosted || !mStarted) {
+                return false;
+            }
+            mPosted = true;
+            mPostedAt = Metrics.start();
+            return true;
+        }
+
+        /**
+         * Deliver whatever has piled up, on the main thread.
+         */
+        @Override
+        public void run() {
+            int status;
+            synchronized (this) {
+                sDeliveryLatency.recordSince(mPostedAt);
+                mPosted = false;
+                if (!mStarted) {
+                    return;         // it all gets delivered when the owner starts again
+                }
+                SampleBatch swap = mDelivering;
+                mDelivering = mPending;
+                mPending = swap;
+                mPending.clear();
+                status = mPendingStatus;
+                mPendingStatus = 0;
+            }
+            if (!mActive) {
+                return;
+            }
+            if (mDelivering.size() > 0) {
+                sDeliveredSamples.record(mDelivering.size());
+                mSubscriber.onSamples(mDelivering);
+                mDelivering.clear();
+            }
+            for (Status s : Status.values()) {
+                if (mActive && (status & (1 << s.ordinal())) != 0) {
+                    mSubscriber.onStatus(s);
+                }
+            }
+        }
+    }
+
+    private final Application.ActivityLifecycleCallbacks mLifecycleCallbacks =
+            new Application.ActivityLifecycleCallbacks() {
+                @Override
+                public void onActivityStarted(Activity activity) {
+                    for (Subscription s : mSubscriptions) {
+                        if (s.mOwner == activity) {
+                            s.setStarted(true);
+                        }
+                    }
+                }
+
+                @Override
+                public void onActivityStopped(Activity activity) {
+                    for (Subscription s : mSubscriptions) {
+                        if (s.mOwner == activity) {
+                            s.setStarted(false);
+                        }
+                    }
+                }
+
+                @Override
+                public void onActivityDestroyed(Activity activity) {
+                    for (Subscription s : mSubscriptions) {
+                        if (s.mOwner == activity) {
+                            unsubscribe(s.mSubscriber);
+                        }
+                    }
+                }
+
+                @Override
+                public void onActivityCreated(Activity activity, Bundle savedInstanceState) { }
+
+                @Override
+                public void onActivityResumed(Activity activity) { }
+
+                @Override
+                public void onActivityPaused(Activity activity) { }
+
+                @Override
+                public void onActivitySaveInstanceState(Activity activity, Bundle outState) { }
+            };
+}
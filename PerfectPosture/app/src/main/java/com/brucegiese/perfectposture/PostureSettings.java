@@ -0,0 +1,102 @@
+package com.brucegiese.perfectposture;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * This hands out the user's settings as one PostureConfig, shared by the service and the
+ * chart.  The preferences are only parsed when one of them changes; after that, get() is just
+ * a volatile read, so it's fine to call from any thread as often as needed.
+ *
+ * A new PostureConfig is only published when a setting it holds actually changed, so the
+ * version only goes up for real changes.
+ */
+final class PostureSettings {
+    private static final String TAG = "com.brucegiese.settings";
+
+    // These must match the values in preferences.xml
+    // The reason for not using a @string value is that the user can change languages which would
+    // ...change the key if that language is implemented in this app.
+    private static final String PREF_SENSITIVITY = "PREF_SENSITIVITY";
+    private static final String PREF_NOTIFICATION = "PREF_NOTIFICATION";
+    private static final String PREF_VIBRATION = "PREF_VIBRATION";
+    private static final String PREF_LED = "PREF_LED";
+    private static final String PREF_CHIN_TUCK = "PREF_CHIN_TUCK";
+    private static final String PREF_RETENTION_DAYS = "PREF_RETENTION_DAYS";
+    private static final String PREF_ADAPTIVE_SAMPLING = "PREF_ADAPTIVE_SAMPLING";
+    private static final String PREF_SENSOR_FILTER = "PREF_SENSOR_FILTER";
+
+    private static volatile PostureConfig sConfig = null;
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener sListener = null;
+
+    private PostureSettings() { }
+
+    /**
+     * Get the latest settings.
+     * @param c     Context
+     */
+    static PostureConfig get(Context c) {
+        PostureConfig config = sConfig;
+        if (config == null) {
+            config = update(c);
+        }
+        return config;
+    }
+
+    /**
+     * Read the preferences again and publish a new PostureConfig if anything changed.
+     * @param c     Context
+     * @return      the latest settings, which are the same object as before if nothing changed
+     */
+    static synchronized PostureConfig update(Context c) {
+        final Context context = c.getApplicationContext();
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (sListener == null) {
+            // Keep up to date even when the service isn't running, for the chart
+            sListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    update(context);
+                }
+            };
+            sharedPrefs.registerOnSharedPreferenceChangeListener(sListener);
+        }
+
+        PostureConfig.Builder builder = new PostureConfig.Builder()
+                .setNotification(sharedPrefs.getBoolean(PREF_NOTIFICATION, PostureConfig.DEFAULT.isNotification()))
+                .setVibration(sharedPrefs.getBoolean(PREF_VIBRATION, PostureConfig.DEFAULT.isVibration()))
+                .setLed(sharedPrefs.getBoolean(PREF_LED, PostureConfig.DEFAULT.isLed()))
+                .setChinTuck(sharedPrefs.getBoolean(PREF_CHIN_TUCK, PostureConfig.DEFAULT.isChinTuck()))
+                .setAdaptiveSampling(sharedPrefs.getBoolean(PREF_ADAPTIVE_SAMPLING,
+                        PostureConfig.DEFAULT.isAdaptiveSampling()));
+        try {
+            builder.setSensitivity(Integer.valueOf(sharedPrefs.getString(PREF_SENSITIVITY,
+                    String.valueOf(PostureConfig.DEFAULT.getSensitivity()))));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "invalid sensitivity setting");
+        }
+        try {
+            builder.setRetentionDays(Integer.valueOf(sharedPrefs.getString(PREF_RETENTION_DAYS,
+                    String.valueOf(PostureConfig.DEFAULT.getRetentionDays()))));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid retention setting");
+        }
+        try {
+            // The values in arrays.xml are the names of the filters
+            builder.setFilter(GravityWindow.Filter.valueOf(sharedPrefs.getString(PREF_SENSOR_FILTER,
+                    PostureConfig.DEFAULT.getFilter().name())));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "invalid sensor filter setting");
+        }
+
+        PostureConfig config = builder.build();
+        if (sConfig == null || !sConfig.sameSettings(config)) {
+            config = builder.setVersion(sConfig == null ? 1 : sConfig.getVersion() + 1).build();
+            Log.d(TAG, "New settings: " + config);
+            sConfig = config;
+        }
+        return sConfig;
+    }
+}
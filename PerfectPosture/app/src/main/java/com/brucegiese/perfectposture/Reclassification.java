@@ -0,0 +1,163 @@
+package com.brucegiese.perfectposture;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * When the sensitivity changes, this classifies the stored history again with the new limits
+ * (see Reclassifier) so old samples and their rollups agree with the chart's limit lines.
+ *
+ * The limits the history was last classified with are kept in the shared preferences, along
+ * with how far the job got.  If the app is killed part way through, the next check() carries
+ * on from there.  If the limits change again meanwhile, the job starts over.  With nothing
+ * saved yet, the history is taken to match the current limits.
+ *
+ * A job which is cancelled still finishes the chunks it's part way through, with its old
+ * limits.  So the job for the new limits isn't started until the old one has finished, or
+ * the two could write the same chunks and adjust the same rollups in either order.
+ *
+ * Nothing is started while the history is being moved to another storage engine (see
+ * SampleStores), which calls check() again once it's there.  The move copies the flags as
+ * they are, so a finished job stays finished and an unfinished one starts over.
+ */
+final class Reclassification {
+    private static final String TAG = "com.brucegiese.reclass";
+
+    private static final String PREF_LOW = "reclassify_low";
+    private static final String PREF_HIGH = "reclassify_high";
+    private static final String PREF_RESUME = "reclassify_resume";    // -1 when finished
+    private static final String PREF_ENGINE = "reclassify_engine";
+    private static final int PARALLEL_CHUNKS = 2;
+
+    private static Reclassifier sJob = null;
+    private static SampleStore sStore = null;   // what sJob is working on
+    private static boolean sRestart = false;    // check again once sJob has finished
+
+    private Reclassification() { }
+
+    /**
+     * Start (or carry on) classifying the history again if the limits have changed.  Looking
+     * up the engine and acquiring the store can open it, so that's done in a scheduler task
+     * and this is fine on the main thread.
+     * @param c     Context
+     */
+    static void check(Context c) {
+        final Context context = c.getApplicationContext();
+        PostureScheduler.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                checkNow(context);
+            }
+        }, PostureScheduler.Priority.NORMAL);
+    }
+
+    private static synchronized void checkNow(final Context context) {
+        final SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        PostureConfig config = PostureSettings.get(context);
+        final int low = config.getLow();
+        final int high = config.getHigh();
+        if (SampleStores.isMoving()) {
+            return;                 // checked again once the history has moved
+        }
+        String engine = SampleStores.getEngine(context);
+
+        if (!sharedPrefs.contains(PREF_LOW)) {
+            save(sharedPrefs, low, high, -1, engine);
+            return;
+        }
+        long resume = sharedPrefs.getLong(PREF_RESUME, -1);
+        boolean changed = sharedPrefs.getInt(PREF_LOW, low) != low
+                || sharedPrefs.getInt(PREF_HIGH, high) != high;
+        if (changed) {
+            resume = 0;             // the resume index was for other limits
+        } else if (!engine.equals(sharedPrefs.getString(PREF_ENGINE, engine))) {
+            if (resume > 0) {
+                resume = 0;         // the resume index was for another store
+            }
+        } else if (resume < 0 || sJob != null) {
+            return;                 // all done, or already running
+        }
+        save(sharedPrefs, low, high, resume, engine);
+        if (sJob != null) {
+            sJob.cancel();
+            sRestart = true;
+            return;
+        }
+        if (resume < 0) {
+            return;                 // the history moved, but it was already done
+        }
+
+        final SampleStore store = SampleStores.acquire(context);
+        Reclassifier job = new Reclassifier(store,
+                OrientationService.getRollups(), low, high, resume, PARALLEL_CHUNKS,
+                new Reclassifier.Listener() {
+                    @Override
+                    public void onProgress(long resumeIndex, long done, long total) {
+                        saveProgress(sharedPrefs, low, high, resumeIndex);
+                    }
+
+                    @Override
+                    public void onFinished(Reclassifier finishedJob) {
+                        finished(context, sharedPrefs, finishedJob, low, high);
+                    }
+                });
+        sJob = job;
+        sStore = store;
+        job.start(PostureScheduler.get());
+        Log.i(TAG, "Reclassifying history from index " + resume + " for limits "
+                + low + " to " + high);
+    }
+
+    /**
+     * @return  true while a job is running, including one which has been cancelled but is
+     *          still finishing its chunks
+     */
+    static synchronized boolean isRunning() {
+        return sJob != null;
+    }
+
+    private static synchronized void finished(Context context, SharedPreferences sharedPrefs,
+                                              Reclassifier job, int low, int high) {
+        if (job.getError() != null) {
+            Log.e(TAG, "Unable to reclassify the history: ", job.getError());
+        }
+        if (job.isFinished()) {
+            saveProgress(sharedPrefs, low, high, -1);
+        }
+        Log.i(TAG, "Reclassified " + job.getChanged() + " samples");
+        if (sJob == job) {
+            if (job.getChanged() > 0) {
+                SampleStores.getDetail(sStore).invalidate();   // cached points have old flags
+            }
+            SampleStores.release(sStore);
+            sJob = null;
+            sStore = null;
+            if (sRestart) {
+                sRestart = false;
+                check(context);
+            }
+        }
+    }
+
+    // Only save progress for the limits the job was started with, and not for a job which is
+    // being replaced
+    private static synchronized void saveProgress(SharedPreferences sharedPrefs, int low,
+                                                  int high, long resume) {
+        if (!sRestart && sharedPrefs.getInt(PREF_LOW, low) == low
+                && sharedPrefs.getInt(PREF_HIGH, high) == high) {
+            sharedPrefs.edit().putLong(PREF_RESUME, resume).apply();
+        }
+    }
+
+    private static void save(SharedPreferences sharedPrefs, int low, int high, long resume,
+                             String engine) {
+        sharedPrefs.edit()
+                .putInt(PREF_LOW, low)
+                .putInt(PREF_HIGH, high)
+                .putLong(PREF_RESUME, resume)
+                .putString(PREF_ENGINE, engine)
+                .apply();
+    }
+}
@@ -0,0 +1,68 @@
+package com.brucegiese.perfectposture;
+
+import android.annotation.SuppressLint;
+import android.provider.BaseColumns;
+
+import com.activeandroid.Model;
+import com.activeandroid.annotation.Column;
+import com.activeandroid.annotation.Table;
+
+/**
+ * One row per rollup bucket.  See RollupAggregator.
+ */
+@SuppressWarnings("FieldCanBeLocal")
+@Table(name="Rollup", id= BaseColumns._ID)
+class Rollup extends Model {
+    // RollupLevel ordinal
+    @Column(name="Level", index=true)
+    public int level;
+
+    // Start of the bucket, units of ms since epoch
+    @Column(name="Start", index=true)
+    public long start;
+
+    @Column(name="Count")
+    public int count;
+
+    @Column(name="Min")
+    public int min;
+
+    @Column(name="Max")
+    public int max;
+
+    @Column(name="Sum")
+    public long sum;
+
+    @Column(name="SumOfSquares")
+    public long sumOfSquares;
+
+    @Column(name="GoodCount")
+    public int goodCount;
+
+    @SuppressLint("all")
+    public Rollup() {       // This constructor is mandatory.  Don't remove it.
+        super();
+    }
+
+    void copyFrom(RollupBucket bucket) {
+        level = bucket.level.ordinal();
+        start = bucket.start;
+        count = bucket.count;
+        min = bucket.min;
+        max = bucket.max;
+        sum = bucket.sum;
+        sumOfSquares = bucket.sumOfSquares;
+        goodCount = bucket.goodCount;
+    }
+
+    void copyTo(RollupBucket bucket) {
+        bucket.level = RollupLevel.values()[level];
+        bucket.start = start;
+        bucket.count = count;
+        bucket.min = min;
+        bucket.max = max;
+        bucket.sum = sum;
+        bucket.sumOfSquares = sumOfSquares;
+        bucket.goodCount = goodCount;
+    }
+}
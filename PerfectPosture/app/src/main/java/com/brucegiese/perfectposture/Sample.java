@@ -22,7 +22,8 @@ class Sample extends Model {
     }
 
     // Don't rely on the date as a key, due to time zone changes, daylight savings time changes...
-    @Column(name="Date")
+    // It's indexed for the retention cleanup.  See assets/migrations/7.sql for existing databases.
+    @Column(name="Date", index=true)
     private Date date;
 
     // Whether this data point is considered good posture or bad posture
@@ -34,4 +35,12 @@ class Sample extends Model {
         this.date = date;
         this.goodPosture = goodPosture;
     }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public boolean isGoodPosture() {
+        return goodPosture;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,146 @@
+package com.brucegiese.perfectposture;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * This is a write-behind journal for posture samples.  Rather than doing one database insert
+ * (and one SQLite transaction) per sample, samples are held in a bounded in-memory buffer and
+ * appended to the SampleStore as one batch every few samples or every few seconds, whichever
+ * comes first.  The service must also call flush() when it stops so nothing is left behind.
+ *
+ * There are two bounds.  While writes are working, at most maxUnflushed samples (or
+ * flushInterval worth) are waiting at any time, which is what a crash normally loses.  If
+ * writes keep failing, samples pile up until the buffer holds capacity of them; that's the
+ * most a crash can ever lose.  After that the oldest samples are dropped and counted.
+ *
+ * Samples are only appended on the service's loop thread, but flush() is called from other
+ * threads too: the scheduler's periodic flush, SampleStores.flushJournal(), and a history
+ * move, which holds this journal's monitor while it flushes, copies what's left and switches
+ * the store over.  Everything is synchronized on the journal for that, and so the counts
+ * can be read from any thread.
+ */
+class SampleJournal {
+    private static final String TAG = "com.brucegiese.journal";
+    private static final Metrics.Histogram sFlushLatency = Metrics.histogram("journal.flush", "us");
+    private static final Metrics.Gauge sPending = Metrics.gauge("journal.pending");
+    private static final Metrics.Counter sDropped = Metrics.counter("journal.dropped");
+
+    private final int mMaxUnflushed;            // flush once this many are waiting
+    private final long mFlushInterval;          // units of milliseconds
+    private final SampleBatch mBuffer;
+    private SampleStore mStore;
+    private long mLastFlushTime;                // units of ms since epoch
+
+    private long mDroppedSamples;
+    private long mLateFlushes;
+    private long mFailedFlushes;
+
+    /**
+     * @param store             where the samples end up
+     * @param maxUnflushed      Flush once this many samples are waiting.  This is the most
+     *                          a crash loses while writes are working.
+     * @param capacity          Most samples kept while writes are failing, at least
+     *                          maxUnflushed.  This is the most a crash can lose.
+     * @param flushInterval     Flush if the oldest waiting sample is this old, units of ms
+     */
+    SampleJournal(SampleStore store, int maxUnflushed, int capacity, long flushInterval) {
+        if (maxUnflushed < 1) {
+            throw new IllegalArgumentException("maxUnflushed must be at least 1");
+        }
+        if (capacity < maxUnflushed) {
+            throw new IllegalArgumentException("capacity must be at least maxUnflushed");
+        }
+        mStore = store;
+        mMaxUnflushed = maxUnflushed;
+        mFlushInterval = flushInterval;
+        mBuffer = new SampleBatch(capacity);
+        mLastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Switch to a different store, such as when the history has moved to another storage
+     * engine.  Whatever is buffered goes to the new store.  SampleStores does this while
+     * holding the journal's lock, so no flush can go to the old store afterward.
+     */
+    synchronized void setStore(SampleStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Add a sample to the journal.  This may write the buffered samples to the store.
+     * @param date          time of the sample, units of ms since epoch
+     * @param value         Z-axis posture value
+     * @param goodPosture   whether the sample was considered good posture
+     */
+    synchronized void append(long date, int value, boolean goodPosture) {
+        if (mBuffer.isFull()) {
+            // The store hasn't been keeping up.  Throw away the oldest sample.
+            mBuffer.removeFirst(1);
+            mDroppedSamples++;
+            sDropped.increment();
+        }
+        mBuffer.add(date, value, goodPosture);
+        sPending.set(mBuffer.size());
+
+        if (mBuffer.size() >= mMaxUnflushed || date - mBuffer.dates[0] >= mFlushInterval) {
+            flush();
+        }
+    }
+
+    /**
+     * Write all the buffered samples to the store as one batch.
+     * If the write fails, the samples stay in the buffer and we try again next time.
+     */
+    synchronized void flush() {
+        if (mBuffer.size() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mBuffer.dates[0] > 2 * mFlushInterval) {
+            mLateFlushes++;
+        }
+
+        long start = Metrics.start();
+        try {
+            mStore.append(mBuffer);
+            mBuffer.clear();
+            mLastFlushTime = now;
+            sFlushLatency.recordSince(start);
+            sPending.set(0);
+        } catch (IOException e) {
+            mFailedFlushes++;
+            Log.e(TAG, "Unable to write " + mBuffer.size() + " samples: ", e);
+        }
+    }
+
+    synchronized int getPendingCount() {
+        return mBuffer.size();
+    }
+
+    synchronized long getLastFlushTime() {
+        return mLastFlushTime;
+    }
+
+    /**
+     * @return  number of samples thrown away because the buffer was full
+     */
+    synchronized long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * @return  number of flushes which happened well after the flush interval
+     */
+    synchronized long getLateFlushes() {
+        return mLateFlushes;
+    }
+
+    /**
+     * @return  number of flushes where the database write failed
+     */
+    synchronized long getFailedFlushes() {
+        return mFailedFlushes;
+    }
+}
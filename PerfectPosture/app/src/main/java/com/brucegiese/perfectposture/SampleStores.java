@@ -0,0 +1,686 @@
+package com.brucegiese.perfectposture;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * This hands out the SampleStore for the storage engine the user has picked in the settings.
+ * The service writes to it and the chart reads from it, so there's one shared instance for
+ * the whole process.
+ *
+ * Each engine's store is wrapped in a PyramidSampleStore, so range summaries don't have to
+ * read every sample.  Each kind of store has a pyramid directory of its own, named after the
+ * class rather than the setting, since a store which fails to open falls back to the database.
+ * A pyramid which is behind its store is brought up to date by LOW priority tasks, a chunk at
+ * a time, rather than by the first append.
+ *
+ * Under that, each store is wrapped in a GenerationSampleStore, so clearing it is instant.
+ * The old samples, rollups and histograms are deleted afterward on a background thread.
+ *
+ * Picking another engine moves the history over rather than starting a new one.  The old
+ * engine stays in use while its samples are copied to the new one a page at a time, as LOW
+ * priority tasks.  Once they're caught up, the last few samples are copied and the journal is
+ * given the new store while it's locked, so nothing it writes can land in the old store
+ * afterward.  The engine actually holding the history is kept in the preferences, so a move
+ * which is cut short by the app being killed starts over next time.
+ *
+ * Anything which keeps using a store across calls (a background task, say) must acquire() it
+ * and release() it when done.  After a move, the old store is only emptied and closed once
+ * the last of those has let it go.
+ *
+ * The main thread calls in here, so nothing does I/O while holding the SampleStores lock.
+ * Stores are opened, copied, cleared and closed outside it, and it only covers the
+ * bookkeeping.  Opening the first store is kept to one thread at a time by a lock of its own.
+ * When the journal's lock is needed as well, it's taken first.
+ */
+final class SampleStores {
+    private static final String TAG = "com.brucegiese.stores";
+
+    // This must match the key in preferences.xml
+    static final String PREF_STORAGE_ENGINE = "PREF_STORAGE_ENGINE";
+    static final String ENGINE_DATABASE = "database";
+    static final String ENGINE_FILE_LOG = "filelog";
+    static final String ENGINE_COLUMNAR = "columnar";
+    private static final String PREF_ACTIVE_ENGINE = "stores_engine";  // the one with the history
+    private static final String FILE_LOG_DIRECTORY = "samples";
+    private static final String COLUMNAR_DIRECTORY = "columnar";
+    private static final String PYRAMID_DIRECTORY_PREFIX = "pyramid-";
+    private static final String GENERATION_FILE_PREFIX = "generation-";
+    private static final long PURGE_PAUSE = 100;            // units of ms
+    private static final int DETAIL_CACHE_SIZE = 8;         // units of chart ranges
+    private static final int MOVE_PAGE_SIZE = 4096;         // units of samples
+    private static final long MOVE_WAIT = 5000;             // units of ms
+
+    private static Opened sCurrent = null;
+    private static HistoryDetail sDetail = null;
+    private static RetentionTask sPurgeTask = null;
+    private static Move sMove = null;
+    private static String sFailedEngine = null;             // don't keep trying to move to it
+    private static SampleJournal sJournal = null;
+    private static final ArrayList<Opened> sRetired = new ArrayList<Opened>();
+    private static final HashSet<String> sOpenEngines = new HashSet<String>();
+    private static Context sContext = null;
+    private static int sClearing = 0;                       // clears in progress
+    private static final Object sOpenLock = new Object();
+
+    private SampleStores() { }
+
+    /**
+     * One engine's store, with its wrappers.
+     */
+    private static final class Opened {
+        final String engine;
+        final SampleStore store;                // the outermost wrapper
+        final GenerationSampleStore generations;     // or null
+        final boolean fallback;                 // the engine failed, this is the database
+        int users = 0;
+
+        Opened(String engine, SampleStore store, GenerationSampleStore generations,
+               boolean fallback) {
+            this.engine = engine;
+            this.store = store;
+            this.generations = generations;
+            this.fallback = fallback;
+        }
+    }
+
+    /**
+     * Get the store which holds the history.  If the user has picked another engine, this
+     * starts moving the history there; until that's done, this is still the old engine's
+     * store.  Only hang on to it for the length of a call; see acquire().
+     * @param c     Context
+     * @return      the current SampleStore
+     */
+    static SampleStore get(Context c) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(c);
+        String engine = sharedPrefs.getString(PREF_STORAGE_ENGINE, ENGINE_DATABASE);
+        synchronized (SampleStores.class) {
+            if (sCurrent != null) {
+                return select(c, engine);
+            }
+        }
+
+        synchronized (sOpenLock) {
+            synchronized (SampleStores.class) {
+                if (sCurrent != null) {
+                    return select(c, engine);       // another thread opened it
+                }
+            }
+            // Before there was a move, the history was always in the selected engine
+            String active = sharedPrefs.getString(PREF_ACTIVE_ENGINE, engine);
+            Opened opened = open(c, active, true);
+            sharedPrefs.edit().putString(PREF_ACTIVE_ENGINE, active).apply();
+            synchronized (SampleStores.class) {
+                sContext = c.getApplicationContext();
+                sCurrent = opened;
+                sOpenEngines.add(active);
+                startPurge(false);          // finish off a purge the last process didn't get to
+                return select(c, engine);
+            }
+        }
+    }
+
+    /**
+     * Start or stop a move, depending on whether the selected engine is the one holding the
+     * history.  Call while synchronized.
+     * @return      the current SampleStore
+     */
+    private static SampleStore select(Context c, String engine) {
+        if (!engine.equals(sCurrent.engine)) {
+            startMove(c, engine);
+        } else {
+            sFailedEngine = null;
+            if (sMove != null) {
+                sMove.cancel();         // the user changed their mind
+                sMove = null;
+            }
+        }
+        return sCurrent.store;
+    }
+
+    /**
+     * Get the current store for a task which keeps using it.  It stays open, even if the
+     * history moves to another engine, until it's given back with release().
+     * @param c     Context
+     * @return      the current SampleStore
+     */
+    static SampleStore acquire(Context c) {
+        get(c);
+        synchronized (SampleStores.class) {
+            sCurrent.users++;
+            return sCurrent.store;
+        }
+    }
+
+    /**
+     * Give back a store from acquire().
+     */
+    static synchronized void release(SampleStore store) {
+        if (sCurrent != null && sCurrent.store == store) {
+            sCurrent.users--;
+            return;
+        }
+        for (int i = 0; i < sRetired.size(); i++) {
+            Opened retired = sRetired.get(i);
+            if (retired.store == store) {
+                if (--retired.users <= 0) {
+                    sRetired.remove(i);
+                    dispose(retired);
+                }
+                return;
+            }
+        }
+        Log.e(TAG, "Released a store which wasn't acquired");
+    }
+
+    /**
+     * @param c     Context
+     * @return      the engine which holds the history, which is the selected one unless the
+     *              history is still being moved
+     */
+    static String getEngine(Context c) {
+        get(c);
+        synchronized (SampleStores.class) {
+            return sCurrent.engine;
+        }
+    }
+
+    /**
+     * @return  true while the history is being moved to another engine
+     */
+    static synchronized boolean isMoving() {
+        return sMove != null;
+    }
+
+    /**
+     * Set the journal the service writes samples through, so it can be switched over when the
+     * history moves to another engine.  This also points it at the current store.
+     * @param journal   the service's journal, or null when the service is done with it
+     */
+    static void setJournal(Context c, SampleJournal journal) {
+        if (journal == null) {
+            synchronized (SampleStores.class) {
+                sJournal = null;
+            }
+            return;
+        }
+        get(c);
+        synchronized (journal) {
+            synchronized (SampleStores.class) {
+                sJournal = journal;
+                journal.setStore(sCurrent.store);
+            }
+        }
+    }
+
+    /**
+     * Write whatever the service's journal is holding, so reading up to size() gets the
+     * newest samples.  Any thread.
+     */
+    static void flushJournal() {
+        SampleJournal journal;
+        synchronized (SampleStores.class) {
+            journal = sJournal;
+        }
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    /**
+     * Clear all the samples, as a task on the shared scheduler, so it's fine on the main
+     * thread.  The samples are hidden first, and HISTORY_CLEARED is published on the bus once
+     * they are.  The old samples, rollups and histograms are then deleted a chunk at a time,
+     * while the service carries on adding samples.  A move to another engine starts over,
+     * with nothing to copy.
+     * @param c     Context
+     */
+    static void clear(Context c) {
+        final Context context = c.getApplicationContext();
+        PostureScheduler.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                get(context);
+                SampleStore store;
+                synchronized (SampleStores.class) {
+                    sClearing++;                // no move can start or finish meanwhile
+                    if (sMove != null) {
+                        sMove.cancel();
+                        sMove = null;
+                    }
+                    store = sCurrent.store;
+                }
+                boolean cleared = false;
+                try {
+                    store.clear();
+                    cleared = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to clear the stored samples: ", e);
+                }
+                synchronized (SampleStores.class) {
+                    sClearing--;
+                    if (cleared) {
+                        if (sDetail != null) {
+                            sDetail.invalidate();
+                        }
+                        startPurge(true);
+                    }
+                }
+                get(context);       // start the move again once the cancelled one has cleaned up
+                PostureBus.get().publishStatus(PostureBus.Status.HISTORY_CLEARED);
+            }
+        }, PostureScheduler.Priority.NORMAL);
+    }
+
+    /**
+     * Get the cut down history for charting.
+     * @param store     a store from acquire()
+     * @return      the HistoryDetail for it.  The current store's one is shared, so its
+     *              cache is kept between calls.
+     */
+    static synchronized HistoryDetail getDetail(SampleStore store) {
+        if (sCurrent == null || store != sCurrent.store) {
+            return new HistoryDetail(store, 1);
+        }
+        if (sDetail == null) {
+            sDetail = new HistoryDetail(store, DETAIL_CACHE_SIZE);
+        }
+        return sDetail;
+    }
+
+    /**
+     * Start moving the history to another engine, unless it's already on its way there.
+     * Call while synchronized.
+     */
+    private static void startMove(Context c, String engine) {
+        if (sMove != null) {
+            if (sMove.mEngine.equals(engine)) {
+                return;
+            }
+            sMove.cancel();
+            sMove = null;
+        }
+        if (sClearing > 0) {
+            return;         // the clear starts it again when it's done
+        }
+        if (engine.equals(sFailedEngine) || sOpenEngines.contains(engine)) {
+            return;         // it failed, or it's still being emptied from an earlier move
+        }
+        if (sCurrent.fallback) {
+            // The history isn't where it should be, so there's nothing sensible to move
+            Log.e(TAG, "Not moving the history to " + engine + " from a fallback store");
+            sFailedEngine = engine;
+            return;
+        }
+        sFailedEngine = null;
+        sOpenEngines.add(engine);       // it's the move's until it's been disposed of
+        sMove = new Move(c.getApplicationContext(), sCurrent.store, engine);
+        PostureScheduler.get().submit(sMove, PostureScheduler.Priority.LOW);
+        Log.i(TAG, "Moving the history from " + sCurrent.engine + " to " + engine);
+    }
+
+    /**
+     * Opens another engine's store, copies the history to it a page at a time, then switches
+     * over.  Each page is its own LOW priority task.  It waits while the history is being
+     * reclassified, since flags rewritten in the old store after their page was copied would
+     * be lost.  Reclassifying doesn't start while a move is going on.
+     */
+    private static final class Move implements Runnable {
+        private final Context mContext;
+        private final SampleStore mFrom;
+        private final String mEngine;
+        private Opened mTo = null;
+        private final SampleBatch mPage = new SampleBatch(MOVE_PAGE_SIZE);
+        private volatile boolean mCancelled = false;
+        private boolean mStarted = false;
+        private long mNext;                     // index in mFrom of the next sample to copy
+        private long mCopied;
+
+        Move(Context context, SampleStore from, String engine) {
+            mContext = context;
+            mFrom = from;
+            mEngine = engine;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!mCancelled && Reclassification.isRunning()) {
+                    PostureScheduler.get().schedule(this, PostureScheduler.Priority.LOW,
+                            MOVE_WAIT, MOVE_WAIT);
+                    return;
+                }
+                if (!mCancelled && mTo == null) {
+                    mTo = open(mContext, mEngine, false);
+                    if (mTo == null) {
+                        failed();
+                    }
+                }
+                if (!mCancelled && mTo != null) {
+                    if (!mStarted) {
+                        // Anything left from an earlier move that didn't finish is hidden
+                        if (mTo.store.firstIndex() < mTo.store.size()) {
+                            mTo.store.clear();
+                        }
+                        mNext = mFrom.firstIndex();
+                        mStarted = true;
+                    }
+                    if (copyPage() == MOVE_PAGE_SIZE) {
+                        PostureScheduler.get().submit(this, PostureScheduler.Priority.LOW);
+                        return;
+                    }
+                    if (finish()) {
+                        Reclassification.check(mContext);
+                        PostureBus.get().publishStatus(PostureBus.Status.HISTORY_MOVED);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to move the history to " + mEngine + ": ", e);
+                failed();
+            }
+            if (mTo != null) {
+                dispose(mTo);
+            } else {
+                closed(mEngine);
+            }
+        }
+
+        /**
+         * @return  number of samples copied
+         */
+        private int copyPage() throws IOException {
+            int count = mFrom.read(mNext, mPage);
+            if (count > 0) {
+                mTo.store.append(mPage);
+                mNext = mPage.getFirstIndex() + count;
+                mCopied += count;
+            }
+            return count;
+        }
+
+        /**
+         * Copy whatever was added meanwhile and switch over, with the journal held still so
+         * nothing it writes lands in the old store afterward.  Only the switch itself is done
+         * under the SampleStores lock.
+         * @return  false if the move was cancelled
+         */
+        private boolean finish() throws IOException {
+            while (true) {
+                SampleJournal journal;
+                synchronized (SampleStores.class) {
+                    if (sMove != this) {
+                        return false;
+                    }
+                    journal = sJournal;
+                }
+                if (journal != null) {
+                    synchronized (journal) {
+                        journal.flush();
+                        while (copyPage() == MOVE_PAGE_SIZE) { }
+                        if (switchOver(journal)) {
+                            return true;
+                        }
+                    }
+                } else {
+                    while (copyPage() == MOVE_PAGE_SIZE) { }
+                    if (switchOver(null)) {
+                        return true;
+                    }
+                }
+                // Cancelled, or the service started or stopped meanwhile
+            }
+        }
+
+        /**
+         * @param journal   the service's journal, which is held, or null if there wasn't one
+         * @return  false if the move was cancelled or the journal has changed
+         */
+        private boolean switchOver(SampleJournal journal) {
+            synchronized (SampleStores.class) {
+                if (sMove != this || sJournal != journal) {
+                    return false;
+                }
+                if (journal != null) {
+                    journal.setStore(mTo.store);
+                }
+                switchTo(mContext, mTo);
+                sMove = null;
+            }
+            Log.i(TAG, "Moved " + mCopied + " samples to " + mTo.engine);
+            return true;
+        }
+
+        private void failed() {
+            synchronized (SampleStores.class) {
+                if (sMove == this) {
+                    sMove = null;
+                    sFailedEngine = mEngine;
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a store the current one, and retire the old one.  Call while synchronized.
+     */
+    private static void switchTo(Context c, Opened to) {
+        Opened old = sCurrent;
+        sCurrent = to;
+        sDetail = null;
+        PreferenceManager.getDefaultSharedPreferences(c).edit()
+                .putString(PREF_ACTIVE_ENGINE, to.engine).apply();
+        if (sPurgeTask != null) {
+            sPurgeTask.cancel();            // it was for the old store
+            sPurgeTask = null;
+        }
+        startPurge(false);
+        if (old.users > 0) {
+            sRetired.add(old);
+        } else {
+            dispose(old);
+        }
+    }
+
+    /**
+     * Empty a store nobody is using any more, then close it.  Its samples are hidden and then
+     * deleted a chunk at a time, like a purge, so it's ready to be moved back to.  A move to
+     * the same engine waits until it's closed.
+     */
+    private static void dispose(final Opened opened) {
+        PostureScheduler.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    opened.store.clear();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to clear the " + opened.engine + " store: ", e);
+                    closed(opened);
+                    return;
+                }
+                if (opened.generations == null) {
+                    closed(opened);         // cleared the slow way
+                    return;
+                }
+                new RetentionTask(opened.store, opened.generations.getClearedDate(),
+                        PURGE_PAUSE).start(PostureScheduler.get(),
+                        new RetentionTask.Listener() {
+                            @Override
+                            public void onFinished(RetentionTask task) {
+                                if (task.getError() != null) {
+                                    Log.e(TAG, "Unable to empty the " + opened.engine
+                                            + " store: ", task.getError());
+                                }
+                                closed(opened);
+                            }
+                        });
+            }
+        }, PostureScheduler.Priority.LOW);
+    }
+
+    /**
+     * Close a disposed store, and start a move which was waiting for it.
+     */
+    private static void closed(Opened opened) {
+        opened.store.close();
+        closed(opened.engine);
+    }
+
+    /**
+     * Let an engine be opened again, such as by a move which was waiting for it.
+     */
+    private static void closed(String engine) {
+        Context context;
+        synchronized (SampleStores.class) {
+            sOpenEngines.remove(engine);
+            context = sContext;
+        }
+        if (context != null) {
+            get(context);
+        }
+    }
+
+    /**
+     * Delete the samples hidden by clearing (and the aggregates, if they were just cleared)
+     * as LOW priority tasks on the shared scheduler.  A purge which is already running is
+     * cancelled, since the new one has a later cutoff.  The purge holds on to the current
+     * store until it's over.  Call while synchronized.
+     */
+    private static void startPurge(final boolean aggregates) {
+        if (sPurgeTask != null) {
+            sPurgeTask.cancel();
+            sPurgeTask = null;
+        }
+        final RetentionTask task;
+        final SampleStore store = sCurrent.store;
+        GenerationSampleStore generations = sCurrent.generations;
+        if (generations != null && generations.getGeneration() > 0) {
+            task = new RetentionTask(store, generations.getClearedDate(), PURGE_PAUSE);
+            sCurrent.users++;
+        } else {
+            task = null;        // never cleared, or it was cleared the slow way
+        }
+        if (task == null && !aggregates) {
+            return;
+        }
+        sPurgeTask = task;
+        PostureScheduler.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (aggregates) {
+                    clearAggregates();
+                }
+                if (task != null) {
+                    task.start(PostureScheduler.get(), new RetentionTask.Listener() {
+                        @Override
+                        public void onFinished(RetentionTask finished) {
+                            if (finished.getError() != null) {
+                                Log.e(TAG, "Unable to delete the cleared samples: ",
+                                        finished.getError());
+                            }
+                            Log.i(TAG, "Purge dropped " + finished.getDropped()
+                                    + " chunks and reclaimed " + finished.getReclaimedBytes()
+                                    + " bytes");
+                            release(store);
+                        }
+                    });
+                }
+            }
+        }, PostureScheduler.Priority.LOW);
+    }
+
+    /**
+     * Bring a pyramid up to date with its store, one chunk per LOW priority task.  This stops
+     * when the store is closed.
+     */
+    private static void startCatchUp(final PyramidSampleStore pyramid) {
+        PostureScheduler.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!pyramid.catchUpChunk()) {
+                        PostureScheduler.get().submit(this, PostureScheduler.Priority.LOW);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to bring the pyramid up to date: ", e);
+                }
+            }
+        }, PostureScheduler.Priority.LOW);
+    }
+
+    private static void clearAggregates() {
+        try {
+            OrientationService.clearAggregates();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to clear the rollups and histograms: ", e);
+        }
+    }
+
+    /**
+     * Open an engine's store with its wrappers.  The pyramid and the generation mark are named
+     * after the class of the store itself, so each engine has its own.
+     * @param fallback  use the database if the engine can't be opened
+     * @return  the store, or null if it couldn't be opened and fallback is false.  Call
+     *          without holding the SampleStores lock; this is slow.
+     */
+    private static Opened open(Context c, String engine, boolean fallback) {
+        File filesDir = c.getApplicationContext().getFilesDir();
+        SampleStore store = null;
+        if (ENGINE_FILE_LOG.equals(engine)) {
+            try {
+                store = new MappedSampleLog(new File(filesDir, FILE_LOG_DIRECTORY));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the sample log: ", e);
+            }
+        } else if (ENGINE_COLUMNAR.equals(engine)) {
+            try {
+                store = new ColumnarSampleStore(new File(filesDir, COLUMNAR_DIRECTORY));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the columnar store: ", e);
+            }
+        } else if (ENGINE_DATABASE.equals(engine)) {
+            store = new ActiveAndroidSampleStore();
+        } else {
+            Log.e(TAG, "Unknown storage engine: " + engine);
+        }
+        boolean fellBack = false;
+        if (store == null) {
+            if (!fallback) {
+                return null;
+            }
+            Log.e(TAG, "Using the database instead of " + engine);
+            store = new ActiveAndroidSampleStore();
+            fellBack = true;
+        }
+
+        String name = store.getClass().getSimpleName();
+        GenerationSampleStore generations = null;
+        try {
+            generations = new GenerationSampleStore(store,
+                    new File(filesDir, GENERATION_FILE_PREFIX + name));
+            store = generations;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the generation mark, clearing will be slow: ", e);
+        }
+        try {
+            PyramidSampleStore pyramid = new PyramidSampleStore(store,
+                    new File(filesDir, PYRAMID_DIRECTORY_PREFIX + name));
+            startCatchUp(pyramid);
+            store = pyramid;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the pyramid, range summaries will be slow: ", e);
+        }
+        return new Opened(engine, store, generations, fellBack);
+    }
+}
@@ -0,0 +1,78 @@
+package com.brucegiese.perfectposture;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Keeps track of whether the screen is on, from the system's screen on and off broadcasts,
+ * so nobody has to ask the PowerManager every time.  These broadcasts can't be declared in
+ * the manifest, so this only knows while it's registered.
+ *
+ * The listener is called on the main thread, and only when the state actually changes.
+ */
+class ScreenState extends BroadcastReceiver {
+    private static final String TAG = "com.brucegiese.screen";
+
+    interface Listener {
+        void onScreenChanged(boolean screenOn);
+    }
+
+    private final Listener mListener;
+    private volatile boolean mScreenOn = true;
+    private boolean mRegistered;
+
+    ScreenState(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start following the screen.  The state starts out as whatever it is right now.
+     */
+    void register(Context c) {
+        if (mRegistered) {
+            return;
+        }
+        PowerManager pm = (PowerManager) c.getSystemService(Context.POWER_SERVICE);
+        mScreenOn = pm.isScreenOn();        // This was deprecated in API level 20
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        c.registerReceiver(this, filter);
+        mRegistered = true;
+    }
+
+    void unregister(Context c) {
+        if (mRegistered) {
+            c.unregisterReceiver(this);
+            mRegistered = false;
+        }
+    }
+
+    /**
+     * @return  whether the screen is on, as of the last broadcast.  Any thread can call this.
+     */
+    boolean isScreenOn() {
+        return mScreenOn;
+    }
+
+    @Override
+    public void onReceive(Context c, Intent i) {
+        boolean screenOn;
+        if (Intent.ACTION_SCREEN_ON.equals(i.getAction())) {
+            screenOn = true;
+        } else if (Intent.ACTION_SCREEN_OFF.equals(i.getAction())) {
+            screenOn = false;
+        } else {
+            Log.e(TAG, "Received an unexpected broadcast intent");
+            return;
+        }
+        if (screenOn != mScreenOn) {
+            mScreenOn = screenOn;
+            mListener.onScreenChanged(screenOn);
+        }
+    }
+}
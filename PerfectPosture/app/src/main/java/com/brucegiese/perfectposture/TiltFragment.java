@@ -1,35 +1,36 @@
 package com.brucegiese.perfectposture;
 
 import android.app.Fragment;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.TextView;
+
+import java.io.IOException;
 
 /**
  * This fragment allows the user to start and stop the posture measurement service.
+ * While the service is running it also shows some live statistics, which come straight from
+ * the service rather than the database, and percentiles for the last week, which come from
+ * the daily histograms.
  */
 public class TiltFragment extends Fragment {
     private static final String TAG = "com.brucegiese.tilt";
+    private static final int HISTORY_DAYS = 7;
+    private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
     private View mView;
-    private CheckStatusReceiver mCheckStatusReceiver;
+    private final StatusSubscriber mStatusSubscriber = new StatusSubscriber();
+    private final PostureStats.Summary mSummary = new PostureStats.Summary();
 
 
     public TiltFragment() { }
 
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        mCheckStatusReceiver = new CheckStatusReceiver();
-    }
-
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -55,11 +56,8 @@ public class TiltFragment extends Fragment {
             }
         });
 
-        // Register the broadcast receiver
-        IntentFilter iFilter = new IntentFilter();
-        iFilter.addAction(OrientationService.CHECK_STATUS_INTENT);
-        LocalBroadcastManager.getInstance(getActivity())
-                .registerReceiver(mCheckStatusReceiver, iFilter);
+        // Only the newest sample matters here.  This is unsubscribed in onDestroyView().
+        PostureBus.get().subscribe(getActivity(), mStatusSubscriber, PostureBus.Conflation.LATEST);
         return mView;
     }
 
@@ -68,15 +66,13 @@ public class TiltFragment extends Fragment {
         super.onResume();
         // In case of multiple instances running and other complex scenarios.
         checkAndSetButtonState();
+        new LoadPercentiles().execute();
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-
-        // Un-register the broadcast receiver
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(mCheckStatusReceiver);
-
+        PostureBus.get().unsubscribe(mStatusSubscriber);
         mView = null;
     }
 
@@ -104,25 +100,93 @@ public class TiltFragment extends Fragment {
             } else {
                 button.setText(R.string.start_tilt_detection);
             }
+            showLiveStats();
+        }
+    }
+
+    /**
+     * Show the statistics for the current session, or for the last one if it's stopped.
+     */
+    private void showLiveStats() {
+        if (mView == null) {
+            return;
+        }
+        TextView text = (TextView) mView.findViewById(R.id.live_stats);
+        PostureStats stats = OrientationService.getStats();
+        long now = SystemClock.elapsedRealtime();
+
+        stats.read(PostureStats.Window.SESSION, now, mSummary);
+        if (mSummary.count == 0) {
+            text.setText("");
+            return;
+        }
+        long sessionMean = Math.round(mSummary.mean);
+        long sessionBad = Math.round(mSummary.getBadFraction() * 100);
+        long movingAverage = Math.round(mSummary.movingAverage);
+        stats.read(PostureStats.Window.ONE_MINUTE, now, mSummary);
+        long minuteMean = Math.round(mSummary.mean);
+        long minuteBad = Math.round(mSummary.getBadFraction() * 100);
+        stats.read(PostureStats.Window.FIFTEEN_MINUTES, now, mSummary);
+        long quarterMean = Math.round(mSummary.mean);
+        long quarterBad = Math.round(mSummary.getBadFraction() * 100);
+
+        text.setText(getString(R.string.live_stats_text, movingAverage, minuteMean, minuteBad,
+                quarterMean, quarterBad, sessionMean, sessionBad)
+                + "\n" + getString(R.string.session_percentiles_text,
+                stats.percentile(PostureStats.Window.SESSION, now, 0.5),
+                stats.percentile(PostureStats.Window.SESSION, now, 0.9),
+                stats.percentile(PostureStats.Window.SESSION, now, 0.99)));
+    }
+
+    /**
+     * This AsyncTask merges the daily histograms for the last week.
+     */
+    private class LoadPercentiles extends AsyncTask<Void, Void, PostureHistogram> {
+
+        protected PostureHistogram doInBackground(Void... x) {
+            PostureHistogram week = new PostureHistogram();
+            long to = System.currentTimeMillis();
+            long from = RollupLevel.DAY.bucketStart(to - (HISTORY_DAYS - 1) * MS_PER_DAY);
+            HistogramStore store = new ActiveAndroidHistogramStore();
+            try {
+                store.merge(from, to + 1, week);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the daily histograms: ", e);
+            }
+            return week;
+        }
+
+        protected void onPostExecute(PostureHistogram week) {
+            if (mView == null) {
+                return;
+            }
+            TextView text = (TextView) mView.findViewById(R.id.history_percentiles);
+            if (week.getTotal() == 0) {
+                text.setText("");
+            } else {
+                text.setText(getString(R.string.history_percentiles_text, week.percentile(0.5),
+                        week.percentile(0.9), week.percentile(0.99)));
+            }
         }
     }
 
 
     /**
      * The service can be stopped by other means, so it will tell us when that happens.
+     * New samples just mean the live statistics have changed.
      */
-    class CheckStatusReceiver extends BroadcastReceiver {
+    class StatusSubscriber extends PostureBus.Subscriber {
 
-        public CheckStatusReceiver() { }
+        @Override
+        void onSamples(SampleBatch samples) {
+            showLiveStats();
+        }
 
         @Override
-        public void onReceive(Context c, Intent i) {
-            if( i.getAction().equals(OrientationService.CHECK_STATUS_INTENT)) {
+        void onStatus(PostureBus.Status status) {
+            if (status == PostureBus.Status.SERVICE_STATE_CHANGED) {
                 checkAndSetButtonState();
-            } else {
-                Log.e(TAG, "Received an unexpected broadcast intent");
             }
-
         }
     }
 }
@@ -0,0 +1,70 @@
+package com.brucegiese.perfectposture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving samples: one at a time, as the service did before the journal, against batches the
+ * size the journal writes.  Each operation appends one batch, so divide by the batch size for
+ * the cost per sample.  Every iteration starts with an empty store, to keep the disk usage
+ * down.  The database engine needs Android, so it isn't here.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppendBenchmark {
+
+    @Param({BenchmarkStores.FILE_LOG, BenchmarkStores.COLUMNAR})
+    public String engine;
+
+    @Param({"1", "30"})         // 30 is the journal's JOURNAL_MAX_UNFLUSHED
+    public int batchSize;
+
+    private File mDirectory;
+    private SampleStore mStore;
+    private SampleBatch mBatch;
+    private long mDate;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        mDirectory = BenchmarkStores.newDirectory("append");
+        mStore = BenchmarkStores.open(engine, mDirectory);
+        mBatch = new SampleBatch(batchSize);
+        mDate = BenchmarkStores.START_DATE;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        mStore.close();
+        BenchmarkStores.delete(mDirectory);
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        mBatch.clear();
+        for (int i = 0; i < batchSize; i++) {
+            mBatch.add(mDate, (int) (mDate % 21) - 10, true);
+            mDate += BenchmarkStores.SAMPLE_INTERVAL;
+        }
+        mStore.append(mBatch);
+        return mDate;
+    }
+}
@@ -0,0 +1,66 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Sample stores in temporary directories, for the benchmarks.
+ */
+final class BenchmarkStores {
+    static final String FILE_LOG = "filelog";
+    static final String COLUMNAR = "columnar";
+    static final long START_DATE = 1420070400000L;      // 2015-01-01, ms since epoch
+    static final long SAMPLE_INTERVAL = 1000;           // units of ms
+    private static final int FILL_BATCH = 4096;         // units of samples
+
+    private BenchmarkStores() { }
+
+    static File newDirectory(String name) throws IOException {
+        File directory = File.createTempFile("bench-" + name, "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return directory;
+    }
+
+    static SampleStore open(String engine, File directory) throws IOException {
+        if (FILE_LOG.equals(engine)) {
+            return new MappedSampleLog(directory);
+        } else if (COLUMNAR.equals(engine)) {
+            return new ColumnarSampleStore(directory);
+        }
+        throw new IllegalArgumentException("Unknown engine " + engine);
+    }
+
+    /**
+     * Append samples one second apart, wobbling around upright with some slouches.
+     */
+    static void fill(SampleStore store, long count, long seed) throws IOException {
+        Random random = new Random(seed);
+        SampleBatch batch = new SampleBatch(FILL_BATCH);
+        long date = START_DATE + store.size() * SAMPLE_INTERVAL;
+        for (long i = 0; i < count; i++) {
+            int value = random.nextInt(100) < 10 ? 50 + random.nextInt(30) : random.nextInt(21) - 10;
+            batch.add(date, value, value <= 40);
+            date += SAMPLE_INTERVAL;
+            if (batch.isFull()) {
+                store.append(batch);
+                batch.clear();
+            }
+        }
+        if (batch.size() > 0) {
+            store.append(batch);
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,63 @@
+package com.brucegiese.perfectposture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding one columnar block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"256", "4096"})
+    public int blockSize;
+
+    private SampleBatch mSamples;
+    private SampleBatch mDecoded;
+    private ByteBuffer mEncoded;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        mSamples = new SampleBatch(blockSize);
+        mDecoded = new SampleBatch(blockSize);
+        long date = BenchmarkStores.START_DATE;
+        for (int i = 0; i < blockSize; i++) {
+            int value = random.nextInt(21) - 10;
+            mSamples.add(date, value, true);
+            date += BenchmarkStores.SAMPLE_INTERVAL + random.nextInt(50);
+        }
+        mEncoded = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(blockSize));
+        encode();
+    }
+
+    @Benchmark
+    public int encode() {
+        mEncoded.clear();
+        return SampleBlockCodec.encode(mSamples, 0, mSamples.size(), 0, mEncoded);
+    }
+
+    @Benchmark
+    public boolean decode() {
+        mEncoded.position(0);
+        return SampleBlockCodec.decode(mEncoded, mDecoded);
+    }
+}
@@ -0,0 +1,77 @@
+package com.brucegiese.perfectposture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sensor side of a tick: what Orientation does with each gravity reading, and what
+ * getZ() does when the service asks for the posture angle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GravityBenchmark {
+    private static final int WINDOW_CAPACITY = 32;          // as in Orientation
+    private static final int FILTER_WINDOW = 10;
+    private static final float LOW_PASS_ALPHA = 0.3f;
+    private static final int READINGS = 1024;               // a power of two
+
+    @Param({"NONE", "LOW_PASS", "MEDIAN", "MEAN"})
+    public GravityWindow.Filter filter;
+
+    private final GravityWindow mWindow = new GravityWindow(WINDOW_CAPACITY);
+    private final GravitySnapshot mSnapshot = new GravitySnapshot();
+    private final GravitySnapshot.Reading mReading = new GravitySnapshot.Reading();
+    private final float[] mZ = new float[READINGS];
+    private int mNext;
+    private long mTimestamp;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        for (int i = 0; i < READINGS; i++) {
+            mZ[i] = (float) (random.nextGaussian() * 2);
+        }
+        for (int i = 0; i < WINDOW_CAPACITY; i++) {
+            sensorReading();
+        }
+    }
+
+    /**
+     * Orientation.onSensorChanged(): buffer the reading, filter, publish.
+     */
+    @Benchmark
+    public long sensorReading() {
+        float z = mZ[mNext++ & (READINGS - 1)];
+        mTimestamp += 200000000L;
+        mWindow.add(0.1f, 9.7f, z, mTimestamp);
+        mSnapshot.publish(0.1f, 9.7f, z,
+                mWindow.filter(GravityWindow.Z, filter, FILTER_WINDOW, LOW_PASS_ALPHA),
+                mTimestamp, 3, mTimestamp / 1000000L);
+        return mTimestamp;
+    }
+
+    /**
+     * Orientation.getZ(): read the snapshot and turn it into degrees.
+     */
+    @Benchmark
+    public int getZ() {
+        mSnapshot.read(mReading);
+        return GravityWindow.toDegrees(mReading.filteredZ);
+    }
+}
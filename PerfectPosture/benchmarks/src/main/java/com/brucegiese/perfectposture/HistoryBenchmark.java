@@ -0,0 +1,89 @@
+package com.brucegiese.perfectposture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading history the ways the chart does, as the history grows: a page at the latest end,
+ * finding a date, a pyramid summary of everything, and the whole history cut down to a
+ * screen's width.  The store is filled once per trial, which takes a while for the biggest
+ * sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int PAGE_SIZE = 300;           // as in GraphFragment
+    private static final int SCREEN_WIDTH = 1080;       // units of pixels
+
+    @Param({BenchmarkStores.FILE_LOG, BenchmarkStores.COLUMNAR})
+    public String engine;
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public long historySize;
+
+    private File mDirectory;
+    private PyramidSampleStore mStore;
+    private final SampleBatch mPage = new SampleBatch(PAGE_SIZE);
+    private final RollupBucket mTotal = new RollupBucket();
+    private final Random mRandom = new Random(1);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDirectory = BenchmarkStores.newDirectory("history");
+        mStore = new PyramidSampleStore(BenchmarkStores.open(engine, new File(mDirectory, "samples")),
+                new File(mDirectory, "pyramid"));
+        BenchmarkStores.fill(mStore, historySize, 1);
+        mStore.catchUp();           // the pyramid isn't built by appends until it's caught up
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mStore.close();
+        BenchmarkStores.delete(mDirectory);
+    }
+
+    @Benchmark
+    public int latestPage() throws IOException {
+        return mStore.read(Math.max(0, historySize - PAGE_SIZE), mPage);
+    }
+
+    @Benchmark
+    public long indexOf() throws IOException {
+        long offset = (long) (mRandom.nextDouble() * historySize);
+        return mStore.indexOf(BenchmarkStores.START_DATE + offset * BenchmarkStores.SAMPLE_INTERVAL);
+    }
+
+    @Benchmark
+    public int summarizeAll() throws IOException {
+        mStore.summarize(0, historySize, mTotal);
+        return mTotal.goodCount;
+    }
+
+    /**
+     * A new HistoryDetail each time, so nothing comes from its cache.
+     */
+    @Benchmark
+    public int fullHistoryChart() throws IOException {
+        return new HistoryDetail(mStore, 1).getAll(SCREEN_WIDTH).size();
+    }
+}
@@ -0,0 +1,87 @@
+package com.brucegiese.perfectposture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service side of a tick: classifying the reading, the hysteresis and reminder state
+ * machine, and the live statistics.  The readings come from a synthetic day, so the state
+ * machine goes through all its states.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickBenchmark {
+    private static final int TRACE_LENGTH = 1 << 16;        // units of checks, a power of two
+    private static final long STATS_AVERAGE_TIME_CONSTANT = 30 * 1000L;     // as in the service
+
+    @Param({"false", "true"})
+    public boolean adaptiveSampling;
+
+    private final Clock.ManualClock mClock = new Clock.ManualClock(BenchmarkStores.START_DATE);
+    private final PostureStats mStats =
+            new PostureStats(PostureEngine.UPDATE_INTERVAL, STATS_AVERAGE_TIME_CONSTANT);
+    private final int[] mTrace = new int[TRACE_LENGTH];
+    private PostureEngine mEngine;
+    private Blackhole mBlackhole;
+    private int mNext;
+    private long mSequence;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        PostureReplay.Trace trace = PostureReplay.synthetic(TRACE_LENGTH * PostureEngine.UPDATE_INTERVAL, 1);
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            mTrace[i] = trace.valueAt(i * PostureEngine.UPDATE_INTERVAL);
+        }
+        // The listener does what the service's does, minus the Android and storage parts
+        mEngine = new PostureEngine(mClock, new PostureEngine.Listener() {
+            @Override
+            public void onCheck(long time, int z, boolean goodPosture, long elapsed) {
+                mStats.update(time, z, goodPosture, elapsed);
+            }
+
+            @Override
+            public void onSample(long date, int z, boolean goodPosture) {
+                mBlackhole.consume(date);
+            }
+
+            @Override
+            public void onAlert(PostureEngine.Alert alert) {
+                mBlackhole.consume(alert);
+            }
+        });
+        mEngine.setConfig(new PostureConfig.Builder().setAdaptiveSampling(adaptiveSampling).build());
+    }
+
+    @Benchmark
+    public boolean measurePosture() {
+        return mEngine.measurePosture(mTrace[mNext++ & (TRACE_LENGTH - 1)]);
+    }
+
+    /**
+     * One whole check, as the service's scheduler thread does it.
+     */
+    @Benchmark
+    public long check() {
+        int z = mTrace[mNext++ & (TRACE_LENGTH - 1)];
+        long delay = mEngine.check(z, ++mSequence);
+        mClock.advance(delay);
+        return delay;
+    }
+}
@@ -0,0 +1,65 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * Where PostureEngine gets the time from.  On the phone this is the system clocks; in a
+ * replay it's a ManualClock which is moved along by the harness, so months go by in seconds.
+ */
+public interface Clock {
+
+    /**
+     * @return  time which never jumps, such as time since boot, units of ms
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return  wall clock time, units of ms since epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * The plain JVM clocks.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return System.nanoTime() / 1000000L;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * A clock which only moves when it's told to.
+     */
+    final class ManualClock implements Clock {
+        private final long mEpochOffset;        // units of ms since epoch at elapsed time zero
+        private long mElapsed;                  // units of ms
+
+        /**
+         * @param start     wall clock time at elapsed time zero, units of ms since epoch
+         */
+        public ManualClock(long start) {
+            mEpochOffset = start;
+        }
+
+        /**
+         * @param ms    how far to move on, units of ms
+         */
+        public void advance(long ms) {
+            mElapsed += ms;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return mElapsed;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mEpochOffset + mElapsed;
+        }
+    }
+}
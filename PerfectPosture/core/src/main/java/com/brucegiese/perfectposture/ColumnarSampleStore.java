@@ -0,0 +1,589 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * A SampleStore which keeps samples compressed with SampleBlockCodec.
+ *
+ * Samples are collected into an open block in memory.  When the block is full, or the
+ * UTC day changes, the block is sealed and appended to that day's file, so every block in a
+ * file is from that day.  Each append also adds just its own samples to a separate tail file,
+ * as a small block of their own, so the open block survives the process being killed without
+ * encoding all of it again every time.  The tail file is emptied when the block is sealed.
+ *
+ * The headers of all the sealed blocks are kept in memory as an index, in index order, which
+ * means a read only has to decode the blocks it actually touches.  The last decoded block is
+ * cached, so reading sequentially decodes each block once.
+ *
+ * The clock can go backward, so a day file isn't necessarily older than the next one, and
+ * the index is sorted by the blocks' first index rather than by file name.  A day file is
+ * only dropped once every block in it is older than the cutoff.  That can leave a gap in the
+ * indexes, which reads skip over like any other deleted samples.
+ */
+public class ColumnarSampleStore implements SampleStore {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;      // units of samples
+    static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final String DAY_PREFIX = "day-";
+    private static final String DAY_SUFFIX = ".col";
+    private static final String TAIL_FILE = "tail.col";
+    private static final String TAIL_TEMP_FILE = "tail.col.tmp";
+    private static final String REWRITE_TEMP_FILE = "rewrite.col.tmp";
+
+    private final File mDirectory;
+    private final int mBlockSize;
+    private final ArrayList<BlockRef> mBlocks = new ArrayList<BlockRef>();
+    private final SampleBatch mOpen;                // samples not sealed into a block yet
+    private long mOpenDay = -1;
+    private int mOpenWritten;                       // how many of mOpen are in the tail file
+    private long mTailLength;                       // units of bytes
+    private long mSize;
+    private final ByteBuffer mEncodeBuffer;
+    private final SampleBatch mDecoded;             // cache of the last decoded block
+    private BlockRef mDecodedBlock = null;
+
+    /**
+     * Where a sealed block is and what's in it.
+     */
+    static final class BlockRef {
+        long day;
+        long offset;                // units of bytes from the start of the day file
+        int length;                 // units of bytes
+        long firstIndex;
+        int count;
+        long firstDate;
+        long lastDate;
+        int minValue;
+        int maxValue;
+        int goodCount;
+    }
+
+    public ColumnarSampleStore(File directory, int blockSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        mDirectory = directory;
+        mBlockSize = blockSize;
+        mOpen = new SampleBatch(blockSize);
+        mDecoded = new SampleBatch(blockSize);
+        mEncodeBuffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(blockSize));
+        loadIndex();
+    }
+
+    public ColumnarSampleStore(File directory) throws IOException {
+        this(directory, DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public synchronized void append(SampleBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            long day = batch.dates[i] / MS_PER_DAY;
+            if (mOpen.size() > 0 && (day != mOpenDay || mOpen.isFull())) {
+                seal();
+            }
+            if (mOpen.size() == 0) {
+                mOpen.setFirstIndex(mSize);
+                mOpenDay = day;
+            }
+            mOpen.add(batch.dates[i], batch.values[i], batch.goodPosture[i]);
+            mSize++;
+        }
+        appendTail();
+    }
+
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized long firstIndex() {
+        return mBlocks.isEmpty() ? mOpen.getFirstIndex() : mBlocks.get(0).firstIndex;
+    }
+
+    @Override
+    public synchronized int read(long fromIndex, SampleBatch batch) throws IOException {
+        batch.clear();
+        long index = Math.max(fromIndex, firstIndex());
+        batch.setFirstIndex(index);
+        while (index < mSize && !batch.isFull()) {
+            SampleBatch source;
+            if (index >= mOpen.getFirstIndex() && mOpen.size() > 0) {
+                source = mOpen;
+            } else {
+                BlockRef block = findBlock(index);
+                long next = (block != null) ? block.firstIndex : mOpen.getFirstIndex();
+                if (next > index) {
+                    // A gap where a day file was dropped
+                    if (batch.size() > 0) {
+                        break;
+                    }
+                    index = next;
+                    batch.setFirstIndex(index);
+                    continue;
+                }
+                source = decode(block);
+            }
+            int from = (int) (index - source.getFirstIndex());
+            int n = Math.min(source.size() - from, batch.capacity() - batch.size());
+            for (int i = from; i < from + n; i++) {
+                batch.add(source.dates[i], source.values[i], source.goodPosture[i]);
+            }
+            index += n;
+        }
+        return batch.size();
+    }
+
+    @Override
+    public synchronized long indexOf(long date) throws IOException {
+        // Find the first sealed block which ends at or after the date
+        int low = 0;
+        int high = mBlocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mBlocks.get(middle).lastDate < date) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        SampleBatch source = (low < mBlocks.size()) ? decode(mBlocks.get(low)) : mOpen;
+        for (int i = 0; i < source.size(); i++) {
+            if (source.dates[i] >= date) {
+                return source.getFirstIndex() + i;
+            }
+        }
+        return mSize;
+    }
+
+    /**
+     * The flags are run-length encoded, so a block can change size.  Every day file with a
+     * changed block is written out again to a temp file and renamed over the old one.
+     */
+    @Override
+    public synchronized void rewriteFlags(SampleBatch batch) throws IOException {
+        long from = batch.getFirstIndex();
+        long end = from + batch.size();
+        boolean tailChanged = false;
+        for (int i = 0; i < mOpen.size(); i++) {
+            long index = mOpen.getFirstIndex() + i;
+            if (index >= from && index < end) {
+                mOpen.goodPosture[i] = batch.goodPosture[(int) (index - from)];
+                tailChanged = true;
+            }
+        }
+        if (tailChanged) {
+            writeTail();
+        }
+        long day = Long.MIN_VALUE;
+        for (BlockRef block : mBlocks) {
+            if (block.firstIndex < end && block.firstIndex + block.count > from
+                    && block.day != day) {
+                day = block.day;
+                rewriteDay(day, batch);
+            }
+        }
+    }
+
+    /**
+     * Delete the day file holding the oldest block, if every block in it is before the cutoff.
+     * The file the open block will be sealed into is never deleted.
+     */
+    @Override
+    public synchronized long dropOldest(long before) throws IOException {
+        if (mBlocks.isEmpty()) {
+            return -1;
+        }
+        long day = mBlocks.get(0).day;
+        if (mOpen.size() > 0 && day == mOpenDay) {
+            return -1;
+        }
+        for (BlockRef block : mBlocks) {
+            if (block.day == day && block.lastDate >= before) {
+                return -1;
+            }
+        }
+        for (int i = mBlocks.size() - 1; i >= 0; i--) {
+            if (mBlocks.get(i).day == day) {
+                if (mBlocks.get(i) == mDecodedBlock) {
+                    mDecodedBlock = null;
+                }
+                mBlocks.remove(i);
+            }
+        }
+        File file = dayFile(day);
+        long length = file.length();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        for (String name : listFiles()) {
+            File file = new File(mDirectory, name);
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+        new File(mDirectory, TAIL_FILE).delete();
+        mBlocks.clear();
+        mOpen.clear();
+        mOpen.setFirstIndex(0);
+        mOpenDay = -1;
+        mOpenWritten = 0;
+        mTailLength = 0;
+        mSize = 0;
+        mDecodedBlock = null;
+    }
+
+    @Override
+    public synchronized void close() {
+        mDecodedBlock = null;
+    }
+
+    /**
+     * Write a day file again, with the flags from the batch wherever it overlaps.
+     */
+    private void rewriteDay(long day, SampleBatch batch) throws IOException {
+        long from = batch.getFirstIndex();
+        long end = from + batch.size();
+        ArrayList<BlockRef> rewritten = new ArrayList<BlockRef>();
+        File temp = new File(mDirectory, REWRITE_TEMP_FILE);
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            long offset = 0;
+            for (BlockRef block : mBlocks) {
+                if (block.day != day) {
+                    continue;
+                }
+                SampleBatch samples = decode(block);
+                mDecodedBlock = null;           // it's about to be changed
+                for (int i = 0; i < samples.size(); i++) {
+                    long index = block.firstIndex + i;
+                    if (index >= from && index < end) {
+                        samples.goodPosture[i] = batch.goodPosture[(int) (index - from)];
+                    }
+                }
+                mEncodeBuffer.clear();
+                int length = SampleBlockCodec.encode(samples, 0, samples.size(), block.firstIndex, mEncodeBuffer);
+                raf.write(mEncodeBuffer.array(), 0, length);
+
+                BlockRef copy = new BlockRef();
+                copy.offset = offset;
+                copy.length = length;
+                fillStats(copy, mEncodeBuffer);
+                rewritten.add(copy);
+                offset += length;
+            }
+        } finally {
+            raf.close();
+        }
+        File file = dayFile(day);
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        int n = 0;
+        for (BlockRef block : mBlocks) {
+            if (block.day == day) {
+                BlockRef copy = rewritten.get(n++);
+                block.offset = copy.offset;
+                block.length = copy.length;
+                block.goodCount = copy.goodCount;
+            }
+        }
+    }
+
+    /**
+     * Encode the open block and append it to its day file.
+     */
+    private void seal() throws IOException {
+        mEncodeBuffer.clear();
+        int length = SampleBlockCodec.encode(mOpen, 0, mOpen.size(), mOpen.getFirstIndex(), mEncodeBuffer);
+        File file = dayFile(mOpenDay);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long offset;
+        try {
+            offset = raf.length();
+            raf.seek(offset);
+            raf.write(mEncodeBuffer.array(), 0, length);
+        } finally {
+            raf.close();
+        }
+
+        BlockRef block = new BlockRef();
+        block.day = mOpenDay;
+        block.offset = offset;
+        block.length = length;
+        block.firstIndex = mOpen.getFirstIndex();
+        block.count = mOpen.size();
+        block.firstDate = mOpen.dates[0];
+        block.lastDate = mOpen.dates[mOpen.size() - 1];
+        fillStats(block, mEncodeBuffer);
+        mBlocks.add(block);
+
+        mOpen.clear();
+        mOpen.setFirstIndex(mSize);
+        // If this doesn't happen, loading skips the pieces which are already sealed
+        new File(mDirectory, TAIL_FILE).delete();
+        mOpenWritten = 0;
+        mTailLength = 0;
+    }
+
+    /**
+     * Add the samples which aren't in the tail file yet to the end of it, as one small block.
+     * If that fails, they're taken back out of the open block, so the caller can try again.
+     */
+    private void appendTail() throws IOException {
+        int count = mOpen.size() - mOpenWritten;
+        if (count <= 0) {
+            return;
+        }
+        mEncodeBuffer.clear();
+        int length = SampleBlockCodec.encode(mOpen, mOpenWritten, count,
+                mOpen.getFirstIndex() + mOpenWritten, mEncodeBuffer);
+        RandomAccessFile raf = new RandomAccessFile(new File(mDirectory, TAIL_FILE), "rw");
+        try {
+            raf.seek(mTailLength);
+            raf.write(mEncodeBuffer.array(), 0, length);
+        } catch (IOException e) {
+            try {
+                raf.setLength(mTailLength);
+            } catch (IOException ignored) {
+                // Loading cuts off a damaged piece anyway
+            }
+            mSize -= count;
+            mOpen.setSize(mOpenWritten);
+            throw e;
+        } finally {
+            raf.close();
+        }
+        mTailLength += length;
+        mOpenWritten = mOpen.size();
+    }
+
+    /**
+     * Write the whole open block to the tail file, such as after its flags have changed.  It's
+     * written to a temporary file and renamed, so there's always either the old tail or the
+     * new tail.
+     */
+    private void writeTail() throws IOException {
+        File tail = new File(mDirectory, TAIL_FILE);
+        if (mOpen.size() == 0) {
+            tail.delete();
+            mOpenWritten = 0;
+            mTailLength = 0;
+            return;
+        }
+        mEncodeBuffer.clear();
+        int length = SampleBlockCodec.encode(mOpen, 0, mOpen.size(), mOpen.getFirstIndex(), mEncodeBuffer);
+        File temp = new File(mDirectory, TAIL_TEMP_FILE);
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(mEncodeBuffer.array(), 0, length);
+        } finally {
+            raf.close();
+        }
+        if (!temp.renameTo(tail)) {
+            throw new IOException("Unable to rename " + temp + " to " + tail);
+        }
+        mOpenWritten = mOpen.size();
+        mTailLength = length;
+    }
+
+    /**
+     * Build the in-memory block index by reading the block headers from each day file.
+     * A damaged block at the end of a file (from a crash while sealing) is cut off.
+     */
+    private void loadIndex() throws IOException {
+        SampleBlockCodec.Header header = new SampleBlockCodec.Header();
+        ByteBuffer headerBuffer = ByteBuffer.allocate(SampleBlockCodec.HEADER_SIZE);
+        for (String name : listFiles()) {
+            long day = Long.parseLong(name.substring(DAY_PREFIX.length(), name.length() - DAY_SUFFIX.length()));
+            RandomAccessFile raf = new RandomAccessFile(new File(mDirectory, name), "rw");
+            try {
+                long offset = 0;
+                long length = raf.length();
+                while (offset + SampleBlockCodec.HEADER_SIZE <= length) {
+                    headerBuffer.clear();
+                    raf.seek(offset);
+                    raf.readFully(headerBuffer.array());
+                    if (!SampleBlockCodec.readHeader(headerBuffer, header)
+                            || offset + header.blockLength() > length
+                            || (offset + header.blockLength() == length && !isIntact(raf, offset, header))) {
+                        break;
+                    }
+                    BlockRef block = new BlockRef();
+                    block.day = day;
+                    block.offset = offset;
+                    block.length = header.blockLength();
+                    block.firstIndex = header.firstIndex;
+                    block.count = header.count;
+                    block.firstDate = header.firstDate;
+                    block.lastDate = header.lastDate;
+                    block.minValue = header.minValue;
+                    block.maxValue = header.maxValue;
+                    block.goodCount = header.goodCount;
+                    mBlocks.add(block);
+                    offset += header.blockLength();
+                }
+                if (offset < length) {
+                    raf.setLength(offset);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        Collections.sort(mBlocks, new Comparator<BlockRef>() {
+            @Override
+            public int compare(BlockRef a, BlockRef b) {
+                return a.firstIndex < b.firstIndex ? -1 : (a.firstIndex == b.firstIndex ? 0 : 1);
+            }
+        });
+
+        long sealedEnd = 0;
+        if (!mBlocks.isEmpty()) {
+            BlockRef last = mBlocks.get(mBlocks.size() - 1);
+            sealedEnd = last.firstIndex + last.count;
+        }
+        mOpen.setFirstIndex(sealedEnd);
+
+        // The tail's pieces only count from where the sealed blocks leave off.  Any before
+        // that were already sealed before a crash.  If the newest sealed blocks are gone
+        // (dropped with a day file from before the clock went back, or damaged), the tail
+        // says where the indexes are up to and read() skips the gap.  A damaged piece (from
+        // a crash while appending) and anything after it is cut off.
+        File tail = new File(mDirectory, TAIL_FILE);
+        if (tail.exists()) {
+            ByteBuffer buffer = ByteBuffer.wrap(readFile(tail));
+            boolean stale = false;
+            int good = 0;
+            while (buffer.hasRemaining() && SampleBlockCodec.decode(buffer, mDecoded)) {
+                long first = mDecoded.getFirstIndex();
+                if (mOpen.size() == 0) {
+                    if (!mBlocks.isEmpty() && first + mDecoded.size() <= sealedEnd) {
+                        stale = true;
+                        good = buffer.position();
+                        continue;
+                    }
+                    if (first > sealedEnd) {
+                        mOpen.setFirstIndex(first);
+                    }
+                }
+                if (first != mOpen.getFirstIndex() + mOpen.size()
+                        || mOpen.size() + mDecoded.size() > mOpen.capacity()) {
+                    break;
+                }
+                for (int i = 0; i < mDecoded.size(); i++) {
+                    mOpen.add(mDecoded.dates[i], mDecoded.values[i], mDecoded.goodPosture[i]);
+                }
+                good = buffer.position();
+            }
+            if (mOpen.size() > 0) {
+                mOpenDay = mOpen.dates[0] / MS_PER_DAY;
+            }
+            if (stale || good < buffer.limit()) {
+                writeTail();            // just the good pieces
+            } else {
+                mOpenWritten = mOpen.size();
+                mTailLength = good;
+            }
+        }
+        mSize = mOpen.getFirstIndex() + mOpen.size();
+    }
+
+    private boolean isIntact(RandomAccessFile raf, long offset, SampleBlockCodec.Header header)
+            throws IOException {
+        byte[] bytes = new byte[header.blockLength()];
+        raf.seek(offset);
+        raf.readFully(bytes);
+        return SampleBlockCodec.isIntact(ByteBuffer.wrap(bytes), header);
+    }
+
+    private SampleBatch decode(BlockRef block) throws IOException {
+        if (block != mDecodedBlock) {
+            byte[] bytes = new byte[block.length];
+            RandomAccessFile raf = new RandomAccessFile(dayFile(block.day), "r");
+            try {
+                raf.seek(block.offset);
+                raf.readFully(bytes);
+            } finally {
+                raf.close();
+            }
+            mDecodedBlock = null;
+            if (!SampleBlockCodec.decode(ByteBuffer.wrap(bytes), mDecoded)) {
+                throw new IOException("Damaged block at " + block.offset + " in " + dayFile(block.day));
+            }
+            mDecodedBlock = block;
+        }
+        return mDecoded;
+    }
+
+    /**
+     * @return  the sealed block holding an index, or the first one after it if the index is
+     *          in a gap, or null if there isn't one
+     */
+    private BlockRef findBlock(long index) {
+        int low = 0;
+        int high = mBlocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            BlockRef block = mBlocks.get(middle);
+            if (index < block.firstIndex) {
+                high = middle - 1;
+            } else if (index >= block.firstIndex + block.count) {
+                low = middle + 1;
+            } else {
+                return block;
+            }
+        }
+        return (low < mBlocks.size()) ? mBlocks.get(low) : null;
+    }
+
+    private static void fillStats(BlockRef block, ByteBuffer encoded) {
+        SampleBlockCodec.Header header = new SampleBlockCodec.Header();
+        encoded.position(0);
+        SampleBlockCodec.readHeader(encoded, header);
+        block.minValue = header.minValue;
+        block.maxValue = header.maxValue;
+        block.goodCount = header.goodCount;
+    }
+
+    File dayFile(long day) {
+        return new File(mDirectory, String.format("%s%08d%s", DAY_PREFIX, day, DAY_SUFFIX));
+    }
+
+    private String[] listFiles() {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return new String[0];
+        }
+        ArrayList<String> days = new ArrayList<String>();
+        for (String name : names) {
+            if (name.startsWith(DAY_PREFIX) && name.endsWith(DAY_SUFFIX)) {
+                days.add(name);
+            }
+        }
+        return days.toArray(new String[days.size()]);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * Cuts a run of samples down to a few points which still have the same shape when drawn.
+ *
+ * There are two ways to do it:
+ *   largestTriangle: Largest-Triangle-Three-Buckets.  Picks one real sample per bucket, the
+ *                    one which makes the biggest triangle with its neighbours.  This looks
+ *                    the most like the original when there are a few samples per point.
+ *   minMax:          keeps the lowest and highest sample in each bucket.  Every spike
+ *                    survives no matter how many samples go into a bucket, and it works on
+ *                    samples as they stream by, so it's for very long ranges.
+ * Either way the points are real samples, put out in date order.
+ */
+public final class Downsampler {
+
+    private Downsampler() { }
+
+    /**
+     * Largest-Triangle-Three-Buckets.
+     * @param in        samples in date order
+     * @param points    most points wanted, at least 3
+     * @param out       this is cleared and then filled in; it must hold at least points samples
+     */
+    public static void largestTriangle(SampleBatch in, int points, SampleBatch out) {
+        out.clear();
+        int n = in.size();
+        if (n <= points || points < 3) {
+            copy(in, 0, n, out);
+            return;
+        }
+        // The first and last samples get buckets to themselves; the rest share the others
+        double bucketSize = (double) (n - 2) / (points - 2);
+        int chosen = 0;
+        out.add(in.dates[0], in.values[0], in.goodPosture[0]);
+
+        for (int b = 0; b < points - 2; b++) {
+            int start = (int) (b * bucketSize) + 1;
+            int end = (int) ((b + 1) * bucketSize) + 1;
+
+            // The third corner is the average of the next bucket.  Dates are made relative to
+            // the last chosen sample so they don't lose precision as doubles.
+            long chosenDate = in.dates[chosen];
+            int chosenValue = in.values[chosen];
+            int nextStart = end;
+            int nextEnd = Math.min(n, (int) ((b + 2) * bucketSize) + 1);
+            double averageDate = 0;
+            double averageValue = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageDate += in.dates[i] - chosenDate;
+                averageValue += in.values[i] - chosenValue;
+            }
+            int nextCount = Math.max(1, nextEnd - nextStart);
+            averageDate /= nextCount;
+            averageValue /= nextCount;
+
+            double largest = -1;
+            int best = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((double) (in.dates[i] - chosenDate) * averageValue
+                        - averageDate * (in.values[i] - chosenValue));
+                if (area > largest) {
+                    largest = area;
+                    best = i;
+                }
+            }
+            out.add(in.dates[best], in.values[best], in.goodPosture[best]);
+            chosen = best;
+        }
+        out.add(in.dates[n - 1], in.values[n - 1], in.goodPosture[n - 1]);
+    }
+
+    /**
+     * Keep the lowest and highest sample in each of a number of equal sized buckets.
+     * @param in        samples in date order
+     * @param buckets   number of buckets, giving up to twice that many points
+     * @param out       this is cleared and then filled in; it must hold twice buckets samples
+     */
+    public static void minMax(SampleBatch in, int buckets, SampleBatch out) {
+        out.clear();
+        MinMax reducer = new MinMax(in.size(), buckets, out);
+        reducer.add(in, 0, in.size());
+        reducer.finish();
+    }
+
+    /**
+     * Min/max per bucket over samples which come in a piece at a time, such as chunks read
+     * from a SampleStore, so the whole range never has to be in memory.
+     */
+    public static final class MinMax {
+        private final long mTotal;          // number of samples which will be added
+        private final int mBuckets;
+        private final SampleBatch mOut;
+        private long mSeen;
+        private int mBucket = -1;
+        private long mMinDate;              // units of ms since epoch
+        private int mMinValue;
+        private boolean mMinGood;
+        private long mMaxDate;              // units of ms since epoch
+        private int mMaxValue;
+        private boolean mMaxGood;
+
+        /**
+         * @param total     how many samples will be added altogether
+         * @param buckets   number of buckets, giving up to twice that many points
+         * @param out       gets the points; it must hold twice buckets samples
+         */
+        public MinMax(long total, int buckets, SampleBatch out) {
+            mTotal = total;
+            mBuckets = Math.max(1, buckets);
+            mOut = out;
+        }
+
+        /**
+         * Add the samples in part of a batch.
+         * @param from      first sample, inclusive
+         * @param to        last sample, exclusive
+         */
+        public void add(SampleBatch in, int from, int to) {
+            for (int i = from; i < to; i++) {
+                int bucket = (int) (mSeen * mBuckets / Math.max(1, mTotal));
+                mSeen++;
+                if (bucket != mBucket) {
+                    emit();
+                    mBucket = bucket;
+                    mMinDate = mMaxDate = in.dates[i];
+                    mMinValue = mMaxValue = in.values[i];
+                    mMinGood = mMaxGood = in.goodPosture[i];
+                } else if (in.values[i] < mMinValue) {
+                    mMinDate = in.dates[i];
+                    mMinValue = in.values[i];
+                    mMinGood = in.goodPosture[i];
+                } else if (in.values[i] > mMaxValue) {
+                    mMaxDate = in.dates[i];
+                    mMaxValue = in.values[i];
+                    mMaxGood = in.goodPosture[i];
+                }
+            }
+        }
+
+        /**
+         * Put out the last bucket.  Call this once everything has been added.
+         */
+        public void finish() {
+            emit();
+            mBucket = -1;
+        }
+
+        // Put out the current bucket's min and max, in date order
+        private void emit() {
+            if (mBucket < 0) {
+                return;
+            }
+            if (mMinDate == mMaxDate) {
+                mOut.add(mMinDate, mMinValue, mMinGood);
+            } else if (mMinDate < mMaxDate) {
+                mOut.add(mMinDate, mMinValue, mMinGood);
+                mOut.add(mMaxDate, mMaxValue, mMaxGood);
+            } else {
+                mOut.add(mMaxDate, mMaxValue, mMaxGood);
+                mOut.add(mMinDate, mMinValue, mMinGood);
+            }
+        }
+    }
+
+    private static void copy(SampleBatch in, int from, int to, SampleBatch out) {
+        for (int i = from; i < to; i++) {
+            out.add(in.dates[i], in.values[i], in.goodPosture[i]);
+        }
+    }
+}
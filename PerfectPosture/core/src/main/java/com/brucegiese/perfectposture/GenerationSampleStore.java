@@ -0,0 +1,146 @@
+package com.brucegiese.perfectposture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A SampleStore which clears in constant time.
+ *
+ * Store indexes only go up, so clearing just moves a mark to the current end of the store and
+ * bumps the generation.  Every sample before the mark is hidden from readers at once, and new
+ * samples carry on after it as usual.  The hidden samples are all older than getClearedDate(),
+ * so they can be physically deleted later, a chunk at a time, with dropOldest() (a
+ * RetentionTask does that nicely).  Inserts are never held up behind one giant delete.
+ *
+ * The mark is kept in a small file, written to a temp file and renamed so it's never torn.
+ */
+public class GenerationSampleStore implements SampleStore {
+    private static final int FORMAT_VERSION = 1;
+
+    private final SampleStore mStore;
+    private final File mMarkFile;
+    private volatile int mGeneration;
+    private volatile long mClearedIndex;        // samples before this are hidden
+    private volatile long mClearedDate;         // units of ms since epoch
+
+    /**
+     * @param store     the samples
+     * @param markFile  where the mark is kept; it's only for this store
+     */
+    public GenerationSampleStore(SampleStore store, File markFile) throws IOException {
+        mStore = store;
+        mMarkFile = markFile;
+        readMark();
+        if (mStore.size() < mClearedIndex) {
+            mClearedIndex = 0;          // the store started its indexes over, so it's all new
+        }
+    }
+
+    @Override
+    public void append(SampleBatch batch) throws IOException {
+        mStore.append(batch);
+    }
+
+    @Override
+    public long size() throws IOException {
+        return mStore.size();
+    }
+
+    @Override
+    public long firstIndex() throws IOException {
+        return Math.max(mStore.firstIndex(), mClearedIndex);
+    }
+
+    @Override
+    public int read(long fromIndex, SampleBatch batch) throws IOException {
+        return mStore.read(Math.max(fromIndex, mClearedIndex), batch);
+    }
+
+    @Override
+    public long indexOf(long date) throws IOException {
+        return Math.max(mStore.indexOf(date), mClearedIndex);
+    }
+
+    @Override
+    public void rewriteFlags(SampleBatch batch) throws IOException {
+        mStore.rewriteFlags(batch);
+    }
+
+    @Override
+    public long dropOldest(long before) throws IOException {
+        return mStore.dropOldest(before);
+    }
+
+    /**
+     * Hide all the samples, without deleting any.
+     */
+    @Override
+    public synchronized void clear() throws IOException {
+        long size = mStore.size();
+        long clearedDate = mClearedDate;
+        SampleBatch last = new SampleBatch(1);
+        if (size > 0 && mStore.read(size - 1, last) > 0) {
+            clearedDate = Math.max(clearedDate, last.dates[0] + 1);
+        }
+        writeMark(mGeneration + 1, size, clearedDate);
+        mGeneration++;
+        mClearedIndex = size;
+        mClearedDate = clearedDate;
+    }
+
+    @Override
+    public void close() {
+        mStore.close();
+    }
+
+    /**
+     * @return  how many times this store has been cleared
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return  every hidden sample is older than this, units of ms since epoch
+     */
+    public long getClearedDate() {
+        return mClearedDate;
+    }
+
+    private void readMark() throws IOException {
+        if (!mMarkFile.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(mMarkFile));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown mark format in " + mMarkFile);
+            }
+            mGeneration = in.readInt();
+            mClearedIndex = in.readLong();
+            mClearedDate = in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeMark(int generation, long index, long date) throws IOException {
+        File temp = new File(mMarkFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(generation);
+            out.writeLong(index);
+            out.writeLong(date);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mMarkFile)) {
+            throw new IOException("Unable to rename " + temp);
+        }
+    }
+}
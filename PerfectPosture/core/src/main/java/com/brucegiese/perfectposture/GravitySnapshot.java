@@ -0,0 +1,114 @@
+package com.brucegiese.perfectposture;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latest gravity reading, published by the sensor thread and read from any thread
+ * without locking.
+ *
+ * This is a seqlock: the writer makes the sequence number odd, writes the fields, and makes
+ * it even again.  A reader which sees an odd sequence number, or a different one after
+ * reading the fields, just reads again.  Publishing never waits, and reading doesn't allocate.
+ * The fields are kept in an AtomicLongArray so every read and write is volatile, which keeps
+ * the reads in order without needing memory fences.
+ *
+ * There must only be one writer thread.
+ */
+public final class GravitySnapshot {
+    private static final int SEQUENCE = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int Z = 3;
+    private static final int FILTERED_Z = 4;
+    private static final int TIMESTAMP = 5;
+    private static final int ACCURACY = 6;
+    private static final int RECEIVED_AT = 7;
+    private static final int COUNT = 8;
+    private static final int SLOTS = 9;
+
+    private final AtomicLongArray mSlots = new AtomicLongArray(SLOTS);
+
+    /**
+     * A copy of the snapshot.  Reuse one of these to avoid allocating.
+     */
+    public static final class Reading {
+        public float x;
+        public float y;
+        public float z;
+        public float filteredZ;         // Z after the smoothing filter
+        public long timestamp;          // from the sensor, units of ns
+        public int accuracy;            // from the sensor
+        public long receivedAt;         // when we got it, units of ms (clock chosen by the writer)
+        public long count;              // readings published since the last clear
+        public long sequence;           // goes up every time anything is published
+
+        /**
+         * @return  whether there's been a reading since the last clear
+         */
+        public boolean isValid() {
+            return count > 0;
+        }
+
+        /**
+         * @param now   units of ms, on the same clock as receivedAt
+         * @return  how long ago the reading came in, units of ms
+         */
+        public long getAge(long now) {
+            return now - receivedAt;
+        }
+    }
+
+    /**
+     * Publish a new reading.  Only call this from the writer thread.
+     */
+    public void publish(float x, float y, float z, float filteredZ, long timestamp, int accuracy,
+                        long receivedAt) {
+        long sequence = mSlots.get(SEQUENCE);
+        mSlots.set(SEQUENCE, sequence + 1);          // odd: being written
+        mSlots.set(X, Float.floatToRawIntBits(x));
+        mSlots.set(Y, Float.floatToRawIntBits(y));
+        mSlots.set(Z, Float.floatToRawIntBits(z));
+        mSlots.set(FILTERED_Z, Float.floatToRawIntBits(filteredZ));
+        mSlots.set(TIMESTAMP, timestamp);
+        mSlots.set(ACCURACY, accuracy);
+        mSlots.set(RECEIVED_AT, receivedAt);
+        mSlots.set(COUNT, mSlots.get(COUNT) + 1);
+        mSlots.set(SEQUENCE, sequence + 2);          // even: done
+    }
+
+    /**
+     * Forget the reading, such as when the sensor is turned off.  Only call this from the
+     * writer thread.
+     */
+    public void clear() {
+        long sequence = mSlots.get(SEQUENCE);
+        mSlots.set(SEQUENCE, sequence + 1);
+        mSlots.set(COUNT, 0);
+        mSlots.set(SEQUENCE, sequence + 2);
+    }
+
+    /**
+     * Get a consistent copy of the latest reading.
+     * @param out   gets filled in
+     */
+    public void read(Reading out) {
+        while (true) {
+            long sequence = mSlots.get(SEQUENCE);
+            if ((sequence & 1) != 0) {
+                continue;           // the writer is part way through
+            }
+            out.x = Float.intBitsToFloat((int) mSlots.get(X));
+            out.y = Float.intBitsToFloat((int) mSlots.get(Y));
+            out.z = Float.intBitsToFloat((int) mSlots.get(Z));
+            out.filteredZ = Float.intBitsToFloat((int) mSlots.get(FILTERED_Z));
+            out.timestamp = mSlots.get(TIMESTAMP);
+            out.accuracy = (int) mSlots.get(ACCURACY);
+            out.receivedAt = mSlots.get(RECEIVED_AT);
+            out.count = mSlots.get(COUNT);
+            if (mSlots.get(SEQUENCE) == sequence) {
+                out.sequence = sequence >>> 1;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * A fixed size ring buffer of gravity vectors, with filters over the most recent readings.
+ *
+ * Everything is kept in primitive arrays allocated up front, so adding readings and
+ * filtering them never allocates.  When the buffer is full the oldest reading is overwritten.
+ *
+ * This isn't thread safe.  The caller has to synchronize if it's written and read on
+ * different threads.
+ */
+public final class GravityWindow {
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+    private static final int AXES = 3;
+    private static final float G_FORCE = 9.78f;         // gravity in meters per second squared
+    private static final float SCALE_FACTOR = 90f;      // scale for angular degrees
+    private static final float ALMOST_HALF = .4999f;    // need to round up
+
+    /**
+     * How the readings in the window get combined into one value.
+     */
+    public enum Filter {
+        NONE,           // just the latest reading
+        LOW_PASS,       // exponential smoothing, oldest to newest
+        MEDIAN,         // good at throwing out spikes
+        MEAN
+    }
+
+    private final float[] mValues;          // AXES values per reading
+    private final long[] mTimestamps;       // units of ns, from the sensor
+    private final float[] mScratch;         // for the median
+    private int mNext;                      // where the next reading goes
+    private int mCount;
+
+    /**
+     * @param capacity  most readings kept
+     */
+    public GravityWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mValues = new float[capacity * AXES];
+        mTimestamps = new long[capacity];
+        mScratch = new float[capacity];
+    }
+
+    /**
+     * Add a reading, overwriting the oldest one if the buffer is full.
+     * @param timestamp     units of ns
+     */
+    public void add(float x, float y, float z, long timestamp) {
+        int base = mNext * AXES;
+        mValues[base + X] = x;
+        mValues[base + Y] = y;
+        mValues[base + Z] = z;
+        mTimestamps[mNext] = timestamp;
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mCount < mTimestamps.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Turn a gravity reading along an axis into the posture angle.
+     * @param g     units of m/s^2
+     * @return  units of degrees, 0 for upright and +-90 for flat
+     */
+    public static int toDegrees(float g) {
+        return Math.round(g * (SCALE_FACTOR / G_FORCE) + ALMOST_HALF);
+    }
+
+    public void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return mTimestamps.length;
+    }
+
+    /**
+     * @return  timestamp of the newest reading, units of ns, or zero if there are none
+     */
+    public long getLatestTimestamp() {
+        return mCount == 0 ? 0 : mTimestamps[slot(0)];
+    }
+
+    /**
+     * Get one axis of a reading.
+     * @param age   0 for the newest reading, 1 for the one before it, and so on
+     */
+    public float get(int age, int axis) {
+        if (age < 0 || age >= mCount) {
+            throw new IndexOutOfBoundsException("age " + age + " with " + mCount + " readings");
+        }
+        return mValues[slot(age) * AXES + axis];
+    }
+
+    /**
+     * Filter one axis over the newest readings.
+     * @param axis      X, Y or Z
+     * @param filter    how to combine the readings
+     * @param window    number of readings to use; if there are fewer, all of them are used
+     * @param alpha     smoothing factor for LOW_PASS, from 0 (ignore new readings) to 1
+     * @return  the filtered value, or NaN if there are no readings
+     */
+    public float filter(int axis, Filter filter, int window, float alpha) {
+        int n = Math.max(1, Math.min(window, mCount));
+        if (mCount == 0) {
+            return Float.NaN;
+        }
+
+        switch (filter) {
+            case LOW_PASS: {
+                float result = get(n - 1, axis);
+                for (int age = n - 2; age >= 0; age--) {
+                    result += alpha * (get(age, axis) - result);
+                }
+                return result;
+            }
+
+            case MEDIAN: {
+                // Insertion sort is fine for a window this small, and doesn't allocate
+                for (int age = 0; age < n; age++) {
+                    float v = get(age, axis);
+                    int i = age - 1;
+                    while (i >= 0 && mScratch[i] > v) {
+                        mScratch[i + 1] = mScratch[i];
+                        i--;
+                    }
+                    mScratch[i + 1] = v;
+                }
+                return (n % 2 == 1) ? mScratch[n / 2] : (mScratch[n / 2 - 1] + mScratch[n / 2]) / 2f;
+            }
+
+            case MEAN: {
+                float sum = 0;
+                for (int age = 0; age < n; age++) {
+                    sum += get(age, axis);
+                }
+                return sum / n;
+            }
+
+            default:
+                return get(0, axis);
+        }
+    }
+
+    private int slot(int age) {
+        int capacity = mTimestamps.length;
+        return (mNext - 1 - age + 2 * capacity) % capacity;
+    }
+}
@@ -0,0 +1,94 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+
+/**
+ * This keeps today's posture histogram up to date as samples come in.  The open day is kept
+ * in memory and written out whenever the day changes, and otherwise no more often than the
+ * write interval, since each write replaces the whole day.
+ *
+ * When a day is first opened, whatever is already stored for it is read in and carried on,
+ * so restarting the service doesn't throw away the earlier part of the day.
+ */
+public class HistogramAggregator {
+    private final HistogramStore mStore;
+    private final long mWriteInterval;          // units of ms
+    private final PostureHistogram mOpen = new PostureHistogram();
+    private long mOpenDay = -1;                 // units of ms since epoch, -1 if none
+    private boolean mDirty;
+    private long mLastWrite;                    // units of ms since epoch
+    private long mFailedWrites;
+
+    /**
+     * @param writeInterval     shortest time between writes of the same day, units of ms
+     */
+    public HistogramAggregator(HistogramStore store, long writeInterval) {
+        mStore = store;
+        mWriteInterval = writeInterval;
+    }
+
+    /**
+     * Add a sample to the open day.  Samples are expected in time order.
+     * If writing a finished day fails, it's counted and the sample is still added.
+     * @param date  units of ms since epoch
+     */
+    public synchronized void add(long date, int value) throws IOException {
+        long day = RollupLevel.DAY.bucketStart(date);
+        if (day != mOpenDay) {
+            if (mOpenDay >= 0) {
+                try {
+                    flush();            // the day just finished
+                } catch (IOException e) {
+                    // Already counted.  There's nowhere else to put that day, so it's lost.
+                }
+            }
+            mStore.read(day, mOpen);    // pick up where an earlier run left off
+            mOpenDay = day;
+            mLastWrite = date;
+        }
+        mOpen.add(value);
+        mDirty = true;
+        if (date - mLastWrite >= mWriteInterval) {
+            mLastWrite = date;
+            flush();
+        }
+    }
+
+    /**
+     * Write out the open day, if it has changed.
+     */
+    public synchronized void flush() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        try {
+            mStore.write(mOpenDay, mOpen);
+            mDirty = false;
+        } catch (IOException e) {
+            mFailedWrites++;
+            throw e;
+        }
+    }
+
+    /**
+     * Forget the open day, such as after all the data has been cleared.
+     */
+    public synchronized void reset() {
+        mOpen.clear();
+        mOpenDay = -1;
+        mDirty = false;
+    }
+
+    /**
+     * Forget the open day and delete all the stored histograms.  Samples which come in
+     * meanwhile wait, so nothing from before the clear gets written back.
+     */
+    public synchronized void clear() throws IOException {
+        reset();
+        mStore.clear();
+    }
+
+    public synchronized long getFailedWrites() {
+        return mFailedWrites;
+    }
+}
@@ -0,0 +1,36 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+
+/**
+ * Somewhere to keep one posture histogram per day.  Days start at midnight UTC, the same as
+ * RollupLevel.DAY.
+ */
+public interface HistogramStore {
+
+    /**
+     * Read one day's histogram.
+     * @param day           start of the day, units of ms since epoch
+     * @param histogram     gets cleared and filled in
+     * @return  false (and an empty histogram) if nothing is stored for that day
+     */
+    boolean read(long day, PostureHistogram histogram) throws IOException;
+
+    /**
+     * Insert or replace one day's histogram.
+     */
+    void write(long day, PostureHistogram histogram) throws IOException;
+
+    /**
+     * Merge together the histograms of all the days which start in a time range.
+     * @param from      units of ms since epoch, inclusive
+     * @param to        units of ms since epoch, exclusive
+     * @param total     the histograms are merged into this
+     */
+    void merge(long from, long to, PostureHistogram total) throws IOException;
+
+    /**
+     * Delete all the histograms.
+     */
+    void clear() throws IOException;
+}
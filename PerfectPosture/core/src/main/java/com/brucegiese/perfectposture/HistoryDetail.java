@@ -0,0 +1,212 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gets a range of a SampleStore at a level of detail which suits the screen, so a chart of
+ * weeks of history draws about one point per pixel instead of every sample.
+ *
+ * How a range gets cut down depends on how many samples there are per point:
+ *   one or less:       the samples are used as they are
+ *   up to LTTB_LIMIT:  the range is read and cut down with Largest-Triangle-Three-Buckets
+ *   more than that:    the range is streamed through min/max buckets a chunk at a time, or
+ *                      if the store is a PyramidSampleStore, the min and max of its blocks
+ *                      are used without reading the samples at all
+ * Samples with no reading are left out before any of that, so they can't be picked as a
+ * bucket's min or max.  The results are cached, most recently used first, by range and width.  Indexes in a store
+ * don't change once they're handed out, so a cached result only goes stale if the store is
+ * cleared or old samples are deleted; call invalidate() then.
+ *
+ * This does its reading on the calling thread, so call it from a background thread.
+ */
+public final class HistoryDetail {
+    // Up to this many samples per point, the whole range is read and LTTB is used
+    static final int LTTB_LIMIT = 16;
+    private static final int CHUNK_SIZE = 4096;             // units of samples
+
+    private final SampleStore mStore;
+    private final PyramidSampleStore mPyramid;          // null if the store doesn't have one
+    private final Map<Key, SampleBatch> mCache;
+
+    /**
+     * @param store         where the samples come from
+     * @param cacheSize     most results kept
+     */
+    public HistoryDetail(SampleStore store, final int cacheSize) {
+        mStore = store;
+        mPyramid = (store instanceof PyramidSampleStore) ? (PyramidSampleStore) store : null;
+        mCache = new LinkedHashMap<Key, SampleBatch>(cacheSize + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, SampleBatch> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Get a range of samples cut down to about one point per pixel.
+     * @param fromIndex     first sample index, inclusive
+     * @param toIndex       last sample index, exclusive
+     * @param width         number of points wanted, such as the chart width in pixels
+     * @return  at most width points, in date order.  This is shared with the cache, so don't
+     *          change it.
+     */
+    public SampleBatch get(long fromIndex, long toIndex, int width) throws IOException {
+        Key key = new Key(fromIndex, toIndex, width);
+        synchronized (mCache) {
+            SampleBatch cached = mCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        SampleBatch result = reduce(fromIndex, toIndex, Math.max(3, width));
+        synchronized (mCache) {
+            mCache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the whole store cut down to about one point per pixel.
+     */
+    public SampleBatch getAll(int width) throws IOException {
+        return get(mStore.firstIndex(), mStore.size(), width);
+    }
+
+    /**
+     * Forget all the cached results.
+     */
+    public void invalidate() {
+        synchronized (mCache) {
+            mCache.clear();
+        }
+    }
+
+    private SampleBatch reduce(long fromIndex, long toIndex, int width) throws IOException {
+        fromIndex = Math.max(fromIndex, mStore.firstIndex());
+        long count = Math.max(0, toIndex - fromIndex);
+
+        if (count <= (long) width * LTTB_LIMIT) {
+            SampleBatch all = new SampleBatch((int) Math.max(1, count));
+            readRange(fromIndex, toIndex, all);
+            if (count <= width) {
+                return all;
+            }
+            SampleBatch out = new SampleBatch(width);
+            Downsampler.largestTriangle(all, width, out);
+            return out;
+        }
+
+        // Too many to read at once.  Each bucket gives up to two points.
+        SampleBatch out = new SampleBatch(width);
+        if (mPyramid != null) {
+            reduceBlocks(fromIndex, toIndex, width, out);
+            return out;
+        }
+        Downsampler.MinMax reducer = new Downsampler.MinMax(count, width / 2, out);
+        SampleBatch chunk = new SampleBatch(CHUNK_SIZE);
+        long index = fromIndex;
+        while (index < toIndex) {
+            int read = mStore.read(index, chunk);
+            if (read == 0) {
+                break;
+            }
+            int usable = (int) Math.min(read, toIndex - chunk.getFirstIndex());
+            reducer.add(chunk, 0, dropMissing(chunk, usable));
+            index = chunk.getFirstIndex() + read;
+        }
+        reducer.finish();
+        return out;
+    }
+
+    /**
+     * Use the min and max of pyramid blocks, each at the date of the block's first sample.
+     * The open block at the end can make one bucket more than asked for, so leave room.
+     */
+    private void reduceBlocks(long fromIndex, long toIndex, int width, SampleBatch out)
+            throws IOException {
+        List<RollupBucket> blocks = mPyramid.series(fromIndex, toIndex, Math.max(1, width / 2 - 1));
+        for (RollupBucket block : blocks) {
+            boolean good = block.goodCount * 2 >= block.count;
+            if (out.capacity() - out.size() < 2) {
+                break;
+            }
+            out.add(block.start, block.min, good);
+            if (block.max != block.min) {
+                out.add(block.start, block.max, good);
+            }
+        }
+    }
+
+    // Read a range which fits in the batch
+    private void readRange(long fromIndex, long toIndex, SampleBatch batch) throws IOException {
+        batch.clear();
+        SampleBatch chunk = new SampleBatch(Math.min(CHUNK_SIZE, batch.capacity()));
+        long index = fromIndex;
+        while (index < toIndex && !batch.isFull()) {
+            int read = mStore.read(index, chunk);
+            if (read == 0) {
+                break;
+            }
+            int usable = (int) Math.min(read, toIndex - chunk.getFirstIndex());
+            for (int i = 0; i < usable && !batch.isFull(); i++) {
+                if (chunk.values[i] != PostureEngine.NO_READING) {
+                    batch.add(chunk.dates[i], chunk.values[i], chunk.goodPosture[i]);
+                }
+            }
+            index = chunk.getFirstIndex() + read;
+        }
+    }
+
+    /**
+     * Move the samples which have a reading to the front of a chunk.
+     * @param count     samples in the chunk to look at
+     * @return  how many are left
+     */
+    private static int dropMissing(SampleBatch chunk, int count) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (chunk.values[i] != PostureEngine.NO_READING) {
+                chunk.dates[kept] = chunk.dates[i];
+                chunk.values[kept] = chunk.values[i];
+                chunk.goodPosture[kept] = chunk.goodPosture[i];
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * What a cached result was asked for with.
+     */
+    private static final class Key {
+        private final long mFrom;
+        private final long mTo;
+        private final int mWidth;
+
+        Key(long from, long to, int width) {
+            mFrom = from;
+            mTo = to;
+            mWidth = width;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mFrom == other.mFrom && mTo == other.mTo && mWidth == other.mWidth;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (mFrom ^ (mFrom >>> 32));
+            result = 31 * result + (int) (mTo ^ (mTo >>> 32));
+            return 31 * result + mWidth;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An append-only binary log of posture samples, as an alternative to the ActiveAndroid
+ * Sample table.  Samples are fixed-width records in a series of memory-mapped segment files,
+ * so appending is a few stores into memory and finding sample N is just arithmetic.
+ *
+ * Each segment file has a small header with the number of committed records, followed by
+ * room for a fixed number of records.  A batch is committed all at once by the count in the
+ * newest segment's header, after all its records are written, even when it runs into a new
+ * segment.  Records past the committed count are never trusted when the log is opened.
+ * Every record also carries a valid bit and a checksum, so committed records at the tail
+ * which didn't make it to the disk get thrown away.
+ *
+ * Writes go to the OS page cache, so they survive the process being killed.  They only
+ * get forced to the disk on close(), which means a power failure can lose the tail.
+ */
+public class MappedSampleLog implements SampleStore {
+    public static final int DEFAULT_RECORDS_PER_SEGMENT = 65536;    // about 18 hours at 1 Hz
+
+    static final int HEADER_SIZE = 64;                  // units of bytes
+    static final int RECORD_SIZE = 16;                  // units of bytes
+    private static final int MAGIC = 0x50505347;        // "PPSG"
+    private static final int FORMAT_VERSION = 1;
+    private static final String SEGMENT_PREFIX = "samples-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAX_MAPPED_SEGMENTS = 4;   // besides the tail segment
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORDS_PER_SEGMENT = 8;
+    private static final int HEADER_SEGMENT_NUMBER = 16;
+    private static final int HEADER_COMMITTED = 24;
+
+    // Record layout
+    private static final int RECORD_DATE = 0;           // long, ms since epoch
+    private static final int RECORD_VALUE = 8;          // int, Z-axis posture value
+    private static final int RECORD_FLAGS = 12;         // byte
+    private static final int RECORD_CHECKSUM = 15;      // byte
+    private static final int FLAG_GOOD_POSTURE = 0x01;
+    private static final int FLAG_VALID = 0x80;
+
+    private final File mDirectory;
+    private final int mRecordsPerSegment;
+    private long mSize;                                 // index of the next record
+    private long mFirstSegment;                         // oldest segment number on disk
+    private long mTailNumber = -1;                      // segment number of mTail
+    private MappedByteBuffer mTail;
+    private final LinkedHashMap<Long, MappedByteBuffer> mSegments =
+            new LinkedHashMap<Long, MappedByteBuffer>(MAX_MAPPED_SEGMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                    return size() > MAX_MAPPED_SEGMENTS;
+                }
+            };
+
+    /**
+     * Open the log in a directory, creating it if necessary, and recover the tail.
+     * @param directory             where the segment files live
+     * @param recordsPerSegment     only used for a new log; an existing log keeps its own
+     */
+    public MappedSampleLog(File directory, int recordsPerSegment) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        mDirectory = directory;
+
+        long[] numbers = listSegments();
+        if (numbers.length == 0) {
+            mRecordsPerSegment = recordsPerSegment;
+            mSize = 0;
+            mFirstSegment = 0;
+        } else {
+            mFirstSegment = numbers[0];
+            int n = numbers.length - 1;
+            long last = numbers[n];
+            MappedByteBuffer buffer = map(segmentFile(last), HEADER_SIZE);
+            checkHeader(buffer, last);
+            // A batch which ran into new segments but wasn't committed leaves them with
+            // nothing committed.  The previous segment's count is from before that batch.
+            while (n > 0 && buffer.getInt(HEADER_COMMITTED) == 0) {
+                File file = segmentFile(last);
+                if (!file.delete()) {
+                    throw new IOException("Unable to delete " + file);
+                }
+                last = numbers[--n];
+                buffer = map(segmentFile(last), HEADER_SIZE);
+                checkHeader(buffer, last);
+            }
+            mRecordsPerSegment = buffer.getInt(HEADER_RECORDS_PER_SEGMENT);
+            if (n > 0 && numbers[n - 1] == last - 1) {
+                // A batch committed in this segment filled the one before, whatever that says
+                map(segmentFile(last - 1), HEADER_SIZE).putInt(HEADER_COMMITTED, mRecordsPerSegment);
+            }
+            mTail = map(segmentFile(last), segmentLength());
+            mTailNumber = last;
+            int committed = recover(mTail, mTail.getInt(HEADER_COMMITTED));
+            mTail.putInt(HEADER_COMMITTED, committed);
+            mSize = last * mRecordsPerSegment + committed;
+        }
+    }
+
+    public MappedSampleLog(File directory) throws IOException {
+        this(directory, DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    @Override
+    public synchronized void append(SampleBatch batch) throws IOException {
+        if (batch.size() == 0) {
+            return;
+        }
+        MappedByteBuffer previous = mTail;
+        long previousNumber = mTailNumber;
+        long index = mSize;
+        for (int i = 0; i < batch.size(); i++, index++) {
+            long number = index / mRecordsPerSegment;
+            if (number != mTailNumber) {
+                mTail = createSegment(number);          // nothing committed in it yet
+                mTailNumber = number;
+            }
+            writeRecord(mTail, (int) (index % mRecordsPerSegment),
+                    batch.dates[i], batch.values[i], batch.goodPosture[i]);
+        }
+        // The records are all written before the commit count moves, and the newest
+        // segment's count commits the whole batch.  Only then are the segments it filled
+        // marked full.
+        mTail.putInt(HEADER_COMMITTED, (int) (index - mTailNumber * mRecordsPerSegment));
+        for (long number = mSize / mRecordsPerSegment; number < mTailNumber; number++) {
+            MappedByteBuffer buffer = (number == previousNumber) ? previous : segment(number);
+            if (buffer != null) {
+                buffer.putInt(HEADER_COMMITTED, mRecordsPerSegment);
+            }
+        }
+        mSize = index;
+    }
+
+    @Override
+    public synchronized long size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized long firstIndex() {
+        return Math.min(mFirstSegment * mRecordsPerSegment, mSize);
+    }
+
+    @Override
+    public synchronized int read(long fromIndex, SampleBatch batch) throws IOException {
+        batch.clear();
+        long index = Math.max(fromIndex, firstIndex());
+        batch.setFirstIndex(index);
+        while (index < mSize && !batch.isFull()) {
+            long number = index / mRecordsPerSegment;
+            MappedByteBuffer buffer = segment(number);
+            if (buffer == null) {
+                break;
+            }
+            int offset = HEADER_SIZE + (int) (index % mRecordsPerSegment) * RECORD_SIZE;
+            batch.add(buffer.getLong(offset + RECORD_DATE),
+                    buffer.getInt(offset + RECORD_VALUE),
+                    (buffer.get(offset + RECORD_FLAGS) & FLAG_GOOD_POSTURE) != 0);
+            index++;
+        }
+        return batch.size();
+    }
+
+    @Override
+    public synchronized long indexOf(long date) throws IOException {
+        // Binary search, reading just the date out of each record
+        long low = firstIndex();
+        long high = mSize;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            MappedByteBuffer buffer = segment(middle / mRecordsPerSegment);
+            if (buffer == null) {
+                low = middle + 1;       // treat a missing segment as being in the past
+                continue;
+            }
+            int offset = HEADER_SIZE + (int) (middle % mRecordsPerSegment) * RECORD_SIZE;
+            if (buffer.getLong(offset + RECORD_DATE) < date) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The flags are rewritten in place, along with each record's checksum.
+     */
+    @Override
+    public synchronized void rewriteFlags(SampleBatch batch) throws IOException {
+        long index = Math.max(batch.getFirstIndex(), firstIndex());
+        long end = Math.min(batch.getFirstIndex() + batch.size(), mSize);
+        for (; index < end; index++) {
+            MappedByteBuffer buffer = segment(index / mRecordsPerSegment);
+            if (buffer == null) {
+                continue;
+            }
+            int offset = HEADER_SIZE + (int) (index % mRecordsPerSegment) * RECORD_SIZE;
+            boolean good = batch.goodPosture[(int) (index - batch.getFirstIndex())];
+            buffer.put(offset + RECORD_FLAGS, (byte) (FLAG_VALID | (good ? FLAG_GOOD_POSTURE : 0)));
+            buffer.put(offset + RECORD_CHECKSUM, checksum(buffer, offset));
+        }
+    }
+
+    /**
+     * Delete the oldest segment file if everything in it is older than the cutoff.
+     * The segment being written to is never deleted.
+     */
+    @Override
+    public synchronized long dropOldest(long before) throws IOException {
+        if (mFirstSegment >= mTailNumber) {
+            return -1;
+        }
+        MappedByteBuffer buffer = segment(mFirstSegment);
+        if (buffer != null) {
+            int offset = HEADER_SIZE + (mRecordsPerSegment - 1) * RECORD_SIZE;
+            if (buffer.getLong(offset + RECORD_DATE) >= before) {
+                return -1;          // the newest sample in the segment is too recent
+            }
+        }
+        mSegments.remove(mFirstSegment);
+        File file = segmentFile(mFirstSegment);
+        long length = file.length();
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+        mFirstSegment++;
+        return length;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        mTail = null;
+        mTailNumber = -1;
+        mSegments.clear();
+        mSize = 0;
+        mFirstSegment = 0;
+        for (long number : listSegments()) {
+            File file = segmentFile(number);
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mTail != null) {
+            mTail.force();
+        }
+        mTail = null;
+        mTailNumber = -1;
+        mSegments.clear();
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    int getRecordsPerSegment() {
+        return mRecordsPerSegment;
+    }
+
+    /**
+     * Find the segment buffer for reading.
+     * @return  null if the segment file doesn't exist
+     */
+    private MappedByteBuffer segment(long number) throws IOException {
+        if (number == mTailNumber) {
+            return mTail;
+        }
+        MappedByteBuffer buffer = mSegments.get(number);
+        if (buffer == null) {
+            File file = segmentFile(number);
+            if (!file.exists()) {
+                return null;
+            }
+            buffer = map(file, segmentLength());
+            mSegments.put(number, buffer);
+        }
+        return buffer;
+    }
+
+    private MappedByteBuffer createSegment(long number) throws IOException {
+        MappedByteBuffer buffer = map(segmentFile(number), segmentLength());
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+        buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+        buffer.putInt(HEADER_RECORDS_PER_SEGMENT, mRecordsPerSegment);
+        buffer.putLong(HEADER_SEGMENT_NUMBER, number);
+        buffer.putInt(HEADER_COMMITTED, 0);
+        return buffer;
+    }
+
+    private long segmentLength() {
+        return HEADER_SIZE + (long) mRecordsPerSegment * RECORD_SIZE;
+    }
+
+    File segmentFile(long number) {
+        return new File(mDirectory, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return  the segment numbers on disk, in ascending order
+     */
+    long[] listSegments() {
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers[count++] = Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    count--;        // not one of ours
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the file is closed.
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void checkHeader(MappedByteBuffer buffer, long number) throws IOException {
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC
+                || buffer.getInt(HEADER_VERSION) != FORMAT_VERSION
+                || buffer.getLong(HEADER_SEGMENT_NUMBER) != number) {
+            throw new IOException("Corrupt sample log segment " + segmentFile(number));
+        }
+    }
+
+    /**
+     * Work out how many records in a segment are really there.  Records past the committed
+     * count are from a batch which wasn't committed, or are left over, so they're never
+     * counted.  The count might be ahead of the records, though, if the header page made it
+     * to the disk but a data page didn't.
+     * @return  number of good records at the front of the segment
+     */
+    private int recover(MappedByteBuffer buffer, int committed) {
+        int count = Math.max(0, Math.min(committed, mRecordsPerSegment));
+        while (count > 0 && !isValid(buffer, count - 1)) {
+            count--;
+        }
+        return count;
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int position,
+                                    long date, int value, boolean goodPosture) {
+        int offset = HEADER_SIZE + position * RECORD_SIZE;
+        buffer.putLong(offset + RECORD_DATE, date);
+        buffer.putInt(offset + RECORD_VALUE, value);
+        buffer.put(offset + RECORD_FLAGS, (byte) (FLAG_VALID | (goodPosture ? FLAG_GOOD_POSTURE : 0)));
+        buffer.put(offset + RECORD_CHECKSUM, checksum(buffer, offset));
+    }
+
+    private boolean isValid(MappedByteBuffer buffer, int position) {
+        int offset = HEADER_SIZE + position * RECORD_SIZE;
+        return (buffer.get(offset + RECORD_FLAGS) & FLAG_VALID) != 0
+                && buffer.get(offset + RECORD_CHECKSUM) == checksum(buffer, offset);
+    }
+
+    private static byte checksum(MappedByteBuffer buffer, int offset) {
+        int sum = 0x5a;
+        for (int i = 0; i < RECORD_CHECKSUM; i++) {
+            sum = sum * 31 + buffer.get(offset + i);
+        }
+        return (byte) sum;
+    }
+}
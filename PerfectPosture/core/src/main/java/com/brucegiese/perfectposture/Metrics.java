@@ -0,0 +1,265 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A process wide registry of counters, gauges and histograms, for seeing what the service
+ * costs on a real phone.
+ *
+ * Metrics are made once, up front, and kept in fields; recording into one is a few atomic
+ * adds with no locking or allocation.  Collecting is off until setEnabled(true), and while
+ * it's off every record call returns after reading one volatile boolean.  Timing uses
+ * start(), which returns 0 without reading the clock when collecting is off, and the
+ * histogram's recordSince() ignores a start of 0.
+ *
+ * Histograms have power of two buckets, so percentiles are only good to a factor of two, but
+ * that's plenty for spotting a regression and it keeps a histogram to one small array.
+ */
+public final class Metrics {
+    private static final int BUCKETS = 64;
+    private static volatile boolean sEnabled = false;
+    private static final Map<String, Object> sMetrics = new TreeMap<String, Object>();
+
+    private Metrics() { }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return  System.nanoTime(), or 0 if collecting is off
+     */
+    public static long start() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Get a counter, making it the first time.
+     */
+    public static synchronized Counter counter(String name) {
+        Object metric = sMetrics.get(name);
+        if (metric == null) {
+            metric = new Counter();
+            sMetrics.put(name, metric);
+        }
+        return (Counter) metric;
+    }
+
+    /**
+     * Get a gauge, making it the first time.
+     */
+    public static synchronized Gauge gauge(String name) {
+        Object metric = sMetrics.get(name);
+        if (metric == null) {
+            metric = new Gauge();
+            sMetrics.put(name, metric);
+        }
+        return (Gauge) metric;
+    }
+
+    /**
+     * Get a histogram, making it the first time.
+     * @param unit  what the recorded values are, such as "us", just for the snapshot
+     */
+    public static synchronized Histogram histogram(String name, String unit) {
+        Object metric = sMetrics.get(name);
+        if (metric == null) {
+            metric = new Histogram(unit);
+            sMetrics.put(name, metric);
+        }
+        return (Histogram) metric;
+    }
+
+    /**
+     * Zero everything.  Records which happen at the same time may or may not be kept.
+     */
+    public static synchronized void reset() {
+        for (Object metric : sMetrics.values()) {
+            if (metric instanceof Counter) {
+                ((Counter) metric).mCount.set(0);
+            } else if (metric instanceof Gauge) {
+                ((Gauge) metric).mValue.set(0);
+                ((Gauge) metric).mMax.set(0);
+            } else {
+                ((Histogram) metric).clear();
+            }
+        }
+    }
+
+    /**
+     * Write all the metrics, one line each, sorted by name:
+     *   c name count
+     *   g name value max
+     *   h name unit count sum max p50 p90 p99 bucket:count...
+     * A histogram bucket b holds values up to 2^b.  Empty buckets are left out.
+     */
+    public static synchronized void writeSnapshot(Writer out) throws IOException {
+        out.write("# metrics " + System.currentTimeMillis() + " enabled=" + sEnabled + "\n");
+        for (Map.Entry<String, Object> entry : sMetrics.entrySet()) {
+            Object metric = entry.getValue();
+            StringBuilder line = new StringBuilder();
+            if (metric instanceof Counter) {
+                line.append("c ").append(entry.getKey()).append(' ')
+                        .append(((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                Gauge gauge = (Gauge) metric;
+                line.append("g ").append(entry.getKey()).append(' ')
+                        .append(gauge.get()).append(' ').append(gauge.getMax());
+            } else {
+                Histogram histogram = (Histogram) metric;
+                line.append("h ").append(entry.getKey()).append(' ').append(histogram.mUnit)
+                        .append(' ').append(histogram.getCount())
+                        .append(' ').append(histogram.mSum.get())
+                        .append(' ').append(histogram.mMax.get())
+                        .append(' ').append(histogram.getPercentile(0.5))
+                        .append(' ').append(histogram.getPercentile(0.9))
+                        .append(' ').append(histogram.getPercentile(0.99));
+                for (int b = 0; b < BUCKETS; b++) {
+                    long count = histogram.mBuckets.get(b);
+                    if (count > 0) {
+                        line.append(' ').append(b).append(':').append(count);
+                    }
+                }
+            }
+            out.write(line.append('\n').toString());
+        }
+    }
+
+    /**
+     * Something which only goes up, such as alerts sent.
+     */
+    public static final class Counter {
+        private final AtomicLong mCount = new AtomicLong();
+
+        private Counter() { }
+
+        public void increment() {
+            if (sEnabled) {
+                mCount.incrementAndGet();
+            }
+        }
+
+        public void add(long n) {
+            if (sEnabled) {
+                mCount.addAndGet(n);
+            }
+        }
+
+        public long get() {
+            return mCount.get();
+        }
+    }
+
+    /**
+     * The latest value of something, such as a queue depth, and the most it's been.
+     */
+    public static final class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private Gauge() { }
+
+        public void set(long value) {
+            if (sEnabled) {
+                mValue.set(value);
+                raise(mMax, value);
+            }
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+    }
+
+    /**
+     * A distribution of values, such as latencies.
+     */
+    public static final class Histogram {
+        private final String mUnit;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private Histogram(String unit) {
+            mUnit = unit;
+        }
+
+        public void record(long value) {
+            if (!sEnabled) {
+                return;
+            }
+            value = Math.max(0, value);
+            mBuckets.incrementAndGet(bucket(value));
+            mSum.addAndGet(value);
+            raise(mMax, value);
+        }
+
+        /**
+         * Record the time since start() in microseconds.
+         * @param start     from Metrics.start(); 0 is ignored
+         */
+        public void recordSince(long start) {
+            if (start != 0) {
+                record((System.nanoTime() - start) / 1000);
+            }
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                count += mBuckets.get(b);
+            }
+            return count;
+        }
+
+        /**
+         * @param fraction  such as 0.99
+         * @return  the value which that fraction of the records were at or below, rounded up
+         *          to a power of two
+         */
+        public long getPercentile(double fraction) {
+            long wanted = (long) Math.ceil(getCount() * fraction);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += mBuckets.get(b);
+                if (seen >= wanted && seen > 0) {
+                    return Math.min(b == 63 ? Long.MAX_VALUE : 1L << b, mMax.get());
+                }
+            }
+            return 0;
+        }
+
+        private void clear() {
+            for (int b = 0; b < BUCKETS; b++) {
+                mBuckets.set(b, 0);
+            }
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        // The smallest b with value <= 2^b
+        private static int bucket(long value) {
+            return value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        }
+    }
+
+    private static void raise(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * All the user's settings at one moment, which never changes once it's built.  When a
+ * setting changes a whole new PostureConfig is built and published with the next version, so
+ * anything holding one sees a consistent set of limits and alert settings, and a reader can
+ * tell whether it has the latest by comparing versions.
+ *
+ * The sensitivity setting (1 to 3) picks the limits, the hysteresis and the bad posture
+ * reminder threshold together.
+ */
+public final class PostureConfig {
+    public static final int LOW_SENSITIVITY = 1;
+    public static final int MEDIUM_SENSITIVITY = 2;
+    public static final int HIGH_SENSITIVITY = 3;
+
+    // Indexed by sensitivity - 1
+    private static final int[] Z_AXIS_POS_THRESHOLD = {20, 40, 50};       // units of degrees
+    private static final int[] Z_AXIS_NEG_THRESHOLD = {-20, -40, -50};    // units of degrees
+    /*
+    * Number of consecutive good/bad update intervals before we declare a change in posture.
+    * This hysteresis is only for the user's benefit in giving alerts.  It's not saved in data.
+    * */
+    private static final int[] POSITIVE_HYSTERESIS = {2, 4, 8};
+    private static final int[] NEGATIVE_HYSTERESIS = {10, 30, 60};
+    // number of additional consecutive bad posture update intervals before we issue a reminder
+    private static final int[] BAD_REMINDER_THRESHOLD = {10, 30, 120};
+
+    /** Medium sensitivity, and everything else as it is before the user changes anything. */
+    public static final PostureConfig DEFAULT = new Builder().build();
+
+    private final long mVersion;
+    private final int mSensitivity;
+    private final boolean mNotification;
+    private final boolean mVibration;
+    private final boolean mLed;
+    private final boolean mChinTuck;
+    private final boolean mAdaptiveSampling;
+    private final GravityWindow.Filter mFilter;
+    private final int mRetentionDays;
+
+    private PostureConfig(Builder b) {
+        mVersion = b.mVersion;
+        mSensitivity = b.mSensitivity;
+        mNotification = b.mNotification;
+        mVibration = b.mVibration;
+        mLed = b.mLed;
+        mChinTuck = b.mChinTuck;
+        mAdaptiveSampling = b.mAdaptiveSampling;
+        mFilter = b.mFilter;
+        mRetentionDays = b.mRetentionDays;
+    }
+
+    /**
+     * @return  goes up by one each time a changed config is published
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public int getSensitivity() {
+        return mSensitivity;
+    }
+
+    /**
+     * @return  lowest good posture value, units of degrees
+     */
+    public int getLow() {
+        return Z_AXIS_NEG_THRESHOLD[mSensitivity - 1];
+    }
+
+    /**
+     * @return  highest good posture value, units of degrees
+     */
+    public int getHigh() {
+        return Z_AXIS_POS_THRESHOLD[mSensitivity - 1];
+    }
+
+    /**
+     * @return  good update intervals in a row before posture is good again
+     */
+    public int getPositiveHysteresis() {
+        return POSITIVE_HYSTERESIS[mSensitivity - 1];
+    }
+
+    /**
+     * @return  bad update intervals in a row before posture is bad
+     */
+    public int getNegativeHysteresis() {
+        return NEGATIVE_HYSTERESIS[mSensitivity - 1];
+    }
+
+    /**
+     * @return  more bad update intervals in a row before a reminder
+     */
+    public int getBadReminderThreshold() {
+        return BAD_REMINDER_THRESHOLD[mSensitivity - 1];
+    }
+
+    public boolean isNotification() {
+        return mNotification;
+    }
+
+    public boolean isVibration() {
+        return mVibration;
+    }
+
+    public boolean isLed() {
+        return mLed;
+    }
+
+    public boolean isChinTuck() {
+        return mChinTuck;
+    }
+
+    public boolean isAdaptiveSampling() {
+        return mAdaptiveSampling;
+    }
+
+    public GravityWindow.Filter getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * @return  days of raw samples to keep, zero means forever
+     */
+    public int getRetentionDays() {
+        return mRetentionDays;
+    }
+
+    /**
+     * @return  whether the settings are all the same, whatever the versions are
+     */
+    public boolean sameSettings(PostureConfig other) {
+        return mSensitivity == other.mSensitivity
+                && mNotification == other.mNotification
+                && mVibration == other.mVibration
+                && mLed == other.mLed
+                && mChinTuck == other.mChinTuck
+                && mAdaptiveSampling == other.mAdaptiveSampling
+                && mFilter == other.mFilter
+                && mRetentionDays == other.mRetentionDays;
+    }
+
+    /**
+     * @return  a Builder starting out with these settings and version
+     */
+    public Builder toBuilder() {
+        Builder b = new Builder();
+        b.mVersion = mVersion;
+        b.mSensitivity = mSensitivity;
+        b.mNotification = mNotification;
+        b.mVibration = mVibration;
+        b.mLed = mLed;
+        b.mChinTuck = mChinTuck;
+        b.mAdaptiveSampling = mAdaptiveSampling;
+        b.mFilter = mFilter;
+        b.mRetentionDays = mRetentionDays;
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        return "PostureConfig v" + mVersion + " sensitivity=" + mSensitivity
+                + " notification=" + mNotification + " vibration=" + mVibration
+                + " led=" + mLed + " chinTuck=" + mChinTuck
+                + " adaptiveSampling=" + mAdaptiveSampling + " filter=" + mFilter
+                + " retentionDays=" + mRetentionDays;
+    }
+
+    public static final class Builder {
+        private long mVersion = 0;
+        private int mSensitivity = MEDIUM_SENSITIVITY;
+        private boolean mNotification = true;
+        private boolean mVibration = true;
+        private boolean mLed = false;
+        private boolean mChinTuck = true;
+        private boolean mAdaptiveSampling = false;
+        private GravityWindow.Filter mFilter = GravityWindow.Filter.MEDIAN;
+        private int mRetentionDays = 0;          // forever
+
+        public Builder setVersion(long version) {
+            mVersion = version;
+            return this;
+        }
+
+        /**
+         * @param sensitivity   LOW_SENSITIVITY to HIGH_SENSITIVITY
+         */
+        public Builder setSensitivity(int sensitivity) {
+            if (sensitivity < LOW_SENSITIVITY || sensitivity > HIGH_SENSITIVITY) {
+                throw new IllegalArgumentException("invalid sensitivity: " + sensitivity);
+            }
+            mSensitivity = sensitivity;
+            return this;
+        }
+
+        public Builder setNotification(boolean notification) {
+            mNotification = notification;
+            return this;
+        }
+
+        public Builder setVibration(boolean vibration) {
+            mVibration = vibration;
+            return this;
+        }
+
+        public Builder setLed(boolean led) {
+            mLed = led;
+            return this;
+        }
+
+        public Builder setChinTuck(boolean chinTuck) {
+            mChinTuck = chinTuck;
+            return this;
+        }
+
+        public Builder setAdaptiveSampling(boolean adaptiveSampling) {
+            mAdaptiveSampling = adaptiveSampling;
+            return this;
+        }
+
+        public Builder setFilter(GravityWindow.Filter filter) {
+            mFilter = filter;
+            return this;
+        }
+
+        /**
+         * @param days  zero means forever
+         */
+        public Builder setRetentionDays(int days) {
+            mRetentionDays = days;
+            return this;
+        }
+
+        public PostureConfig build() {
+            return new PostureConfig(this);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * The posture checking logic, without any Android in it: classifying each reading, the
+ * hysteresis before posture is said to have changed, bad posture reminders, chin tuck
+ * reminders and adaptive sampling.
+ *
+ * Something calls check() once per tick with the latest reading.  What happens as a result
+ * comes back through the Listener: every check, every sample worth keeping, and every alert.
+ * All times come from the Clock, so a replay can drive this at any speed.  On the phone the
+ * service does the ticking and turns alerts into notifications and vibrations.
+ *
+ * Checking can stop for a while, such as while the screen is off.  Call pause() when it
+ * stops, and the first check() after that starts the hysteresis and reminders over so the gap
+ * isn't counted as time spent in good or bad posture.  Time already counted toward the next
+ * chin tuck is kept.
+ *
+ * The settings come as one PostureConfig, which can be swapped from another thread, as the
+ * service does when a preference changes.  Each check reads it once, so a check never sees
+ * half of a change.
+ *
+ * This isn't thread safe.  Call check() from one thread; setConfig() and pause() can be
+ * called from any thread.
+ */
+public class PostureEngine {
+    /** A z value which means there wasn't a usable reading. */
+    public static final int NO_READING = Integer.MAX_VALUE;
+
+    public static final long UPDATE_INTERVAL = 1000;            // units of ms
+    static final long CHIN_TUCK_REMINDER_TIME = 15 * 60 * 1000L;        // units of ms
+    static final long CHIN_TUCK_REMINDER_DURATION = 60 * 1000L;         // units of ms
+    // Adaptive sampling: a sample is kept if it moves more than the dead-band from the last
+    // kept sample, or if none has been kept for the max silence.  While posture is good and
+    // steady, the time between checks doubles up to the max interval.
+    static final int ADAPTIVE_DEAD_BAND = 2;                    // units of degrees
+    static final int ADAPTIVE_NEAR_THRESHOLD = 5;               // units of degrees
+    static final long ADAPTIVE_MAX_SILENCE = 60 * 1000L;        // units of ms
+    static final long ADAPTIVE_MAX_INTERVAL = 8 * 1000L;        // units of ms
+    // Checks are skipped while there's no new sensor data, but not for longer than this.
+    static final long MAX_SENSOR_SILENCE = 5000;                // units of ms
+
+    /**
+     * Things the user gets told about.
+     */
+    public enum Alert {
+        BAD_POSTURE,            // posture has been bad for long enough, or is still bad
+        GOOD_POSTURE,           // posture has been good again for long enough
+        CHIN_TUCK_START,        // time for a chin tuck
+        CHIN_TUCK_END           // the chin tuck reminder is over
+    }
+
+    /**
+     * Told what the engine decided, on the thread which called check().
+     */
+    public interface Listener {
+        /**
+         * Every check with a reading, whether or not the sample is kept.
+         * @param time      units of ms, from Clock.elapsedRealtime()
+         * @param elapsed   time since the last check, units of ms
+         */
+        void onCheck(long time, int z, boolean goodPosture, long elapsed);
+
+        /**
+         * A sample worth keeping.  z may be NO_READING.
+         * @param date      units of ms since epoch
+         */
+        void onSample(long date, int z, boolean goodPosture);
+
+        void onAlert(Alert alert);
+    }
+
+    private final Clock mClock;
+    private final Listener mListener;
+
+    private volatile PostureConfig mConfig = PostureConfig.DEFAULT;
+    private volatile boolean mPaused = false;
+
+    // State
+    private boolean mCurrentPostureGood;
+    private long mHysteresisTime;               // units of ms
+    private long mBadPostureReminderTime;       // units of ms
+    private long mChinTuckReminderTime;         // units of ms
+    private boolean mChinTuckReminderState;
+    private long mLastTickTime;                 // units of ms
+    private long mTickDelay;                    // units of ms
+    private int mLastTickValue;
+    private int mLastKeptValue;
+    private boolean mLastKeptGood;
+    private long mLastKeptTime;                 // units of ms
+    private long mLastSensorSequence;
+    private long mSkippedTicks;
+
+    public PostureEngine(Clock clock, Listener listener) {
+        mClock = clock;
+        mListener = listener;
+        start();
+    }
+
+    /**
+     * Start over, as when monitoring is turned on.  Posture starts out assumed to be good.
+     */
+    public void start() {
+        mCurrentPostureGood = true;
+        mHysteresisTime = 0;
+        mBadPostureReminderTime = 0;
+        mChinTuckReminderTime = 0;
+        mChinTuckReminderState = false;
+        mLastTickTime = mClock.elapsedRealtime();
+        mTickDelay = UPDATE_INTERVAL;
+        mLastKeptValue = NO_READING;            // always keep the first sample
+        mLastTickValue = NO_READING;
+        mLastSensorSequence = -1;
+        mSkippedTicks = 0;
+        mPaused = false;
+    }
+
+    /**
+     * Checking has stopped for a while.  This can be called from any thread, and it's applied
+     * on the next check().
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * Pick up after a pause as if the last check was one update interval ago.  Posture is
+     * assumed to be good again and a chin tuck reminder which was on is ended.
+     * @param tickTime  units of ms
+     */
+    private void resume(long tickTime) {
+        mCurrentPostureGood = true;
+        mHysteresisTime = 0;
+        mBadPostureReminderTime = 0;
+        mLastTickTime = tickTime - UPDATE_INTERVAL;
+        mTickDelay = UPDATE_INTERVAL;
+        mLastKeptValue = NO_READING;            // always keep the first sample
+        mLastTickValue = NO_READING;
+        mLastSensorSequence = -1;
+        if (mChinTuckReminderState) {
+            mChinTuckReminderTime = 0;
+            mChinTuckReminderState = false;
+            mListener.onAlert(Alert.CHIN_TUCK_END);
+        }
+    }
+
+    /**
+     * Use new settings from the next check on.
+     */
+    public void setConfig(PostureConfig config) {
+        mConfig = config;
+    }
+
+    public PostureConfig getConfig() {
+        return mConfig;
+    }
+
+    public boolean isAdaptiveSampling() {
+        return mConfig.isAdaptiveSampling();
+    }
+
+    /**
+     * @return  posture after the hysteresis, which is what the alerts follow
+     */
+    public boolean isPostureGood() {
+        return mCurrentPostureGood;
+    }
+
+    public boolean isChinTuckReminderOn() {
+        return mChinTuckReminderState;
+    }
+
+    /**
+     * @return  checks skipped because there was no new sensor data
+     */
+    public long getSkippedTicks() {
+        return mSkippedTicks;
+    }
+
+    /**
+     * Determine whether a reading is good posture or bad posture.
+     * @param angle angle of device Z-axis from the vertical
+     * @return true if good posture
+     */
+    public boolean measurePosture(int angle) {
+        return measurePosture(mConfig, angle);
+    }
+
+    private static boolean measurePosture(PostureConfig config, int angle) {
+        return !(angle > config.getHigh() || angle < config.getLow());
+    }
+
+    /**
+     * Do one check.
+     * @param z         the latest reading, or NO_READING
+     * @param sequence  changes whenever there's a new reading, such as GravitySnapshot's
+     * @return  how long to wait before the next check, units of ms.  This is always
+     *          UPDATE_INTERVAL unless adaptive sampling is on.
+     */
+    public long check(int z, long sequence) {
+        PostureConfig config = mConfig;
+        long tickTime = mClock.elapsedRealtime();
+        if (mPaused) {
+            mPaused = false;
+            resume(tickTime);
+        }
+        if (sequence == mLastSensorSequence && tickTime - mLastTickTime < MAX_SENSOR_SILENCE) {
+            // Nothing new from the sensor (it may be holding readings in its FIFO).
+            // The time is counted on the next check which does something.
+            mSkippedTicks++;
+            return nextDelay(config, mLastTickValue, mLastTickValue);
+        }
+        mLastSensorSequence = sequence;
+
+        long elapsed = tickTime - mLastTickTime;        // units of ms
+        mLastTickTime = tickTime;
+
+        int previousZ = mLastTickValue;
+        mLastTickValue = z;
+        boolean goodPosture = measurePosture(config, z);
+        if (z != NO_READING) {
+            // Every check goes into the live statistics, even if the sample isn't kept
+            mListener.onCheck(tickTime, z, goodPosture, elapsed);
+        }
+        if (!config.isAdaptiveSampling() || isWorthKeeping(z, goodPosture, tickTime)) {
+            mListener.onSample(mClock.currentTimeMillis(), z, goodPosture);
+            mLastKeptValue = z;
+            mLastKeptGood = goodPosture;
+            mLastKeptTime = tickTime;
+        }
+
+        //       Apply hysteresis to determine when to alert the user.
+        // The first sample of a change counts as one update interval, after that we count
+        // the time since the previous sample.  With a fixed rate this is the same as
+        // counting samples.
+        if (goodPosture) {                          // Good posture
+            if (!mCurrentPostureGood) {
+                mHysteresisTime += (mHysteresisTime == 0) ? UPDATE_INTERVAL : elapsed;
+                if (mHysteresisTime >= config.getPositiveHysteresis() * UPDATE_INTERVAL) {
+                    mCurrentPostureGood = true;     // posture has been good for long enough
+                    mHysteresisTime = 0;
+                    mListener.onAlert(Alert.GOOD_POSTURE);
+                }
+            } else {
+                mHysteresisTime = 0;
+            }
+
+        } else {                                    // Bad posture
+            if (mCurrentPostureGood) {
+                mHysteresisTime += (mHysteresisTime == 0) ? UPDATE_INTERVAL : elapsed;
+                if (mHysteresisTime >= config.getNegativeHysteresis() * UPDATE_INTERVAL) {
+                    mCurrentPostureGood = false;    // posture has been bad for too long
+                    mHysteresisTime = 0;
+                    mListener.onAlert(Alert.BAD_POSTURE);
+                    mBadPostureReminderTime = 0;
+                }
+            } else {
+                mHysteresisTime = 0;
+
+                // If posture stays bad for too long, remind the user
+                mBadPostureReminderTime += elapsed;
+                if (mBadPostureReminderTime >= config.getBadReminderThreshold() * UPDATE_INTERVAL) {
+                    mBadPostureReminderTime = 0;
+                    mListener.onAlert(Alert.BAD_POSTURE);
+                }
+            }
+        }
+
+        // Chin tuck reminder functionality
+        if (config.isChinTuck()) {        // if the functionality is enabled
+            mChinTuckReminderTime += elapsed;
+            if (!mChinTuckReminderState) {
+                // We're not currently reminding the user to do a chin tuck exercise
+                if (mChinTuckReminderTime > CHIN_TUCK_REMINDER_TIME) {
+                    mChinTuckReminderTime = 0;
+                    mChinTuckReminderState = true;
+                    mListener.onAlert(Alert.CHIN_TUCK_START);
+                }
+            } else {
+                if (mChinTuckReminderTime > CHIN_TUCK_REMINDER_DURATION) {
+                    mChinTuckReminderTime = 0;
+                    mChinTuckReminderState = false;
+                    mListener.onAlert(Alert.CHIN_TUCK_END);
+                }
+            }
+        }
+
+        return nextDelay(config, z, previousZ);
+    }
+
+    /**
+     * Work out the time to the next check.  In adaptive mode we check at the normal rate while
+     * posture is bad, close to a threshold, moving, or part way through the hysteresis.
+     * Otherwise the time between checks doubles up to ADAPTIVE_MAX_INTERVAL.
+     * @param z             posture value from the check which just ran
+     * @param previousZ     posture value from the check before that
+     */
+    private long nextDelay(PostureConfig config, int z, int previousZ) {
+        if (!config.isAdaptiveSampling()) {
+            return UPDATE_INTERVAL;
+        }
+        boolean steady = z != NO_READING
+                && previousZ != NO_READING
+                && Math.abs(z - previousZ) <= ADAPTIVE_DEAD_BAND
+                && mCurrentPostureGood
+                && mHysteresisTime == 0
+                && z < config.getHigh() - ADAPTIVE_NEAR_THRESHOLD
+                && z > config.getLow() + ADAPTIVE_NEAR_THRESHOLD;
+        if (steady) {
+            mTickDelay = Math.min(mTickDelay * 2, ADAPTIVE_MAX_INTERVAL);
+        } else {
+            mTickDelay = UPDATE_INTERVAL;
+        }
+        return mTickDelay;
+    }
+
+    /**
+     * In adaptive sampling mode, decide whether a sample is different enough to keep.
+     * @param tickTime  units of ms
+     */
+    private boolean isWorthKeeping(int z, boolean goodPosture, long tickTime) {
+        return mLastKeptValue == NO_READING
+                || z == NO_READING
+                || Math.abs(z - mLastKeptValue) > ADAPTIVE_DEAD_BAND
+                || goodPosture != mLastKeptGood
+                || tickTime - mLastKeptTime >= ADAPTIVE_MAX_SILENCE;
+    }
+}
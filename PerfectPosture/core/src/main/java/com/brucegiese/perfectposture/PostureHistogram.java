@@ -0,0 +1,157 @@
+package com.brucegiese.perfectposture;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * An exact count of how many times each posture value was seen.
+ *
+ * Posture values are whole degrees in a small range, so this is just one counter per
+ * possible value.  Values outside the range are counted at the nearest end.  That makes
+ * percentiles exact, in constant memory, without keeping or sorting the values, and two
+ * histograms (say, two days) merge by adding up the counters.
+ *
+ * The serialized form only has the values which were seen:
+ *   version | number of values | (value delta, count) ...
+ * with everything after the version as varints.
+ */
+public final class PostureHistogram {
+    public static final int MIN_VALUE = -100;           // units of degrees
+    public static final int MAX_VALUE = 100;            // units of degrees
+    private static final int BINS = MAX_VALUE - MIN_VALUE + 1;
+    private static final byte FORMAT_VERSION = 1;
+    // version, bin count, and a value delta and count for every bin
+    private static final int MAX_SERIALIZED_LENGTH = 1 + 10 + BINS * 20;   // units of bytes
+
+    private final long[] mCounts = new long[BINS];
+    private long mTotal;
+
+    public void add(int value) {
+        mCounts[bin(value)]++;
+        mTotal++;
+    }
+
+    /**
+     * Take back a value which was added earlier.
+     */
+    public void remove(int value) {
+        int bin = bin(value);
+        if (mCounts[bin] > 0) {
+            mCounts[bin]--;
+            mTotal--;
+        }
+    }
+
+    /**
+     * Add in all the counts from another histogram.
+     */
+    public void merge(PostureHistogram other) {
+        for (int i = 0; i < BINS; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mTotal += other.mTotal;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BINS; i++) {
+            mCounts[i] = 0;
+        }
+        mTotal = 0;
+    }
+
+    /**
+     * @return  how many times this value was seen
+     */
+    public long getCount(int value) {
+        return mCounts[bin(value)];
+    }
+
+    /**
+     * @return  how many values were seen altogether
+     */
+    public long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * Get a percentile, using the nearest rank, so it's always a value which was seen.
+     * @param fraction  0.5 for the median, 0.9 for the 90th percentile and so on
+     * @return  the value, or Integer.MAX_VALUE if the histogram is empty
+     */
+    public int percentile(double fraction) {
+        if (mTotal == 0) {
+            return Integer.MAX_VALUE;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * mTotal));
+        long seen = 0;
+        for (int i = 0; i < BINS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return i + MIN_VALUE;
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * @return  the serialized form
+     */
+    public byte[] toBytes() {
+        ByteBuffer out = ByteBuffer.allocate(MAX_SERIALIZED_LENGTH);
+        int used = 0;
+        for (int i = 0; i < BINS; i++) {
+            if (mCounts[i] > 0) {
+                used++;
+            }
+        }
+        out.put(FORMAT_VERSION);
+        SampleBlockCodec.writeVarLong(out, used);
+        int previous = 0;
+        for (int i = 0; i < BINS; i++) {
+            if (mCounts[i] > 0) {
+                SampleBlockCodec.writeVarLong(out, i - previous);
+                SampleBlockCodec.writeVarLong(out, mCounts[i]);
+                previous = i;
+            }
+        }
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Add in the counts from a serialized histogram.  Use clear() first to just load it.
+     * @return  false if the data isn't a valid histogram, in which case nothing was added
+     */
+    public boolean mergeBytes(byte[] data) {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        long[] counts = new long[BINS];
+        try {
+            if (in.get() != FORMAT_VERSION) {
+                return false;
+            }
+            long used = SampleBlockCodec.readVarLong(in);
+            int bin = 0;
+            for (long n = 0; n < used; n++) {
+                bin += (int) SampleBlockCodec.readVarLong(in);
+                long count = SampleBlockCodec.readVarLong(in);
+                if (bin < 0 || bin >= BINS || count < 0) {
+                    return false;
+                }
+                counts[bin] = count;
+            }
+        } catch (BufferUnderflowException e) {
+            return false;
+        }
+        for (int i = 0; i < BINS; i++) {
+            mCounts[i] += counts[i];
+            mTotal += counts[i];
+        }
+        return true;
+    }
+
+    private static int bin(int value) {
+        return Math.max(MIN_VALUE, Math.min(MAX_VALUE, value)) - MIN_VALUE;
+    }
+}
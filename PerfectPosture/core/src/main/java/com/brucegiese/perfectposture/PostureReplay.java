@@ -0,0 +1,297 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs a PostureEngine over a trace of z values on a ManualClock, so weeks of checking can be
+ * tried out in seconds on any JVM.  The trace can be synthetic (see synthetic()) or recorded
+ * samples (see recorded()).
+ *
+ * The clock jumps straight to each check, so the replay goes as fast as the engine does.
+ * Give it a speed to slow it down to that many times real time instead, such as 1000 for a
+ * day in under a minute and a half.
+ *
+ * Run main() for a quick report:
+ *   java com.brucegiese.perfectposture.PostureReplay [days] [speed] [seed]
+ */
+public final class PostureReplay {
+    private static final long MS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final long START_DATE = 1420070400000L;      // 2015-01-01, ms since epoch
+    private static final int LATENCY_BUCKETS = 64;              // powers of two ns
+
+    /**
+     * Where the readings come from.
+     */
+    public interface Trace {
+        /**
+         * @param time  units of ms since the start of the replay
+         * @return  the z value at that time, or PostureEngine.NO_READING
+         */
+        int valueAt(long time);
+
+        /**
+         * @return  how long the trace lasts, units of ms
+         */
+        long getLength();
+    }
+
+    /**
+     * What happened in a replay.
+     */
+    public static final class Report {
+        public long checks;
+        public long samples;                    // samples which were kept
+        public long goodSamples;
+        public long simulatedTime;              // units of ms
+        public long wallTime;                   // units of ns
+        public final Map<PostureEngine.Alert, Long> alerts =
+                new EnumMap<PostureEngine.Alert, Long>(PostureEngine.Alert.class);
+        private final long[] mLatencies = new long[LATENCY_BUCKETS];
+        private long mLatencyTotal;             // units of ns
+        private long mLatencyMax;               // units of ns
+
+        public long getAlerts(PostureEngine.Alert alert) {
+            Long count = alerts.get(alert);
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * @return  checks per second of wall time
+         */
+        public double getThroughput() {
+            return wallTime == 0 ? 0 : checks * 1e9 / wallTime;
+        }
+
+        /**
+         * @return  how many times faster than real time the replay went
+         */
+        public double getSpeedup() {
+            return wallTime == 0 ? 0 : simulatedTime * 1e6 / wallTime;
+        }
+
+        public double getMeanLatency() {
+            return checks == 0 ? 0 : (double) mLatencyTotal / checks;
+        }
+
+        public long getMaxLatency() {
+            return mLatencyMax;
+        }
+
+        /**
+         * @param fraction  such as 0.99
+         * @return  the check latency below which that fraction of checks fell, rounded up to
+         *          a power of two, units of ns
+         */
+        public long getLatencyPercentile(double fraction) {
+            long wanted = (long) Math.ceil(checks * fraction);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                seen += mLatencies[i];
+                if (seen >= wanted && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return mLatencyMax;
+        }
+
+        void addLatency(long ns) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(1, ns) - 1);
+            mLatencies[Math.min(bucket, LATENCY_BUCKETS - 1)]++;
+            mLatencyTotal += ns;
+            mLatencyMax = Math.max(mLatencyMax, ns);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("simulated %.1f days in %.2f s (%.0fx real time)%n",
+                    simulatedTime / (double) MS_PER_DAY, wallTime / 1e9, getSpeedup()));
+            s.append(String.format("%d checks, %.0f checks/s, %d samples kept, %.1f%% good%n",
+                    checks, getThroughput(), samples,
+                    samples == 0 ? 0 : 100.0 * goodSamples / samples));
+            s.append(String.format("check latency: mean %.0f ns, p50 <= %d ns, p99 <= %d ns, max %d ns%n",
+                    getMeanLatency(), getLatencyPercentile(0.5), getLatencyPercentile(0.99),
+                    mLatencyMax));
+            for (PostureEngine.Alert alert : PostureEngine.Alert.values()) {
+                s.append(alert).append(": ").append(getAlerts(alert)).append('\n');
+            }
+            return s.toString();
+        }
+    }
+
+    private PostureReplay() { }
+
+    /**
+     * Replay a trace through an engine with the default settings.
+     * @param speed     times real time to run at, or zero to go as fast as possible
+     */
+    public static Report run(Trace trace, double speed) throws InterruptedException {
+        Clock.ManualClock clock = new Clock.ManualClock(START_DATE);
+        Report report = new Report();
+        PostureEngine engine = newEngine(clock, report);
+        run(engine, clock, trace, speed, report);
+        return report;
+    }
+
+    /**
+     * Make an engine which counts what it does in a report.
+     */
+    public static PostureEngine newEngine(Clock clock, final Report report) {
+        return new PostureEngine(clock, new PostureEngine.Listener() {
+            @Override
+            public void onCheck(long time, int z, boolean goodPosture, long elapsed) {
+            }
+
+            @Override
+            public void onSample(long date, int z, boolean goodPosture) {
+                report.samples++;
+                if (goodPosture) {
+                    report.goodSamples++;
+                }
+            }
+
+            @Override
+            public void onAlert(PostureEngine.Alert alert) {
+                report.alerts.put(alert, report.getAlerts(alert) + 1);
+            }
+        });
+    }
+
+    /**
+     * Replay a trace through an engine made with newEngine() on the same clock, with
+     * whatever settings it's been given.
+     * @param speed     times real time to run at, or zero to go as fast as possible
+     */
+    public static void run(PostureEngine engine, Clock.ManualClock clock, Trace trace,
+                           double speed, Report report) throws InterruptedException {
+        engine.start();
+        long startTime = clock.elapsedRealtime();
+        long wallStart = System.nanoTime();
+        long sequence = 0;
+        long delay = PostureEngine.UPDATE_INTERVAL;
+        while (clock.elapsedRealtime() - startTime + delay <= trace.getLength()) {
+            clock.advance(delay);
+            long time = clock.elapsedRealtime() - startTime;
+            if (speed > 0) {
+                long due = wallStart + (long) (time * 1e6 / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+            }
+            int z = trace.valueAt(time);
+            long before = System.nanoTime();
+            delay = engine.check(z, ++sequence);
+            report.addLatency(System.nanoTime() - before);
+            report.checks++;
+        }
+        report.simulatedTime += clock.elapsedRealtime() - startTime;
+        report.wallTime += System.nanoTime() - wallStart;
+    }
+
+    /**
+     * A made up day: mostly upright with a little wobble, with slouches of a few seconds to
+     * a few minutes now and then, and the phone put down flat for a while each night.
+     * @param length    units of ms
+     * @param seed      the same seed gives the same trace
+     */
+    public static Trace synthetic(final long length, long seed) {
+        final Random random = new Random(seed);
+        // Work out the slouches ahead of time, so valueAt() only has to look them up
+        int count = (int) Math.max(1, length / (10 * 60 * 1000L));     // one per 10 minutes
+        final long[] starts = new long[count];
+        final long[] ends = new long[count];
+        final int[] depths = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = (long) (random.nextDouble() * length);
+        }
+        Arrays.sort(starts);
+        for (int i = 0; i < count; i++) {
+            ends[i] = starts[i] + 5000 + (long) (random.nextDouble() * random.nextDouble() * 5 * 60 * 1000L);
+            depths[i] = 45 + random.nextInt(40) * (random.nextBoolean() ? 1 : -1);
+        }
+        final long wobbleSeed = random.nextLong();
+        return new Trace() {
+            @Override
+            public int valueAt(long time) {
+                long ofDay = time % MS_PER_DAY;
+                if (ofDay > 2 * 60 * 60 * 1000L && ofDay < 8 * 60 * 60 * 1000L) {
+                    return 85;                  // on the night stand
+                }
+                // Cheap deterministic wobble of +-5 degrees
+                long h = (time / 1000 + wobbleSeed) * 0x9E3779B97F4A7C15L;
+                int value = 10 + (int) ((h >>> 59) - 16) / 3;
+                int i = Arrays.binarySearch(starts, time);
+                i = i >= 0 ? i : -i - 2;
+                if (i >= 0 && time < ends[i]) {
+                    value = depths[i];
+                }
+                return value;
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Replay recorded samples, such as read from a SampleStore.  Each sample holds its value
+     * until the next one, as adaptive sampling leaves it.
+     * @param batch     samples in date order
+     */
+    public static Trace recorded(final SampleBatch batch) {
+        final long start = batch.size() == 0 ? 0 : batch.dates[0];
+        final long length = batch.size() == 0 ? 0 : batch.dates[batch.size() - 1] - start + 1;
+        return new Trace() {
+            private int mPosition = 0;      // checks go forward, so start where the last ended
+
+            @Override
+            public int valueAt(long time) {
+                long date = start + time;
+                if (mPosition > 0 && batch.dates[mPosition] > date) {
+                    mPosition = 0;
+                }
+                while (mPosition + 1 < batch.size() && batch.dates[mPosition + 1] <= date) {
+                    mPosition++;
+                }
+                return batch.size() == 0 ? PostureEngine.NO_READING : batch.values[mPosition];
+            }
+
+            @Override
+            public long getLength() {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Read samples from a store into a batch for recorded().
+     * @param limit     most samples to read
+     */
+    public static SampleBatch readAll(SampleStore store, int limit) throws IOException {
+        SampleBatch all = new SampleBatch((int) Math.max(1, Math.min(limit, store.size() - store.firstIndex())));
+        SampleBatch chunk = new SampleBatch(4096);
+        long index = store.firstIndex();
+        while (!all.isFull() && store.read(index, chunk) > 0) {
+            for (int i = 0; i < chunk.size() && !all.isFull(); i++) {
+                all.add(chunk.dates[i], chunk.values[i], chunk.goodPosture[i]);
+            }
+            index = chunk.getFirstIndex() + chunk.size();
+        }
+        return all;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        double days = args.length > 0 ? Double.parseDouble(args[0]) : 30;
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        Report report = run(synthetic((long) (days * MS_PER_DAY), seed), speed);
+        System.out.print(report);
+    }
+}
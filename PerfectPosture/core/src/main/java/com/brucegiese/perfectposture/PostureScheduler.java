@@ -0,0 +1,289 @@
+package com.brucegiese.perfectposture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * One set of worker threads for all the background work in the process: flushing the journal
+ * and rollups, retention cleanup, purging cleared samples and reclassifying the history.  This
+ * replaces a thread (or a pool) per job.
+ *
+ * Tasks have a priority.  NORMAL tasks always go first, and LOW tasks can't take the last
+ * worker, so a long cleanup never holds up a flush.  LOW tasks also run at a low thread
+ * priority.
+ *
+ * A delayed task has some slack: it may run any time from when it's due until the slack runs
+ * out.  The workers only wake up when some task's slack runs out, and then run everything
+ * which is due, so work which can wait shares its wakeups with other work instead of waking
+ * the phone on its own.  Periodic tasks are due a whole number of periods after they were
+ * first due, however long each run takes, so they don't drift.  Runs which were missed
+ * altogether, such as during deep sleep, are skipped rather than done in a burst.
+ *
+ * The queue depth, how late tasks start and how long they run go into Metrics.
+ *
+ * The workers are daemon threads which last as long as the process.  There's no shutting
+ * them down: tasks from the service, the chart and the settings all share them, and work
+ * like a purge has to carry on after the service stops.
+ */
+public final class PostureScheduler {
+    static final int DEFAULT_THREADS = 3;
+
+    public enum Priority {
+        NORMAL,
+        LOW
+    }
+
+    private static final Metrics.Gauge sQueueDepth = Metrics.gauge("scheduler.queue");
+    private static final Metrics.Histogram sLatency = Metrics.histogram("scheduler.latency", "us");
+    private static final Metrics.Histogram sRunTime = Metrics.histogram("scheduler.run", "us");
+    private static final Metrics.Counter sFailures = Metrics.counter("scheduler.failed");
+
+    private static PostureScheduler sInstance = null;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Task> mNormal = new ArrayDeque<Task>();    // ready to run
+    private final ArrayDeque<Task> mLow = new ArrayDeque<Task>();       // ready to run
+    private final ArrayList<Task> mDelayed = new ArrayList<Task>();     // not due yet
+    private final Thread[] mWorkers;
+    private final int mMaxLow;
+    private int mRunningLow;
+
+    /**
+     * A task which has been handed to the scheduler.
+     */
+    public final class Task {
+        private final Runnable mRunnable;
+        private final Priority mPriority;
+        private final long mPeriod;             // units of ms, 0 if it only runs once
+        private final long mSlack;              // units of ms
+        private long mDue;                      // units of ms, from now()
+        private volatile boolean mCancelled;
+        private volatile boolean mDone;
+        private volatile RuntimeException mError;
+
+        private Task(Runnable runnable, Priority priority, long due, long period, long slack) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mDue = due;
+            mPeriod = period;
+            mSlack = slack;
+        }
+
+        /**
+         * Don't run this again.  A run which has already started carries on.
+         */
+        public void cancel() {
+            mCancelled = true;
+            synchronized (mLock) {
+                if (mDelayed.remove(this) || mNormal.remove(this) || mLow.remove(this)) {
+                    mDone = true;
+                    sQueueDepth.set(queueDepth());
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * @return  true once it won't run again
+         */
+        public boolean isDone() {
+            return mDone;
+        }
+
+        /**
+         * @return  what the last run threw, or null
+         */
+        public RuntimeException getError() {
+            return mError;
+        }
+
+        private long latest() {
+            return mDue + mSlack;
+        }
+    }
+
+    /**
+     * Get the scheduler shared by the whole process, starting it if need be.
+     */
+    public static synchronized PostureScheduler get() {
+        if (sInstance == null) {
+            sInstance = new PostureScheduler("posture-worker", DEFAULT_THREADS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param name      the workers are called this with a number after it
+     * @param threads   how many workers; LOW tasks can use all but one of them
+     */
+    public PostureScheduler(String name, int threads) {
+        mWorkers = new Thread[Math.max(1, threads)];
+        mMaxLow = Math.max(1, mWorkers.length - 1);
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(mWork, name + "-" + (i + 1));
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Run a task as soon as a worker is free.
+     */
+    public Task submit(Runnable runnable, Priority priority) {
+        return add(new Task(runnable, priority, now(), 0, 0));
+    }
+
+    /**
+     * Run a task once, later.
+     * @param delay     units of ms
+     * @param slack     how much later than the delay it may run, units of ms
+     */
+    public Task schedule(Runnable runnable, Priority priority, long delay, long slack) {
+        return add(new Task(runnable, priority, now() + delay, 0, slack));
+    }
+
+    /**
+     * Run a task every period, starting one period from now.
+     * @param period    units of ms
+     * @param slack     how much later than due each run may be, units of ms
+     */
+    public Task scheduleAtFixedRate(Runnable runnable, Priority priority, long period, long slack) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        return add(new Task(runnable, priority, now() + period, period, slack));
+    }
+
+    /**
+     * @return  tasks waiting, whether they're due yet or not
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return queueDepth();
+        }
+    }
+
+    private Task add(Task task) {
+        synchronized (mLock) {
+            if (task.mDue <= now()) {
+                ready(task);
+            } else {
+                mDelayed.add(task);
+            }
+            sQueueDepth.set(queueDepth());
+            mLock.notifyAll();
+        }
+        return task;
+    }
+
+    // Call while synchronized
+    private void ready(Task task) {
+        if (task.mPriority == Priority.NORMAL) {
+            mNormal.add(task);
+        } else {
+            mLow.add(task);
+        }
+    }
+
+    // Call while synchronized
+    private int queueDepth() {
+        return mNormal.size() + mLow.size() + mDelayed.size();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Wait for a task which may run now.  Call while synchronized.
+     * @return  the task
+     */
+    private Task take() throws InterruptedException {
+        while (true) {
+            // Whatever woke us up, everything which is due goes along with it, and we sleep
+            // until the first of the rest runs out of slack.
+            long now = now();
+            long wake = Long.MAX_VALUE;
+            Iterator<Task> i = mDelayed.iterator();
+            while (i.hasNext()) {
+                Task task = i.next();
+                if (task.mDue <= now) {
+                    i.remove();
+                    ready(task);
+                } else {
+                    wake = Math.min(wake, task.latest());
+                }
+            }
+            if (!mNormal.isEmpty()) {
+                return mNormal.poll();
+            }
+            if (!mLow.isEmpty() && mRunningLow < mMaxLow) {
+                mRunningLow++;
+                return mLow.poll();
+            }
+            if (wake == Long.MAX_VALUE) {
+                mLock.wait();
+            } else {
+                mLock.wait(Math.max(1, wake - now));
+            }
+        }
+    }
+
+    private final Runnable mWork = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                synchronized (mLock) {
+                    try {
+                        task = take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    sQueueDepth.set(queueDepth());
+                }
+                runTask(task);
+            }
+        }
+    };
+
+    private void runTask(Task task) {
+        if (!task.mCancelled) {
+            Thread.currentThread().setPriority(task.mPriority == Priority.LOW
+                    ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY);
+            sLatency.record((now() - task.mDue) * 1000);
+            long start = Metrics.start();
+            try {
+                task.mRunnable.run();
+            } catch (RuntimeException e) {
+                // Keep the worker going.  The task's owner can look at the error.
+                task.mError = e;
+                sFailures.increment();
+            }
+            sRunTime.recordSince(start);
+        }
+
+        synchronized (mLock) {
+            if (task.mPriority == Priority.LOW) {
+                mRunningLow--;
+            }
+            if (task.mPeriod > 0 && !task.mCancelled) {
+                long now = now();
+                task.mDue += task.mPeriod;
+                if (task.mDue <= now) {
+                    // Skip the runs we missed
+                    task.mDue += ((now - task.mDue) / task.mPeriod + 1) * task.mPeriod;
+                }
+                mDelayed.add(task);
+            } else {
+                task.mDone = true;
+            }
+            sQueueDepth.set(queueDepth());
+            mLock.notifyAll();
+        }
+    }
+}
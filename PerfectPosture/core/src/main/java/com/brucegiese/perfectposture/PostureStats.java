@@ -0,0 +1,143 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * Live posture statistics over the last minute, the last fifteen minutes and the whole
+ * session, updated one sample at a time.
+ *
+ * Each update is O(1) and doesn't allocate, so this can be updated on every sample and read
+ * by the screen as often as it likes, without going to the database.  Besides the windows
+ * there's an exponential moving average which weights samples by how much time they cover.
+ *
+ * Updates and reads can come from different threads, so the public methods are synchronized.
+ */
+public final class PostureStats {
+    /**
+     * The time windows which are kept.
+     */
+    public enum Window {
+        ONE_MINUTE(60 * 1000L),
+        FIFTEEN_MINUTES(15 * 60 * 1000L),
+        SESSION(0);
+
+        private final long mLength;         // units of ms, zero means the whole session
+
+        Window(long length) {
+            mLength = length;
+        }
+
+        public long getLength() {
+            return mLength;
+        }
+    }
+
+    /**
+     * A copy of the statistics for one window.  Reuse one of these to avoid allocating.
+     */
+    public static final class Summary {
+        public long count;
+        public double mean;                 // units of degrees
+        public double variance;             // units of degrees squared
+        public double movingAverage;        // the exponential moving average, units of degrees
+        public long totalTime;              // units of ms
+        public long badTime;                // units of ms
+
+        public double getStandardDeviation() {
+            return Math.sqrt(variance);
+        }
+
+        /**
+         * @return  fraction of the time in bad posture, from 0 to 1
+         */
+        public double getBadFraction() {
+            return totalTime == 0 ? 0 : (double) badTime / totalTime;
+        }
+    }
+
+    private final StatsWindow[] mWindows;
+    private final long mAverageTimeConstant;        // units of ms
+    private double mMovingAverage;
+    private boolean mHasAverage;
+
+    /**
+     * @param minInterval           shortest expected time between samples, units of ms.
+     *                              This sizes the sliding windows.
+     * @param averageTimeConstant   time constant of the moving average, units of ms
+     */
+    public PostureStats(long minInterval, long averageTimeConstant) {
+        Window[] windows = Window.values();
+        mWindows = new StatsWindow[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            // Leave some room for checks which come in a little early
+            int capacity = (int) (windows[i].getLength() * 5 / 4 / Math.max(1, minInterval)) + 1;
+            mWindows[i] = new StatsWindow(windows[i].getLength(), capacity);
+        }
+        mAverageTimeConstant = averageTimeConstant;
+    }
+
+    /**
+     * Add a sample.
+     * @param time          units of ms, on any clock which doesn't jump
+     * @param value         posture value
+     * @param goodPosture   whether the sample was good posture
+     * @param duration      how much time the sample stands for, units of ms
+     */
+    public synchronized void update(long time, int value, boolean goodPosture, long duration) {
+        for (StatsWindow window : mWindows) {
+            window.add(time, value, goodPosture, duration);
+        }
+        if (!mHasAverage) {
+            mMovingAverage = value;
+            mHasAverage = true;
+        } else {
+            double alpha = 1 - Math.exp(-(double) duration / mAverageTimeConstant);
+            mMovingAverage += alpha * (value - mMovingAverage);
+        }
+    }
+
+    /**
+     * Get the statistics for one window.
+     * @param now   units of ms, on the same clock as update().  Older samples are dropped.
+     * @param out   gets filled in
+     */
+    public synchronized void read(Window window, long now, Summary out) {
+        StatsWindow w = mWindows[window.ordinal()];
+        w.expire(now);
+        out.count = w.getCount();
+        out.mean = w.getMean();
+        out.variance = w.getVariance();
+        out.movingAverage = mMovingAverage;
+        out.totalTime = w.getTotalTime();
+        out.badTime = w.getBadTime();
+    }
+
+    /**
+     * @return  how many times this value was seen in the window
+     */
+    public synchronized long getCount(Window window, long now, int value) {
+        StatsWindow w = mWindows[window.ordinal()];
+        w.expire(now);
+        return w.getHistogram().getCount(value);
+    }
+
+    /**
+     * Get an exact percentile of the posture values in the window.
+     * @param fraction  0.5 for the median, 0.9 for the 90th percentile and so on
+     * @return  the value, or Integer.MAX_VALUE if there are no samples in the window
+     */
+    public synchronized int percentile(Window window, long now, double fraction) {
+        StatsWindow w = mWindows[window.ordinal()];
+        w.expire(now);
+        return w.getHistogram().percentile(fraction);
+    }
+
+    /**
+     * Start a new session.
+     */
+    public synchronized void reset() {
+        for (StatsWindow window : mWindows) {
+            window.clear();
+        }
+        mMovingAverage = 0;
+        mHasAverage = false;
+    }
+}
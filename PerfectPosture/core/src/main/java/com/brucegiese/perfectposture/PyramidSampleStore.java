@@ -0,0 +1,432 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SampleStore wrapped with a min/max pyramid, so questions about a range of samples are
+ * answered in O(log n) without reading them all.  HistoryDetail uses series() for zoomed out
+ * charts, and the full history view shows summarize() of the range it's showing.
+ *
+ * The pyramid (see SamplePyramid) keeps the count, min, max, sum and good count of blocks of
+ * 16, 32, 64... samples.  Any range is covered by at most two blocks per level, plus up to
+ * 15 samples at each ragged end which are read from the store.  Samples with no reading are
+ * left out of all of it.  The same blocks are used to find the first sample outside some
+ * limits: a block whose min and max are inside the limits is skipped without looking at its
+ * samples.
+ *
+ * Appends go through to the store and then into the pyramid.  Deleting old samples doesn't
+ * touch the pyramid: a query never uses a block which starts before the store's first index,
+ * so records for deleted samples are just ignored.  Clearing the store empties the pyramid.
+ * If the pyramid is behind the store (such as the first time, or after a crash) it catches
+ * up by reading the store, and if it doesn't match at all it's rebuilt.  Appends never wait
+ * for that: until the pyramid has caught up they only go to the store.  Call catchUp() on a
+ * background thread after opening; the queries call it too, in case they get there first.
+ */
+public class PyramidSampleStore implements SampleStore {
+    private static final int CHUNK_SIZE = 4096;             // units of samples
+
+    private final SampleStore mStore;
+    private final SamplePyramid mPyramid;
+    private final SampleBatch mChunk = new SampleBatch(CHUNK_SIZE);
+    private final SampleBatch mLeaf = new SampleBatch(SamplePyramid.LEAF_SIZE);
+    private final RollupBucket mPiece = new RollupBucket();
+    private boolean mOpenKnown = false;         // the open blocks have been worked out
+    private boolean mClosed = false;
+
+    /**
+     * @param store         the samples
+     * @param directory     where the pyramid is kept; it's only for this store
+     */
+    public PyramidSampleStore(SampleStore store, File directory) throws IOException {
+        mStore = store;
+        mPyramid = new SamplePyramid(directory);
+    }
+
+    /**
+     * The samples go into the pyramid as well if it's up to date.  If it isn't, catchUp()
+     * reads them from the store later.
+     */
+    @Override
+    public synchronized void append(SampleBatch batch) throws IOException {
+        long start = mStore.size();
+        mStore.append(batch);
+        if (mOpenKnown && start == mPyramid.getEnd()) {
+            for (int i = 0; i < batch.size(); i++) {
+                mPyramid.add(batch.dates[i], batch.values[i], batch.goodPosture[i]);
+            }
+            mPyramid.flush();
+        }
+    }
+
+    @Override
+    public long size() throws IOException {
+        return mStore.size();
+    }
+
+    @Override
+    public long firstIndex() throws IOException {
+        return mStore.firstIndex();
+    }
+
+    @Override
+    public int read(long fromIndex, SampleBatch batch) throws IOException {
+        return mStore.read(fromIndex, batch);
+    }
+
+    @Override
+    public long indexOf(long date) throws IOException {
+        return mStore.indexOf(date);
+    }
+
+    /**
+     * The blocks holding the samples get their good counts changed to match.  Samples the
+     * pyramid hasn't caught up with yet are left alone, since it reads the new flags when it
+     * gets to them.
+     */
+    @Override
+    public synchronized void rewriteFlags(SampleBatch batch) throws IOException {
+        SampleBatch old = new SampleBatch(batch.size());
+        long[] indexes = new long[batch.size()];
+        int[] deltas = new int[batch.size()];
+        int n = 0;
+        long end = batch.getFirstIndex() + batch.size();
+        long index = batch.getFirstIndex();
+        while (index < end && mStore.read(index, old) > 0) {
+            for (int i = 0; i < old.size() && old.getFirstIndex() + i < end; i++) {
+                long at = old.getFirstIndex() + i;
+                boolean good = batch.goodPosture[(int) (at - batch.getFirstIndex())];
+                if (good != old.goodPosture[i] && old.values[i] != PostureEngine.NO_READING) {
+                    indexes[n] = at;
+                    deltas[n] = good ? 1 : -1;
+                    n++;
+                }
+            }
+            index = old.getFirstIndex() + old.size();
+        }
+        mStore.rewriteFlags(batch);
+        if (n > 0) {
+            mPyramid.adjustGood(indexes, deltas, n);
+        }
+    }
+
+    @Override
+    public long dropOldest(long before) throws IOException {
+        return mStore.dropOldest(before);
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        mStore.clear();
+        mPyramid.reset(mStore.size());
+        mOpenKnown = true;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mPyramid.close();
+        mStore.close();
+    }
+
+    /**
+     * Summarize the samples in a range of indexes.
+     * @param fromIndex     inclusive
+     * @param toIndex       exclusive
+     * @param total         gets filled in, with start set to the date of the first sample
+     */
+    public void summarize(long fromIndex, long toIndex, RollupBucket total) throws IOException {
+        catchUp();
+        synchronized (this) {
+            summarizeIndexes(fromIndex, toIndex, total);
+        }
+    }
+
+    /**
+     * Summarize the samples in a time range, such as min, max, mean and percent good between
+     * two times.
+     * @param from      units of ms since epoch, inclusive
+     * @param to        units of ms since epoch, exclusive
+     * @param total     gets filled in, with start set to the date of the first sample
+     */
+    public void summarizeDates(long from, long to, RollupBucket total) throws IOException {
+        catchUp();
+        synchronized (this) {
+            summarizeIndexes(mStore.indexOf(from), mStore.indexOf(to), total);
+        }
+    }
+
+    /**
+     * Find the first sample in a range whose value is outside some limits, such as the first
+     * bad posture sample after a point in time.  Samples with no reading are never outside.
+     * @param fromIndex     inclusive
+     * @param toIndex       exclusive
+     * @param low           lowest value which is inside the limits
+     * @param high          highest value which is inside the limits
+     * @return  index of the sample, or -1 if there isn't one
+     */
+    public long findOutside(long fromIndex, long toIndex, int low, int high) throws IOException {
+        catchUp();
+        synchronized (this) {
+            long from = Math.max(fromIndex, mStore.firstIndex());
+            long to = Math.min(toIndex, mPyramid.getEnd());
+            if (from >= to) {
+                return -1;
+            }
+            long leafFrom = Math.min(alignUp(from, SamplePyramid.LEAF_SIZE), to);
+            long leafTo = Math.max(alignDown(to, SamplePyramid.LEAF_SIZE), leafFrom);
+            long found = scanSamples(from, leafFrom, low, high);
+            long index = leafFrom;
+            while (found < 0 && index < leafTo) {
+                int level = largestBlock(index, leafTo);
+                found = searchBlock(level, index / SamplePyramid.blockLength(level), low, high);
+                index += SamplePyramid.blockLength(level);
+            }
+            if (found < 0) {
+                found = scanSamples(leafTo, to, low, high);
+            }
+            return found;
+        }
+    }
+
+    // Call while synchronized
+    private void summarizeIndexes(long fromIndex, long toIndex, RollupBucket total)
+            throws IOException {
+        total.clear();
+        total.level = null;
+        total.start = 0;
+        long from = Math.max(fromIndex, mStore.firstIndex());
+        long to = Math.min(toIndex, mPyramid.getEnd());
+        if (from >= to) {
+            return;
+        }
+        long leafFrom = alignUp(from, SamplePyramid.LEAF_SIZE);
+        long leafTo = alignDown(to, SamplePyramid.LEAF_SIZE);
+        if (leafFrom >= leafTo) {
+            addSamples(from, to, total);
+            return;
+        }
+        addSamples(from, leafFrom, total);
+        long index = leafFrom;
+        while (index < leafTo) {
+            int level = largestBlock(index, leafTo);
+            mPyramid.read(level, index / SamplePyramid.blockLength(level), mPiece);
+            merge(total, mPiece);
+            index += SamplePyramid.blockLength(level);
+        }
+        addSamples(leafTo, to, total);
+    }
+
+    /**
+     * Get a range as a series of blocks, such as for drawing a zoomed out chart.  The level
+     * used is the finest one which needs no more than maxBuckets blocks.  Blocks which are
+     * only partly in the range (or partly deleted) are left out, apart from the open one at
+     * the end.
+     * @return  blocks in time order, each with start set to the date of its first sample
+     */
+    public List<RollupBucket> series(long fromIndex, long toIndex, int maxBuckets)
+            throws IOException {
+        catchUp();
+        synchronized (this) {
+            return seriesOf(fromIndex, toIndex, maxBuckets);
+        }
+    }
+
+    // Call while synchronized
+    private List<RollupBucket> seriesOf(long fromIndex, long toIndex, int maxBuckets)
+            throws IOException {
+        long from = Math.max(fromIndex, mStore.firstIndex());
+        long to = Math.min(toIndex, mPyramid.getEnd());
+        ArrayList<RollupBucket> series = new ArrayList<RollupBucket>();
+        if (from >= to) {
+            return series;
+        }
+        int level = 0;
+        while (level < SamplePyramid.LEVELS - 1
+                && (to - from) / SamplePyramid.blockLength(level) > maxBuckets) {
+            level++;
+        }
+        long length = SamplePyramid.blockLength(level);
+        for (long block = alignUp(from, length) / length; (block + 1) * length <= to; block++) {
+            RollupBucket bucket = new RollupBucket();
+            if (mPyramid.read(level, block, bucket)) {
+                series.add(bucket);
+            }
+        }
+        if (to == mPyramid.getEnd() && alignDown(to, length) >= from) {
+            RollupBucket open = new RollupBucket();
+            mPyramid.getOpen(level, open);
+            if (open.count > 0) {
+                series.add(open);
+            }
+        }
+        return series;
+    }
+
+    /**
+     * Bring the pyramid up to date with the store.  The first time (or if the pyramid doesn't
+     * match the store) that means reading every sample, so do it on a background thread.
+     * It's done a chunk at a time, and appends get in between the chunks.
+     */
+    public void catchUp() throws IOException {
+        boolean done = false;
+        while (!done) {
+            done = catchUpChunk();
+        }
+    }
+
+    /**
+     * Add one chunk of the samples the pyramid is missing, such as from a LOW priority task
+     * which submits itself again until it's done.
+     * @return  true once the pyramid is up to date, or the store has been closed
+     */
+    public synchronized boolean catchUpChunk() throws IOException {
+        if (mClosed) {
+            return true;
+        }
+        long size = mStore.size();
+        long first = mStore.firstIndex();
+        long end = mPyramid.getEnd();
+        if (end < 0 || end > size) {
+            mPyramid.reset(first);          // this isn't the pyramid for these samples
+        } else if (end < first) {
+            mPyramid.skipTo(first);         // everything it was missing has been deleted
+        } else if (!mOpenKnown) {
+            reopen(end);
+        }
+        mOpenKnown = true;
+        if (mPyramid.getEnd() >= size) {
+            return true;
+        }
+        int read = mStore.read(mPyramid.getEnd(), mChunk);
+        if (read == 0) {
+            return true;
+        }
+        if (mChunk.getFirstIndex() != mPyramid.getEnd()) {
+            mPyramid.skipTo(mChunk.getFirstIndex());
+        }
+        for (int i = 0; i < read; i++) {
+            mPyramid.add(mChunk.dates[i], mChunk.values[i], mChunk.goodPosture[i]);
+        }
+        mPyramid.flush();
+        return mPyramid.getEnd() >= size;
+    }
+
+    /**
+     * Work out the open blocks again after opening the pyramid.  Each one covers from the
+     * start of its block to the end, which is made up of written blocks and a few samples.
+     */
+    private void reopen(long end) throws IOException {
+        RollupBucket open = new RollupBucket();
+        long first = mStore.firstIndex();
+        for (int level = 0; level < SamplePyramid.LEVELS; level++) {
+            long from = Math.max(first, alignDown(end, SamplePyramid.blockLength(level)));
+            open.clear();
+            open.start = 0;
+            long leafTo = alignDown(end, SamplePyramid.LEAF_SIZE);
+            long index = Math.min(alignUp(from, SamplePyramid.LEAF_SIZE), leafTo);
+            addSamples(from, index, open);
+            while (index < leafTo) {
+                int blockLevel = largestBlock(index, leafTo);
+                mPyramid.read(blockLevel, index / SamplePyramid.blockLength(blockLevel), mPiece);
+                merge(open, mPiece);
+                index += SamplePyramid.blockLength(blockLevel);
+            }
+            addSamples(Math.max(from, leafTo), end, open);
+            mPyramid.setOpen(level, open);
+        }
+    }
+
+    /**
+     * @return  the biggest level with a block starting at index which ends by the limit
+     */
+    private static int largestBlock(long index, long limit) {
+        int level = 0;
+        while (level + 1 < SamplePyramid.LEVELS
+                && index % SamplePyramid.blockLength(level + 1) == 0
+                && index + SamplePyramid.blockLength(level + 1) <= limit) {
+            level++;
+        }
+        return level;
+    }
+
+    // Look inside a written block for a sample outside the limits
+    private long searchBlock(int level, long block, int low, int high) throws IOException {
+        if (!mPyramid.read(level, block, mPiece) || (mPiece.min >= low && mPiece.max <= high)) {
+            return -1;          // no readings in it, or they're all inside
+        }
+        if (level == 0) {
+            long start = block * SamplePyramid.LEAF_SIZE;
+            return scanSamples(start, start + SamplePyramid.LEAF_SIZE, low, high);
+        }
+        long found = searchBlock(level - 1, block * 2, low, high);
+        if (found < 0) {
+            found = searchBlock(level - 1, block * 2 + 1, low, high);
+        }
+        return found;
+    }
+
+    // Read samples from the store and look for one outside the limits
+    private long scanSamples(long from, long to, int low, int high) throws IOException {
+        SampleBatch chunk = chunkFor(to - from);
+        long index = from;
+        while (index < to) {
+            int read = mStore.read(index, chunk);
+            if (read == 0) {
+                break;
+            }
+            for (int i = 0; i < read && chunk.getFirstIndex() + i < to; i++) {
+                int value = chunk.values[i];
+                if (value != PostureEngine.NO_READING && (value < low || value > high)) {
+                    return chunk.getFirstIndex() + i;
+                }
+            }
+            index = chunk.getFirstIndex() + read;
+        }
+        return -1;
+    }
+
+    // Read samples from the store and add them to a summary
+    private void addSamples(long from, long to, RollupBucket total) throws IOException {
+        SampleBatch chunk = chunkFor(to - from);
+        long index = from;
+        while (index < to) {
+            int read = mStore.read(index, chunk);
+            if (read == 0) {
+                break;
+            }
+            for (int i = 0; i < read && chunk.getFirstIndex() + i < to; i++) {
+                if (chunk.values[i] == PostureEngine.NO_READING) {
+                    continue;
+                }
+                if (total.count == 0) {
+                    total.start = chunk.dates[i];
+                }
+                total.add(chunk.values[i], chunk.goodPosture[i]);
+            }
+            index = chunk.getFirstIndex() + read;
+        }
+    }
+
+    // The ragged ends of a range are short, so don't ask the store for a whole chunk
+    private SampleBatch chunkFor(long count) {
+        return count <= mLeaf.capacity() ? mLeaf : mChunk;
+    }
+
+    private static void merge(RollupBucket total, RollupBucket piece) {
+        if (total.count == 0 && piece.count > 0) {
+            total.start = piece.start;
+        }
+        total.merge(piece);
+    }
+
+    private static long alignUp(long index, long length) {
+        return alignDown(index + length - 1, length);
+    }
+
+    private static long alignDown(long index, long length) {
+        return index - (((index % length) + length) % length);
+    }
+}
@@ -0,0 +1,251 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Works out good or bad posture again for samples already stored, such as after the
+ * sensitivity has changed, so the history and its statistics match the new limits.
+ *
+ * The samples are split into chunks which are done a few at a time as LOW priority tasks on
+ * a PostureScheduler.  Each chunk is its own task, so other background work gets a turn in
+ * between.  Each chunk is read, classified, and written back only if something changed, and
+ * the rollups of the changed samples get their good counts adjusted to match.  The samples
+ * being worked on are all older than the ones being added, so the two never touch.
+ *
+ * Progress is reported as a resume index: every sample before it is done.  Chunks can finish
+ * out of order, so that's the end of the first run of finished chunks.  If the job is stopped
+ * it can be started again from there.
+ */
+public class Reclassifier {
+    static final int CHUNK_SIZE = 4096;                 // units of samples
+
+    /**
+     * Told about progress, on whichever worker thread finished a chunk.
+     */
+    public interface Listener {
+        /**
+         * @param resumeIndex   every sample before this is done
+         * @param done          samples done so far
+         * @param total         samples to do altogether
+         */
+        void onProgress(long resumeIndex, long done, long total);
+
+        /**
+         * The job is over: every chunk is done, or it failed, or it was cancelled.
+         */
+        void onFinished(Reclassifier job);
+    }
+
+    private final SampleStore mStore;
+    private final RollupAggregator mRollups;
+    private final int mLow;
+    private final int mHigh;
+    private final long mFromIndex;
+    private final int mParallel;
+    private final Listener mListener;
+    private final AtomicLong mChanged = new AtomicLong();
+    private volatile boolean mCancelled = false;
+    private volatile IOException mError;
+    private final AtomicInteger mNextChunk = new AtomicInteger();
+    private final AtomicInteger mRunners = new AtomicInteger();
+    private PostureScheduler mScheduler;
+
+    private long mFirst;
+    private long mEnd;
+    private boolean[] mDone;
+    private int mResumeChunk;
+    private long mDoneCount;
+
+    /**
+     * @param store         the samples
+     * @param rollups       adjusted to match, or null to leave the rollups alone
+     * @param low           lowest value which is good posture
+     * @param high          highest value which is good posture
+     * @param fromIndex     where to start, such as a resume index from before
+     * @param parallel      how many chunks to do at once
+     * @param listener      told about progress, or null
+     */
+    public Reclassifier(SampleStore store, RollupAggregator rollups, int low, int high,
+                        long fromIndex, int parallel, Listener listener) {
+        mStore = store;
+        mRollups = rollups;
+        mLow = low;
+        mHigh = high;
+        mFromIndex = fromIndex;
+        mParallel = Math.max(1, parallel);
+        mListener = listener;
+    }
+
+    /**
+     * Start the job on a scheduler.  This doesn't wait for it; the listener is told when
+     * it's over.
+     */
+    public void start(PostureScheduler scheduler) {
+        mScheduler = scheduler;
+        scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                begin();
+            }
+        }, PostureScheduler.Priority.LOW);
+    }
+
+    private void begin() {
+        try {
+            mFirst = Math.max(mFromIndex, mStore.firstIndex());
+            mEnd = mStore.size();
+        } catch (IOException e) {
+            mError = e;
+            end();
+            return;
+        }
+        int chunks = (int) Math.max(0, (mEnd - mFirst + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        synchronized (this) {
+            mDone = new boolean[chunks];
+        }
+        int runners = Math.min(mParallel, chunks);
+        if (runners == 0) {
+            end();
+            return;
+        }
+        mRunners.set(runners);
+        for (int i = 0; i < runners; i++) {
+            mScheduler.submit(mRunner, PostureScheduler.Priority.LOW);
+        }
+    }
+
+    /**
+     * Does the next chunk and then goes to the back of the queue for another.  The last
+     * runner to find nothing left ends the job.
+     */
+    private final Runnable mRunner = new Runnable() {
+        @Override
+        public void run() {
+            int chunk = mCancelled ? mDone.length : mNextChunk.getAndIncrement();
+            if (chunk < mDone.length) {
+                doChunk(chunk);
+                mScheduler.submit(this, PostureScheduler.Priority.LOW);
+            } else if (mRunners.decrementAndGet() == 0) {
+                end();
+            }
+        }
+    };
+
+    private void end() {
+        if (mListener != null) {
+            mListener.onFinished(this);
+        }
+    }
+
+    /**
+     * Stop starting new chunks.  Chunks which are already being done still finish and write
+     * their flags, and onFinished() is only called after they have.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return  how many samples have had their flag changed so far
+     */
+    public long getChanged() {
+        return mChanged.get();
+    }
+
+    /**
+     * @return  the error that stopped the job, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * @return  true if every chunk was done
+     */
+    public synchronized boolean isFinished() {
+        return mDone != null && mResumeChunk == mDone.length;
+    }
+
+    private void doChunk(int chunk) {
+        if (mCancelled) {
+            return;
+        }
+        long from = mFirst + (long) chunk * CHUNK_SIZE;
+        long to = Math.min(from + CHUNK_SIZE, mEnd);
+        SampleBatch batch = new SampleBatch(CHUNK_SIZE);
+        try {
+            long index = from;
+            while (index < to && !mCancelled) {
+                if (mStore.read(index, batch) == 0 || batch.getFirstIndex() >= to) {
+                    break;
+                }
+                // Keep the part of the batch inside this chunk
+                int usable = (int) Math.min(batch.size(), to - batch.getFirstIndex());
+                reclassify(batch, usable);
+                index = batch.getFirstIndex() + usable;
+            }
+        } catch (IOException e) {
+            mError = e;
+            mCancelled = true;
+            return;
+        }
+        if (!mCancelled) {
+            finished(chunk, to - from);
+        }
+    }
+
+    private void reclassify(SampleBatch batch, int usable) throws IOException {
+        SampleBatch changed = new SampleBatch(usable);
+        changed.setFirstIndex(batch.getFirstIndex());
+        ArrayList<RollupBucket> deltas = new ArrayList<RollupBucket>();
+        RollupBucket[] current = new RollupBucket[RollupLevel.values().length];
+        int count = 0;
+        for (int i = 0; i < usable; i++) {
+            int value = batch.values[i];
+            boolean good = value >= mLow && value <= mHigh;
+            changed.add(batch.dates[i], value, good);
+            if (good == batch.goodPosture[i]) {
+                continue;
+            }
+            count++;
+            for (RollupLevel level : RollupLevel.values()) {
+                long start = level.bucketStart(batch.dates[i]);
+                RollupBucket delta = current[level.ordinal()];
+                if (delta == null || delta.start != start) {
+                    delta = new RollupBucket(level, start);
+                    current[level.ordinal()] = delta;
+                    deltas.add(delta);
+                }
+                delta.goodCount += good ? 1 : -1;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        mStore.rewriteFlags(changed);
+        if (mRollups != null) {
+            mRollups.adjustGoodCounts(deltas);
+        }
+        mChanged.addAndGet(count);
+    }
+
+    private void finished(int chunk, long samples) {
+        long resumeIndex;
+        long done;
+        synchronized (this) {
+            mDone[chunk] = true;
+            mDoneCount += samples;
+            while (mResumeChunk < mDone.length && mDone[mResumeChunk]) {
+                mResumeChunk++;
+            }
+            resumeIndex = Math.min(mEnd, mFirst + (long) mResumeChunk * CHUNK_SIZE);
+            done = mDoneCount;
+        }
+        if (mListener != null) {
+            mListener.onProgress(resumeIndex, done, mEnd - mFirst);
+        }
+    }
+}
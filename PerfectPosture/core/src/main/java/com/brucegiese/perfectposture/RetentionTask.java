@@ -0,0 +1,119 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+
+/**
+ * Deletes raw samples which are older than a cutoff, such as now less the retention period.
+ * The rollups are left alone, so old data is still there in aggregate form.
+ *
+ * The store drops its oldest partition (or chunk) one at a time.  Each one is its own LOW
+ * priority task on a PostureScheduler, and the next one is scheduled after a pause, so a big
+ * cleanup doesn't hog the storage or hold on to a worker while it waits.  It can be cancelled
+ * between partitions.
+ *
+ * The same thing deletes the samples hidden by clearing a GenerationSampleStore, using the
+ * cleared date as the cutoff.
+ */
+public class RetentionTask {
+
+    /**
+     * Told when the task is over, on the worker thread which did the last partition.
+     */
+    public interface Listener {
+        /**
+         * Nothing else was old enough, or it failed, or it was cancelled.
+         */
+        void onFinished(RetentionTask task);
+    }
+
+    private final SampleStore mStore;
+    private final long mCutoff;             // units of ms since epoch
+    private final long mPause;              // units of ms
+    private volatile boolean mCancelled = false;
+    private volatile boolean mDone = false;
+    private volatile int mDropped;
+    private volatile long mReclaimedBytes;
+    private volatile IOException mError;
+    private PostureScheduler mScheduler;
+    private Listener mListener;
+
+    /**
+     * @param store     where the raw samples are
+     * @param cutoff    delete samples older than this, units of ms since epoch
+     * @param pause     how long to wait between partitions, units of ms
+     */
+    public RetentionTask(SampleStore store, long cutoff, long pause) {
+        mStore = store;
+        mCutoff = cutoff;
+        mPause = pause;
+    }
+
+    /**
+     * Start deleting on a scheduler.  This doesn't wait for it.
+     * @param listener  told when it's over, or null
+     */
+    public void start(PostureScheduler scheduler, Listener listener) {
+        mScheduler = scheduler;
+        mListener = listener;
+        scheduler.submit(mStep, PostureScheduler.Priority.LOW);
+    }
+
+    /**
+     * Drops one partition, then schedules itself again after the pause.
+     */
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            if (!mCancelled) {
+                try {
+                    long reclaimed = mStore.dropOldest(mCutoff);
+                    if (reclaimed >= 0) {
+                        mDropped++;
+                        mReclaimedBytes += reclaimed;
+                        mScheduler.schedule(this, PostureScheduler.Priority.LOW, mPause, mPause);
+                        return;
+                    }
+                    // nothing else is old enough
+                } catch (IOException e) {
+                    mError = e;
+                }
+            }
+            mDone = true;
+            if (mListener != null) {
+                mListener.onFinished(RetentionTask.this);
+            }
+        }
+    };
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return  true once it's over
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return  number of partitions (or chunks) deleted so far
+     */
+    public int getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return  bytes of storage given back so far
+     */
+    public long getReclaimedBytes() {
+        return mReclaimedBytes;
+    }
+
+    /**
+     * @return  the error that stopped the task, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+}
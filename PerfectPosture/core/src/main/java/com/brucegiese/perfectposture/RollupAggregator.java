@@ -0,0 +1,127 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This keeps the minute, hour and day rollups up to date as samples come in.  There's one
+ * open bucket per level in memory.  Whenever a minute finishes, the finished minute and the
+ * open hour and day buckets are written out together, so the stored rollups are never more
+ * than a minute behind, and the store sees three row writes a minute.
+ *
+ * When a bucket is first opened, whatever is already stored for it is read in and carried on,
+ * so restarting the service in the middle of an hour doesn't throw that hour away.
+ */
+public class RollupAggregator {
+    private final RollupStore mStore;
+    private final RollupBucket[] mOpen = new RollupBucket[RollupLevel.values().length];
+    private final ArrayList<RollupBucket> mToWrite = new ArrayList<RollupBucket>();
+    private long mFailedWrites;
+
+    public RollupAggregator(RollupStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Add a sample to the open buckets.  Samples are expected in time order.
+     * If writing a finished minute fails, it's counted and the sample is still added.
+     * @param date  units of ms since epoch
+     */
+    public synchronized void add(long date, int value, boolean goodPosture) throws IOException {
+        long minute = RollupLevel.MINUTE.bucketStart(date);
+        RollupBucket open = mOpen[RollupLevel.MINUTE.ordinal()];
+        if (open != null && open.start != minute) {
+            try {
+                flush();                // a minute just finished
+            } catch (IOException e) {
+                // Already counted.  The hour and day buckets get written again next minute.
+            }
+        }
+        for (RollupLevel level : RollupLevel.values()) {
+            bucketFor(level, date).add(value, goodPosture);
+        }
+    }
+
+    /**
+     * Write out all the open buckets.
+     */
+    public synchronized void flush() throws IOException {
+        mToWrite.clear();
+        for (RollupBucket bucket : mOpen) {
+            if (bucket != null && bucket.count > 0) {
+                mToWrite.add(bucket);
+            }
+        }
+        if (!mToWrite.isEmpty()) {
+            try {
+                mStore.write(mToWrite);
+            } catch (IOException e) {
+                mFailedWrites++;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Forget the open buckets, such as after all the data has been cleared.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < mOpen.length; i++) {
+            mOpen[i] = null;
+        }
+    }
+
+    /**
+     * Forget the open buckets and delete all the stored ones.  Samples which come in meanwhile
+     * wait, so nothing from before the clear gets written back.
+     */
+    public synchronized void clear() throws IOException {
+        reset();
+        mStore.clear();
+    }
+
+    /**
+     * Change the good counts of some buckets, such as after old samples have been classified
+     * again.  An open bucket is changed in memory; any other bucket is read, changed and
+     * written back.  Counts never go below zero or above the bucket's sample count.
+     * @param deltas    level and start say which bucket, goodCount says how much to add
+     */
+    public synchronized void adjustGoodCounts(List<RollupBucket> deltas) throws IOException {
+        mToWrite.clear();
+        for (RollupBucket delta : deltas) {
+            RollupBucket open = mOpen[delta.level.ordinal()];
+            if (open != null && open.start == delta.start) {
+                open.goodCount = clamp(open.goodCount + delta.goodCount, open.count);
+                continue;
+            }
+            RollupBucket stored = new RollupBucket(delta.level, delta.start);
+            if (mStore.read(stored)) {
+                stored.goodCount = clamp(stored.goodCount + delta.goodCount, stored.count);
+                mToWrite.add(stored);
+            }
+        }
+        if (!mToWrite.isEmpty()) {
+            mStore.write(mToWrite);
+        }
+    }
+
+    public synchronized long getFailedWrites() {
+        return mFailedWrites;
+    }
+
+    private static int clamp(int goodCount, int count) {
+        return Math.max(0, Math.min(count, goodCount));
+    }
+
+    private RollupBucket bucketFor(RollupLevel level, long date) throws IOException {
+        long start = level.bucketStart(date);
+        RollupBucket bucket = mOpen[level.ordinal()];
+        if (bucket == null || bucket.start != start) {
+            bucket = new RollupBucket(level, start);
+            mStore.read(bucket);        // pick up where an earlier run left off
+            mOpen[level.ordinal()] = bucket;
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,77 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * Aggregate statistics for all the samples in one time bucket.  Buckets can be merged,
+ * which is how a long time range gets answered from a handful of coarse buckets.
+ */
+public final class RollupBucket {
+    public RollupLevel level;
+    public long start;                  // units of ms since epoch
+    public int count;
+    public int min;
+    public int max;
+    public long sum;
+    public long sumOfSquares;
+    public int goodCount;
+
+    public RollupBucket() {
+        clear();
+    }
+
+    public RollupBucket(RollupLevel level, long start) {
+        this.level = level;
+        this.start = start;
+        clear();
+    }
+
+    public void clear() {
+        count = 0;
+        min = Integer.MAX_VALUE;
+        max = Integer.MIN_VALUE;
+        sum = 0;
+        sumOfSquares = 0;
+        goodCount = 0;
+    }
+
+    public void add(int value, boolean goodPosture) {
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        sumOfSquares += (long) value * value;
+        if (goodPosture) {
+            goodCount++;
+        }
+    }
+
+    public void merge(RollupBucket other) {
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+        goodCount += other.goodCount;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public double getVariance() {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        return Math.max(0, (double) sumOfSquares / count - mean * mean);
+    }
+
+    /**
+     * @return  fraction of the samples which were good posture, 0 to 1
+     */
+    public double getGoodFraction() {
+        return count == 0 ? 0 : (double) goodCount / count;
+    }
+}
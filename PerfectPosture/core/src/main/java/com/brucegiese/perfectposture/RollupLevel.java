@@ -0,0 +1,32 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * The granularities we keep rolled up posture statistics at.  Buckets line up on UTC
+ * boundaries, so every minute bucket falls inside exactly one hour bucket, and so on.
+ */
+public enum RollupLevel {
+    MINUTE(60L * 1000),
+    HOUR(60L * 60 * 1000),
+    DAY(24L * 60 * 60 * 1000);
+
+    private final long mLength;         // units of ms
+
+    RollupLevel(long length) {
+        mLength = length;
+    }
+
+    /**
+     * @return  the length of one bucket, units of ms
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @param date  units of ms since epoch
+     * @return      the start of the bucket holding the date
+     */
+    public long bucketStart(long date) {
+        return date - (((date % mLength) + mLength) % mLength);
+    }
+}
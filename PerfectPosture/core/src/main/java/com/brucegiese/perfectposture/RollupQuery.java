@@ -0,0 +1,67 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Answers statistics questions about a time range from the rollups rather than raw samples.
+ *
+ * A range is split up so that the middle is covered by day buckets, the parts on either side
+ * of that by hour buckets, and only the ragged ends by minute buckets.  A range of weeks ends
+ * up reading a few hundred rows at most.  The resolution is one minute: a minute bucket
+ * counts if it starts inside the range.
+ */
+public final class RollupQuery {
+
+    private RollupQuery() { }
+
+    /**
+     * Summarize all the samples in a time range.
+     * @param from      units of ms since epoch, inclusive
+     * @param to        units of ms since epoch, exclusive
+     * @return          merged statistics for the range
+     */
+    public static RollupBucket summarize(RollupStore store, long from, long to) throws IOException {
+        RollupBucket total = new RollupBucket(RollupLevel.MINUTE, from);
+        summarize(store, RollupLevel.DAY, from, to, total);
+        return total;
+    }
+
+    private static void summarize(RollupStore store, RollupLevel level, long from, long to,
+                                  RollupBucket total) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        if (level == RollupLevel.MINUTE) {
+            store.sum(level, from, to, total);
+            return;
+        }
+        RollupLevel finer = RollupLevel.values()[level.ordinal() - 1];
+        long length = level.getLength();
+        long firstWhole = level.bucketStart(from + length - 1);     // round up
+        long lastWhole = level.bucketStart(to);                     // round down
+        if (firstWhole >= lastWhole) {
+            summarize(store, finer, from, to, total);               // no whole buckets fit
+        } else {
+            summarize(store, finer, from, firstWhole, total);
+            store.sum(level, firstWhole, lastWhole, total);
+            summarize(store, finer, lastWhole, to, total);
+        }
+    }
+
+    /**
+     * Get a time series for charting, using the finest level that needs no more than
+     * maxBuckets buckets to cover the range.
+     */
+    public static List<RollupBucket> series(RollupStore store, long from, long to, int maxBuckets)
+            throws IOException {
+        RollupLevel chosen = RollupLevel.DAY;
+        for (RollupLevel level : RollupLevel.values()) {
+            if ((to - from) / level.getLength() <= maxBuckets) {
+                chosen = level;
+                break;
+            }
+        }
+        return store.list(chosen, chosen.bucketStart(from), to);
+    }
+}
@@ -0,0 +1,40 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Somewhere to keep rollup buckets.  There is at most one bucket per level and start time.
+ */
+public interface RollupStore {
+
+    /**
+     * Read one bucket.
+     * @param bucket    level and start say which bucket, the rest gets filled in
+     * @return  false (and an empty bucket) if nothing is stored for it
+     */
+    boolean read(RollupBucket bucket) throws IOException;
+
+    /**
+     * Insert or replace buckets, all together.
+     */
+    void write(List<RollupBucket> buckets) throws IOException;
+
+    /**
+     * Merge together all the buckets of one level which start in a time range.
+     * @param from      units of ms since epoch, inclusive
+     * @param to        units of ms since epoch, exclusive
+     * @param total     the buckets are merged into this
+     */
+    void sum(RollupLevel level, long from, long to, RollupBucket total) throws IOException;
+
+    /**
+     * List the buckets of one level which start in a time range, in time order.
+     */
+    List<RollupBucket> list(RollupLevel level, long from, long to) throws IOException;
+
+    /**
+     * Delete all the buckets.
+     */
+    void clear() throws IOException;
+}
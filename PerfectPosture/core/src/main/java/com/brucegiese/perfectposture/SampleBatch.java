@@ -0,0 +1,89 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * A reusable, fixed-capacity group of samples kept in primitive arrays.  This is how samples
+ * get in and out of a SampleStore without creating an object per sample.
+ */
+public final class SampleBatch {
+    public final long[] dates;              // units of ms since epoch
+    public final int[] values;              // Z-axis posture values
+    public final boolean[] goodPosture;
+    private long mFirstIndex;               // store index of the first sample, if known
+    private int mCount;
+
+    public SampleBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        dates = new long[capacity];
+        values = new int[capacity];
+        goodPosture = new boolean[capacity];
+    }
+
+    /**
+     * Add a sample to the end of the batch.
+     * @return  false if the batch is already full
+     */
+    public boolean add(long date, int value, boolean good) {
+        if (mCount == dates.length) {
+            return false;
+        }
+        dates[mCount] = date;
+        values[mCount] = value;
+        goodPosture[mCount] = good;
+        mCount++;
+        return true;
+    }
+
+    /**
+     * Throw away the oldest samples, shifting the rest down.
+     * @param n     number of samples to remove from the front
+     */
+    public void removeFirst(int n) {
+        n = Math.min(n, mCount);
+        int remaining = mCount - n;
+        System.arraycopy(dates, n, dates, 0, remaining);
+        System.arraycopy(values, n, values, 0, remaining);
+        System.arraycopy(goodPosture, n, goodPosture, 0, remaining);
+        mCount = remaining;
+        mFirstIndex += n;
+    }
+
+    /**
+     * This is for decoders which fill in the arrays directly.
+     * @param count     number of samples now in the arrays
+     */
+    public void setSize(int count) {
+        if (count < 0 || count > dates.length) {
+            throw new IllegalArgumentException("count out of range: " + count);
+        }
+        mCount = count;
+    }
+
+    public void clear() {
+        mCount = 0;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int capacity() {
+        return dates.length;
+    }
+
+    public boolean isFull() {
+        return mCount == dates.length;
+    }
+
+    /**
+     * This is used by SampleStore.read() so the reader knows where the batch came from.
+     */
+    public void setFirstIndex(long index) {
+        mFirstIndex = index;
+    }
+
+    public long getFirstIndex() {
+        return mFirstIndex;
+    }
+}
@@ -0,0 +1,256 @@
+package com.brucegiese.perfectposture;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Compressed columnar encoding for a block of posture samples.
+ *
+ * Samples come in about once a second and the posture values are small and change slowly,
+ * so each column gets its own encoding:
+ *   - dates: delta-of-delta, zigzag varint (usually one byte per sample)
+ *   - values: delta from the previous value, zigzag varint (usually one byte per sample)
+ *   - good/bad flags: run-length encoded (a few bytes per block)
+ *
+ * Each block starts with a fixed size header which has enough in it (index range, date range,
+ * min/max and good count) to decide whether a block is needed without decoding it, and ends
+ * with a CRC32 so a partly written block can be detected.  The min/max in the header are
+ * clamped to a short, which is plenty for real posture values.
+ *
+ * Block layout:  header | dates | values | flags | crc
+ */
+public final class SampleBlockCodec {
+    public static final int HEADER_SIZE = 44;          // units of bytes
+    public static final int TRAILER_SIZE = 4;          // CRC32, units of bytes
+    private static final int BLOCK_MAGIC = 0x50504331;  // "PPC1"
+
+    private SampleBlockCodec() { }
+
+    /**
+     * The information in a block header.
+     */
+    public static final class Header {
+        public int count;
+        public long firstIndex;
+        public long firstDate;
+        public long lastDate;
+        public int minValue;
+        public int maxValue;
+        public int goodCount;
+        public int payloadLength;           // units of bytes, not counting the header or CRC
+
+        /**
+         * @return  the total size of the block, units of bytes
+         */
+        public int blockLength() {
+            return HEADER_SIZE + payloadLength + TRAILER_SIZE;
+        }
+    }
+
+    /**
+     * @return  a buffer size which is always big enough to encode this many samples
+     */
+    public static int maxBlockLength(int count) {
+        // date: 10 bytes, value: 5 bytes, flags: 5 bytes per run
+        return HEADER_SIZE + count * 20 + 5 + TRAILER_SIZE;
+    }
+
+    /**
+     * Encode samples into a block at the buffer's current position.
+     * @param batch         samples to encode
+     * @param from          index into the batch of the first sample
+     * @param count         number of samples to encode, at least one
+     * @param firstIndex    store index of the first sample
+     * @param out           the block gets written here, the position moves to the end of it
+     * @return  the length of the block, units of bytes
+     */
+    public static int encode(SampleBatch batch, int from, int count, long firstIndex, ByteBuffer out) {
+        int start = out.position();
+        out.position(start + HEADER_SIZE);
+
+        // Dates
+        long previousDate = batch.dates[from];
+        long previousDelta = 0;
+        for (int i = from + 1; i < from + count; i++) {
+            long delta = batch.dates[i] - previousDate;
+            writeVarLong(out, zigzag(delta - previousDelta));
+            previousDelta = delta;
+            previousDate = batch.dates[i];
+        }
+
+        // Values
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        int previousValue = 0;
+        for (int i = from; i < from + count; i++) {
+            int value = batch.values[i];
+            writeVarLong(out, zigzag(value - previousValue));
+            previousValue = value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        // Flags: the first flag, then the lengths of alternating runs
+        int goodCount = 0;
+        boolean runFlag = batch.goodPosture[from];
+        int runLength = 0;
+        out.put((byte) (runFlag ? 1 : 0));
+        for (int i = from; i < from + count; i++) {
+            boolean good = batch.goodPosture[i];
+            if (good) {
+                goodCount++;
+            }
+            if (good == runFlag) {
+                runLength++;
+            } else {
+                writeVarLong(out, runLength);
+                runFlag = good;
+                runLength = 1;
+            }
+        }
+        writeVarLong(out, runLength);
+
+        int end = out.position();
+        out.putInt(start, BLOCK_MAGIC);
+        out.putInt(start + 4, count);
+        out.putLong(start + 8, firstIndex);
+        out.putLong(start + 16, batch.dates[from]);
+        out.putLong(start + 24, batch.dates[from + count - 1]);
+        out.putShort(start + 32, clampToShort(min));
+        out.putShort(start + 34, clampToShort(max));
+        out.putInt(start + 36, goodCount);
+        out.putInt(start + 40, end - start - HEADER_SIZE);
+        out.putInt(end, crc(out, start, end - start));
+        out.position(end + TRAILER_SIZE);
+        return end + TRAILER_SIZE - start;
+    }
+
+    /**
+     * Read a block header at the buffer's current position, without moving the position.
+     * @return  false if there isn't a valid header there
+     */
+    public static boolean readHeader(ByteBuffer in, Header header) {
+        int start = in.position();
+        if (in.remaining() < HEADER_SIZE || in.getInt(start) != BLOCK_MAGIC) {
+            return false;
+        }
+        header.count = in.getInt(start + 4);
+        header.firstIndex = in.getLong(start + 8);
+        header.firstDate = in.getLong(start + 16);
+        header.lastDate = in.getLong(start + 24);
+        header.minValue = in.getShort(start + 32);
+        header.maxValue = in.getShort(start + 34);
+        header.goodCount = in.getInt(start + 36);
+        header.payloadLength = in.getInt(start + 40);
+        return header.count > 0 && header.payloadLength >= 0;
+    }
+
+    /**
+     * Check the CRC of a whole block at the buffer's current position.
+     */
+    public static boolean isIntact(ByteBuffer in, Header header) {
+        int start = in.position();
+        int end = start + HEADER_SIZE + header.payloadLength;
+        return end + TRAILER_SIZE <= in.limit() && in.getInt(end) == crc(in, start, end - start);
+    }
+
+    /**
+     * Decode the block at the buffer's current position into the batch, replacing whatever
+     * was in the batch.  The position moves to the end of the block.
+     * @param in        the block, starting at the current position
+     * @param out       must be able to hold all the samples in the block
+     * @return  false if the block is damaged or too big for the batch
+     */
+    public static boolean decode(ByteBuffer in, SampleBatch out) {
+        Header header = new Header();
+        if (!readHeader(in, header) || header.count > out.capacity() || !isIntact(in, header)) {
+            return false;
+        }
+        int start = in.position();
+        out.clear();
+        out.setFirstIndex(header.firstIndex);
+        try {
+            in.position(start + HEADER_SIZE);
+            long[] dates = out.dates;
+            int[] values = out.values;
+            boolean[] goodPosture = out.goodPosture;
+            int count = header.count;
+
+            dates[0] = header.firstDate;
+            long delta = 0;
+            for (int i = 1; i < count; i++) {
+                delta += unzigzag(readVarLong(in));
+                dates[i] = dates[i - 1] + delta;
+            }
+
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value += (int) unzigzag(readVarLong(in));
+                values[i] = value;
+            }
+
+            boolean flag = in.get() != 0;
+            int i = 0;
+            while (i < count) {
+                long run = readVarLong(in);
+                for (long r = 0; r < run && i < count; r++) {
+                    goodPosture[i++] = flag;
+                }
+                flag = !flag;
+            }
+            out.setSize(count);
+        } catch (BufferUnderflowException e) {
+            out.clear();
+            return false;
+        }
+        in.position(start + header.blockLength());
+        return true;
+    }
+
+    private static short clampToShort(int n) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, n));
+    }
+
+    private static int crc(ByteBuffer buffer, int start, int length) {
+        CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + start, length);
+        } else {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            crc.update(bytes, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    static void writeVarLong(ByteBuffer out, long n) {
+        while ((n & ~0x7fL) != 0) {
+            out.put((byte) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.put((byte) n);
+    }
+
+    static long readVarLong(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new BufferUnderflowException();
+    }
+}
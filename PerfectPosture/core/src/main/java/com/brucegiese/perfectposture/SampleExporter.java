@@ -0,0 +1,287 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the stored history out to a file, a page of samples at a time, so a year of samples
+ * takes no more memory than a few minutes of them.  Pages are read from the SampleStore by
+ * index, and each one is formatted straight into one reused buffer which is written to a
+ * channel whenever it fills, optionally through gzip.
+ *
+ * There are two formats:
+ *   - CSV: a header line, then one "date,value,good" line per sample.  The date is units of
+ *     ms since epoch, the value is empty if there was no reading, and good is 1 or 0.
+ *   - BINARY: the four bytes "PPX1", then one SampleBlockCodec block per page, back to back.
+ *     Each block says how long it is and has its own CRC, so the file can be read a block at
+ *     a time with SampleBlockCodec.readHeader() and decode().  That's usually two or three
+ *     bytes per sample.
+ *
+ * Export is one NORMAL priority task on a PostureScheduler, which leaves the other workers
+ * for flushing.  Progress is reported after each page, and the job stops at the next page
+ * once it's cancelled.  The file is deleted if the export doesn't finish.
+ */
+public class SampleExporter {
+    static final int PAGE_SIZE = 4096;                  // units of samples
+    static final int BUFFER_SIZE = 64 * 1024;           // units of bytes
+    static final int BINARY_MAGIC = 0x50505831;         // "PPX1"
+    private static final byte[] CSV_HEADER = {
+            'd', 'a', 't', 'e', ',', 'v', 'a', 'l', 'u', 'e', ',', 'g', 'o', 'o', 'd', '\n'};
+
+    private static final Metrics.Histogram sExportTime = Metrics.histogram("export.run", "us");
+    private static final Metrics.Counter sExported = Metrics.counter("export.samples");
+
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    /**
+     * Told about the export, on the worker thread doing it.
+     */
+    public interface Listener {
+        /**
+         * @param done      samples written so far
+         * @param total     samples to write, which is those in the store when the export started
+         */
+        void onProgress(long done, long total);
+
+        /**
+         * The export is over: it finished, or it failed, or it was cancelled.
+         */
+        void onFinished(SampleExporter job);
+    }
+
+    private final SampleStore mStore;
+    private final Format mFormat;
+    private final boolean mGzip;
+    private final Listener mListener;
+    private final byte[] mDigits = new byte[20];        // a long is at most 20 characters
+    private volatile boolean mCancelled = false;
+    private volatile boolean mFinished = false;
+    private volatile IOException mError;
+    private volatile long mExported;
+    private volatile long mBytes;
+    private File mFile;
+
+    /**
+     * @param store     the samples
+     * @param format    what to write
+     * @param gzip      whether to compress the whole file with gzip
+     * @param listener  told about progress, or null
+     */
+    public SampleExporter(SampleStore store, Format format, boolean gzip, Listener listener) {
+        mStore = store;
+        mFormat = format;
+        mGzip = gzip;
+        mListener = listener;
+    }
+
+    /**
+     * Start writing the history to a file.  This doesn't wait for it; the listener is told
+     * when it's over.
+     */
+    public void start(PostureScheduler scheduler, File file) {
+        mFile = file;
+        scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    export(mFile);
+                } catch (IOException e) {
+                    mError = e;
+                }
+                if (mListener != null) {
+                    mListener.onFinished(SampleExporter.this);
+                }
+            }
+        }, PostureScheduler.Priority.NORMAL);
+    }
+
+    /**
+     * Write the history to a file, on this thread.  If it doesn't finish, the file is deleted.
+     * @return  number of samples written
+     */
+    public long export(File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        WritableByteChannel channel = null;
+        boolean complete = false;
+        try {
+            if (mGzip) {
+                channel = Channels.newChannel(new FastGzipOutputStream(stream));
+            } else {
+                channel = stream.getChannel();
+            }
+            export(channel);
+            channel.close();                // finishes the gzip trailer
+            channel = null;
+            complete = mFinished;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Already failing; the first error is the one that matters
+                }
+            }
+            stream.close();
+            if (!complete) {
+                mFinished = false;
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        return mExported;
+    }
+
+    /**
+     * Write the history to a channel, on this thread.  The channel is left open.
+     * @return  number of samples written
+     */
+    public long export(WritableByteChannel out) throws IOException {
+        long start = Metrics.start();
+        // Samples added during the export are left for the next one
+        long from = mStore.firstIndex();
+        long end = mStore.size();
+        long total = end - from;
+        SampleBatch batch = new SampleBatch(PAGE_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(
+                Math.max(BUFFER_SIZE, SampleBlockCodec.maxBlockLength(PAGE_SIZE)));
+        mExported = 0;
+        mBytes = 0;
+
+        if (mFormat == Format.CSV) {
+            buffer.put(CSV_HEADER);
+        } else {
+            buffer.putInt(BINARY_MAGIC);
+        }
+        while (!mCancelled) {
+            if (from >= end || mStore.read(from, batch) == 0 || batch.getFirstIndex() >= end) {
+                break;
+            }
+            int count = (int) Math.min(batch.size(), end - batch.getFirstIndex());
+            if (mFormat == Format.CSV) {
+                writeCsv(batch, count, buffer, out);
+            } else {
+                if (buffer.remaining() < SampleBlockCodec.maxBlockLength(count)) {
+                    drain(buffer, out);
+                }
+                SampleBlockCodec.encode(batch, 0, count, batch.getFirstIndex(), buffer);
+            }
+            mExported += count;
+            from = batch.getFirstIndex() + count;
+            if (mListener != null) {
+                mListener.onProgress(mExported, total);
+            }
+        }
+        drain(buffer, out);
+
+        mFinished = !mCancelled;
+        sExported.add(mExported);
+        sExportTime.recordSince(start);
+        return mExported;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return  true if every sample was written
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return  the error that stopped the export, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * @return  how many samples have been written so far
+     */
+    public long getExported() {
+        return mExported;
+    }
+
+    /**
+     * @return  how many bytes have been written so far, before any gzip compression
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return  the file given to start(), or null
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    private void writeCsv(SampleBatch batch, int count, ByteBuffer buffer,
+                          WritableByteChannel out) throws IOException {
+        // date (at most 20) + value (at most 11) + flag + separators
+        final int longestLine = 20 + 1 + 11 + 1 + 1 + 1;
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < longestLine) {
+                drain(buffer, out);
+            }
+            putNumber(buffer, batch.dates[i]);
+            buffer.put((byte) ',');
+            if (batch.values[i] != PostureEngine.NO_READING) {
+                putNumber(buffer, batch.values[i]);
+            }
+            buffer.put((byte) ',');
+            buffer.put((byte) (batch.goodPosture[i] ? '1' : '0'));
+            buffer.put((byte) '\n');
+        }
+    }
+
+    // Format a number without making a String for it
+    private void putNumber(ByteBuffer buffer, long n) {
+        if (n == Long.MIN_VALUE) {
+            buffer.put(String.valueOf(n).getBytes());
+            return;
+        }
+        if (n < 0) {
+            buffer.put((byte) '-');
+            n = -n;
+        }
+        int i = mDigits.length;
+        do {
+            mDigits[--i] = (byte) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        buffer.put(mDigits, i, mDigits.length - i);
+    }
+
+    /**
+     * The default compression level takes about five times as long, for a file only about a
+     * sixth smaller.
+     */
+    private static final class FastGzipOutputStream extends GZIPOutputStream {
+        FastGzipOutputStream(FileOutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
+    private void drain(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        mBytes += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+}
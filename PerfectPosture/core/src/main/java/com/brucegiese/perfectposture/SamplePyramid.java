@@ -0,0 +1,281 @@
+package com.brucegiese.perfectposture;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * The files behind PyramidSampleStore: summaries of blocks of samples at power of two sizes.
+ *
+ * Level 0 blocks hold LEAF_SIZE samples, level 1 blocks twice that, and so on.  Blocks are
+ * numbered by store index, so block b of level L covers indexes b * blockLength(L) up to
+ * (b + 1) * blockLength(L).  Each level is a file of fixed size records, so block b is at
+ * offset b * RECORD_LENGTH and is read with one seek.  A record is
+ *   first date | count | min | max | sum | sum of squares | good count
+ * Blocks which never had samples (before the store's first index, say) read back as empty.
+ * Samples with no reading (PostureEngine.NO_READING) take up their index but aren't counted,
+ * so a block of nothing but those reads back as empty too.
+ *
+ * Every level has one open block in memory, which gets each new sample.  When an open block
+ * fills up it's written out.  The header only says how far the samples go; after a restart
+ * the open blocks are worked out again by the caller, from the records and the store.
+ */
+final class SamplePyramid {
+    static final int LEAF_SIZE = 16;                    // units of samples
+    static final int LEVELS = 24;
+    private static final int RECORD_LENGTH = 40;        // units of bytes
+    private static final int FORMAT_VERSION = 2;        // 2: samples with no reading left out
+    private static final String HEADER_FILE = "pyramid.hdr";
+    private static final String LEVEL_PREFIX = "level-";
+
+    private final File mDirectory;
+    private final RandomAccessFile[] mLevels = new RandomAccessFile[LEVELS];
+    private final RollupBucket[] mOpen = new RollupBucket[LEVELS];
+    private final byte[] mRecordBytes = new byte[RECORD_LENGTH];
+    private final ByteBuffer mRecord = ByteBuffer.wrap(mRecordBytes);
+    private long mEnd;                  // index after the last sample added, or -1 if unknown
+
+    SamplePyramid(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        mDirectory = directory;
+        for (int i = 0; i < LEVELS; i++) {
+            mOpen[i] = new RollupBucket();
+        }
+        mEnd = readHeader();
+    }
+
+    /**
+     * @return  how many store indexes a block covers, units of samples
+     */
+    static long blockLength(int level) {
+        return (long) LEAF_SIZE << level;
+    }
+
+    /**
+     * @return  index after the last sample added, or -1 if there's no usable header
+     */
+    long getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * Throw everything away and start again with the sample at an index.
+     */
+    void reset(long start) throws IOException {
+        for (int i = 0; i < LEVELS; i++) {
+            if (mLevels[i] != null) {
+                mLevels[i].close();
+                mLevels[i] = null;
+            }
+            File file = levelFile(i);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+            mOpen[i].clear();
+        }
+        mEnd = start;
+        writeHeader();
+    }
+
+    /**
+     * Carry on from a later index, leaving out the samples in between, such as ones which
+     * were deleted before they were added here.  The open blocks are emptied, so any block
+     * which straddles the gap is incomplete; the caller must not use those.
+     */
+    void skipTo(long index) {
+        for (RollupBucket open : mOpen) {
+            open.clear();
+        }
+        mEnd = index;
+    }
+
+    /**
+     * Replace an open block, such as when working it out again after a restart.
+     */
+    void setOpen(int level, RollupBucket bucket) {
+        mOpen[level].clear();
+        mOpen[level].start = bucket.start;
+        mOpen[level].merge(bucket);
+    }
+
+    /**
+     * Get a copy of an open block.
+     */
+    void getOpen(int level, RollupBucket out) {
+        out.clear();
+        out.start = mOpen[level].start;
+        out.merge(mOpen[level]);
+    }
+
+    /**
+     * Add the sample at index getEnd().  Any blocks which fill up are written out.
+     * @param date  units of ms since epoch
+     * @param value the posture value, or NO_READING which only moves getEnd() along
+     */
+    void add(long date, int value, boolean goodPosture) throws IOException {
+        if (value != PostureEngine.NO_READING) {
+            for (RollupBucket open : mOpen) {
+                if (open.count == 0) {
+                    open.start = date;
+                }
+                open.add(value, goodPosture);
+            }
+        }
+        mEnd++;
+        for (int level = 0; level < LEVELS && mEnd % blockLength(level) == 0; level++) {
+            write(level, mEnd / blockLength(level) - 1, mOpen[level]);
+            mOpen[level].clear();
+        }
+    }
+
+    /**
+     * Change the good counts of the blocks holding some samples, such as after they've been
+     * classified again.  Blocks which are written out are read, changed and written back; the
+     * open blocks are changed in memory.
+     * @param indexes   store indexes of the samples, in order
+     * @param deltas    +1 for a sample which is now good, -1 for one which is now bad
+     * @param n         how many samples
+     */
+    void adjustGood(long[] indexes, int[] deltas, int n) throws IOException {
+        RollupBucket record = new RollupBucket();
+        for (int level = 0; level < LEVELS; level++) {
+            long length = blockLength(level);
+            int i = 0;
+            while (i < n) {
+                long block = indexes[i] / length;
+                int delta = 0;
+                for (; i < n && indexes[i] / length == block; i++) {
+                    if (indexes[i] < mEnd) {
+                        delta += deltas[i];
+                    }
+                }
+                if (delta == 0) {
+                    continue;
+                }
+                if (block < mEnd / length) {
+                    if (read(level, block, record)) {
+                        record.goodCount = Math.max(0, Math.min(record.count, record.goodCount + delta));
+                        write(level, block, record);
+                    }
+                } else {
+                    RollupBucket open = mOpen[level];
+                    open.goodCount = Math.max(0, Math.min(open.count, open.goodCount + delta));
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a block which has been written out.
+     * @param out   gets filled in, with start set to the date of the first sample
+     * @return  false (and an empty bucket) if the block has no samples
+     */
+    boolean read(int level, long block, RollupBucket out) throws IOException {
+        out.clear();
+        out.level = null;
+        out.start = 0;
+        RandomAccessFile file = level(level);
+        long offset = block * RECORD_LENGTH;
+        if (offset + RECORD_LENGTH > file.length()) {
+            return false;
+        }
+        file.seek(offset);
+        try {
+            file.readFully(mRecordBytes);
+        } catch (EOFException e) {
+            return false;
+        }
+        mRecord.clear();
+        long start = mRecord.getLong();
+        int count = mRecord.getInt();
+        if (count <= 0) {
+            return false;
+        }
+        out.start = start;
+        out.count = count;
+        out.min = mRecord.getInt();
+        out.max = mRecord.getInt();
+        out.sum = mRecord.getLong();
+        out.sumOfSquares = mRecord.getLong();
+        out.goodCount = mRecord.getInt();
+        return true;
+    }
+
+    /**
+     * Save how far the samples go.
+     */
+    void flush() throws IOException {
+        writeHeader();
+    }
+
+    void close() {
+        for (int i = 0; i < LEVELS; i++) {
+            if (mLevels[i] != null) {
+                try {
+                    mLevels[i].close();
+                } catch (IOException e) {
+                    // nothing more we can do
+                }
+                mLevels[i] = null;
+            }
+        }
+    }
+
+    private void write(int level, long block, RollupBucket bucket) throws IOException {
+        mRecord.clear();
+        mRecord.putLong(bucket.start);
+        mRecord.putInt(bucket.count);
+        mRecord.putInt(bucket.min);
+        mRecord.putInt(bucket.max);
+        mRecord.putLong(bucket.sum);
+        mRecord.putLong(bucket.sumOfSquares);
+        mRecord.putInt(bucket.goodCount);
+        RandomAccessFile file = level(level);
+        file.seek(block * RECORD_LENGTH);
+        file.write(mRecordBytes);
+    }
+
+    private RandomAccessFile level(int level) throws IOException {
+        if (mLevels[level] == null) {
+            mLevels[level] = new RandomAccessFile(levelFile(level), "rw");
+        }
+        return mLevels[level];
+    }
+
+    private File levelFile(int level) {
+        return new File(mDirectory, LEVEL_PREFIX + level);
+    }
+
+    private long readHeader() throws IOException {
+        File file = new File(mDirectory, HEADER_FILE);
+        if (!file.exists()) {
+            return -1;
+        }
+        RandomAccessFile header = new RandomAccessFile(file, "r");
+        try {
+            if (header.readInt() != FORMAT_VERSION || header.readInt() != LEAF_SIZE) {
+                return -1;
+            }
+            return header.readLong();
+        } catch (EOFException e) {
+            return -1;
+        } finally {
+            header.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        RandomAccessFile header = new RandomAccessFile(new File(mDirectory, HEADER_FILE), "rw");
+        try {
+            header.writeInt(FORMAT_VERSION);
+            header.writeInt(LEAF_SIZE);
+            header.writeLong(mEnd);
+        } finally {
+            header.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+
+/**
+ * A place to keep posture samples.  Samples are numbered in the order they were appended,
+ * and that index never changes for a given sample, even when older samples are deleted.
+ *
+ * There is more than one storage engine behind this, so nothing here should assume SQL.
+ * Implementations must be safe to use from the service's loop thread and a reader
+ * thread at the same time.
+ */
+public interface SampleStore {
+
+    /**
+     * Append all the samples in the batch.  Either they all get stored or none of them do.
+     * @param batch     samples to add, in time order
+     * @throws IOException  if the samples couldn't be stored
+     */
+    void append(SampleBatch batch) throws IOException;
+
+    /**
+     * @return  one more than the index of the newest sample, which is also the index of the
+     *          next sample to be appended
+     */
+    long size() throws IOException;
+
+    /**
+     * @return  index of the oldest sample still stored, or size() if there aren't any
+     */
+    long firstIndex() throws IOException;
+
+    /**
+     * Read consecutive samples starting at an index, as many as the batch can hold.
+     * @param fromIndex     index of the first sample to read.  If that sample has been
+     *                      deleted, reading starts at the oldest sample after it.
+     * @param batch         this is cleared and then filled in, including its first index
+     * @return  number of samples read, which is less than the batch capacity at the end
+     */
+    int read(long fromIndex, SampleBatch batch) throws IOException;
+
+    /**
+     * Find where a point in time falls in the store.  Samples are assumed to be in date order.
+     * @param date      units of ms since epoch
+     * @return  index of the first sample at or after the date, or size() if there isn't one
+     */
+    long indexOf(long date) throws IOException;
+
+    /**
+     * Replace the good posture flags of some stored samples, such as after the posture limits
+     * have changed.  Dates and values are left alone.
+     * @param batch     consecutive samples from its first index, as read from this store, with
+     *                  the new flags.  Samples which have since been deleted are skipped.
+     */
+    void rewriteFlags(SampleBatch batch) throws IOException;
+
+    /**
+     * Delete the oldest group of samples, if all of them are older than a cutoff.  Engines
+     * which lay their data out in partitions (such as one file per day) drop a whole
+     * partition; otherwise a chunk of samples is deleted.  This is meant to be called
+     * repeatedly, so the caller can pace the I/O.
+     * @param before    units of ms since epoch
+     * @return  bytes of storage reclaimed, or -1 if there was nothing old enough to delete
+     */
+    long dropOldest(long before) throws IOException;
+
+    /**
+     * Delete all the samples.  Afterward firstIndex() equals size().
+     */
+    void clear() throws IOException;
+
+    /**
+     * Release whatever resources the store is holding.  The store can't be used afterward.
+     */
+    void close();
+}
@@ -0,0 +1,142 @@
+package com.brucegiese.perfectposture;
+
+/**
+ * Running statistics over the samples in a sliding window of time.
+ *
+ * The samples in the window are kept in a ring buffer so they can be taken back out of the
+ * statistics when they get too old.  Every sample goes in once and comes out once, so an
+ * update is O(1) and nothing is allocated after construction.  The mean and variance use
+ * Welford's method, which also works in reverse for taking samples out.
+ *
+ * A window with no length covers everything since it was cleared and doesn't keep samples.
+ */
+final class StatsWindow {
+    private final long mLength;             // units of ms, zero means forever
+    private final long[] mTimes;            // units of ms
+    private final int[] mValues;
+    private final long[] mDurations;        // units of ms
+    private final boolean[] mGoodPosture;
+    private int mFirst;                     // oldest sample in the ring
+    private int mSize;
+
+    private long mCount;
+    private double mMean;
+    private double mSquaredDeviations;      // Welford's M2
+    private long mTotalTime;                // units of ms
+    private long mBadTime;                  // units of ms
+    private final PostureHistogram mHistogram = new PostureHistogram();
+
+    /**
+     * @param length        units of ms, or zero for no limit
+     * @param capacity      most samples which can be in the window.  If more come in, the
+     *                      oldest ones are dropped early.
+     */
+    StatsWindow(long length, int capacity) {
+        mLength = length;
+        int ringSize = length > 0 ? capacity : 0;
+        mTimes = new long[ringSize];
+        mValues = new int[ringSize];
+        mDurations = new long[ringSize];
+        mGoodPosture = new boolean[ringSize];
+    }
+
+    /**
+     * @param time          units of ms
+     * @param value         posture value
+     * @param goodPosture   whether the sample was good posture
+     * @param duration      how much time this sample stands for, units of ms
+     */
+    void add(long time, int value, boolean goodPosture, long duration) {
+        if (mLength > 0) {
+            expire(time);
+            if (mSize == mTimes.length) {
+                removeOldest();
+            }
+            int slot = (mFirst + mSize) % mTimes.length;
+            mTimes[slot] = time;
+            mValues[slot] = value;
+            mDurations[slot] = duration;
+            mGoodPosture[slot] = goodPosture;
+            mSize++;
+        }
+
+        mCount++;
+        double delta = value - mMean;
+        mMean += delta / mCount;
+        mSquaredDeviations += delta * (value - mMean);
+        mTotalTime += duration;
+        if (!goodPosture) {
+            mBadTime += duration;
+        }
+        mHistogram.add(value);
+    }
+
+    /**
+     * Take out samples which are now older than the window.
+     * @param now   units of ms
+     */
+    void expire(long now) {
+        while (mSize > 0 && mTimes[mFirst] <= now - mLength) {
+            removeOldest();
+        }
+    }
+
+    void clear() {
+        mFirst = 0;
+        mSize = 0;
+        mCount = 0;
+        mMean = 0;
+        mSquaredDeviations = 0;
+        mTotalTime = 0;
+        mBadTime = 0;
+        mHistogram.clear();
+    }
+
+    private void removeOldest() {
+        int value = mValues[mFirst];
+        if (mCount <= 1) {
+            mCount = 0;
+            mMean = 0;
+            mSquaredDeviations = 0;
+        } else {
+            double oldMean = mMean;
+            mCount--;
+            mMean -= (value - mMean) / mCount;
+            mSquaredDeviations = Math.max(0, mSquaredDeviations - (value - oldMean) * (value - mMean));
+        }
+        mTotalTime -= mDurations[mFirst];
+        if (!mGoodPosture[mFirst]) {
+            mBadTime -= mDurations[mFirst];
+        }
+        mHistogram.remove(value);
+        mFirst = (mFirst + 1) % mTimes.length;
+        mSize--;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    double getMean() {
+        return mMean;
+    }
+
+    /**
+     * @return  population variance, units of degrees squared
+     */
+    double getVariance() {
+        return mCount == 0 ? 0 : mSquaredDeviations / mCount;
+    }
+
+    long getTotalTime() {
+        return mTotalTime;
+    }
+
+    long getBadTime() {
+        return mBadTime;
+    }
+
+    PostureHistogram getHistogram() {
+        return mHistogram;
+    }
+}
@@ -0,0 +1,297 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarSampleStoreTest {
+    private static final int BLOCK_SIZE = 64;
+    private static final long DAY = ColumnarSampleStore.MS_PER_DAY;
+
+    private File mDirectory;
+    private ColumnarSampleStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mStore = new ColumnarSampleStore(mDirectory, BLOCK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        TestSamples.append(mStore, 0, 200);
+        TestSamples.append(mStore, 200, 3);
+        assertEquals(0, mStore.firstIndex());
+        assertEquals(203, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+
+        SampleBatch page = new SampleBatch(10);
+        assertEquals(10, mStore.read(60, page));        // across a block boundary
+        assertEquals(60, page.getFirstIndex());
+        TestSamples.assertSamples(60, page);
+        assertEquals(3, mStore.read(200, page));        // from the open block
+        TestSamples.assertSamples(200, page);
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        TestSamples.append(mStore, 0, 100);
+        for (int i = 100; i < 150; i += 5) {
+            TestSamples.append(mStore, i, 5);
+        }
+        reopenStore();
+        assertEquals(150, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+        TestSamples.append(mStore, 150, 50);
+        reopenStore();
+        assertEquals(200, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void tailOnlyGrowsByEachAppend() throws IOException {
+        TestSamples.append(mStore, 0, 10);
+        long before = tailFile().length();
+        TestSamples.append(mStore, 10, 1);
+        long after = tailFile().length();
+        assertTrue(after > before);
+        assertTrue(after - before < before);        // the first ten weren't written again
+    }
+
+    @Test
+    public void dropsTornTailPiece() throws IOException {
+        TestSamples.append(mStore, 0, 70);          // one sealed block and a tail of 6
+        TestSamples.append(mStore, 70, 4);
+        TestSamples.truncate(tailFile(), 3);
+        reopenStore();
+        assertEquals(70, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+
+        TestSamples.append(mStore, 70, 4);
+        reopenStore();
+        assertEquals(74, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void dropsDamagedTailPiece() throws IOException {
+        TestSamples.append(mStore, 0, 5);
+        long good = tailFile().length();
+        TestSamples.append(mStore, 5, 5);
+        TestSamples.append(mStore, 10, 5);
+        TestSamples.corrupt(tailFile(), good + 50);
+        reopenStore();
+        assertEquals(5, mStore.size());             // nothing after the damage counts
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void skipsTailWhichWasAlreadySealed() throws IOException {
+        // Killed after sealing the block but before starting the tail over
+        TestSamples.append(mStore, 0, 60);
+        byte[] stale = readFile(tailFile());
+        TestSamples.append(mStore, 60, 4);
+        TestSamples.append(mStore, 64, 1);         // a full block is sealed by the next sample
+        assertTrue(onlyDayFile().length() > 0);
+        writeFile(tailFile(), stale);
+        reopenStore();
+        assertEquals(64, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+        TestSamples.append(mStore, 64, 10);
+        reopenStore();
+        assertEquals(74, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void dropsDamagedLastBlock() throws IOException {
+        TestSamples.append(mStore, 0, 130);         // two sealed blocks
+        File day = onlyDayFile();
+        TestSamples.corrupt(day, day.length() - 1);
+        reopenStore();
+        // The second block is gone, but the ones either side of it are fine
+        assertEquals(0, mStore.firstIndex());
+        assertEquals(130, mStore.size());
+        SampleBatch page = new SampleBatch(100);
+        assertEquals(64, mStore.read(0, page));
+        TestSamples.assertSamples(0, page);
+        assertEquals(2, mStore.read(64, page));
+        assertEquals(128, page.getFirstIndex());
+        TestSamples.assertSamples(128, page);
+    }
+
+    @Test
+    public void indexOf() throws IOException {
+        TestSamples.append(mStore, 0, 150);
+        assertEquals(0, mStore.indexOf(0));
+        assertEquals(70, mStore.indexOf(TestSamples.START + 70 * TestSamples.PERIOD));
+        assertEquals(71, mStore.indexOf(TestSamples.START + 70 * TestSamples.PERIOD + 1));
+        assertEquals(140, mStore.indexOf(TestSamples.START + 140 * TestSamples.PERIOD));
+        assertEquals(150, mStore.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void rewriteFlags() throws IOException {
+        TestSamples.append(mStore, 0, 150);
+        SampleBatch batch = new SampleBatch(100);
+        mStore.read(40, batch);                     // sealed blocks and the open one
+        for (int i = 0; i < batch.size(); i++) {
+            batch.goodPosture[i] = !batch.goodPosture[i];
+        }
+        mStore.rewriteFlags(batch);
+
+        for (int pass = 0; pass < 2; pass++) {
+            SampleBatch all = TestSamples.readAll(mStore);
+            SampleBatch expected = TestSamples.make(0, 150);
+            for (int i = 0; i < 150; i++) {
+                boolean flipped = i >= 40 && i < 140;
+                assertEquals(expected.goodPosture[i] != flipped, all.goodPosture[i]);
+                assertEquals(expected.values[i], all.values[i]);
+            }
+            reopenStore();
+        }
+    }
+
+    @Test
+    public void dropOldest() throws IOException {
+        append(10 * DAY, 0, 30);
+        append(11 * DAY, 30, 30);
+        append(12 * DAY, 60, 10);                   // still open
+        assertEquals(-1, mStore.dropOldest(10 * DAY));
+        assertTrue(mStore.dropOldest(11 * DAY) > 0);
+        assertEquals(30, mStore.firstIndex());
+        assertEquals(-1, mStore.dropOldest(11 * DAY));
+
+        SampleBatch page = new SampleBatch(100);
+        assertEquals(40, mStore.read(0, page));
+        assertEquals(30, page.getFirstIndex());
+
+        // The day the open block belongs to stays
+        assertTrue(mStore.dropOldest(Long.MAX_VALUE) > 0);
+        assertEquals(-1, mStore.dropOldest(Long.MAX_VALUE));
+        reopenStore();
+        assertEquals(60, mStore.firstIndex());
+        assertEquals(70, mStore.size());
+    }
+
+    @Test
+    public void clockGoingBackward() throws IOException {
+        append(10 * DAY, 0, 30);
+        append(9 * DAY, 30, 10);                    // the clock went back a day
+        append(10 * DAY + 3600 * 1000L, 40, 20);
+        append(11 * DAY, 60, 5);
+        reopenStore();
+        assertEquals(0, mStore.firstIndex());
+        assertEquals(65, mStore.size());
+        SampleBatch all = TestSamples.readAll(mStore);
+        assertEquals(65, all.size());
+        assertEquals(9 * DAY, all.dates[30]);
+
+        // Day 10 holds blocks on both sides of day 9, and all of it is before the cutoff
+        assertTrue(mStore.dropOldest(11 * DAY) > 0);
+        assertEquals(30, mStore.firstIndex());
+        SampleBatch page = new SampleBatch(100);
+        assertEquals(10, mStore.read(0, page));     // stops at the gap
+        assertEquals(30, page.getFirstIndex());
+        assertEquals(5, mStore.read(40, page));     // and carries on after it
+        assertEquals(60, page.getFirstIndex());
+
+        // Nothing newer was lost with the day file
+        append(11 * DAY + 60 * 1000L, 65, 5);
+        reopenStore();
+        assertEquals(30, mStore.firstIndex());
+        assertEquals(70, mStore.size());
+    }
+
+    @Test
+    public void keepsDayFileWithNewerBlocks() throws IOException {
+        append(10 * DAY, 0, 30);
+        append(9 * DAY, 30, 10);
+        append(10 * DAY + 3600 * 1000L, 40, 20);
+        append(11 * DAY, 60, 5);
+        // Day 10 has the oldest block, but also one newer than the cutoff
+        assertEquals(-1, mStore.dropOldest(10 * DAY + 60 * 1000L));
+        assertEquals(0, mStore.firstIndex());
+        assertEquals(65, TestSamples.readAll(mStore).size());
+    }
+
+    @Test
+    public void clear() throws IOException {
+        TestSamples.append(mStore, 0, 150);
+        mStore.clear();
+        assertEquals(0, mStore.size());
+        assertEquals(0, mStore.firstIndex());
+        SampleBatch page = new SampleBatch(10);
+        assertEquals(0, mStore.read(0, page));
+        TestSamples.append(mStore, 0, 70);
+        reopenStore();
+        assertEquals(70, mStore.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    private void append(long date, long index, int count) throws IOException {
+        SampleBatch batch = new SampleBatch(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(date + i * TestSamples.PERIOD, (int) (index + i), true);
+        }
+        mStore.append(batch);
+    }
+
+    private void reopenStore() throws IOException {
+        mStore.close();
+        mStore = new ColumnarSampleStore(mDirectory, BLOCK_SIZE);
+    }
+
+    private File tailFile() {
+        return new File(mDirectory, "tail.col");
+    }
+
+    private File onlyDayFile() {
+        File[] files = mDirectory.listFiles();
+        File day = null;
+        for (File file : files) {
+            if (file.getName().startsWith("day-")) {
+                assertEquals(null, day);
+                day = file;
+            }
+        }
+        return day;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DownsamplerTest {
+
+    @Test
+    public void smallInputIsCopied() {
+        SampleBatch in = TestSamples.make(0, 10);
+        SampleBatch out = new SampleBatch(20);
+        Downsampler.largestTriangle(in, 20, out);
+        TestSamples.assertSamples(0, out);
+        Downsampler.minMax(in, 20, out);
+        TestSamples.assertSamples(0, out);
+    }
+
+    @Test
+    public void largestTriangleKeepsTheEndsAndTheSpikes() {
+        SampleBatch in = flatWithSpikes(10000);
+        SampleBatch out = new SampleBatch(100);
+        Downsampler.largestTriangle(in, 100, out);
+        assertEquals(100, out.size());
+        assertEquals(in.dates[0], out.dates[0]);
+        assertEquals(in.dates[in.size() - 1], out.dates[out.size() - 1]);
+        assertRealSamplesInOrder(in, out);
+        assertTrue(contains(out, 80));
+        assertTrue(contains(out, -80));
+    }
+
+    @Test
+    public void minMaxMatchesEachBucket() {
+        SampleBatch in = TestSamples.make(0, 1000);
+        int buckets = 30;
+        SampleBatch out = new SampleBatch(2 * buckets);
+        Downsampler.minMax(in, buckets, out);
+        assertRealSamplesInOrder(in, out);
+
+        int o = 0;
+        for (int b = 0; b < buckets; b++) {
+            int from = (int) Math.ceil((double) b * in.size() / buckets);
+            int to = (int) Math.ceil((double) (b + 1) * in.size() / buckets);
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            for (int i = from; i < to; i++) {
+                min = Math.min(min, in.values[i]);
+                max = Math.max(max, in.values[i]);
+            }
+            int outMin = Math.min(out.values[o], out.values[o + 1]);
+            int outMax = Math.max(out.values[o], out.values[o + 1]);
+            assertEquals("bucket " + b, min, outMin);
+            assertEquals("bucket " + b, max, outMax);
+            assertTrue(out.dates[o] >= in.dates[from] && out.dates[o + 1] <= in.dates[to - 1]);
+            o += 2;
+        }
+        assertEquals(o, out.size());
+    }
+
+    @Test
+    public void minMaxKeepsEverySpike() {
+        SampleBatch in = flatWithSpikes(100000);
+        SampleBatch out = new SampleBatch(20);
+        Downsampler.minMax(in, 10, out);
+        assertTrue(contains(out, 80));
+        assertTrue(contains(out, -80));
+        assertTrue(out.size() <= 20);
+    }
+
+    @Test
+    public void streamingMatchesAllAtOnce() {
+        SampleBatch in = TestSamples.make(0, 5003);
+        SampleBatch whole = new SampleBatch(200);
+        Downsampler.minMax(in, 100, whole);
+
+        SampleBatch pieces = new SampleBatch(200);
+        Downsampler.MinMax reducer = new Downsampler.MinMax(in.size(), 100, pieces);
+        for (int from = 0; from < in.size(); from += 37) {
+            reducer.add(in, from, Math.min(in.size(), from + 37));
+        }
+        reducer.finish();
+
+        assertEquals(whole.size(), pieces.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertEquals(whole.dates[i], pieces.dates[i]);
+            assertEquals(whole.values[i], pieces.values[i]);
+            assertEquals(whole.goodPosture[i], pieces.goodPosture[i]);
+        }
+    }
+
+    /**
+     * Level at zero apart from one spike up and one down.
+     */
+    private static SampleBatch flatWithSpikes(int count) {
+        SampleBatch batch = new SampleBatch(count);
+        for (int i = 0; i < count; i++) {
+            int value = (i == count / 3) ? 80 : (i == 2 * count / 3) ? -80 : 0;
+            batch.add(TestSamples.START + i * TestSamples.PERIOD, value, value == 0);
+        }
+        return batch;
+    }
+
+    private static boolean contains(SampleBatch batch, int value) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Every point is one of the samples, and they're in date order.
+     */
+    private static void assertRealSamplesInOrder(SampleBatch in, SampleBatch out) {
+        int i = 0;
+        for (int o = 0; o < out.size(); o++) {
+            while (i < in.size() && in.dates[i] != out.dates[o]) {
+                i++;
+            }
+            assertTrue("point " + o, i < in.size());
+            assertEquals(in.values[i], out.values[o]);
+            assertEquals(in.goodPosture[i], out.goodPosture[o]);
+            i++;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GenerationSampleStoreTest {
+    private static final int PER_SEGMENT = 100;
+
+    private File mDirectory;
+    private File mMarkFile;
+    private GenerationSampleStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mMarkFile = new File(mDirectory, "generation");
+        mStore = open();
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void passesThrough() throws IOException {
+        TestSamples.append(mStore, 0, 150);
+        assertEquals(0, mStore.getGeneration());
+        assertEquals(0, mStore.firstIndex());
+        assertEquals(150, mStore.size());
+        assertEquals(70, mStore.indexOf(TestSamples.START + 70 * TestSamples.PERIOD));
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void clearHidesEverything() throws IOException {
+        TestSamples.append(mStore, 0, 150);
+        mStore.clear();
+        assertEquals(1, mStore.getGeneration());
+        assertEquals(150, mStore.firstIndex());
+        assertEquals(150, mStore.size());
+        assertEquals(150, mStore.indexOf(0));
+        SampleBatch page = new SampleBatch(10);
+        assertEquals(0, mStore.read(0, page));
+        assertTrue(mStore.getClearedDate() > TestSamples.START + 149 * TestSamples.PERIOD);
+
+        // New samples carry on after the mark
+        TestSamples.append(mStore, 150, 20);
+        assertEquals(10, mStore.read(0, page));
+        assertEquals(150, page.getFirstIndex());
+        TestSamples.assertSamples(150, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        TestSamples.append(mStore, 0, 150);
+        mStore.clear();
+        long cleared = mStore.getClearedDate();
+        TestSamples.append(mStore, 150, 20);
+        mStore.close();
+        mStore = open();
+        assertEquals(1, mStore.getGeneration());
+        assertEquals(cleared, mStore.getClearedDate());
+        assertEquals(150, mStore.firstIndex());
+        TestSamples.assertSamples(150, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void hiddenSamplesAreDroppedLater() throws IOException {
+        TestSamples.append(mStore, 0, 250);
+        mStore.clear();
+        TestSamples.append(mStore, 250, 100);
+        int dropped = 0;
+        while (mStore.dropOldest(mStore.getClearedDate()) >= 0) {
+            dropped++;
+        }
+        assertEquals(2, dropped);                   // the segment with both stays
+        assertEquals(250, mStore.firstIndex());
+        TestSamples.assertSamples(250, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void rewriteFlags() throws IOException {
+        TestSamples.append(mStore, 0, 50);
+        SampleBatch batch = new SampleBatch(50);
+        mStore.read(0, batch);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.goodPosture[i] = true;
+        }
+        mStore.rewriteFlags(batch);
+        SampleBatch all = TestSamples.readAll(mStore);
+        for (int i = 0; i < all.size(); i++) {
+            assertTrue(all.goodPosture[i]);
+        }
+    }
+
+    @Test
+    public void storeStartedOver() throws IOException {
+        // The samples were deleted underneath the mark, so their indexes start at 0 again
+        TestSamples.append(mStore, 0, 150);
+        mStore.clear();
+        mStore.close();
+        MappedSampleLog log = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        log.clear();
+        TestSamples.append(log, 0, 30);
+        log.close();
+        mStore = open();
+        assertEquals(0, mStore.firstIndex());
+        TestSamples.assertSamples(0, TestSamples.readAll(mStore));
+    }
+
+    @Test
+    public void leftoverTempMarkIsIgnored() throws IOException {
+        TestSamples.append(mStore, 0, 50);
+        mStore.clear();
+        mStore.close();
+        // Killed while writing the next mark, before the rename
+        File temp = new File(mMarkFile.getPath() + ".tmp");
+        assertTrue(temp.createNewFile());
+        mStore = open();
+        assertEquals(1, mStore.getGeneration());
+        assertEquals(50, mStore.firstIndex());
+        TestSamples.append(mStore, 50, 1);
+        mStore.clear();
+        assertEquals(2, mStore.getGeneration());
+        assertEquals(51, mStore.firstIndex());
+    }
+
+    @Test
+    public void tornMarkIsAnError() throws IOException {
+        TestSamples.append(mStore, 0, 50);
+        mStore.clear();
+        mStore.close();
+        TestSamples.truncate(mMarkFile, 5);
+        try {
+            mStore = open();
+            fail("opened with a torn mark");
+        } catch (IOException e) {
+            // expected; SampleStores carries on without the generations
+        }
+    }
+
+    private GenerationSampleStore open() throws IOException {
+        return new GenerationSampleStore(new MappedSampleLog(mDirectory, PER_SEGMENT), mMarkFile);
+    }
+}
@@ -0,0 +1,251 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedSampleLogTest {
+    private static final int PER_SEGMENT = 100;
+    private static final int HEADER_COMMITTED = 24;     // offset of the committed count
+
+    private File mDirectory;
+    private MappedSampleLog mLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+    }
+
+    @After
+    public void tearDown() {
+        mLog.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        TestSamples.append(mLog, 0, 250);
+        TestSamples.append(mLog, 250, 1);
+        assertEquals(0, mLog.firstIndex());
+        assertEquals(251, mLog.size());
+        assertEquals(3, mLog.listSegments().length);
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+
+        SampleBatch page = new SampleBatch(10);
+        assertEquals(10, mLog.read(95, page));
+        assertEquals(95, page.getFirstIndex());
+        TestSamples.assertSamples(95, page);
+        assertEquals(0, mLog.read(251, page));
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        TestSamples.append(mLog, 0, 150);
+        mLog.close();
+        mLog = new MappedSampleLog(mDirectory, 7);         // an existing log keeps its own size
+        assertEquals(PER_SEGMENT, mLog.getRecordsPerSegment());
+        assertEquals(150, mLog.size());
+        TestSamples.append(mLog, 150, 60);
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+    }
+
+    @Test
+    public void recoversWithoutClose() throws IOException {
+        // The process was killed: nothing was forced, but the OS has the pages
+        TestSamples.append(mLog, 0, 130);
+        MappedSampleLog reopened = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        try {
+            assertEquals(130, reopened.size());
+            TestSamples.assertSamples(0, TestSamples.readAll(reopened));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void ignoresUncommittedRecords() throws IOException {
+        TestSamples.append(mLog, 0, 25);
+        TestSamples.append(mLog, 25, 15);
+        mLog.close();
+        setCommitted(0, 25);                // killed before the second batch's count moved
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(25, mLog.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+
+        // New samples go over the uncommitted ones
+        TestSamples.append(mLog, 25, 5);
+        assertEquals(30, mLog.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+    }
+
+    @Test
+    public void batchAcrossSegmentsIsAllOrNothing() throws IOException {
+        TestSamples.append(mLog, 0, 80);
+        TestSamples.append(mLog, 80, 40);           // 80 to 99, then 100 to 119
+        mLog.close();
+        // Killed after writing the records but before the new segment's count moved
+        setCommitted(0, 80);
+        setCommitted(1, 0);
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(80, mLog.size());
+        assertEquals(1, mLog.listSegments().length);
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+
+        TestSamples.append(mLog, 80, 30);
+        assertEquals(110, mLog.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+    }
+
+    @Test
+    public void batchAcrossSegmentsCommittedByTheNewOne() throws IOException {
+        TestSamples.append(mLog, 0, 80);
+        TestSamples.append(mLog, 80, 40);
+        mLog.close();
+        // Killed after the commit but before the filled segment was marked full
+        setCommitted(0, 80);
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(120, mLog.size());
+        assertEquals(PER_SEGMENT, getCommitted(0));
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+    }
+
+    @Test
+    public void dropsTornTail() throws IOException {
+        TestSamples.append(mLog, 0, 140);
+        mLog.close();
+        // The header made it to the disk but the last record's page didn't
+        File segment = mLog.segmentFile(1);
+        long lastRecord = MappedSampleLog.HEADER_SIZE + 39 * MappedSampleLog.RECORD_SIZE;
+        TestSamples.corrupt(segment, lastRecord + 2);
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(139, mLog.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+
+        // New samples carry on from the good ones
+        TestSamples.append(mLog, 139, 5);
+        assertEquals(144, mLog.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+    }
+
+    @Test
+    public void committedCountAheadOfRecords() throws IOException {
+        TestSamples.append(mLog, 0, 30);
+        mLog.close();
+        setCommitted(0, 60);                // records 30 on were never written
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(30, mLog.size());
+    }
+
+    @Test
+    public void indexOf() throws IOException {
+        TestSamples.append(mLog, 0, 250);
+        assertEquals(0, mLog.indexOf(0));
+        assertEquals(120, mLog.indexOf(TestSamples.START + 120 * TestSamples.PERIOD));
+        assertEquals(121, mLog.indexOf(TestSamples.START + 120 * TestSamples.PERIOD + 1));
+        assertEquals(250, mLog.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void rewriteFlags() throws IOException {
+        TestSamples.append(mLog, 0, 150);
+        SampleBatch batch = new SampleBatch(60);
+        mLog.read(100, batch);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.goodPosture[i] = !batch.goodPosture[i];
+        }
+        mLog.rewriteFlags(batch);
+        mLog.close();
+
+        // The checksums were updated too, or the last ones would be thrown away as torn
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(150, mLog.size());
+        SampleBatch all = TestSamples.readAll(mLog);
+        SampleBatch expected = TestSamples.make(0, 150);
+        for (int i = 0; i < 150; i++) {
+            boolean flipped = i >= 100;
+            assertEquals(expected.goodPosture[i] != flipped, all.goodPosture[i]);
+            assertEquals(expected.values[i], all.values[i]);
+        }
+    }
+
+    @Test
+    public void dropOldest() throws IOException {
+        TestSamples.append(mLog, 0, 250);
+        long cutoff = TestSamples.START + 150 * TestSamples.PERIOD;
+        assertTrue(mLog.dropOldest(cutoff) > 0);
+        assertEquals(100, mLog.firstIndex());
+        assertEquals(-1, mLog.dropOldest(cutoff));          // 100 to 199 aren't all older
+        assertEquals(250, mLog.size());
+
+        SampleBatch page = new SampleBatch(10);
+        mLog.read(5, page);
+        assertEquals(100, page.getFirstIndex());
+        TestSamples.assertSamples(100, TestSamples.readAll(mLog));
+
+        // The segment being written to is never dropped
+        assertTrue(mLog.dropOldest(Long.MAX_VALUE) > 0);
+        assertEquals(-1, mLog.dropOldest(Long.MAX_VALUE));
+        assertEquals(200, mLog.firstIndex());
+
+        mLog.close();
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(200, mLog.firstIndex());
+        assertEquals(250, mLog.size());
+    }
+
+    @Test
+    public void clear() throws IOException {
+        TestSamples.append(mLog, 0, 250);
+        mLog.clear();
+        assertEquals(0, mLog.size());
+        assertEquals(0, mLog.firstIndex());
+        assertEquals(0, mLog.listSegments().length);
+        TestSamples.append(mLog, 0, 10);
+        mLog.close();
+        mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+        assertEquals(10, mLog.size());
+        TestSamples.assertSamples(0, TestSamples.readAll(mLog));
+    }
+
+    @Test
+    public void corruptHeaderIsAnError() throws IOException {
+        TestSamples.append(mLog, 0, 10);
+        mLog.close();
+        TestSamples.corrupt(mLog.segmentFile(0), 0);
+        try {
+            mLog = new MappedSampleLog(mDirectory, PER_SEGMENT);
+            fail("opened a log with a bad header");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private int getCommitted(long segment) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mLog.segmentFile(segment), "r");
+        try {
+            raf.seek(HEADER_COMMITTED);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void setCommitted(long segment, int committed) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mLog.segmentFile(segment), "rw");
+        try {
+            raf.seek(HEADER_COMMITTED);
+            raf.writeInt(committed);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.brucegiese.perfectposture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A RollupStore in memory for the tests, which remembers the sums it was asked for and can
+ * be made to fail.
+ */
+class MemoryRollupStore implements RollupStore {
+    private final List<TreeMap<Long, RollupBucket>> mLevels = new ArrayList<TreeMap<Long, RollupBucket>>();
+    final List<String> sums = new ArrayList<String>();      // "LEVEL from to" for each sum()
+    int writes;
+    boolean failing;
+
+    MemoryRollupStore() {
+        for (int i = 0; i < RollupLevel.values().length; i++) {
+            mLevels.add(new TreeMap<Long, RollupBucket>());
+        }
+    }
+
+    @Override
+    public boolean read(RollupBucket bucket) throws IOException {
+        bucket.clear();
+        RollupBucket stored = mLevels.get(bucket.level.ordinal()).get(bucket.start);
+        if (stored == null) {
+            return false;
+        }
+        bucket.merge(stored);
+        return true;
+    }
+
+    @Override
+    public void write(List<RollupBucket> buckets) throws IOException {
+        if (failing) {
+            throw new IOException("failing on purpose");
+        }
+        writes++;
+        for (RollupBucket bucket : buckets) {
+            mLevels.get(bucket.level.ordinal()).put(bucket.start, copy(bucket));
+        }
+    }
+
+    @Override
+    public void sum(RollupLevel level, long from, long to, RollupBucket total) throws IOException {
+        sums.add(level + " " + from + " " + to);
+        for (RollupBucket bucket : mLevels.get(level.ordinal()).subMap(from, to).values()) {
+            total.merge(bucket);
+        }
+    }
+
+    @Override
+    public List<RollupBucket> list(RollupLevel level, long from, long to) throws IOException {
+        List<RollupBucket> list = new ArrayList<RollupBucket>();
+        for (RollupBucket bucket : mLevels.get(level.ordinal()).subMap(from, to).values()) {
+            list.add(copy(bucket));
+        }
+        return list;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (TreeMap<Long, RollupBucket> level : mLevels) {
+            level.clear();
+        }
+    }
+
+    /**
+     * @return  the stored bucket, or null
+     */
+    RollupBucket get(RollupLevel level, long start) {
+        return mLevels.get(level.ordinal()).get(start);
+    }
+
+    private static RollupBucket copy(RollupBucket bucket) {
+        RollupBucket copy = new RollupBucket(bucket.level, bucket.start);
+        copy.merge(bucket);
+        return copy;
+    }
+}
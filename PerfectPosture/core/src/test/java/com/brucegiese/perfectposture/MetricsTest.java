@@ -0,0 +1,133 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The registry is process wide, so every metric here has a name of its own.
+ */
+public class MetricsTest {
+
+    @Before
+    public void setUp() {
+        Metrics.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+    }
+
+    @Test
+    public void nothingIsRecordedWhileOff() {
+        Metrics.Counter counter = Metrics.counter("test.off.counter");
+        Metrics.Gauge gauge = Metrics.gauge("test.off.gauge");
+        Metrics.Histogram histogram = Metrics.histogram("test.off.histogram", "us");
+        Metrics.setEnabled(false);
+        counter.increment();
+        counter.add(5);
+        gauge.set(7);
+        histogram.record(100);
+        assertEquals(0, Metrics.start());
+        histogram.recordSince(Metrics.start());
+        assertEquals(0, counter.get());
+        assertEquals(0, gauge.get());
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void sameNameSameMetric() {
+        assertSame(Metrics.counter("test.same"), Metrics.counter("test.same"));
+        assertSame(Metrics.histogram("test.same.h", "us"), Metrics.histogram("test.same.h", "ms"));
+    }
+
+    @Test
+    public void counterAndGauge() {
+        Metrics.Counter counter = Metrics.counter("test.counter");
+        counter.increment();
+        counter.add(4);
+        assertEquals(5, counter.get());
+
+        Metrics.Gauge gauge = Metrics.gauge("test.gauge");
+        gauge.set(9);
+        gauge.set(3);
+        assertEquals(3, gauge.get());
+        assertEquals(9, gauge.getMax());
+    }
+
+    @Test
+    public void histogramPercentilesArePowersOfTwo() {
+        Metrics.Histogram histogram = Metrics.histogram("test.percentiles", "us");
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getPercentile(0.01));
+        assertEquals(64, histogram.getPercentile(0.5));     // 33 to 64 share a bucket
+        assertEquals(100, histogram.getPercentile(0.9));    // no more than the max
+        assertEquals(0, Metrics.histogram("test.empty", "us").getPercentile(0.5));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Metrics.Histogram histogram = Metrics.histogram("test.negative", "us");
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void recordSinceStart() throws InterruptedException {
+        Metrics.Histogram histogram = Metrics.histogram("test.since", "us");
+        long start = Metrics.start();
+        assertTrue(start != 0);
+        Thread.sleep(2);
+        histogram.recordSince(start);
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.getPercentile(1) >= 2000);
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        Metrics.counter("test.snapshot.c").add(3);
+        Metrics.Gauge gauge = Metrics.gauge("test.snapshot.g");
+        gauge.set(5);
+        gauge.set(2);
+        Metrics.histogram("test.snapshot.h", "ms").record(3);
+        Metrics.histogram("test.snapshot.h", "ms").record(200);
+
+        StringWriter out = new StringWriter();
+        Metrics.writeSnapshot(out);
+        List<String> lines = Arrays.asList(out.toString().split("\n"));
+        assertTrue(lines.get(0).startsWith("# metrics "));
+        assertTrue(lines.get(0).endsWith(" enabled=true"));
+        assertTrue(lines.contains("c test.snapshot.c 3"));
+        assertTrue(lines.contains("g test.snapshot.g 2 5"));
+        assertTrue(lines.toString(), lines.contains("h test.snapshot.h ms 2 203 200 4 200 200 2:1 8:1"));
+    }
+
+    @Test
+    public void resetZeroesEverything() {
+        Metrics.Counter counter = Metrics.counter("test.reset.c");
+        Metrics.Gauge gauge = Metrics.gauge("test.reset.g");
+        Metrics.Histogram histogram = Metrics.histogram("test.reset.h", "us");
+        counter.increment();
+        gauge.set(4);
+        histogram.record(10);
+        Metrics.reset();
+        assertEquals(0, counter.get());
+        assertEquals(0, gauge.getMax());
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+}
@@ -0,0 +1,231 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostureEngineTest {
+    private static final int GOOD = 0;                  // units of degrees
+    private static final int BAD = 60;                  // past the medium sensitivity limit
+
+    private final List<PostureEngine.Alert> mAlerts = new ArrayList<PostureEngine.Alert>();
+    private final List<Long> mElapsed = new ArrayList<Long>();
+    private final SampleBatch mSamples = new SampleBatch(1000);
+    private Clock.ManualClock mClock;
+    private PostureEngine mEngine;
+    private long mSequence;
+
+    @Before
+    public void setUp() {
+        mClock = new Clock.ManualClock(TestSamples.START);
+        mEngine = new PostureEngine(mClock, new PostureEngine.Listener() {
+            @Override
+            public void onCheck(long time, int z, boolean goodPosture, long elapsed) {
+                mElapsed.add(elapsed);
+            }
+
+            @Override
+            public void onSample(long date, int z, boolean goodPosture) {
+                if (!mSamples.isFull()) {
+                    mSamples.add(date, z, goodPosture);
+                }
+            }
+
+            @Override
+            public void onAlert(PostureEngine.Alert alert) {
+                mAlerts.add(alert);
+            }
+        });
+        mEngine.setConfig(new PostureConfig.Builder().setChinTuck(false).build());
+    }
+
+    @Test
+    public void badPostureAfterHysteresis() {
+        int hysteresis = mEngine.getConfig().getNegativeHysteresis();
+        tick(BAD, hysteresis - 1, PostureEngine.UPDATE_INTERVAL);
+        assertTrue(mEngine.isPostureGood());
+        assertAlerts();
+        tick(BAD, 1, PostureEngine.UPDATE_INTERVAL);
+        assertFalse(mEngine.isPostureGood());
+        assertAlerts(PostureEngine.Alert.BAD_POSTURE);
+    }
+
+    @Test
+    public void hysteresisCountsTimeNotChecks() {
+        // The first bad check counts as one interval, the rest as the time since the last
+        // check.  With 30 s of hysteresis and 5 s between checks, that's 1 + 6 * 5.
+        tick(BAD, 6, 5000);
+        assertTrue(mEngine.isPostureGood());
+        tick(BAD, 1, 5000);
+        assertFalse(mEngine.isPostureGood());
+        assertAlerts(PostureEngine.Alert.BAD_POSTURE);
+    }
+
+    @Test
+    public void goodAgainAfterHysteresis() {
+        PostureConfig config = mEngine.getConfig();
+        tick(BAD, config.getNegativeHysteresis(), PostureEngine.UPDATE_INTERVAL);
+        tick(GOOD, config.getPositiveHysteresis() - 1, PostureEngine.UPDATE_INTERVAL);
+        assertFalse(mEngine.isPostureGood());
+        tick(GOOD, 1, PostureEngine.UPDATE_INTERVAL);
+        assertTrue(mEngine.isPostureGood());
+        assertAlerts(PostureEngine.Alert.BAD_POSTURE, PostureEngine.Alert.GOOD_POSTURE);
+    }
+
+    @Test
+    public void aBriefChangeStartsTheHysteresisOver() {
+        int hysteresis = mEngine.getConfig().getNegativeHysteresis();
+        tick(BAD, hysteresis - 1, PostureEngine.UPDATE_INTERVAL);
+        tick(GOOD, 1, PostureEngine.UPDATE_INTERVAL);
+        tick(BAD, hysteresis - 1, PostureEngine.UPDATE_INTERVAL);
+        assertTrue(mEngine.isPostureGood());
+        assertAlerts();
+    }
+
+    @Test
+    public void remindsWhilePostureStaysBad() {
+        PostureConfig config = mEngine.getConfig();
+        tick(BAD, config.getNegativeHysteresis(), PostureEngine.UPDATE_INTERVAL);
+        tick(BAD, config.getBadReminderThreshold() - 1, PostureEngine.UPDATE_INTERVAL);
+        assertAlerts(PostureEngine.Alert.BAD_POSTURE);
+        tick(BAD, 1, PostureEngine.UPDATE_INTERVAL);
+        assertAlerts(PostureEngine.Alert.BAD_POSTURE, PostureEngine.Alert.BAD_POSTURE);
+    }
+
+    @Test
+    public void noReadingIsBadPosture() {
+        tick(PostureEngine.NO_READING, 1, PostureEngine.UPDATE_INTERVAL);
+        assertEquals(1, mSamples.size());
+        assertEquals(PostureEngine.NO_READING, mSamples.values[0]);
+        assertFalse(mSamples.goodPosture[0]);
+        assertEquals(0, mElapsed.size());               // not in the live statistics
+
+        tick(PostureEngine.NO_READING, mEngine.getConfig().getNegativeHysteresis() - 1,
+                PostureEngine.UPDATE_INTERVAL);
+        assertFalse(mEngine.isPostureGood());
+        assertAlerts(PostureEngine.Alert.BAD_POSTURE);
+    }
+
+    @Test
+    public void chinTuckReminder() {
+        mEngine.setConfig(PostureConfig.DEFAULT);
+        long interval = 10000;
+        int toStart = (int) (PostureEngine.CHIN_TUCK_REMINDER_TIME / interval);
+        tick(GOOD, toStart, interval);
+        assertFalse(mEngine.isChinTuckReminderOn());
+        tick(GOOD, 1, interval);                        // more than the reminder time
+        assertTrue(mEngine.isChinTuckReminderOn());
+        assertAlerts(PostureEngine.Alert.CHIN_TUCK_START);
+
+        int toEnd = (int) (PostureEngine.CHIN_TUCK_REMINDER_DURATION / interval);
+        tick(GOOD, toEnd, interval);
+        assertTrue(mEngine.isChinTuckReminderOn());
+        tick(GOOD, 1, interval);
+        assertFalse(mEngine.isChinTuckReminderOn());
+        assertAlerts(PostureEngine.Alert.CHIN_TUCK_START, PostureEngine.Alert.CHIN_TUCK_END);
+    }
+
+    @Test
+    public void pauseStartsThePostureOverButKeepsChinTuckTime() {
+        mEngine.setConfig(PostureConfig.DEFAULT);
+        long interval = 10000;
+        tick(BAD, 3, interval);                         // 1 + 2 * 10 s of 30 s hysteresis
+        tick(GOOD, 45, interval);
+        tick(BAD, 1, interval);
+        mEngine.pause();
+        mClock.advance(10 * 60 * 60 * 1000L);
+        tick(BAD, 1, interval);
+
+        // The gap counts as one interval, so it's neither bad posture nor chin tuck time
+        assertTrue(mEngine.isPostureGood());
+        assertFalse(mEngine.isChinTuckReminderOn());
+        assertEquals(PostureEngine.UPDATE_INTERVAL, (long) mElapsed.get(mElapsed.size() - 1));
+        assertAlerts();
+
+        // 490 s of chin tuck time before the pause, 1 s after it
+        tick(GOOD, 40, interval);
+        assertFalse(mEngine.isChinTuckReminderOn());
+        tick(GOOD, 1, interval);
+        assertTrue(mEngine.isChinTuckReminderOn());
+        assertAlerts(PostureEngine.Alert.CHIN_TUCK_START);
+    }
+
+    @Test
+    public void pauseEndsChinTuckReminder() {
+        mEngine.setConfig(PostureConfig.DEFAULT);
+        tick(GOOD, 91, 10000);
+        assertTrue(mEngine.isChinTuckReminderOn());
+        mEngine.pause();
+        mClock.advance(60 * 60 * 1000L);
+        tick(GOOD, 1, PostureEngine.UPDATE_INTERVAL);
+        assertFalse(mEngine.isChinTuckReminderOn());
+        assertAlerts(PostureEngine.Alert.CHIN_TUCK_START, PostureEngine.Alert.CHIN_TUCK_END);
+    }
+
+    @Test
+    public void skipsChecksWithoutNewSensorData() {
+        tick(GOOD, 1, PostureEngine.UPDATE_INTERVAL);
+        int silent = (int) (PostureEngine.MAX_SENSOR_SILENCE / PostureEngine.UPDATE_INTERVAL) - 1;
+        for (int i = 0; i < silent; i++) {
+            mClock.advance(PostureEngine.UPDATE_INTERVAL);
+            assertEquals(PostureEngine.UPDATE_INTERVAL, mEngine.check(GOOD, mSequence));
+        }
+        assertEquals(silent, mEngine.getSkippedTicks());
+        assertEquals(1, mSamples.size());
+
+        // The skipped time is counted by the next check which does something
+        tick(GOOD, 1, PostureEngine.UPDATE_INTERVAL);
+        assertEquals(2, mSamples.size());
+        assertEquals(Arrays.asList(PostureEngine.UPDATE_INTERVAL,
+                (silent + 1) * PostureEngine.UPDATE_INTERVAL), mElapsed);
+    }
+
+    @Test
+    public void checksAnywayAfterMaxSensorSilence() {
+        tick(GOOD, 1, PostureEngine.UPDATE_INTERVAL);
+        mClock.advance(PostureEngine.MAX_SENSOR_SILENCE - 1);
+        mEngine.check(GOOD, mSequence);
+        assertEquals(1, mEngine.getSkippedTicks());
+        mClock.advance(1);
+        mEngine.check(GOOD, mSequence);
+        assertEquals(1, mEngine.getSkippedTicks());
+        assertEquals(2, mSamples.size());
+    }
+
+    @Test
+    public void adaptiveSamplingBacksOffWhileSteady() {
+        mEngine.setConfig(new PostureConfig.Builder().setChinTuck(false)
+                .setAdaptiveSampling(true).build());
+        long delay = 0;
+        for (int i = 0; i < 10; i++) {
+            mClock.advance(PostureEngine.UPDATE_INTERVAL);
+            delay = mEngine.check(GOOD, ++mSequence);
+        }
+        assertEquals(PostureEngine.ADAPTIVE_MAX_INTERVAL, delay);
+        assertEquals(1, mSamples.size());               // nothing moved
+        mClock.advance(PostureEngine.UPDATE_INTERVAL);
+        assertEquals(PostureEngine.UPDATE_INTERVAL, mEngine.check(BAD, ++mSequence));
+        assertEquals(2, mSamples.size());
+    }
+
+    /**
+     * Move the clock on and check with a new reading, count times.
+     */
+    private void tick(int z, int count, long interval) {
+        for (int i = 0; i < count; i++) {
+            mClock.advance(interval);
+            mEngine.check(z, ++mSequence);
+        }
+    }
+
+    private void assertAlerts(PostureEngine.Alert... expected) {
+        assertEquals(Arrays.asList(expected), mAlerts);
+    }
+}
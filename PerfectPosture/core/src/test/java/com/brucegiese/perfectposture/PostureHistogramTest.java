@@ -0,0 +1,142 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostureHistogramTest {
+
+    @Test
+    public void percentilesUseTheNearestRank() {
+        PostureHistogram histogram = new PostureHistogram();
+        for (int value = 100; value >= 1; value--) {
+            histogram.add(value);
+        }
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(1, histogram.percentile(0.01));
+        assertEquals(50, histogram.percentile(0.5));
+        assertEquals(51, histogram.percentile(0.505));
+        assertEquals(90, histogram.percentile(0.9));
+        assertEquals(100, histogram.percentile(1));
+    }
+
+    @Test
+    public void percentileOfRepeatedValues() {
+        PostureHistogram histogram = new PostureHistogram();
+        for (int i = 0; i < 3; i++) {
+            histogram.add(-20);
+        }
+        histogram.add(35);
+        assertEquals(-20, histogram.percentile(0.75));
+        assertEquals(35, histogram.percentile(0.76));
+        assertEquals(Integer.MAX_VALUE, new PostureHistogram().percentile(0.5));
+    }
+
+    @Test
+    public void valuesOutsideTheRangeCountAtTheEnds() {
+        PostureHistogram histogram = new PostureHistogram();
+        histogram.add(500);
+        histogram.add(PostureEngine.NO_READING);
+        histogram.add(-500);
+        assertEquals(2, histogram.getCount(PostureHistogram.MAX_VALUE));
+        assertEquals(1, histogram.getCount(PostureHistogram.MIN_VALUE));
+        assertEquals(PostureHistogram.MAX_VALUE, histogram.percentile(1));
+        assertEquals(3, histogram.getTotal());
+    }
+
+    @Test
+    public void removeAndMerge() {
+        PostureHistogram a = new PostureHistogram();
+        a.add(5);
+        a.add(5);
+        a.remove(5);
+        a.remove(6);                                    // never added, so nothing happens
+        assertEquals(1, a.getCount(5));
+        assertEquals(1, a.getTotal());
+
+        PostureHistogram b = new PostureHistogram();
+        b.add(5);
+        b.add(-5);
+        a.merge(b);
+        assertEquals(2, a.getCount(5));
+        assertEquals(1, a.getCount(-5));
+        assertEquals(3, a.getTotal());
+
+        a.clear();
+        assertEquals(0, a.getTotal());
+        assertEquals(0, a.getCount(5));
+    }
+
+    @Test
+    public void serializedRoundTrip() {
+        Random random = new Random(3);
+        PostureHistogram histogram = new PostureHistogram();
+        for (int i = 0; i < 100000; i++) {
+            // Mostly near upright, with the odd big count and the odd value far out
+            histogram.add((int) (random.nextGaussian() * 15));
+        }
+        histogram.add(PostureHistogram.MIN_VALUE);
+        histogram.add(PostureHistogram.MAX_VALUE);
+
+        PostureHistogram copy = new PostureHistogram();
+        assertTrue(copy.mergeBytes(histogram.toBytes()));
+        assertSameCounts(histogram, copy);
+
+        // Merging the bytes adds to what's there
+        assertTrue(copy.mergeBytes(histogram.toBytes()));
+        assertEquals(2 * histogram.getTotal(), copy.getTotal());
+        assertEquals(2 * histogram.getCount(0), copy.getCount(0));
+    }
+
+    @Test
+    public void emptyIsSmall() {
+        PostureHistogram empty = new PostureHistogram();
+        byte[] bytes = empty.toBytes();
+        assertEquals(2, bytes.length);
+        PostureHistogram copy = new PostureHistogram();
+        assertTrue(copy.mergeBytes(bytes));
+        assertEquals(0, copy.getTotal());
+
+        // Only the values which were seen are written
+        empty.add(7);
+        assertEquals(4, empty.toBytes().length);
+    }
+
+    @Test
+    public void rejectsBadData() {
+        PostureHistogram histogram = new PostureHistogram();
+        for (int value = -30; value <= 30; value += 3) {
+            histogram.add(value);
+        }
+        byte[] bytes = histogram.toBytes();
+        PostureHistogram target = new PostureHistogram();
+        target.add(1);
+
+        for (int length = 0; length < bytes.length; length++) {
+            assertFalse("length " + length, target.mergeBytes(Arrays.copyOf(bytes, length)));
+        }
+        byte[] version = bytes.clone();
+        version[0]++;
+        assertFalse(target.mergeBytes(version));
+
+        // A value delta which runs off the end of the range
+        byte[] outOfRange = new byte[] {1, 1, (byte) 0xff, 0x01, 1};
+        assertFalse(target.mergeBytes(outOfRange));
+
+        // Nothing was added by any of them
+        assertEquals(1, target.getTotal());
+        assertEquals(1, target.getCount(1));
+    }
+
+    private static void assertSameCounts(PostureHistogram expected, PostureHistogram actual) {
+        assertEquals(expected.getTotal(), actual.getTotal());
+        for (int value = PostureHistogram.MIN_VALUE; value <= PostureHistogram.MAX_VALUE; value++) {
+            assertEquals("value " + value, expected.getCount(value), actual.getCount(value));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * These run on real threads and the real clock, so the waits are generous.  Each test has its
+ * own scheduler; the workers are daemon threads, so they're just left behind.
+ */
+public class PostureSchedulerTest {
+    private static final long TIMEOUT = 5000;           // units of ms
+
+    @Test
+    public void runsSubmittedTasks() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 2);
+        CountDownLatch ran = new CountDownLatch(2);
+        PostureScheduler.Task normal = scheduler.submit(countDown(ran), PostureScheduler.Priority.NORMAL);
+        PostureScheduler.Task low = scheduler.submit(countDown(ran), PostureScheduler.Priority.LOW);
+        await(ran);
+        waitUntilDone(normal);
+        waitUntilDone(low);
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void normalTasksGoFirst() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch releaseOther = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        scheduler.submit(block(started, release), PostureScheduler.Priority.NORMAL);
+        scheduler.submit(block(started, releaseOther), PostureScheduler.Priority.NORMAL);
+        await(started);                                 // both workers are busy
+
+        List<String> order = new ArrayList<String>();
+        CountDownLatch ran = new CountDownLatch(2);
+        scheduler.submit(record(order, "low", ran), PostureScheduler.Priority.LOW);
+        scheduler.submit(record(order, "normal", ran), PostureScheduler.Priority.NORMAL);
+        release.countDown();
+        await(ran);
+        releaseOther.countDown();
+        synchronized (order) {
+            assertEquals(Arrays.asList("normal", "low"), order);
+        }
+    }
+
+    @Test
+    public void lowTasksLeaveAWorkerFree() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(block(started, release), PostureScheduler.Priority.LOW);
+        await(started);
+
+        CountDownLatch secondLow = new CountDownLatch(1);
+        scheduler.submit(countDown(secondLow), PostureScheduler.Priority.LOW);
+        CountDownLatch normal = new CountDownLatch(1);
+        scheduler.submit(countDown(normal), PostureScheduler.Priority.NORMAL);
+        await(normal);                                  // the last worker was kept for it
+        assertFalse(secondLow.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        await(secondLow);
+    }
+
+    @Test
+    public void delayedTaskWaitsForItsDelay() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 1);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        scheduler.schedule(countDown(ran), PostureScheduler.Priority.NORMAL, 200, 0);
+        await(ran);
+        assertTrue((System.nanoTime() - start) / 1000000 >= 200);
+    }
+
+    @Test
+    public void slackLetsATaskWaitForOtherWork() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 2);
+        CountDownLatch delayed = new CountDownLatch(1);
+        scheduler.schedule(countDown(delayed), PostureScheduler.Priority.LOW, 50, 60000);
+        // It's due, but nothing wakes the workers until its slack runs out
+        assertFalse(delayed.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, scheduler.getQueueDepth());
+
+        // Other work wakes them, and the due task goes along with it
+        scheduler.submit(countDown(new CountDownLatch(1)), PostureScheduler.Priority.NORMAL);
+        await(delayed);
+    }
+
+    @Test
+    public void fixedRateUntilCancelled() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 1);
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch three = new CountDownLatch(3);
+        PostureScheduler.Task task = scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                three.countDown();
+            }
+        }, PostureScheduler.Priority.NORMAL, 50, 0);
+        await(three);
+        task.cancel();
+        assertTrue(task.isCancelled());
+        waitUntilDone(task);
+        int after = runs.get();
+        Thread.sleep(200);
+        assertEquals(after, runs.get());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+
+    @Test
+    public void cancelledBeforeItRuns() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 1);
+        CountDownLatch ran = new CountDownLatch(1);
+        PostureScheduler.Task task = scheduler.schedule(countDown(ran),
+                PostureScheduler.Priority.NORMAL, 100, 0);
+        assertEquals(1, scheduler.getQueueDepth());
+        task.cancel();
+        assertTrue(task.isDone());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertFalse(ran.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void errorIsKeptAndTheWorkerCarriesOn() throws InterruptedException {
+        PostureScheduler scheduler = new PostureScheduler("test", 1);
+        final RuntimeException error = new IllegalStateException("on purpose");
+        PostureScheduler.Task failing = scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+                throw error;
+            }
+        }, PostureScheduler.Priority.NORMAL);
+        CountDownLatch ran = new CountDownLatch(1);
+        PostureScheduler.Task next = scheduler.submit(countDown(ran), PostureScheduler.Priority.NORMAL);
+        await(ran);
+        waitUntilDone(failing);
+        waitUntilDone(next);
+        assertEquals(error, failing.getError());
+        assertNull(next.getError());
+    }
+
+    @Test
+    public void periodMustBePositive() {
+        try {
+            new PostureScheduler("test", 1).scheduleAtFixedRate(countDown(new CountDownLatch(1)),
+                    PostureScheduler.Priority.NORMAL, 0, 0);
+            fail("scheduled with no period");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static Runnable block(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name,
+                                   final CountDownLatch ran) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (order) {
+                    order.add(name);
+                }
+                ran.countDown();
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) throws InterruptedException {
+        assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A task is only marked done after its run returns, which is just after a latch in it.
+     */
+    private static void waitUntilDone(PostureScheduler.Task task) throws InterruptedException {
+        long end = System.nanoTime() / 1000000 + TIMEOUT;
+        while (!task.isDone()) {
+            assertTrue(System.nanoTime() / 1000000 < end);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PostureStatsTest {
+    private static final long INTERVAL = 1000;              // units of ms
+    private static final long TIME_CONSTANT = 10000;        // units of ms
+    private static final double DELTA = 1e-9;
+
+    private PostureStats mStats;
+    private final PostureStats.Summary mSummary = new PostureStats.Summary();
+    private long mTime;                                     // units of ms
+
+    @Before
+    public void setUp() {
+        mStats = new PostureStats(INTERVAL, TIME_CONSTANT);
+    }
+
+    @Test
+    public void eachWindowHasItsOwnSamples() {
+        long now = add(20 * 60, 0);                     // twenty minutes at 1 Hz
+        mStats.read(PostureStats.Window.ONE_MINUTE, now, mSummary);
+        assertEquals(60, mSummary.count);
+        assertEquals(60 * INTERVAL, mSummary.totalTime);
+        mStats.read(PostureStats.Window.FIFTEEN_MINUTES, now, mSummary);
+        assertEquals(15 * 60, mSummary.count);
+        mStats.read(PostureStats.Window.SESSION, now, mSummary);
+        assertEquals(20 * 60, mSummary.count);
+
+        // Reading later drops what has got too old
+        mStats.read(PostureStats.Window.ONE_MINUTE, now + 30000, mSummary);
+        assertEquals(30, mSummary.count);
+        mStats.read(PostureStats.Window.SESSION, now + 30000, mSummary);
+        assertEquals(20 * 60, mSummary.count);
+    }
+
+    @Test
+    public void badFraction() {
+        long now = 0;
+        for (int i = 0; i < 60; i++) {
+            now += INTERVAL;
+            mStats.update(now, i, i % 4 != 0, INTERVAL);
+        }
+        mStats.read(PostureStats.Window.ONE_MINUTE, now, mSummary);
+        assertEquals(0.25, mSummary.getBadFraction(), DELTA);
+        assertEquals(29.5, mSummary.mean, DELTA);
+        assertEquals((60 * 60 - 1) / 12.0, mSummary.variance, DELTA);
+        assertEquals(Math.sqrt(mSummary.variance), mSummary.getStandardDeviation(), DELTA);
+    }
+
+    @Test
+    public void movingAverageIsWeightedByTime() {
+        mStats.update(0, 10, true, INTERVAL);
+        mStats.read(PostureStats.Window.SESSION, 0, mSummary);
+        assertEquals(10, mSummary.movingAverage, DELTA);        // starts at the first value
+
+        // A sample standing for one time constant moves it 1 - 1/e of the way
+        mStats.update(TIME_CONSTANT, 20, true, TIME_CONSTANT);
+        mStats.read(PostureStats.Window.SESSION, TIME_CONSTANT, mSummary);
+        assertEquals(20 - 10 * Math.exp(-1), mSummary.movingAverage, DELTA);
+    }
+
+    @Test
+    public void percentilesFollowTheWindow() {
+        long now = add(60, 0);                          // a minute of 0
+        now = add(30, 10);                              // then half a minute of 10
+        assertEquals(0, mStats.percentile(PostureStats.Window.ONE_MINUTE, now, 0.5));
+        assertEquals(10, mStats.percentile(PostureStats.Window.ONE_MINUTE, now, 0.51));
+        assertEquals(30, mStats.getCount(PostureStats.Window.ONE_MINUTE, now, 0));
+        assertEquals(60, mStats.getCount(PostureStats.Window.SESSION, now, 0));
+        assertEquals(0, mStats.percentile(PostureStats.Window.SESSION, now, 0.6));
+        assertEquals(Integer.MAX_VALUE,
+                mStats.percentile(PostureStats.Window.ONE_MINUTE, now + 60000, 0.5));
+    }
+
+    @Test
+    public void resetStartsANewSession() {
+        long now = add(100, 5);
+        mStats.reset();
+        mStats.read(PostureStats.Window.SESSION, now, mSummary);
+        assertEquals(0, mSummary.count);
+        assertEquals(0, mSummary.movingAverage, DELTA);
+        mStats.update(now + INTERVAL, -7, true, INTERVAL);
+        mStats.read(PostureStats.Window.SESSION, now + INTERVAL, mSummary);
+        assertEquals(-7, mSummary.movingAverage, DELTA);
+    }
+
+    /**
+     * Add samples of one value at 1 Hz.
+     * @return  the time of the last one, units of ms
+     */
+    private long add(int count, int value) {
+        for (int i = 0; i < count; i++) {
+            mTime += INTERVAL;
+            mStats.update(mTime, value, true, INTERVAL);
+        }
+        return mTime;
+    }
+}
@@ -0,0 +1,283 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PyramidSampleStoreTest {
+    private static final int PER_SEGMENT = 500;
+
+    private File mDirectory;
+    private File mLogDirectory;
+    private File mPyramidDirectory;
+    private PyramidSampleStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mLogDirectory = new File(mDirectory, "log");
+        mPyramidDirectory = new File(mDirectory, "pyramid");
+        assertTrue(mLogDirectory.mkdir());
+        mStore = open();
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void summarize() throws IOException {
+        TestSamples.append(mStore, 0, 1000);
+        TestSamples.append(mStore, 1000, 37);
+        assertSummaries();
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        TestSamples.append(mStore, 0, 1000);
+        TestSamples.append(mStore, 1000, 37);
+        reopenStore();
+        assertSummaries();
+        TestSamples.append(mStore, 1037, 100);
+        assertSummaries();
+    }
+
+    @Test
+    public void catchesUpWithStore() throws IOException {
+        // Killed after the samples were stored but before the pyramid got them
+        TestSamples.append(mStore, 0, 300);
+        mStore.close();
+        MappedSampleLog log = new MappedSampleLog(mLogDirectory, PER_SEGMENT);
+        TestSamples.append(log, 300, 211);
+        log.close();
+        mStore = open();
+        assertSummaries();
+        TestSamples.append(mStore, 511, 20);
+        assertSummaries();
+    }
+
+    @Test
+    public void buildsAChunkAtATime() throws IOException {
+        TestSamples.append(mStore, 0, 10000);
+        mStore.catchUp();
+        mStore.close();
+        assertTrue(new File(mPyramidDirectory, "pyramid.hdr").delete());
+        mStore = open();
+        // Appends don't wait for the pyramid to be built, and it picks them up later
+        TestSamples.append(mStore, 10000, 5);
+        int chunks = 1;
+        while (!mStore.catchUpChunk()) {
+            TestSamples.append(mStore, 10000 + chunks * 5, 5);
+            chunks++;
+        }
+        assertTrue(chunks >= 3);
+        assertEquals(10000 + chunks * 5, mStore.size());
+        TestSamples.append(mStore, mStore.size(), 7);        // straight into the pyramid now
+        assertTrue(mStore.catchUpChunk());
+        assertSummaries();
+    }
+
+    @Test
+    public void rebuildsDamagedHeader() throws IOException {
+        TestSamples.append(mStore, 0, 700);
+        mStore.catchUp();
+        mStore.close();
+        TestSamples.corrupt(new File(mPyramidDirectory, "pyramid.hdr"), 0);
+        mStore = open();
+        assertSummaries();
+    }
+
+    @Test
+    public void rebuildsMissingHeader() throws IOException {
+        TestSamples.append(mStore, 0, 700);
+        mStore.catchUp();
+        mStore.close();
+        assertTrue(new File(mPyramidDirectory, "pyramid.hdr").delete());
+        mStore = open();
+        assertSummaries();
+    }
+
+    @Test
+    public void rewriteFlags() throws IOException {
+        TestSamples.append(mStore, 0, 600);
+        SampleBatch batch = new SampleBatch(300);
+        mStore.read(123, batch);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.goodPosture[i] = !batch.goodPosture[i];
+        }
+        mStore.rewriteFlags(batch);
+        assertSummaries();
+        reopenStore();
+        assertSummaries();
+    }
+
+    @Test
+    public void dropOldest() throws IOException {
+        TestSamples.append(mStore, 0, 1600);
+        assertTrue(mStore.dropOldest(TestSamples.START + 1100 * TestSamples.PERIOD) > 0);
+        assertTrue(mStore.dropOldest(TestSamples.START + 1100 * TestSamples.PERIOD) > 0);
+        assertEquals(1000, mStore.firstIndex());
+        assertSummaries();
+
+        RollupBucket total = new RollupBucket();
+        mStore.summarize(0, 500, total);
+        assertEquals(0, total.count);
+        reopenStore();
+        assertSummaries();
+    }
+
+    @Test
+    public void clear() throws IOException {
+        TestSamples.append(mStore, 0, 600);
+        mStore.clear();
+        RollupBucket total = new RollupBucket();
+        mStore.summarize(0, Long.MAX_VALUE, total);
+        assertEquals(0, total.count);
+        assertEquals(0, mStore.series(0, Long.MAX_VALUE, 100).size());
+        TestSamples.append(mStore, 0, 100);
+        assertSummaries();
+    }
+
+    @Test
+    public void summarizeDates() throws IOException {
+        TestSamples.append(mStore, 0, 1000);
+        SampleBatch all = TestSamples.readAll(mStore);
+        Random random = new Random(1);
+        RollupBucket total = new RollupBucket();
+        for (int i = 0; i < 100; i++) {
+            long from = TestSamples.START + random.nextInt(1100) * TestSamples.PERIOD
+                    - random.nextInt(2000);
+            long to = from + random.nextInt(500) * TestSamples.PERIOD;
+            mStore.summarizeDates(from, to, total);
+            RollupBucket expected = new RollupBucket();
+            for (int j = 0; j < all.size(); j++) {
+                if (all.dates[j] >= from && all.dates[j] < to
+                        && all.values[j] != PostureEngine.NO_READING) {
+                    expected.add(all.values[j], all.goodPosture[j]);
+                }
+            }
+            String range = from + " to " + to;
+            assertEquals(range, expected.count, total.count);
+            assertEquals(range, expected.sum, total.sum);
+            assertEquals(range, expected.goodCount, total.goodCount);
+            if (expected.count > 0) {
+                assertEquals(range, expected.min, total.min);
+                assertEquals(range, expected.max, total.max);
+            }
+        }
+    }
+
+    @Test
+    public void findOutside() throws IOException {
+        TestSamples.append(mStore, 0, 3000);
+        SampleBatch all = TestSamples.readAll(mStore);
+        Random random = new Random(2);
+        int none = 0;
+        for (int i = 0; i < 300; i++) {
+            long from = random.nextInt(3000);
+            long to = from + random.nextInt(3000 - (int) from + 1);
+            int low = -60 + random.nextInt(25);
+            int high = 35 + random.nextInt(25);
+            long expected = -1;
+            for (long index = from; index < to && expected < 0; index++) {
+                int value = all.values[(int) index];
+                if (value != PostureEngine.NO_READING && (value < low || value > high)) {
+                    expected = index;
+                }
+            }
+            if (expected < 0) {
+                none++;
+            }
+            assertEquals(from + " to " + to + " outside " + low + ".." + high,
+                    expected, mStore.findOutside(from, to, low, high));
+        }
+        assertTrue(none > 0 && none < 300);
+        // Samples with no reading don't count as outside any limits
+        assertEquals(-1, mStore.findOutside(0, 3000, -1000, 1000));
+    }
+
+    @Test
+    public void series() throws IOException {
+        TestSamples.append(mStore, 0, 1037);
+        RollupBucket expected = bruteForce(0, 1037);
+        for (int maxBuckets = 1; maxBuckets <= 100; maxBuckets *= 3) {
+            List<RollupBucket> series = mStore.series(0, 1037, maxBuckets);
+            assertTrue(series.size() <= maxBuckets + 1);        // the open one is extra
+            RollupBucket total = new RollupBucket();
+            long start = 0;
+            for (RollupBucket bucket : series) {
+                assertTrue(bucket.start >= start);
+                start = bucket.start;
+                total.merge(bucket);
+            }
+            assertEquals(expected.count, total.count);
+            assertEquals(expected.sum, total.sum);
+            assertEquals(expected.goodCount, total.goodCount);
+        }
+    }
+
+    /**
+     * Check summarize() against adding up the samples, over ranges of all sorts of lengths.
+     */
+    private void assertSummaries() throws IOException {
+        long first = mStore.firstIndex();
+        long size = mStore.size();
+        SampleBatch all = TestSamples.readAll(mStore);
+        Random random = new Random(size);
+        RollupBucket total = new RollupBucket();
+        for (int i = 0; i < 200; i++) {
+            long from = first + random.nextInt((int) (size - first));
+            long to = from + random.nextInt((int) (size - from) + 1);
+            if (i == 0) {
+                from = first;
+                to = size;
+            }
+            mStore.summarize(from, to, total);
+            RollupBucket expected = bruteForce(all, from, to);
+            String range = from + " to " + to;
+            assertEquals(range, expected.count, total.count);
+            assertEquals(range, expected.sum, total.sum);
+            assertEquals(range, expected.sumOfSquares, total.sumOfSquares);
+            assertEquals(range, expected.goodCount, total.goodCount);
+            if (expected.count > 0) {
+                assertEquals(range, expected.min, total.min);
+                assertEquals(range, expected.max, total.max);
+            }
+        }
+    }
+
+    private RollupBucket bruteForce(long from, long to) throws IOException {
+        return bruteForce(TestSamples.readAll(mStore), from, to);
+    }
+
+    private static RollupBucket bruteForce(SampleBatch all, long from, long to) {
+        RollupBucket bucket = new RollupBucket();
+        for (long index = from; index < to; index++) {
+            int i = (int) (index - all.getFirstIndex());
+            if (all.values[i] != PostureEngine.NO_READING) {
+                bucket.add(all.values[i], all.goodPosture[i]);
+            }
+        }
+        return bucket;
+    }
+
+    private PyramidSampleStore open() throws IOException {
+        return new PyramidSampleStore(new MappedSampleLog(mLogDirectory, PER_SEGMENT),
+                mPyramidDirectory);
+    }
+
+    private void reopenStore() throws IOException {
+        mStore.close();
+        mStore = open();
+    }
+}
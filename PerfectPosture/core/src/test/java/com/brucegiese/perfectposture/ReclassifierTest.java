@@ -0,0 +1,199 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReclassifierTest {
+    private static final int SAMPLES = 3 * Reclassifier.CHUNK_SIZE + 100;
+    private static final int LOW = -10;                 // units of degrees
+    private static final int HIGH = 10;                // units of degrees
+
+    private File mDirectory;
+    private MappedSampleLog mStore;
+    private MemoryRollupStore mRollupStore;
+    private RollupAggregator mRollups;
+    private final PostureScheduler mScheduler = new PostureScheduler("reclassify-test", 3);
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mStore = new MappedSampleLog(mDirectory, 5000);
+        mRollupStore = new MemoryRollupStore();
+        mRollups = new RollupAggregator(mRollupStore);
+        SampleBatch samples = TestSamples.make(0, SAMPLES);
+        mStore.append(samples);
+        for (int i = 0; i < samples.size(); i++) {
+            mRollups.add(samples.dates[i], samples.values[i], samples.goodPosture[i]);
+        }
+        mRollups.flush();
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void reclassifiesEverything() throws Exception {
+        long expectedChanges = changesFrom(0);
+        assertTrue(expectedChanges > 0);
+        Progress progress = new Progress(-1);
+        Reclassifier job = new Reclassifier(mStore, mRollups, LOW, HIGH, 0, 2, progress);
+        progress.run(job);
+
+        assertNull(job.getError());
+        assertTrue(job.isFinished());
+        assertEquals(expectedChanges, job.getChanged());
+        assertEquals(SAMPLES, progress.resumeIndex.get());
+        assertFlags(0);
+        assertRollupsMatch();
+    }
+
+    @Test
+    public void startsFromTheResumeIndex() throws Exception {
+        long from = Reclassifier.CHUNK_SIZE + 10;
+        long expectedChanges = changesFrom(from);
+        Progress progress = new Progress(-1);
+        Reclassifier job = new Reclassifier(mStore, mRollups, LOW, HIGH, from, 2, progress);
+        progress.run(job);
+
+        assertTrue(job.isFinished());
+        assertEquals(expectedChanges, job.getChanged());
+        assertEquals(SAMPLES - from, progress.total.get());
+        assertFlags(from);
+
+        // The ones before it weren't touched
+        SampleBatch before = new SampleBatch((int) from);
+        mStore.read(0, before);
+        TestSamples.assertSamples(0, before);
+    }
+
+    @Test
+    public void carriesOnAfterBeingCancelled() throws Exception {
+        long expectedChanges = changesFrom(0);
+        Progress first = new Progress(Reclassifier.CHUNK_SIZE);
+        Reclassifier job = new Reclassifier(mStore, mRollups, LOW, HIGH, 0, 1, first);
+        first.run(job);
+        assertFalse(job.isFinished());
+        long resume = first.resumeIndex.get();
+        assertTrue(resume > 0 && resume < SAMPLES);
+        assertEquals(0, resume % Reclassifier.CHUNK_SIZE);
+
+        Progress second = new Progress(-1);
+        Reclassifier rest = new Reclassifier(mStore, mRollups, LOW, HIGH, resume, 1, second);
+        second.run(rest);
+        assertTrue(rest.isFinished());
+        assertEquals(SAMPLES, second.resumeIndex.get());
+        assertEquals(expectedChanges, job.getChanged() + rest.getChanged());
+        assertFlags(0);
+        assertRollupsMatch();
+    }
+
+    @Test
+    public void nothingToDo() throws Exception {
+        Progress progress = new Progress(-1);
+        Reclassifier job = new Reclassifier(mStore, mRollups, LOW, HIGH, SAMPLES, 2, progress);
+        progress.run(job);
+        assertTrue(job.isFinished());
+        assertEquals(0, job.getChanged());
+    }
+
+    /**
+     * @return  how many samples from an index on have the wrong flag for LOW to HIGH
+     */
+    private static long changesFrom(long from) {
+        SampleBatch samples = TestSamples.make(0, SAMPLES);
+        long count = 0;
+        for (int i = (int) from; i < SAMPLES; i++) {
+            if (samples.goodPosture[i] != isGood(samples.values[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void assertFlags(long from) throws IOException {
+        SampleBatch all = TestSamples.readAll(mStore);
+        for (int i = (int) from; i < all.size(); i++) {
+            assertEquals("sample " + i, isGood(all.values[i]), all.goodPosture[i]);
+        }
+    }
+
+    /**
+     * Every hour's good count agrees with the flags in the store.
+     */
+    private void assertRollupsMatch() throws IOException {
+        mRollups.flush();
+        SampleBatch all = TestSamples.readAll(mStore);
+        RollupBucket hour = null;
+        for (int i = 0; i <= all.size(); i++) {
+            long start = i < all.size() ? RollupLevel.HOUR.bucketStart(all.dates[i]) : -1;
+            if (hour != null && hour.start != start) {
+                assertEquals("hour " + hour.start, hour.goodCount,
+                        mRollupStore.get(RollupLevel.HOUR, hour.start).goodCount);
+                hour = null;
+            }
+            if (i < all.size()) {
+                if (hour == null) {
+                    hour = new RollupBucket(RollupLevel.HOUR, start);
+                }
+                hour.add(all.values[i], all.goodPosture[i]);
+            }
+        }
+    }
+
+    private static boolean isGood(int value) {
+        return value >= LOW && value <= HIGH;
+    }
+
+    /**
+     * Keeps the latest progress, and can cancel the job once enough is done.
+     */
+    private final class Progress implements Reclassifier.Listener {
+        final AtomicLong resumeIndex = new AtomicLong(-1);
+        final AtomicLong total = new AtomicLong(-1);
+        private final long mCancelAfter;
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile Reclassifier mJob;
+
+        /**
+         * @param cancelAfter   cancel once this many are done, or -1
+         */
+        Progress(long cancelAfter) {
+            mCancelAfter = cancelAfter;
+        }
+
+        void run(Reclassifier job) throws InterruptedException {
+            mJob = job;
+            job.start(mScheduler);
+            assertTrue(mFinished.await(30, TimeUnit.SECONDS));
+        }
+
+        @Override
+        public synchronized void onProgress(long resume, long done, long all) {
+            resumeIndex.set(Math.max(resumeIndex.get(), resume));
+            total.set(all);
+            if (mCancelAfter >= 0 && done >= mCancelAfter) {
+                mJob.cancel();
+            }
+        }
+
+        @Override
+        public void onFinished(Reclassifier job) {
+            mFinished.countDown();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RetentionTaskTest {
+    private static final long DAY = ColumnarSampleStore.MS_PER_DAY;
+
+    private File mDirectory;
+    private ColumnarSampleStore mStore;
+    private PostureScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mStore = new ColumnarSampleStore(mDirectory, 64);
+        mScheduler = new PostureScheduler("retention-test", 2);
+        for (int day = 10; day < 15; day++) {
+            SampleBatch batch = new SampleBatch(20);
+            for (int i = 0; i < 20; i++) {
+                batch.add(day * DAY + i * TestSamples.PERIOD, i, true);
+            }
+            mStore.append(batch);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void dropsDaysBeforeTheCutoff() throws Exception {
+        RetentionTask task = run(new RetentionTask(mStore, 13 * DAY, 0));
+        assertTrue(task.isDone());
+        assertNull(task.getError());
+        assertEquals(3, task.getDropped());
+        assertTrue(task.getReclaimedBytes() > 0);
+        assertEquals(60, mStore.firstIndex());
+        assertEquals(100, mStore.size());
+    }
+
+    @Test
+    public void nothingOldEnough() throws Exception {
+        RetentionTask task = run(new RetentionTask(mStore, 10 * DAY, 0));
+        assertEquals(0, task.getDropped());
+        assertEquals(0, mStore.firstIndex());
+    }
+
+    @Test
+    public void cancelledBeforeStarting() throws Exception {
+        RetentionTask task = new RetentionTask(mStore, 13 * DAY, 0);
+        task.cancel();
+        run(task);
+        assertTrue(task.isDone());
+        assertEquals(0, task.getDropped());
+        assertEquals(0, mStore.firstIndex());
+    }
+
+    private RetentionTask run(RetentionTask task) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        task.start(mScheduler, new RetentionTask.Listener() {
+            @Override
+            public void onFinished(RetentionTask task) {
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        return task;
+    }
+}
@@ -0,0 +1,124 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RollupAggregatorTest {
+    private static final long MINUTE = RollupLevel.MINUTE.getLength();
+    private static final long HOUR = RollupLevel.HOUR.getLength();
+    private static final long DAY = RollupLevel.DAY.getLength();
+    private static final long START = 100 * DAY;        // units of ms since epoch
+
+    private MemoryRollupStore mStore;
+    private RollupAggregator mAggregator;
+
+    @Before
+    public void setUp() {
+        mStore = new MemoryRollupStore();
+        mAggregator = new RollupAggregator(mStore);
+    }
+
+    @Test
+    public void writesWhenAMinuteFinishes() throws IOException {
+        mAggregator.add(START, 10, true);
+        mAggregator.add(START + 30000, 20, false);
+        assertEquals(0, mStore.writes);
+        mAggregator.add(START + MINUTE, 30, true);
+        assertEquals(1, mStore.writes);
+
+        RollupBucket minute = mStore.get(RollupLevel.MINUTE, START);
+        assertEquals(2, minute.count);
+        assertEquals(1, minute.goodCount);
+        assertEquals(10, minute.min);
+        assertEquals(20, minute.max);
+        assertEquals(30, minute.sum);
+        assertEquals(500, minute.sumOfSquares);
+        assertEquals(2, mStore.get(RollupLevel.HOUR, START).count);
+        assertEquals(2, mStore.get(RollupLevel.DAY, START).count);
+        assertNull(mStore.get(RollupLevel.MINUTE, START + MINUTE));
+
+        mAggregator.flush();
+        assertEquals(1, mStore.get(RollupLevel.MINUTE, START + MINUTE).count);
+        assertEquals(3, mStore.get(RollupLevel.HOUR, START).count);
+        assertEquals(3, mStore.get(RollupLevel.DAY, START).count);
+    }
+
+    @Test
+    public void carriesOnAfterARestart() throws IOException {
+        mAggregator.add(START + 5 * MINUTE, 1, true);
+        mAggregator.add(START + 6 * MINUTE, 1, true);
+        mAggregator.flush();
+
+        // The service restarted in the middle of the hour
+        mAggregator = new RollupAggregator(mStore);
+        mAggregator.add(START + 6 * MINUTE + 1000, 1, false);
+        mAggregator.add(START + 40 * MINUTE, 1, true);
+        mAggregator.flush();
+        assertEquals(2, mStore.get(RollupLevel.MINUTE, START + 6 * MINUTE).count);
+        assertEquals(4, mStore.get(RollupLevel.HOUR, START).count);
+        assertEquals(3, mStore.get(RollupLevel.HOUR, START).goodCount);
+        assertEquals(4, mStore.get(RollupLevel.DAY, START).count);
+    }
+
+    @Test
+    public void failedWriteIsCounted() throws IOException {
+        mAggregator.add(START, 1, true);
+        mStore.failing = true;
+        mAggregator.add(START + MINUTE, 1, true);        // the sample is still added
+        assertEquals(1, mAggregator.getFailedWrites());
+        assertNull(mStore.get(RollupLevel.MINUTE, START));
+
+        // The hour and day get written with the next minute
+        mStore.failing = false;
+        mAggregator.add(START + 2 * MINUTE, 1, true);
+        assertNull(mStore.get(RollupLevel.MINUTE, START));
+        assertEquals(2, mStore.get(RollupLevel.HOUR, START).count);
+    }
+
+    @Test
+    public void adjustGoodCountsClamps() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            mAggregator.add(START + i * 10000, 1, i < 2);
+        }
+        mAggregator.add(START + HOUR, 1, true);         // the first hour is only stored now
+        assertEquals(2, mStore.get(RollupLevel.HOUR, START).goodCount);
+
+        mAggregator.adjustGoodCounts(Arrays.asList(
+                delta(RollupLevel.MINUTE, START, 100),   // stored
+                delta(RollupLevel.HOUR, START, -100),    // stored
+                delta(RollupLevel.DAY, START, 1),        // open
+                delta(RollupLevel.MINUTE, START + DAY, 5))); // nothing there
+        assertEquals(4, mStore.get(RollupLevel.MINUTE, START).goodCount);
+        assertEquals(0, mStore.get(RollupLevel.HOUR, START).goodCount);
+        assertNull(mStore.get(RollupLevel.MINUTE, START + DAY));
+
+        mAggregator.adjustGoodCounts(Arrays.asList(delta(RollupLevel.DAY, START, 100)));
+        mAggregator.flush();
+        RollupBucket day = mStore.get(RollupLevel.DAY, START);
+        assertEquals(5, day.count);
+        assertEquals(5, day.goodCount);
+    }
+
+    @Test
+    public void clearForgetsTheOpenBuckets() throws IOException {
+        mAggregator.add(START, 1, true);
+        mAggregator.flush();
+        mAggregator.clear();
+        assertNull(mStore.get(RollupLevel.HOUR, START));
+        mAggregator.add(START + 1000, 1, true);
+        mAggregator.flush();
+        assertEquals(1, mStore.get(RollupLevel.HOUR, START).count);
+    }
+
+    private static RollupBucket delta(RollupLevel level, long start, int goodCount) {
+        RollupBucket delta = new RollupBucket(level, start);
+        delta.goodCount = goodCount;
+        return delta;
+    }
+}
@@ -0,0 +1,113 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RollupQueryTest {
+    private static final long MINUTE = RollupLevel.MINUTE.getLength();
+    private static final long HOUR = RollupLevel.HOUR.getLength();
+    private static final long DAY = RollupLevel.DAY.getLength();
+    private static final long START = 100 * DAY;        // units of ms since epoch
+    private static final long PERIOD = 20000;           // units of ms
+    private static final int SAMPLES = (int) (4 * DAY / PERIOD);
+
+    private MemoryRollupStore mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mStore = new MemoryRollupStore();
+        RollupAggregator aggregator = new RollupAggregator(mStore);
+        for (int i = 0; i < SAMPLES; i++) {
+            aggregator.add(START + i * PERIOD, value(i), good(i));
+        }
+        aggregator.flush();
+    }
+
+    @Test
+    public void splitsIntoDaysHoursAndMinutes() throws IOException {
+        long from = START + 5 * HOUR + 30 * MINUTE;
+        long to = START + 3 * DAY + 2 * HOUR + 15 * MINUTE;
+        RollupQuery.summarize(mStore, from, to);
+        assertEquals(Arrays.asList(
+                sum(RollupLevel.MINUTE, from, START + 6 * HOUR),
+                sum(RollupLevel.HOUR, START + 6 * HOUR, START + DAY),
+                sum(RollupLevel.DAY, START + DAY, START + 3 * DAY),
+                sum(RollupLevel.HOUR, START + 3 * DAY, START + 3 * DAY + 2 * HOUR),
+                sum(RollupLevel.MINUTE, START + 3 * DAY + 2 * HOUR, to)), mStore.sums);
+    }
+
+    @Test
+    public void shortRangeOnlyReadsMinutes() throws IOException {
+        long from = START + 10 * HOUR + 5 * MINUTE;
+        RollupQuery.summarize(mStore, from, from + 50 * MINUTE);
+        assertEquals(Arrays.asList(sum(RollupLevel.MINUTE, from, from + 50 * MINUTE)), mStore.sums);
+    }
+
+    @Test
+    public void summaryMatchesTheSamples() throws IOException {
+        Random random = new Random(4);
+        for (int n = 0; n < 50; n++) {
+            long from = START + random.nextInt((int) (4 * DAY / MINUTE)) * MINUTE;
+            long to = from + random.nextInt((int) (2 * DAY / MINUTE)) * MINUTE;
+            RollupBucket expected = new RollupBucket();
+            for (int i = 0; i < SAMPLES; i++) {
+                long date = START + i * PERIOD;
+                if (date >= from && date < to) {
+                    expected.add(value(i), good(i));
+                }
+            }
+            RollupBucket actual = RollupQuery.summarize(mStore, from, to);
+            assertEquals(expected.count, actual.count);
+            assertEquals(expected.goodCount, actual.goodCount);
+            assertEquals(expected.sum, actual.sum);
+            assertEquals(expected.sumOfSquares, actual.sumOfSquares);
+            if (expected.count > 0) {
+                assertEquals(expected.min, actual.min);
+                assertEquals(expected.max, actual.max);
+            }
+        }
+    }
+
+    @Test
+    public void emptyRange() throws IOException {
+        assertEquals(0, RollupQuery.summarize(mStore, START + HOUR, START + HOUR).count);
+        assertEquals(0, RollupQuery.summarize(mStore, START + 2 * HOUR, START + HOUR).count);
+    }
+
+    @Test
+    public void seriesPicksTheFinestLevelThatFits() throws IOException {
+        long from = START + HOUR + 30000;               // part way into a minute
+        List<RollupBucket> minutes = RollupQuery.series(mStore, from, from + 2 * HOUR, 200);
+        assertEquals(121, minutes.size());              // the partial first minute is included
+        assertEquals(START + HOUR, minutes.get(0).start);
+        assertEquals(RollupLevel.MINUTE, minutes.get(0).level);
+
+        List<RollupBucket> hours = RollupQuery.series(mStore, from, from + 2 * HOUR, 100);
+        assertEquals(RollupLevel.HOUR, hours.get(0).level);
+        assertEquals(3, hours.size());
+
+        // Nothing fits, so it's days anyway
+        List<RollupBucket> days = RollupQuery.series(mStore, START, START + 4 * DAY, 2);
+        assertEquals(RollupLevel.DAY, days.get(0).level);
+        assertEquals(4, days.size());
+    }
+
+    private static String sum(RollupLevel level, long from, long to) {
+        return level + " " + from + " " + to;
+    }
+
+    private static int value(int i) {
+        return (i * 7) % 91 - 45;
+    }
+
+    private static boolean good(int i) {
+        return i % 3 != 0;
+    }
+}
@@ -0,0 +1,122 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBlockCodecTest {
+
+    @Test
+    public void roundTrip() {
+        SampleBatch samples = TestSamples.make(0, 1000);
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(1000));
+        int length = SampleBlockCodec.encode(samples, 0, 1000, 5000, buffer);
+        assertEquals(length, buffer.position());
+
+        buffer.flip();
+        SampleBatch decoded = new SampleBatch(1000);
+        assertTrue(SampleBlockCodec.decode(buffer, decoded));
+        assertEquals(length, buffer.position());
+        assertEquals(5000, decoded.getFirstIndex());
+        assertEquals(1000, decoded.size());
+        TestSamples.assertSamples(0, decoded);
+    }
+
+    @Test
+    public void roundTripOddSamples() {
+        // Dates going backward, huge jumps in value, and a single sample
+        SampleBatch samples = new SampleBatch(5);
+        samples.add(1000, Integer.MIN_VALUE, true);
+        samples.add(500, PostureEngine.NO_READING, false);
+        samples.add(Long.MAX_VALUE / 2, 0, false);
+        samples.add(0, -1, true);
+        samples.add(0, 1, true);
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(5) * 2);
+        SampleBlockCodec.encode(samples, 0, 5, 0, buffer);
+        SampleBlockCodec.encode(samples, 3, 1, 3, buffer);
+
+        buffer.flip();
+        SampleBatch decoded = new SampleBatch(5);
+        assertTrue(SampleBlockCodec.decode(buffer, decoded));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(samples.dates[i], decoded.dates[i]);
+            assertEquals(samples.values[i], decoded.values[i]);
+            assertEquals(samples.goodPosture[i], decoded.goodPosture[i]);
+        }
+        assertTrue(SampleBlockCodec.decode(buffer, decoded));
+        assertEquals(3, decoded.getFirstIndex());
+        assertEquals(1, decoded.size());
+        assertEquals(0, decoded.dates[0]);
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void header() {
+        SampleBatch samples = TestSamples.make(0, 100);
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(100));
+        int length = SampleBlockCodec.encode(samples, 10, 80, 10, buffer);
+        buffer.flip();
+
+        SampleBlockCodec.Header header = new SampleBlockCodec.Header();
+        assertTrue(SampleBlockCodec.readHeader(buffer, header));
+        assertEquals(0, buffer.position());
+        assertEquals(80, header.count);
+        assertEquals(10, header.firstIndex);
+        assertEquals(samples.dates[10], header.firstDate);
+        assertEquals(samples.dates[89], header.lastDate);
+        assertEquals(length, header.blockLength());
+        int good = 0;
+        for (int i = 10; i < 90; i++) {
+            if (samples.goodPosture[i]) {
+                good++;
+            }
+        }
+        assertEquals(good, header.goodCount);
+    }
+
+    @Test
+    public void rejectsDamagedBlock() {
+        SampleBatch samples = TestSamples.make(0, 200);
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(200));
+        int length = SampleBlockCodec.encode(samples, 0, 200, 0, buffer);
+        SampleBatch decoded = new SampleBatch(200);
+
+        // Any flipped byte after the magic number is caught by the CRC
+        for (int offset = 4; offset < length; offset += 7) {
+            buffer.put(offset, (byte) ~buffer.get(offset));
+            buffer.position(0);
+            buffer.limit(length);
+            assertFalse("offset " + offset, SampleBlockCodec.decode(buffer, decoded));
+            buffer.put(offset, (byte) ~buffer.get(offset));
+        }
+        buffer.position(0);
+        assertTrue(SampleBlockCodec.decode(buffer, decoded));
+    }
+
+    @Test
+    public void rejectsTornBlock() {
+        SampleBatch samples = TestSamples.make(0, 200);
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(200));
+        int length = SampleBlockCodec.encode(samples, 0, 200, 0, buffer);
+        SampleBatch decoded = new SampleBatch(200);
+
+        for (int cut = 0; cut < length; cut += 13) {
+            buffer.position(0);
+            buffer.limit(cut);
+            assertFalse("length " + cut, SampleBlockCodec.decode(buffer, decoded));
+        }
+    }
+
+    @Test
+    public void rejectsBlockTooBigForBatch() {
+        SampleBatch samples = TestSamples.make(0, 20);
+        ByteBuffer buffer = ByteBuffer.allocate(SampleBlockCodec.maxBlockLength(20));
+        SampleBlockCodec.encode(samples, 0, 20, 0, buffer);
+        buffer.flip();
+        assertFalse(SampleBlockCodec.decode(buffer, new SampleBatch(19)));
+    }
+}
@@ -0,0 +1,178 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SampleExporterTest {
+    private static final int SAMPLES = 3 * SampleExporter.PAGE_SIZE + 500;
+
+    private File mDirectory;
+    private File mFile;
+    private MappedSampleLog mStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = TestSamples.newDirectory();
+        mFile = new File(mDirectory, "export");
+        mStore = new MappedSampleLog(new File(mDirectory, "samples"), 5000);
+        TestSamples.append(mStore, 0, SAMPLES);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.close();
+        TestSamples.delete(mDirectory);
+    }
+
+    @Test
+    public void csvRoundTrip() throws IOException {
+        SampleExporter exporter = new SampleExporter(mStore, SampleExporter.Format.CSV, false, null);
+        assertEquals(SAMPLES, exporter.export(mFile));
+        assertTrue(exporter.isFinished());
+        assertEquals(mFile.length(), exporter.getBytes());
+        TestSamples.assertSamples(0, readCsv(new FileInputStream(mFile)));
+    }
+
+    @Test
+    public void gzippedCsvRoundTrip() throws IOException {
+        SampleExporter exporter = new SampleExporter(mStore, SampleExporter.Format.CSV, true, null);
+        assertEquals(SAMPLES, exporter.export(mFile));
+        assertTrue(mFile.length() < exporter.getBytes());
+        TestSamples.assertSamples(0, readCsv(new GZIPInputStream(new FileInputStream(mFile))));
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        SampleExporter exporter = new SampleExporter(mStore, SampleExporter.Format.BINARY, false, null);
+        assertEquals(SAMPLES, exporter.export(mFile));
+        SampleBatch all = readBinary(new FileInputStream(mFile));
+        assertEquals(0, all.getFirstIndex());
+        TestSamples.assertSamples(0, all);
+    }
+
+    @Test
+    public void gzippedBinaryStartsAtTheFirstIndex() throws IOException {
+        assertTrue(mStore.dropOldest(Long.MAX_VALUE) > 0);      // the first 5000 are gone
+        SampleExporter exporter = new SampleExporter(mStore, SampleExporter.Format.BINARY, true, null);
+        assertEquals(SAMPLES - 5000, exporter.export(mFile));
+        SampleBatch all = readBinary(new GZIPInputStream(new FileInputStream(mFile)));
+        assertEquals(5000, all.getFirstIndex());
+        TestSamples.assertSamples(5000, all);
+    }
+
+    @Test
+    public void cancelledExportIsDeleted() throws IOException {
+        final SampleExporter[] exporter = new SampleExporter[1];
+        exporter[0] = new SampleExporter(mStore, SampleExporter.Format.CSV, false,
+                new SampleExporter.Listener() {
+                    @Override
+                    public void onProgress(long done, long total) {
+                        assertEquals(SAMPLES, total);
+                        exporter[0].cancel();
+                    }
+
+                    @Override
+                    public void onFinished(SampleExporter job) {
+                    }
+                });
+        assertEquals(SampleExporter.PAGE_SIZE, exporter[0].export(mFile));
+        assertFalse(exporter[0].isFinished());
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void exportsOnTheScheduler() throws InterruptedException, IOException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        SampleExporter exporter = new SampleExporter(mStore, SampleExporter.Format.CSV, false,
+                new SampleExporter.Listener() {
+                    @Override
+                    public void onProgress(long done, long total) {
+                    }
+
+                    @Override
+                    public void onFinished(SampleExporter job) {
+                        finished.countDown();
+                    }
+                });
+        exporter.start(new PostureScheduler("export-test", 1), mFile);
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        assertNull(exporter.getError());
+        assertTrue(exporter.isFinished());
+        assertEquals(mFile, exporter.getFile());
+        assertEquals(SAMPLES, readCsv(new FileInputStream(mFile)).size());
+    }
+
+    private static SampleBatch readCsv(InputStream stream) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "US-ASCII"));
+        try {
+            assertEquals("date,value,good", reader.readLine());
+            SampleBatch batch = new SampleBatch(SAMPLES);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                assertEquals(line, 3, fields.length);
+                int value = fields[1].isEmpty() ? PostureEngine.NO_READING : Integer.parseInt(fields[1]);
+                batch.add(Long.parseLong(fields[0]), value, fields[2].equals("1"));
+            }
+            return batch;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return  every sample in the blocks, checking they follow on from each other
+     */
+    private static SampleBatch readBinary(InputStream stream) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(readFully(stream));
+        assertEquals(SampleExporter.BINARY_MAGIC, in.getInt());
+        SampleBatch all = new SampleBatch(SAMPLES);
+        SampleBatch block = new SampleBatch(SampleExporter.PAGE_SIZE);
+        long next = -1;
+        while (in.hasRemaining()) {
+            assertTrue(SampleBlockCodec.decode(in, block));
+            if (next < 0) {
+                all.setFirstIndex(block.getFirstIndex());
+            } else {
+                assertEquals(next, block.getFirstIndex());
+            }
+            next = block.getFirstIndex() + block.size();
+            for (int i = 0; i < block.size(); i++) {
+                all.add(block.dates[i], block.values[i], block.goodPosture[i]);
+            }
+        }
+        return all;
+    }
+
+    private static byte[] readFully(InputStream stream) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.brucegiese.perfectposture;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class StatsWindowTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void oldSamplesSlideOut() {
+        StatsWindow window = new StatsWindow(10000, 100);
+        for (int i = 0; i < 20; i++) {
+            window.add(i * 1000L, i, i % 4 != 0, 1000);
+        }
+        window.expire(19000);                           // 10 to 19 are left
+        assertEquals(10, window.getCount());
+        assertEquals(14.5, window.getMean(), DELTA);
+        assertEquals(8.25, window.getVariance(), DELTA);
+        assertEquals(10000, window.getTotalTime());
+        assertEquals(2000, window.getBadTime());        // 12 and 16
+        assertEquals(10, window.getHistogram().getTotal());
+        assertEquals(0, window.getHistogram().getCount(9));
+
+        window.expire(100000);
+        assertEquals(0, window.getCount());
+        assertEquals(0, window.getVariance(), DELTA);
+        assertEquals(0, window.getTotalTime());
+        assertEquals(0, window.getBadTime());
+    }
+
+    @Test
+    public void matchesTheSamplesInTheWindow() {
+        long length = 30000;
+        StatsWindow window = new StatsWindow(length, 1000);
+        Random random = new Random(9);
+        int count = 5000;
+        long[] times = new long[count];
+        int[] values = new int[count];
+        long time = 0;
+        for (int i = 0; i < count; i++) {
+            time += 200 + random.nextInt(2000);
+            times[i] = time;
+            values[i] = random.nextInt(181) - 90;
+            window.add(time, values[i], true, 1000);
+
+            if (i % 97 == 0) {
+                double sum = 0;
+                int n = 0;
+                for (int j = 0; j <= i; j++) {
+                    if (times[j] > time - length) {
+                        sum += values[j];
+                        n++;
+                    }
+                }
+                double mean = sum / n;
+                double squares = 0;
+                for (int j = 0; j <= i; j++) {
+                    if (times[j] > time - length) {
+                        squares += (values[j] - mean) * (values[j] - mean);
+                    }
+                }
+                assertEquals(n, window.getCount());
+                assertEquals(mean, window.getMean(), 1e-6);
+                assertEquals(squares / n, window.getVariance(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void fullRingDropsTheOldestEarly() {
+        StatsWindow window = new StatsWindow(60000, 3);
+        for (int i = 0; i < 5; i++) {
+            window.add(i * 1000L, i, true, 1000);
+        }
+        assertEquals(3, window.getCount());
+        assertEquals(3.0, window.getMean(), DELTA);
+        assertEquals(2, window.getHistogram().percentile(0));
+    }
+
+    @Test
+    public void noLengthKeepsEverything() {
+        StatsWindow window = new StatsWindow(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            window.add(i * 60000L, i % 10, false, 60000);
+        }
+        window.expire(Long.MAX_VALUE);
+        assertEquals(1000, window.getCount());
+        assertEquals(4.5, window.getMean(), DELTA);
+        assertEquals(1000 * 60000L, window.getBadTime());
+
+        window.clear();
+        assertEquals(0, window.getCount());
+        assertEquals(0, window.getHistogram().getTotal());
+    }
+}
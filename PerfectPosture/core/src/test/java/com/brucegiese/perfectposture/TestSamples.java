@@ -0,0 +1,115 @@
+package com.brucegiese.perfectposture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Samples and scratch directories for the store tests.
+ */
+final class TestSamples {
+    static final long START = 1430000000000L;           // units of ms since epoch
+    static final long PERIOD = 1000;                    // units of ms
+
+    private TestSamples() { }
+
+    /**
+     * Samples a second apart with slowly wandering values, the way the service makes them.
+     * Every 50th sample has no reading.
+     * @param first     number of the first sample, which sets its date and value
+     */
+    static SampleBatch make(long first, int count) {
+        SampleBatch batch = new SampleBatch(count);
+        for (int i = 0; i < count; i++) {
+            long n = first + i;
+            Random random = new Random(n);          // the same sample however they're batched
+            int value = (n % 50 == 49) ? PostureEngine.NO_READING
+                    : (int) (n % 90) - 45 + random.nextInt(3);
+            batch.add(START + n * PERIOD, value, random.nextInt(4) != 0);
+        }
+        return batch;
+    }
+
+    static void append(SampleStore store, long first, int count) throws IOException {
+        store.append(make(first, count));
+    }
+
+    /**
+     * @return  every sample from firstIndex() on, checking they come back consecutively
+     */
+    static SampleBatch readAll(SampleStore store) throws IOException {
+        long from = store.firstIndex();
+        SampleBatch all = new SampleBatch((int) (store.size() - from));
+        all.setFirstIndex(from);
+        SampleBatch page = new SampleBatch(37);         // doesn't line up with anything
+        while (store.read(from, page) > 0) {
+            assertEquals(from, page.getFirstIndex());
+            for (int i = 0; i < page.size(); i++) {
+                all.add(page.dates[i], page.values[i], page.goodPosture[i]);
+            }
+            from += page.size();
+        }
+        return all;
+    }
+
+    /**
+     * Check samples against what make() would have given them.
+     * @param first     sample number of the first one in the batch
+     */
+    static void assertSamples(long first, SampleBatch actual) {
+        SampleBatch expected = make(first, actual.size());
+        for (int i = 0; i < actual.size(); i++) {
+            assertEquals("date " + i, expected.dates[i], actual.dates[i]);
+            assertEquals("value " + i, expected.values[i], actual.values[i]);
+            assertEquals("flag " + i, expected.goodPosture[i], actual.goodPosture[i]);
+        }
+    }
+
+    static File newDirectory() throws IOException {
+        File directory = File.createTempFile("store", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to make " + directory);
+        }
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Cut some bytes off the end of a file, like a write which didn't finish.
+     */
+    static void truncate(File file, int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Flip the bits of one byte in a file.
+     */
+    static void corrupt(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(~b);
+        } finally {
+            raf.close();
+        }
+    }
+}